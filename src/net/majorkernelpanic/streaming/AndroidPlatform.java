@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The clock and the log of {@link Platform} on Android. Only {@link Platform} refers to this class, 
+ * by its name, the classes that run on a desktop JVM never load it.
+ */
+class AndroidPlatform implements Platform.Clock, Platform.Logger {
+
+	@Override
+	public long elapsedRealtime() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	@Override
+	public long threadCpuTimeNanos() {
+		return Debug.threadCpuTimeNanos();
+	}
+
+	@Override
+	public long elapsedCpuTime() {
+		return Process.getElapsedCpuTime();
+	}
+
+	@Override
+	public void println(int priority, String tag, String msg, Throwable tr) {
+		if (tr != null) msg += '\n'+Log.getStackTraceString(tr);
+		Log.println(priority, tag, msg);
+	}
+
+}
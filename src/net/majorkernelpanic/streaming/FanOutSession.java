@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.LinkedList;
+import net.majorkernelpanic.streaming.rtp.RtpSink;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import android.util.Log;
+
+/**
+ * Shares one {@link Session} between many clients.<br />
+ *
+ * The streams of the session are encoded and packetized only once, whatever the
+ * number of clients. Every client gets its own {@link RtpSink} on each track it sets up,
+ * with its own SSRC, sequence numbers and RTCP sender reports, over UDP or TCP.<br />
+ *
+ * The streams are started when the first client sets up a track, and stopped when
+ * the last client is released.
+ */
+public class FanOutSession {
+
+	public final static String TAG = "FanOutSession";
+
+	private final Session mSession;
+	private final LinkedList<Client> mClients = new LinkedList<>();
+
+	/**
+	 * @param session The session that will be shared, it should not have been started yet
+	 */
+	public FanOutSession(Session session) {
+		mSession = session;
+		// The real destinations are those of the clients
+		mSession.setDestination("0.0.0.0");
+	}
+
+	/** Returns the underlying {@link Session}. */
+	public Session getSession() {
+		return mSession;
+	}
+
+	/** Configures the streams of the session that are not already streaming. */
+	public synchronized void configure() throws IllegalStateException, IOException {
+		mSession.syncConfigure();
+	}
+
+	/** Returns a session description that can be sent to any client. */
+	public String getSessionDescription() {
+		return mSession.getSessionDescription();
+	}
+
+	/** Registers a new client. */
+	public synchronized Client addClient() {
+		Client client = new Client();
+		mClients.add(client);
+		return client;
+	}
+
+	/** Returns the number of clients registered with {@link #addClient()}. */
+	public synchronized int getClientCount() {
+		return mClients.size();
+	}
+
+	/** Stops the streams and releases the session, whatever the number of clients. */
+	public synchronized void release() {
+		for (Client client : mClients) {
+			client.removeSinks();
+		}
+		mClients.clear();
+		mSession.syncStop();
+		mSession.release();
+	}
+
+	private synchronized void start(int trackId, RtpSink sink) throws IOException {
+		MediaStream stream = (MediaStream) mSession.getTrack(trackId);
+		RtpSocket socket = stream.getPacketizer().getRtpSocket();
+		socket.setFanOut(true);
+		socket.addSink(sink);
+		mSession.syncStart(trackId);
+	}
+
+	/** Detaches the sinks of a client from the sockets, or attaches them again. The streams keep running for the other clients. */
+	private synchronized void suspend(Client client, boolean suspended) {
+		for (int trackId = 0; trackId < client.mSinks.length; trackId++) {
+			RtpSink sink = client.mSinks[trackId];
+			MediaStream stream = (MediaStream) mSession.getTrack(trackId);
+			if (sink == null || stream == null) continue;
+			RtpSocket socket = stream.getPacketizer().getRtpSocket();
+			if (suspended) socket.removeSink(sink);
+			else socket.addSink(sink);
+		}
+	}
+
+	private synchronized void remove(Client client) {
+		client.removeSinks();
+		if (mClients.remove(client) && mClients.isEmpty()) {
+			Log.d(TAG, "Last client left, stopping the session");
+			mSession.syncStop();
+		}
+	}
+
+	/**
+	 * A client of a {@link FanOutSession}.
+	 * Sets up the tracks it wants to receive with one of the setup methods.
+	 */
+	public class Client {
+
+		private final RtpSink[] mSinks = new RtpSink[2];
+
+		private Client() {}
+
+		/**
+		 * Sends the track to the client over UDP.
+		 * @param trackId The id of the track
+		 * @param dest The address of the client
+		 * @param rtpPort Destination port that will be used for RTP
+		 * @param rtcpPort Destination port that will be used for RTCP
+		 * @return The sink that has been created for the client
+		 */
+		public RtpSink setup(int trackId, InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+			RtpSink sink = createSink(trackId);
+			sink.setDestination(dest, rtpPort, rtcpPort);
+			start(trackId, sink);
+			return sink;
+		}
+
+		/**
+		 * Sends the track to the client over the TCP connection of the RTSP session.
+		 * @param trackId The id of the track
+		 * @param outputStream The output stream of the RTSP connection
+		 * @param channelIdentifier The interleaved channel used for RTP, the next one will be used for RTCP
+		 * @return The sink that has been created for the client
+		 */
+		public RtpSink setup(int trackId, OutputStream outputStream, byte channelIdentifier) throws IOException {
+			RtpSink sink = createSink(trackId);
+			sink.setOutputStream(outputStream, channelIdentifier);
+			start(trackId, sink);
+			return sink;
+		}
+
+		/** Returns the sink of the track, or null if the track has not been set up. */
+		public RtpSink getSink(int trackId) {
+			return mSinks[trackId];
+		}
+
+		/** Stops sending packets to the client until {@link #resume()}, its sinks are kept. */
+		public void pause() {
+			suspend(this, true);
+		}
+
+		/** Sends packets to the client again after {@link #pause()}, starting with the current group of pictures. */
+		public void resume() {
+			suspend(this, false);
+		}
+
+		/** Stops sending packets to the client. The streams are stopped if it was the last one. */
+		public void release() {
+			remove(this);
+		}
+
+		private RtpSink createSink(int trackId) {
+			if (!mSession.trackExists(trackId)) {
+				throw new IllegalStateException("Track "+trackId+" does not exist !");
+			}
+			removeSink(trackId);
+			mSinks[trackId] = new RtpSink();
+			return mSinks[trackId];
+		}
+
+		private void removeSink(int trackId) {
+			RtpSink sink = mSinks[trackId];
+			if (sink != null) {
+				MediaStream stream = (MediaStream) mSession.getTrack(trackId);
+				if (stream != null) {
+					stream.getPacketizer().getRtpSocket().removeSink(sink);
+				}
+				sink.close();
+				mSinks[trackId] = null;
+			}
+		}
+
+		private void removeSinks() {
+			removeSink(0);
+			removeSink(1);
+		}
+
+	}
+
+}
@@ -23,7 +23,9 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.util.Random;
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecBridge;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -96,6 +98,9 @@ public abstract class MediaStream implements Stream {
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
+
+	/** Receives the buffers of the codec with callbacks, null if the codec is polled. */
+	protected MediaCodecBridge mBridge;
 	
 	static {
 		// We determine whether or not the MediaCodec API should be used
@@ -244,6 +249,13 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getSentBytes();
 	}
 
+	/**
+	 * Returns what the receiver of the stream reported in its RTCP Receiver Reports.
+	 */
+	public ReceptionReport getReceptionReport() {
+		return mPacketizer.getRtpSocket().getReceptionReport();
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -300,9 +312,14 @@ public abstract class MediaStream implements Stream {
 					mPacketizer.stop();
 				} else {
 					mPacketizer.stop();
+					logOutputLatency();
 					mMediaCodec.stop();
 					mMediaCodec.release();
 					mMediaCodec = null;
+					if (mBridge != null) {
+						mBridge.release();
+						mBridge = null;
+					}
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -311,6 +328,14 @@ public abstract class MediaStream implements Stream {
 		}
 	}
  
+	/** Logs how long the frames waited between the output of the encoder and the network. */
+	protected void logOutputLatency() {
+		long latency = mPacketizer.getRtpSocket().getOutputLatency();
+		if (latency > 0) {
+			Log.d(TAG,"Encoder output to first packet: "+latency/1000+" us ("+(mBridge != null ? "callbacks" : "polling")+")");
+		}
+	}
+
 	protected abstract void encodeWithMediaRecorder() throws IOException;
 
 	protected abstract void encodeWithMediaCodec() throws IOException;
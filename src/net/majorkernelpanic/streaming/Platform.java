@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+/**
+ * The clock and the log used by the RTP, RTCP and RTSP classes, so that they also run on a desktop JVM.
+ *
+ * On Android they are backed by SystemClock, Debug and android.util.Log, see {@link AndroidPlatform}, which
+ * is loaded by name so that this class and the ones using it compile and run without the Android classes.
+ * Elsewhere the JVM provides them and the log goes to the standard error, see
+ * {@link net.majorkernelpanic.streaming.jvm.PipelineRunner}. Both can be replaced, for instance by a simulated clock.
+ */
+public final class Platform {
+
+	/** The clock of the system. */
+	public interface Clock {
+		/** Returns the time since boot, in ms, see android.os.SystemClock. */
+		long elapsedRealtime();
+		/** Returns the CPU time of the current Thread, in ns, see android.os.Debug. */
+		long threadCpuTimeNanos();
+		/** Returns the CPU time of the process, in ms, see android.os.Process. */
+		long elapsedCpuTime();
+	}
+
+	/** Writes the log messages, the priorities are the ones of android.util.Log. */
+	public interface Logger {
+		void println(int priority, String tag, String msg, Throwable tr);
+	}
+
+	public final static int VERBOSE = 2, DEBUG = 3, INFO = 4, WARN = 5, ERROR = 6;
+
+	private static volatile Clock sClock;
+	private static volatile Logger sLogger;
+
+	private final static String ANDROID_PLATFORM = "net.majorkernelpanic.streaming.AndroidPlatform";
+
+	static {
+		Object android = null;
+		// ART still calls itself Dalvik
+		if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+			try {
+				android = Class.forName(ANDROID_PLATFORM).getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				System.err.println("Platform: "+ANDROID_PLATFORM+" not found, "+e);
+			}
+		}
+		if (android != null) {
+			sClock = (Clock) android;
+			sLogger = (Logger) android;
+		} else {
+			sClock = new JvmClock();
+			sLogger = new StreamLogger(System.err, DEBUG);
+		}
+	}
+
+	private Platform() {}
+
+	public static void setClock(Clock clock) {
+		sClock = clock;
+	}
+
+	public static void setLogger(Logger logger) {
+		sLogger = logger;
+	}
+
+	public static long elapsedRealtime() {
+		return sClock.elapsedRealtime();
+	}
+
+	public static long threadCpuTimeNanos() {
+		return sClock.threadCpuTimeNanos();
+	}
+
+	public static long elapsedCpuTime() {
+		return sClock.elapsedCpuTime();
+	}
+
+	/** Same methods as android.util.Log, the classes that can run off-device import it instead. */
+	public final static class Log {
+
+		private Log() {}
+
+		public static void v(String tag, String msg) {
+			sLogger.println(VERBOSE, tag, msg, null);
+		}
+
+		public static void d(String tag, String msg) {
+			sLogger.println(DEBUG, tag, msg, null);
+		}
+
+		public static void i(String tag, String msg) {
+			sLogger.println(INFO, tag, msg, null);
+		}
+
+		public static void w(String tag, String msg) {
+			sLogger.println(WARN, tag, msg, null);
+		}
+
+		public static void w(String tag, String msg, Throwable tr) {
+			sLogger.println(WARN, tag, msg, tr);
+		}
+
+		public static void e(String tag, String msg) {
+			sLogger.println(ERROR, tag, msg, null);
+		}
+
+		public static void e(String tag, String msg, Throwable tr) {
+			sLogger.println(ERROR, tag, msg, tr);
+		}
+
+	}
+
+	/** Writes the messages above a priority in a stream. */
+	public static class StreamLogger implements Logger {
+
+		private final static String LEVELS = "??VDIWE";
+
+		private final PrintStream mOutput;
+		private final int mPriority;
+
+		public StreamLogger(PrintStream output, int priority) {
+			mOutput = output;
+			mPriority = priority;
+		}
+
+		@Override
+		public void println(int priority, String tag, String msg, Throwable tr) {
+			if (priority < mPriority) return;
+			synchronized (mOutput) {
+				mOutput.println(LEVELS.charAt(Math.min(priority, ERROR))+"/"+tag+": "+msg);
+				if (tr != null) tr.printStackTrace(mOutput);
+			}
+		}
+
+	}
+
+	private static class JvmClock implements Clock {
+
+		private final long mStart = System.nanoTime();
+		private Object mThreads, mSystem;
+		private Method mCpuTime, mProcessCpuTime;
+
+		public JvmClock() {
+			// java.lang.management is not part of Android
+			try {
+				mThreads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+				mCpuTime = Class.forName("java.lang.management.ThreadMXBean").getMethod("getCurrentThreadCpuTime");
+			} catch (Exception e) {
+				mCpuTime = null;
+			}
+			// Only some JVMs give the CPU time of the process
+			try {
+				mSystem = Class.forName("java.lang.management.ManagementFactory").getMethod("getOperatingSystemMXBean").invoke(null);
+				mProcessCpuTime = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getProcessCpuTime");
+			} catch (Exception e) {
+				mProcessCpuTime = null;
+			}
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return (System.nanoTime()-mStart)/1000000;
+		}
+
+		@Override
+		public long threadCpuTimeNanos() {
+			if (mCpuTime == null) return -1;
+			try {
+				return (Long) mCpuTime.invoke(mThreads);
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public long elapsedCpuTime() {
+			if (mProcessCpuTime == null) return -1;
+			try {
+				return (Long) mProcessCpuTime.invoke(mSystem)/1000000;
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+
+	}
+
+}
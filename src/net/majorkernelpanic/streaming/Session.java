@@ -29,6 +29,7 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -117,10 +118,6 @@ public class Session {
 	public Session() {
 		long uptime = System.currentTimeMillis();
 
-		HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.Session");
-		thread.start();
-
-		mHandler = new Handler(thread.getLooper());
 		mMainHandler = new Handler(Looper.getMainLooper());
 		mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
 		mOrigin = "127.0.0.1";
@@ -349,7 +346,7 @@ public class Session {
 	 * Configures all streams of the session.
 	 **/
 	public void configure() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -406,7 +403,7 @@ public class Session {
 	 * Asynchronously starts all streams of the session.
 	 **/
 	public void start() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -440,7 +437,7 @@ public class Session {
 					postSessionStarted();
 				}
 				if (getTrack(1-id) == null || !getTrack(1-id).isStreaming()) {
-					mHandler.post(mUpdateBitrate);
+					getHandler().post(mUpdateBitrate);
 				}
 			} catch (UnknownHostException e) {
 				postError(ERROR_UNKNOWN_HOST, id, e);
@@ -495,7 +492,7 @@ public class Session {
 
 	/** Stops all existing streams. */
 	public void stop() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				syncStop();
@@ -528,7 +525,7 @@ public class Session {
 	 * callback will be called with {@link #ERROR_INVALID_SURFACE}.
 	 */
 	public void startPreview() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				if (mVideoStream != null) {
@@ -558,7 +555,7 @@ public class Session {
 	 * Asynchronously stops the camera preview.
 	 */
 	public void stopPreview() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				if (mVideoStream != null) {
@@ -574,7 +571,7 @@ public class Session {
 	 * To find out which camera is currently selected, use {@link #getCamera()}
 	 **/
 	public void switchCamera() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				if (mVideoStream != null) {
@@ -613,7 +610,7 @@ public class Session {
 	 * {@link Session#getVideoTrack()} and {@link VideoStream#getFlashState()}.
 	 **/
 	public void toggleFlash() {
-		mHandler.post(new Runnable() {
+		getHandler().post(new Runnable() {
 			@Override
 			public void run() {
 				if (mVideoStream != null) {
@@ -631,7 +628,25 @@ public class Session {
 	public void release() {
 		removeAudioTrack();
 		removeVideoTrack();
-		mHandler.getLooper().quit();
+		synchronized (this) {
+			if (mHandler != null) {
+				mHandler.getLooper().quit();
+				mHandler = null;
+			}
+		}
+	}
+
+	/** 
+	 * The Thread of the session is only started when something is posted to it, so that 
+	 * a session that is never used, or only used synchronously, costs no Thread.
+	 */
+	private synchronized Handler getHandler() {
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread("net.majorkernelpanic.streaming.Session");
+			thread.start();
+			mHandler = new Handler(thread.getLooper());
+		}
+		return mHandler;
 	}
 
 	private void postPreviewStarted() {
@@ -705,7 +720,7 @@ public class Session {
 		public void run() {
 			if (isStreaming()) { 
 				postBitRate(getBitrate(), getSentBytes());
-				mHandler.postDelayed(mUpdateBitrate, 1000);
+				getHandler().postDelayed(mUpdateBitrate, 1000);
 			} else {
 				postBitRate(0, getSentBytes());
 			}
@@ -727,4 +742,14 @@ public class Session {
 			return mVideoStream;
 	}
 
+	/**
+	 * Returns what the receiver reported about a track in its RTCP Receiver Reports.
+	 * @param id 0 for the audio track, 1 for the video track
+	 * @return The report, or null if the track does not exist
+	 */
+	public ReceptionReport getReceptionReport(int id) {
+		Stream track = getTrack(id);
+		return track instanceof MediaStream ? ((MediaStream) track).getReceptionReport() : null;
+	}
+
 }
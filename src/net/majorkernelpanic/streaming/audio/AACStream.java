@@ -28,6 +28,7 @@ import java.util.Arrays;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecBridge;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
@@ -66,24 +67,7 @@ public class AACStream extends AudioStream {
 	};
 
 	/** There are 13 supported frequencies by ADTS. **/
-	public static final int[] AUDIO_SAMPLING_RATES = {
-		96000, // 0
-		88200, // 1
-		64000, // 2
-		48000, // 3
-		44100, // 4
-		32000, // 5
-		24000, // 6
-		22050, // 7
-		16000, // 8
-		12000, // 9
-		11025, // 10
-		8000,  // 11
-		7350,  // 12
-		-1,   // 13
-		-1,   // 14
-		-1,   // 15
-	};
+	public static final int[] AUDIO_SAMPLING_RATES = AACADTSPacketizer.SAMPLING_RATES;
 
 	private String mSessionDescription = null;
 	private int mProfile, mSamplingRateIndex, mChannel, mConfig;
@@ -225,6 +209,11 @@ public class AACStream extends AudioStream {
 					bufferSize);
 		}
 		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+		if (mSettings != null && mSettings.getBoolean("codec_callbacks", false)) {
+			// The Thread waits for the input buffers given by the bridge instead of polling the codec
+			mBridge = new MediaCodecBridge(TAG);
+			mBridge.attach(mMediaCodec);
+		}
 		MediaFormat format = new MediaFormat();
 		format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
 		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
@@ -236,19 +225,27 @@ public class AACStream extends AudioStream {
 		mAudioRecord.startRecording();
 		mMediaCodec.start();
 
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
-		final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
+		final MediaCodecBridge bridge = mBridge;
+		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec, bridge);
+		final ByteBuffer[] inputBuffers = bridge == null ? mMediaCodec.getInputBuffers() : null;
 
 		mThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				int len = 0, bufferIndex = 0;
 				byte[] buffer = new byte[bufferSize];
+				ByteBuffer input;
 				try {
 					while (!Thread.interrupted()) {
-						bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
-						if (bufferIndex>=0) {
-							inputBuffers[bufferIndex].clear();
+						if (bridge != null) {
+							bufferIndex = bridge.takeInputBuffer();
+							input = mMediaCodec.getInputBuffer(bufferIndex);
+						} else {
+							bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
+							input = bufferIndex>=0 ? inputBuffers[bufferIndex] : null;
+						}
+						if (input != null) {
+							input.clear();
 							len = mAudioRecord.read(buffer, 0, bufferSize);
 							if (len ==  AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
 								Log.e(TAG,"An error occured with the AudioRecord API !");
@@ -256,7 +253,7 @@ public class AACStream extends AudioStream {
 								if (mSettings != null && mSettings.getBoolean("audio_mute", false)) {
 									Arrays.fill(buffer, 0, len, (byte) 0);
 								}
-								inputBuffers[bufferIndex].put(buffer, 0, len);
+								input.put(buffer, 0, len);
 								//Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
 								mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
 							}
@@ -264,7 +261,9 @@ public class AACStream extends AudioStream {
 					}
 				} catch (RuntimeException e) {
 					e.printStackTrace();
-				}
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage());
+				} catch (InterruptedException ignore) {}
 			}
 		}, TAG);
 
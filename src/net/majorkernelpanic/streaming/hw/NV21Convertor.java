@@ -20,7 +20,6 @@ package net.majorkernelpanic.streaming.hw;
 
 import java.nio.ByteBuffer;
 import android.media.MediaCodecInfo;
-import android.util.Log;
 
 /**
  * Converts from NV21 to YUV420 semi planar or planar.
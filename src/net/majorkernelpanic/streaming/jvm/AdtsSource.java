@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
+
+/**
+ * Stands in for the audio capture and encoder on a desktop JVM: an ADTS stream for the 
+ * {@link AACADTSPacketizer}, one frame of 1024 samples at a time, in real time.
+ *
+ * The frames are read from a recorded ADTS file, played in a loop, or made up to reach a bitrate.
+ * The made up frames can't be decoded, they only have valid headers and the right sizes.
+ */
+public class AdtsSource extends InputStream {
+
+	/** Number of samples in an AAC frame. */
+	public final static int FRAME_SAMPLES = 1024;
+
+	private final ArrayList<byte[]> mFrames = new ArrayList<>();
+	private final long mPeriod;
+	private volatile boolean mClosed = false;
+	private volatile long mCount = 0;
+	private long mStart = 0;
+	private byte[] mFrame = null;
+	private int mPosition = 0;
+
+	private AdtsSource(int samplingRate) {
+		mPeriod = FRAME_SAMPLES*1000000000L/samplingRate;
+	}
+
+	/** Plays a recorded ADTS stream in a loop, its sampling rate is read from the first header. */
+	public static AdtsSource fromFile(File file) throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		AdtsSource source = null;
+		int i = 0;
+		while (i+7 <= data.length) {
+			if ((data[i]&0xFF) != 0xFF || (data[i+1]&0xF0) != 0xF0) {
+				i++;
+				continue;
+			}
+			int length = (data[i+3]&0x03) << 11 | (data[i+4]&0xFF) << 3 | (data[i+5]&0xFF) >> 5;
+			if (length < 7 || i+length > data.length) break;
+			if (source == null) {
+				int rate = AACADTSPacketizer.SAMPLING_RATES[(data[i+2]&0x3C) >> 2];
+				if (rate <= 0) throw new IOException("Invalid sampling rate in "+file);
+				source = new AdtsSource(rate);
+			}
+			byte[] frame = new byte[length];
+			System.arraycopy(data, i, frame, 0, length);
+			source.mFrames.add(frame);
+			i += length;
+		}
+		if (source == null) throw new IOException("No ADTS frame in "+file);
+		return source;
+	}
+
+	/**
+	 * Makes up an AAC LC mono stream.
+	 * @param samplingRate The sampling rate, one of {@link AACADTSPacketizer#SAMPLING_RATES}
+	 * @param bitrate The bitrate in bit/s
+	 */
+	public static AdtsSource synthetic(int samplingRate, int bitrate) {
+		int index = -1;
+		for (int i=0; i<AACADTSPacketizer.SAMPLING_RATES.length; i++) {
+			if (AACADTSPacketizer.SAMPLING_RATES[i] == samplingRate) index = i;
+		}
+		if (index < 0) throw new IllegalArgumentException("Invalid sampling rate: "+samplingRate);
+		AdtsSource source = new AdtsSource(samplingRate);
+		// The length of a frame is on 13 bits
+		int length = (int) Math.min(8191, Math.max(8, 7+(long) bitrate*FRAME_SAMPLES/samplingRate/8));
+		Random random = new Random(0);
+		byte[] frame = new byte[length];
+		random.nextBytes(frame);
+		// Sync word, MPEG-4, no CRC
+		frame[0] = (byte) 0xFF;
+		frame[1] = (byte) 0xF1;
+		// AAC LC, sampling rate, mono
+		frame[2] = (byte) (0x40 | index << 2);
+		frame[3] = (byte) (0x40 | (length >> 11)&0x03);
+		frame[4] = (byte) (length >> 3);
+		frame[5] = (byte) ((length&0x07) << 5 | 0x1F);
+		frame[6] = (byte) 0xFC;
+		source.mFrames.add(frame);
+		return source;
+	}
+
+	/** Returns the number of frames given to the packetizer. */
+	public long getFrameCount() {
+		return mCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!next()) return -1;
+		return mFrame[mPosition++]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!next()) return -1;
+		int n = Math.min(length, mFrame.length-mPosition);
+		System.arraycopy(mFrame, mPosition, buffer, offset, n);
+		mPosition += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	/** Waits for the time of the next frame once the current one has been read, returns false if closed. */
+	private boolean next() throws IOException {
+		if (mClosed) throw new IOException("This InputStream was closed");
+		if (mFrame != null && mPosition < mFrame.length) return true;
+		long now = System.nanoTime();
+		if (mStart == 0 || now-(mStart+mCount*mPeriod) > 1000000000L) {
+			mStart = now-mCount*mPeriod;
+		}
+		long next = mStart+mCount*mPeriod;
+		while ((now = System.nanoTime()) < next) {
+			LockSupport.parkNanos(next-now);
+			if (Thread.currentThread().isInterrupted()) throw new IOException("Interrupted");
+		}
+		mFrame = mFrames.get((int) (mCount % mFrames.size()));
+		mPosition = 0;
+		mCount++;
+		return true;
+	}
+
+}
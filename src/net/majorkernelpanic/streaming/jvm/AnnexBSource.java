@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import net.majorkernelpanic.streaming.rtp.AccessUnit;
+import net.majorkernelpanic.streaming.rtp.AnnexBSplitter;
+import net.majorkernelpanic.streaming.rtp.EncoderSource;
+
+/**
+ * Stands in for the video encoder on a desktop JVM: gives H.264 or H.265 access units to the 
+ * {@link net.majorkernelpanic.streaming.rtp.H264Packetizer} or the H265Packetizer at a constant frame rate.
+ *
+ * The frames are read from a recorded Annex B file, played in a loop, or made up to reach a bitrate:
+ * an IDR frame preceded by an SPS and a PPS every GOP, P frames in between. The made up slices 
+ * can't be decoded, they only have the sizes and the NAL unit types of a real stream.
+ * Like a MediaCodec, the source has a few output buffers: it stops when the packetizer and the
+ * RtpSocket hold all of them.
+ */
+public class AnnexBSource extends InputStream implements EncoderSource {
+
+	/** Number of access units that can be held by the packetizer and the socket at the same time. */
+	public final static int BUFFERS = 8;
+
+	/** IDR frames are that many times larger than P frames in a synthetic stream. */
+	public final static int KEY_FRAME_RATIO = 4;
+
+	// A Baseline SPS and PPS, 640x480
+	private final static byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6, (byte) 0x80, 0x6d, 0x0a, 0x13, 0x50};
+	private final static byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+	private final ArrayList<ByteBuffer> mFrames = new ArrayList<>();
+	private final ArrayList<Boolean> mKeyFrames = new ArrayList<>();
+	private final int[] mSequence;
+	private final boolean mHevc;
+	private final long mPeriod;
+	private final AccessUnit[] mUnits = new AccessUnit[BUFFERS];
+	private final ArrayBlockingQueue<Integer> mFree = new ArrayBlockingQueue<>(BUFFERS);
+	private volatile boolean mClosed = false;
+	private volatile boolean mPaced = true;
+	private volatile long mCount = 0;
+	private long mStart = 0, mOutputTime = 0;
+
+	private AnnexBSource(boolean hevc, int fps, int[] sequence) {
+		mHevc = hevc;
+		mPeriod = 1000000000L/fps;
+		mSequence = sequence;
+		for (int i=0; i<BUFFERS; i++) {
+			mUnits[i] = new AccessUnit(this, i);
+			mFree.add(i);
+		}
+	}
+
+	/**
+	 * Plays a recorded Annex B stream in a loop.
+	 * @param file The stream, H.265 if its name ends with .h265 or .hevc
+	 * @param fps The frame rate
+	 */
+	public static AnnexBSource fromFile(File file, int fps) throws IOException {
+		String name = file.getName().toLowerCase();
+		boolean hevc = name.endsWith(".h265") || name.endsWith(".hevc");
+		return fromData(Files.readAllBytes(file.toPath()), hevc, fps);
+	}
+
+	/**
+	 * Plays a recorded Annex B stream in a loop.
+	 * @param data The stream
+	 * @param hevc true if it is H.265, false if it is H.264
+	 * @param fps The frame rate
+	 */
+	public static AnnexBSource fromData(byte[] data, boolean hevc, int fps) throws IOException {
+		ArrayList<int[]> frames = split(ByteBuffer.wrap(data), hevc);
+		if (frames.isEmpty()) throw new IOException("No access unit in the stream");
+		int[] sequence = new int[frames.size()];
+		AnnexBSource source = new AnnexBSource(hevc, fps, sequence);
+		for (int i=0; i<frames.size(); i++) {
+			int[] frame = frames.get(i);
+			source.mFrames.add(ByteBuffer.wrap(data, frame[0], frame[1]-frame[0]).slice());
+			source.mKeyFrames.add(frame[2] != 0);
+			sequence[i] = i;
+		}
+		return source;
+	}
+
+	/**
+	 * Makes up an H.264 stream.
+	 * @param fps The frame rate
+	 * @param bitrate The bitrate in bit/s
+	 * @param gop The number of frames between two IDR frames
+	 */
+	public static AnnexBSource synthetic(int fps, int bitrate, int gop) {
+		int[] sequence = new int[Math.max(gop, 1)];
+		for (int i=1; i<sequence.length; i++) sequence[i] = 1;
+		AnnexBSource source = new AnnexBSource(false, fps, sequence);
+		int p = (int) Math.max(16, (long) bitrate*sequence.length/fps/8/(KEY_FRAME_RATIO+sequence.length-1));
+		Random random = new Random(0);
+		source.mFrames.add(makeFrame(random, p*KEY_FRAME_RATIO, 0x65, true));
+		source.mKeyFrames.add(true);
+		source.mFrames.add(makeFrame(random, p, 0x41, false));
+		source.mKeyFrames.add(false);
+		return source;
+	}
+
+	/** 
+	 * When the source is not paced, the frames are given as fast as the packetizer reads them,
+	 * their timestamps still follow the frame rate. Used to benchmark the packetizers.
+	 */
+	public void setPaced(boolean paced) {
+		mPaced = paced;
+	}
+
+	/** Returns true if the stream is H.265. */
+	public boolean isHevc() {
+		return mHevc;
+	}
+
+	/** Returns the number of access units after which the stream starts again. */
+	public int getLoopLength() {
+		return mSequence.length;
+	}
+
+	/** Returns the number of access units given to the packetizer. */
+	public long getFrameCount() {
+		return mCount;
+	}
+
+	@Override
+	public AccessUnit readAccessUnit() throws IOException {
+		int index;
+		try {
+			index = mFree.take();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		if (mClosed) {
+			mFree.offer(index);
+			throw new IOException("This InputStream was closed");
+		}
+
+		// Waits for the time of the frame, the schedule is reset after a long stall
+		long now = System.nanoTime();
+		if (mStart == 0 || now-(mStart+mCount*mPeriod) > 1000000000L) {
+			mStart = now-mCount*mPeriod;
+		}
+		long next = mStart+mCount*mPeriod;
+		while (mPaced && (now = System.nanoTime()) < next) {
+			LockSupport.parkNanos(next-now);
+			if (Thread.interrupted()) {
+				mFree.offer(index);
+				throw new IOException("Interrupted");
+			}
+		}
+
+		int frame = mSequence[(int) (mCount % mSequence.length)];
+		ByteBuffer buffer = mFrames.get(frame);
+		mUnits[index].set(buffer, 0, buffer.capacity(), mCount*mPeriod/1000, mKeyFrames.get(frame) ? AccessUnit.FLAG_KEY_FRAME : 0);
+		mOutputTime = System.nanoTime();
+		mCount++;
+		return mUnits[index];
+	}
+
+	@Override
+	public void releaseOutputBuffer(int index) {
+		mFree.offer(index);
+	}
+
+	@Override
+	public long getLastOutputTime() {
+		return mOutputTime;
+	}
+
+	/** The packetizer reads the access units with {@link #readAccessUnit()}, the stream itself is empty. */
+	@Override
+	public int read() throws IOException {
+		return -1;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	/** An Annex B frame with random slice data, without zero bytes so that no start code is emulated. */
+	private static ByteBuffer makeFrame(Random random, int size, int nal, boolean key) {
+		ByteBuffer frame = ByteBuffer.allocate(size+(key ? SPS.length+PPS.length+8 : 0)+4);
+		if (key) {
+			frame.putInt(1).put(SPS);
+			frame.putInt(1).put(PPS);
+		}
+		frame.putInt(1).put((byte) nal);
+		// first_mb_in_slice is 0
+		frame.put((byte) 0x88);
+		while (frame.hasRemaining()) frame.put((byte) (1+random.nextInt(255)));
+		frame.clear();
+		return frame;
+	}
+
+	/** 
+	 * Splits a stream in access units, a new one starts with the first slice of a picture or with 
+	 * the parameter sets, AUD or SEI that precede it.
+	 * @return The start, the end and whether it is a key frame (1) or not (0), for each access unit
+	 */
+	private static ArrayList<int[]> split(ByteBuffer data, boolean hevc) {
+		ArrayList<int[]> frames = new ArrayList<>();
+		AnnexBSplitter splitter = new AnnexBSplitter();
+		splitter.reset(data, 0, data.capacity());
+		int start = 0, key = 0;
+		boolean slice = false;
+		while (splitter.next()) {
+			int nal = splitter.getOffset(), length = splitter.getLength();
+			int type, next = length > (hevc ? 2 : 1) ? data.get(nal+(hevc ? 2 : 1))&0xFF : 0;
+			boolean vcl, first, prefix, idr;
+			if (hevc) {
+				type = (data.get(nal)>>1)&0x3F;
+				vcl = type < 32;
+				first = vcl && (next&0x80) != 0;
+				prefix = type == 32 || type == 33 || type == 34 || type == 35 || type == 39 || (type >= 41 && type <= 44) || (type >= 48 && type <= 55);
+				idr = type >= 16 && type <= 21;
+			} else {
+				type = data.get(nal)&0x1F;
+				vcl = type >= 1 && type <= 5;
+				first = vcl && (next&0x80) != 0;
+				prefix = type == 6 || type == 7 || type == 8 || type == 9 || (type >= 14 && type <= 18);
+				idr = type == 5;
+			}
+			if (slice && (first || prefix)) {
+				// The start code of this NAL unit ends the previous access unit
+				int end = Math.max(start, nal-3);
+				frames.add(new int[] {start, end, key});
+				start = end;
+				key = 0;
+				slice = false;
+			}
+			if (vcl) slice = true;
+			if (idr) key = 1;
+		}
+		if (slice) frames.add(new int[] {start, data.capacity(), key});
+		return frames;
+	}
+
+}
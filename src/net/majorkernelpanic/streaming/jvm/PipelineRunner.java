@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+/**
+ * Runs the packetizers and the RtpSockets on a desktop JVM, fed by an {@link AnnexBSource} and an
+ * {@link AdtsSource} instead of MediaCodec and AudioRecord, to load test and profile them on a plain box.
+ *
+ * Each stream sends its video to port+4*i (RTCP on the next port) and its audio to port+4*i+2.
+ * The bitrate, the delay in the FIFOs and the latency from the source to the network are printed every second.
+ *
+ * Usage: java net.majorkernelpanic.streaming.jvm.PipelineRunner host port [options]
+ * <pre>
+ *   -video file.h264|file.h265|synthetic  (synthetic)
+ *   -audio file.aac|synthetic|none        (none)
+ *   -fps 30 -kbps 2000 -gop 60            (frame rate, bitrate and GOP of the synthetic video)
+ *   -streams 1                            (number of streams, each one with its own sources)
+ *   -seconds 10                           (0 runs until killed)
+ *   -batch                                (batched send, see RtpSocket#setBatchedSend)
+ *   -metrics                              (measures the latencies, the {@link Metrics} are printed at the end)
+ * </pre>
+ */
+public class PipelineRunner {
+
+	public final static String TAG = "PipelineRunner";
+
+	private final ArrayList<AbstractPacketizer> mPacketizers = new ArrayList<>();
+	private final ArrayList<InputStream> mSources = new ArrayList<>();
+	private long mLastSent = 0, mLastReport = 0;
+
+	/** Adds a video stream, H.264 or H.265 depending on the source. */
+	public void addVideo(AnnexBSource source, InetAddress dest, int port, boolean batched) {
+		AbstractPacketizer packetizer = source.isHevc() ? new H265Packetizer() : new H264Packetizer();
+		add(packetizer, source, dest, port, batched);
+	}
+
+	/** Adds an audio stream. */
+	public void addAudio(AdtsSource source, InetAddress dest, int port, boolean batched) {
+		add(new AACADTSPacketizer(), source, dest, port, batched);
+	}
+
+	private void add(AbstractPacketizer packetizer, InputStream source, InetAddress dest, int port, boolean batched) {
+		packetizer.setDestination(dest, port, port+1);
+		packetizer.setInputStream(source);
+		packetizer.getRtpSocket().setBatchedSend(batched);
+		mPacketizers.add(packetizer);
+		mSources.add(source);
+	}
+
+	public void start() {
+		for (AbstractPacketizer packetizer : mPacketizers) packetizer.start();
+	}
+
+	public void stop() {
+		for (AbstractPacketizer packetizer : mPacketizers) {
+			packetizer.stop();
+			packetizer.getRtpSocket().close();
+		}
+	}
+
+	/** Prints the bitrate of all the streams since the previous report, and the worst delays among them. */
+	public void report(PrintStream out, long elapsed) {
+		long sent = 0, queue = 0, latency = 0, frames = 0;
+		for (int i=0; i<mPacketizers.size(); i++) {
+			RtpSocket socket = mPacketizers.get(i).getRtpSocket();
+			sent += socket.getSentBytes();
+			queue = Math.max(queue, socket.getQueueDelay());
+			latency = Math.max(latency, socket.getOutputLatency());
+			InputStream source = mSources.get(i);
+			if (source instanceof AnnexBSource) frames += ((AnnexBSource) source).getFrameCount();
+		}
+		long bitrate = elapsed > mLastReport ? (sent-mLastSent)*8000/(elapsed-mLastReport) : 0;
+		mLastSent = sent;
+		mLastReport = elapsed;
+		out.println(elapsed/1000+" s: "+bitrate/1000+" kbit/s, "+sent/1024+" KiB sent, "+frames+" video frames, "+
+				"FIFO delay: "+queue/1000+" us, source to network: "+latency/1000+" us");
+	}
+
+	/** Prints what the Thread of each socket did. */
+	public void summary(PrintStream out) {
+		for (AbstractPacketizer packetizer : mPacketizers) {
+			RtpSocket socket = packetizer.getRtpSocket();
+			out.println(packetizer.getClass().getSimpleName()+" ssrc: "+Integer.toHexString(socket.getSSRC())+" "+socket.getBatchStatistics());
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: PipelineRunner host port [-video file|synthetic] [-audio file|synthetic|none] "+
+					"[-fps 30] [-kbps 2000] [-gop 60] [-streams 1] [-seconds 10] [-batch] [-metrics]");
+			System.exit(1);
+		}
+		InetAddress dest = InetAddress.getByName(args[0]);
+		int port = Integer.parseInt(args[1]);
+		String video = "synthetic", audio = "none";
+		int fps = 30, kbps = 2000, gop = 60, streams = 1, seconds = 10;
+		boolean batched = false;
+		for (int i=2; i<args.length; i++) {
+			switch (args[i]) {
+				case "-video": video = args[++i]; break;
+				case "-audio": audio = args[++i]; break;
+				case "-fps": fps = Integer.parseInt(args[++i]); break;
+				case "-kbps": kbps = Integer.parseInt(args[++i]); break;
+				case "-gop": gop = Integer.parseInt(args[++i]); break;
+				case "-streams": streams = Integer.parseInt(args[++i]); break;
+				case "-seconds": seconds = Integer.parseInt(args[++i]); break;
+				case "-batch": batched = true; break;
+				case "-metrics": Metrics.setEnabled(true); break;
+				default: throw new IllegalArgumentException("Unknown option: "+args[i]);
+			}
+		}
+
+		PipelineRunner runner = new PipelineRunner();
+		for (int i=0; i<streams; i++) {
+			AnnexBSource source = video.equals("synthetic") ? AnnexBSource.synthetic(fps, kbps*1000, gop) : AnnexBSource.fromFile(new File(video), fps);
+			runner.addVideo(source, dest, port+4*i, batched);
+			if (!audio.equals("none")) {
+				runner.addAudio(audio.equals("synthetic") ? AdtsSource.synthetic(44100, 64000) : AdtsSource.fromFile(new File(audio)), dest, port+4*i+2, batched);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		runner.start();
+		while (seconds <= 0 || System.currentTimeMillis()-start < seconds*1000L) {
+			Thread.sleep(1000);
+			runner.report(System.out, System.currentTimeMillis()-start);
+		}
+		runner.stop();
+		runner.summary(System.out);
+		if (Metrics.isEnabled()) System.out.print(Metrics.snapshot());
+	}
+
+}
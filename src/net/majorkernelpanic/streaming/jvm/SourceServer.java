@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.GopCache;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import net.majorkernelpanic.streaming.rtp.RtpSink;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtsp.RequestProcessor;
+
+/**
+ * An RTSP server on a desktop JVM: the signaling of the {@link RequestProcessor} of the RtspServer of the
+ * device, and a video track fed by an {@link AnnexBSource} instead of the encoder, to load test them on a plain box.
+ *
+ * Like the clients of a FanOutSession, all the clients share the packetizer and its {@link RtpSocket}: each one
+ * gets its own {@link RtpSink}, and the group of pictures in the {@link GopCache} before the live packets.
+ * A client that sends its client_port in the Transport header of its SETUP receives the track over UDP,
+ * the others interleaved in their RTSP connection. The source runs from {@link #start(int)} to {@link #stop()}.
+ */
+public class SourceServer extends RequestProcessor {
+
+	public final static String TAG = "SourceServer";
+
+	/** The id of the video track, the same as in a Session. */
+	public final static int VIDEO_TRACK = 1;
+
+	private final AnnexBSource mSource;
+	private final AbstractPacketizer mPacketizer;
+
+	public SourceServer(AnnexBSource source) {
+		mSource = source;
+		mPacketizer = source.isHevc() ? new H265Packetizer() : new H264Packetizer();
+		mPacketizer.setInputStream(source);
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		socket.setFanOut(true);
+		socket.setGopCache(new GopCache(GopCache.DEFAULT_MAX_BYTES));
+	}
+
+	/** Starts the source, then accepts connections. */
+	@Override
+	public synchronized void start(int port) throws IOException {
+		if (isStarted()) return;
+		mPacketizer.start();
+		try {
+			super.start(port);
+		} catch (IOException e) {
+			mPacketizer.stop();
+			throw e;
+		}
+	}
+
+	/** Closes the connections, then stops the source for good. */
+	@Override
+	public synchronized void stop() {
+		if (!isStarted()) return;
+		super.stop();
+		mPacketizer.stop();
+		mPacketizer.getRtpSocket().close();
+	}
+
+	public AnnexBSource getSource() {
+		return mSource;
+	}
+
+	/** Returns the socket shared by the clients. */
+	public RtpSocket getRtpSocket() {
+		return mPacketizer.getRtpSocket();
+	}
+
+	@Override
+	protected Streams createStreams(Client client) {
+		return new SinkStreams(client);
+	}
+
+	@Override
+	protected long getBitrate() {
+		return mPacketizer.getRtpSocket().getBitrate();
+	}
+
+	private String getSessionDescription(Socket client) {
+		String origin = client.getLocalAddress().getHostAddress();
+		return "v=0\r\n"+
+				"o=- 0 0 IN IP4 "+origin+"\r\n"+
+				"s=Unnamed\r\n"+
+				"i=N/A\r\n"+
+				"c=IN IP4 "+client.getInetAddress().getHostAddress()+"\r\n"+
+				"t=0 0\r\n"+
+				"a=recvonly\r\n"+
+				"m=video 0 RTP/AVP 96\r\n"+
+				"a=rtpmap:96 "+(mSource.isHevc() ? "H265" : "H264")+"/90000\r\n"+
+				// The parameter sets are sent in band, before each key frame
+				(mSource.isHevc() ? "" : "a=fmtp:96 packetization-mode=1\r\n")+
+				"a=control:trackID="+VIDEO_TRACK+"\r\n";
+	}
+
+	/** The sink of a client, added to the shared socket while the client plays. */
+	private class SinkStreams implements Streams {
+
+		private final Client mClient;
+		private volatile RtpSink mSink;
+		private boolean mDescribed = false, mPaused = false;
+
+		SinkStreams(Client client) {
+			mClient = client;
+		}
+
+		@Override
+		public String describe(String uri) {
+			mDescribed = true;
+			return getSessionDescription(mClient.getSocket());
+		}
+
+		@Override
+		public boolean trackExists(int trackId) {
+			return mDescribed && trackId == VIDEO_TRACK;
+		}
+
+		@Override
+		public String setup(int trackId, int rtpPort, int rtcpPort) throws IOException {
+			RtpSocket socket = mPacketizer.getRtpSocket();
+			removeSink();
+			RtpSink sink = new RtpSink();
+			String transport;
+			if (rtpPort < 0) {
+				byte channel = 0;
+				sink.setOutputStream(mClient.getOutput(), channel);
+				mClient.setReceiver(channel+1, sink.getRtcpReceiver());
+				mClient.getOutput().setVideoChannel(channel, socket.getKeyFrameRequester());
+				transport = "RTP/AVP/TCP;unicast;interleaved=0-1";
+			} else {
+				InetAddress destination = mClient.getSocket().getInetAddress();
+				sink.setDestination(destination, rtpPort, rtcpPort);
+				transport = "RTP/AVP/UDP;unicast"+
+						";destination="+destination.getHostAddress()+
+						";client_port="+rtpPort+"-"+rtcpPort+
+						";server_port="+socket.getLocalPorts()[0]+"-"+sink.getLocalPort();
+			}
+			mSink = sink;
+			if (!mPaused) socket.addSink(sink);
+			return transport+";ssrc="+Integer.toHexString(sink.getSSRC());
+		}
+
+		@Override
+		public void play() {
+			RtpSink sink = mSink;
+			if (mPaused && sink != null) mPacketizer.getRtpSocket().addSink(sink);
+			mPaused = false;
+		}
+
+		@Override
+		public void pause() {
+			RtpSink sink = mSink;
+			if (!mPaused && sink != null) {
+				mPacketizer.getRtpSocket().removeSink(sink);
+				mPaused = true;
+			}
+		}
+
+		@Override
+		public void release() {
+			removeSink();
+			mDescribed = mPaused = false;
+		}
+
+		@Override
+		public ReceptionReport getReceptionReport(int trackId) {
+			RtpSink sink = mSink;
+			return trackId == VIDEO_TRACK && sink != null ? sink.getReceptionReport() : null;
+		}
+
+		private void removeSink() {
+			RtpSink sink = mSink;
+			if (sink != null) {
+				mPacketizer.getRtpSocket().removeSink(sink);
+				sink.close();
+				mSink = null;
+			}
+		}
+
+	}
+
+}
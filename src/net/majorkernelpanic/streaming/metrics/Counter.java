@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter of the {@link Metrics} registry, incremented without locks from any thread.
+ */
+public final class Counter {
+
+	private final String mName;
+	private final AtomicLong mValue = new AtomicLong();
+
+	Counter(String name) {
+		mName = name;
+	}
+
+	/** Returns the name of the counter, with its labels. */
+	public String getName() {
+		return mName;
+	}
+
+	public void increment() {
+		mValue.incrementAndGet();
+	}
+
+	public void add(long value) {
+		mValue.addAndGet(value);
+	}
+
+	public long get() {
+		return mValue.get();
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of the {@link Metrics} registry, recorded without locks from any thread.
+ *
+ * Like an HDR histogram, the buckets are fixed and their width grows with the values: each power of two
+ * is split in {@link #SUB_BUCKETS} buckets, so a percentile is off by less than 25% whatever the range.
+ * Recording a value is an increment of its bucket, of the count and of the sum.
+ */
+public final class Histogram {
+
+	/** Number of buckets per power of two. */
+	public final static int SUB_BUCKETS = 4;
+
+	/** Number of buckets, enough for any positive long. */
+	public final static int BUCKETS = SUB_BUCKETS*62;
+
+	private final String mName;
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong(), mSum = new AtomicLong(), mMax = new AtomicLong();
+
+	Histogram(String name) {
+		mName = name;
+	}
+
+	/** Returns the name of the histogram, with its labels. */
+	public String getName() {
+		return mName;
+	}
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+		mBuckets.incrementAndGet(index(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value));
+	}
+
+	/**
+	 * Records the time elapsed since start.
+	 * @param start A time returned by {@link Metrics#now()}, nothing is recorded if it is 0
+	 */
+	public void since(long start) {
+		if (start != 0) record(System.nanoTime()-start);
+	}
+
+	/** Returns a copy of the histogram, the buckets are not read atomically. */
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) buckets[i] = mBuckets.get(i);
+		return new Snapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+	}
+
+	/** Returns the bucket of a value. */
+	static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int msb = 63-Long.numberOfLeadingZeros(value);
+		return SUB_BUCKETS*(msb-1)+(int) ((value>>(msb-2))&(SUB_BUCKETS-1));
+	}
+
+	/** Returns the smallest value of a bucket. */
+	static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int msb = index/SUB_BUCKETS+1;
+		return (long) (SUB_BUCKETS+index%SUB_BUCKETS)<<(msb-2);
+	}
+
+	/** The state of a histogram at some point. */
+	public static class Snapshot {
+
+		private final long[] mBuckets;
+		private final long mCount, mSum, mMax;
+
+		Snapshot(long[] buckets, long count, long sum, long max) {
+			mBuckets = buckets;
+			mCount = count;
+			mSum = sum;
+			mMax = max;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getSum() {
+			return mSum;
+		}
+
+		public long getMax() {
+			return mMax;
+		}
+
+		public long getMean() {
+			return mCount > 0 ? mSum/mCount : 0;
+		}
+
+		/**
+		 * Returns the largest value of the bucket where the percentile falls, or the maximum if it is smaller.
+		 * @param quantile Between 0 and 1
+		 */
+		public long getPercentile(double quantile) {
+			long total = 0;
+			for (long count : mBuckets) total += count;
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(quantile*total)), sum = 0;
+			for (int i=0; i<BUCKETS; i++) {
+				sum += mBuckets[i];
+				if (sum >= rank) return i+1 < BUCKETS ? Math.min(mMax, lowerBound(i+1)-1) : mMax;
+			}
+			return mMax;
+		}
+
+	}
+
+}
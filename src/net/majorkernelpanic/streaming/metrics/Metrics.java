@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.metrics;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The registry of the counters and histograms of the library.
+ *
+ * A metric is created once, when a socket, a packetizer or a connection is, and then updated without 
+ * locks nor allocations. Its name can carry labels, like rtp_sent_bytes{ssrc="12ab34cd"}, see {@link #name(String, String...)}.
+ * The durations are only measured when the registry is enabled: {@link #now()} returns 0 otherwise, 
+ * and {@link Histogram#since(long)} ignores it. Counters always count.
+ *
+ * {@link #snapshot()} copies everything, its toString() is the text exposition format of Prometheus,
+ * the histograms being written as summaries (p50, p90, p99, p99.9 and the maximum as quantile 1).
+ */
+public final class Metrics {
+
+	public final static String TAG = "Metrics";
+
+	private final static ConcurrentSkipListMap<String,Object> sMetrics = new ConcurrentSkipListMap<>();
+	private final static ConcurrentHashMap<String,String> sHelp = new ConcurrentHashMap<>();
+	private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+
+	/** The metrics of a family are next to each other. */
+	private final static Comparator<String> BY_FAMILY = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int order = base(a).compareTo(base(b));
+			return order != 0 ? order : a.compareTo(b);
+		}
+	};
+
+	private static volatile boolean sEnabled = false;
+
+	private Metrics() {}
+
+	/** Enables the measure of the durations, disabled by default. */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/** Returns {@link System#nanoTime()}, or 0 if the registry is disabled. */
+	public static long now() {
+		return sEnabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Returns the counter with that name, it is created the first time.
+	 * @param help A description of the counters that share the base name
+	 */
+	public static Counter counter(String name, String help) {
+		Object metric = sMetrics.get(name);
+		if (metric == null) {
+			register(name, help);
+			Object previous = sMetrics.putIfAbsent(name, metric = new Counter(name));
+			if (previous != null) metric = previous;
+		}
+		if (!(metric instanceof Counter)) throw new IllegalArgumentException(name+" is not a counter");
+		return (Counter) metric;
+	}
+
+	/**
+	 * Returns the histogram with that name, it is created the first time.
+	 * @param help A description of the histograms that share the base name
+	 */
+	public static Histogram histogram(String name, String help) {
+		Object metric = sMetrics.get(name);
+		if (metric == null) {
+			register(name, help);
+			Object previous = sMetrics.putIfAbsent(name, metric = new Histogram(name));
+			if (previous != null) metric = previous;
+		}
+		if (!(metric instanceof Histogram)) throw new IllegalArgumentException(name+" is not a histogram");
+		return (Histogram) metric;
+	}
+
+	/** Removes the metrics of a socket or a client that is gone. */
+	public static void remove(String... names) {
+		for (String name : names) {
+			if (name != null) sMetrics.remove(name);
+		}
+	}
+
+	/** 
+	 * Adds labels to a name.
+	 * @param labels The names and the values of the labels
+	 */
+	public static String name(String name, String... labels) {
+		StringBuilder builder = new StringBuilder(name).append('{');
+		for (int i=0; i+1<labels.length; i+=2) {
+			if (i>0) builder.append(',');
+			builder.append(labels[i]).append("=\"").append(labels[i+1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		return builder.append('}').toString();
+	}
+
+	private static void register(String name, String help) {
+		if (help != null) sHelp.putIfAbsent(base(name), help);
+	}
+
+	private static String base(String name) {
+		int brace = name.indexOf('{');
+		return brace < 0 ? name : name.substring(0, brace);
+	}
+
+	/** Copies all the metrics. */
+	public static Snapshot snapshot() {
+		TreeMap<String,Long> counters = new TreeMap<>(BY_FAMILY);
+		TreeMap<String,Histogram.Snapshot> histograms = new TreeMap<>(BY_FAMILY);
+		for (Map.Entry<String,Object> entry : sMetrics.entrySet()) {
+			Object metric = entry.getValue();
+			if (metric instanceof Counter) {
+				counters.put(entry.getKey(), ((Counter) metric).get());
+			} else {
+				histograms.put(entry.getKey(), ((Histogram) metric).snapshot());
+			}
+		}
+		return new Snapshot(counters, histograms);
+	}
+
+	/** The values of the metrics at some point. */
+	public static class Snapshot {
+
+		private final long mTime = System.currentTimeMillis();
+		private final Map<String,Long> mCounters;
+		private final Map<String,Histogram.Snapshot> mHistograms;
+
+		Snapshot(TreeMap<String,Long> counters, TreeMap<String,Histogram.Snapshot> histograms) {
+			mCounters = Collections.unmodifiableMap(counters);
+			mHistograms = Collections.unmodifiableMap(histograms);
+		}
+
+		/** Returns when the snapshot was taken, in ms since the epoch. */
+		public long getTime() {
+			return mTime;
+		}
+
+		/** Returns the values of the counters, sorted by name. */
+		public Map<String,Long> getCounters() {
+			return mCounters;
+		}
+
+		/** Returns the histograms, sorted by name. */
+		public Map<String,Histogram.Snapshot> getHistograms() {
+			return mHistograms;
+		}
+
+		/** Returns the value of a counter, 0 if it does not exist. */
+		public long getCounter(String name) {
+			Long value = mCounters.get(name);
+			return value != null ? value : 0;
+		}
+
+		/** Returns a histogram, or null if it does not exist. */
+		public Histogram.Snapshot getHistogram(String name) {
+			return mHistograms.get(name);
+		}
+
+		/** Returns the metrics in the text exposition format of Prometheus. */
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			String family = null;
+			for (Map.Entry<String,Long> entry : mCounters.entrySet()) {
+				family = header(out, family, entry.getKey(), "counter");
+				out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+			}
+			family = null;
+			for (Map.Entry<String,Histogram.Snapshot> entry : mHistograms.entrySet()) {
+				String name = entry.getKey(), base = base(name);
+				String labels = name.length() > base.length() ? name.substring(base.length()+1, name.length()-1) : "";
+				Histogram.Snapshot histogram = entry.getValue();
+				family = header(out, family, name, "summary");
+				for (double quantile : QUANTILES) {
+					out.append(base).append('{').append(labels).append(labels.isEmpty() ? "" : ",").append("quantile=\"")
+						.append(quantile).append("\"} ").append(histogram.getPercentile(quantile)).append('\n');
+				}
+				out.append(base).append("_sum").append(name.substring(base.length())).append(' ').append(histogram.getSum()).append('\n');
+				out.append(base).append("_count").append(name.substring(base.length())).append(' ').append(histogram.getCount()).append('\n');
+			}
+			return out.toString();
+		}
+
+		/** Writes the HELP and TYPE lines when a new family starts. */
+		private static String header(StringBuilder out, String family, String name, String type) {
+			String base = base(name);
+			if (base.equals(family)) return family;
+			String help = sHelp.get(base);
+			if (help != null) out.append("# HELP ").append(base).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+			return base;
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import net.majorkernelpanic.streaming.Platform;
+
+/**
+ * What the receiver of an RTP stream reports about it in its RTCP Receiver Reports (RFC 3550),
+ * along with the round trip time computed from the LSR and DLSR fields.
+ * Updated by the {@link RtcpReceiver}, can be read from any thread.
+ */
+public class ReceptionReport {
+
+	private volatile int mSsrc = 0, mFractionLost = 0, mCumulativeLost = 0;
+	private volatile long mHighestSequence = 0, mJitter = 0, mRtt = -1;
+	private volatile long mReports = 0, mLastReport = 0;
+	private volatile long mClock = 0;
+	private volatile long mMaxBitrate = 0;
+	private volatile String mCname = null;
+	private volatile boolean mBye = false;
+
+	/** Sets the clock rate of the stream in Hz, used to convert the jitter in ms. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	void update(int ssrc, int fractionLost, int cumulativeLost, long highestSequence, long jitter, long rtt) {
+		mSsrc = ssrc;
+		mFractionLost = fractionLost;
+		mCumulativeLost = cumulativeLost;
+		mHighestSequence = highestSequence;
+		mJitter = jitter;
+		if (rtt >= 0) mRtt = rtt;
+		mLastReport = Platform.elapsedRealtime();
+		mReports++;
+		mBye = false;
+	}
+
+	void setCname(String cname) {
+		mCname = cname;
+	}
+
+	void setMaxBitrate(long bitrate) {
+		mMaxBitrate = bitrate;
+	}
+
+	void setBye() {
+		mBye = true;
+	}
+
+	/** Forgets everything, called when a new client starts receiving the stream. */
+	public void reset() {
+		mSsrc = mFractionLost = mCumulativeLost = 0;
+		mHighestSequence = mJitter = mReports = mLastReport = 0;
+		mRtt = -1;
+		mMaxBitrate = 0;
+		mCname = null;
+		mBye = false;
+	}
+
+	/** Returns the SSRC of the receiver. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the CNAME sent by the receiver in an SDES packet, or null. */
+	public String getCname() {
+		return mCname;
+	}
+
+	/** Returns the fraction of packets lost since the previous report, between 0 and 1. */
+	public float getFractionLost() {
+		return mFractionLost/256f;
+	}
+
+	/** Returns the number of packets lost since the beginning of the reception. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the extended highest sequence number received. */
+	public long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Returns the interarrival jitter in timestamp units. */
+	public long getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the interarrival jitter in ms, or -1 if the clock rate of the stream is unknown. */
+	public float getJitterMs() {
+		return mClock>0 ? mJitter*1000f/mClock : -1;
+	}
+
+	/** Returns the round trip time in ms, or -1 if it is unknown. */
+	public long getRtt() {
+		return mRtt;
+	}
+
+	/** Returns the number of report blocks received. */
+	public long getReportCount() {
+		return mReports;
+	}
+
+	/** Returns when the last report has been received, in ms since boot, 0 if none has been. */
+	public long getLastReportTime() {
+		return mLastReport;
+	}
+
+	/** Returns the maximum bitrate requested by the receiver with REMB or TMMBR in bit/s, 0 if it did not. */
+	public long getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/** Indicates if the receiver has sent a BYE packet. */
+	public boolean hasLeft() {
+		return mBye;
+	}
+
+	public String toString() {
+		return "ssrc: "+Integer.toHexString(mSsrc)+(mCname != null ? " cname: "+mCname : "")+" lost: "+getFractionLost()+
+				" total: "+mCumulativeLost+" jitter: "+mJitter+" rtt: "+mRtt+" ms"+(mBye ? " (bye)" : "");
+	}
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * Parses the RTCP packets sent back by the receiver of a stream (RFC 3550).
+ *
+ * Receiver Reports (and the report blocks of Sender Reports) about our SSRC update a
+ * {@link ReceptionReport}, SDES packets give its CNAME and BYE packets tell it has left.
+ * Generic NACKs, PLIs and FIRs are passed to the {@link FeedbackListener}.
+ * Over UDP, the packets are received by a Thread on the socket of the {@link SenderReport},
+ * which is the RTCP port advertised to the receiver. Over TCP, the packets are
+ * passed to {@link #parse(byte[], int, int)} by whoever reads the RTSP connection.
+ */
+public class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	public final static int PT_SR = 200;
+	public final static int PT_RR = 201;
+	public final static int PT_SDES = 202;
+	public final static int PT_BYE = 203;
+	public final static int PT_RTPFB = 205;
+	public final static int PT_PSFB = 206;
+
+	/** Generic NACK, transport layer feedback message (RFC 4585). */
+	public final static int FMT_NACK = 1;
+
+	/** Temporary Maximum Media Stream Bit Rate Request, transport layer feedback message (RFC 5104). */
+	public final static int FMT_TMMBR = 3;
+
+	/** Picture Loss Indication, payload specific feedback message (RFC 4585). */
+	public final static int FMT_PLI = 1;
+
+	/** Full Intra Request, payload specific feedback message (RFC 5104). */
+	public final static int FMT_FIR = 4;
+
+	/** Application layer feedback message, used by REMB. */
+	public final static int FMT_AFB = 15;
+
+	private final SenderReport mSender;
+	private final ReceptionReport mReport = new ReceptionReport();
+	private final byte[] mBuffer = new byte[SenderReport.MTU];
+	private DatagramSocket mSocket = null;
+	private Thread mThread = null;
+	private volatile long mPackets = 0, mErrors = 0, mNacks = 0, mKeyFrameRequests = 0;
+	private int mFirSequence = -1;
+	private volatile FeedbackListener mFeedbackListener = null;
+
+	/**
+	 * @param sender The sender report of the stream, its SSRC identifies the reports about the stream
+	 */
+	public RtcpReceiver(SenderReport sender) {
+		mSender = sender;
+	}
+
+	/** Returns what the receiver reported so far. */
+	public ReceptionReport getReport() {
+		return mReport;
+	}
+
+	/** Returns the number of RTCP packets parsed. */
+	public long getPacketCount() {
+		return mPackets;
+	}
+
+	/** Returns the number of Generic NACK messages received. */
+	public long getNackCount() {
+		return mNacks;
+	}
+
+	/** Returns the number of PLI and FIR messages received, the repeated FIR are not counted. */
+	public long getKeyFrameRequestCount() {
+		return mKeyFrameRequests;
+	}
+
+	/** Returns the number of malformed RTCP packets. */
+	public long getErrorCount() {
+		return mErrors;
+	}
+
+	/** Sets the listener notified of the feedback messages about our SSRC. */
+	public void setFeedbackListener(FeedbackListener listener) {
+		mFeedbackListener = listener;
+	}
+
+	/** Starts receiving RTCP packets on the socket. */
+	public synchronized void start(DatagramSocket socket) {
+		if (mThread != null) return;
+		mSocket = socket;
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	/** Stops receiving RTCP packets, the socket is left open. */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		DatagramPacket packet = new DatagramPacket(mBuffer, mBuffer.length);
+		try {
+			// So that the Thread notices when it is interrupted
+			mSocket.setSoTimeout(500);
+			while (!Thread.interrupted()) {
+				try {
+					packet.setLength(mBuffer.length);
+					mSocket.receive(packet);
+					parse(mBuffer, 0, packet.getLength());
+				} catch (SocketTimeoutException ignore) {}
+			}
+		} catch (SocketException e) {
+			// The socket has been closed
+		} catch (IOException e) {
+			Log.e(TAG, "RTCP reception stopped: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a compound RTCP packet.
+	 * @param buffer The buffer that contains the packet
+	 * @param offset The offset of the packet in the buffer
+	 * @param length The length of the compound packet
+	 */
+	public synchronized void parse(byte[] buffer, int offset, int length) {
+		int pos = offset, end = offset+length;
+		mPackets++;
+		while (pos+4 <= end) {
+			if ((buffer[pos]&0xC0) != 0x80) {
+				mErrors++;
+				return;
+			}
+			int count = buffer[pos]&0x1F, type = buffer[pos+1]&0xFF;
+			int len = 4*((buffer[pos+2]&0xFF)<<8 | (buffer[pos+3]&0xFF)) + 4;
+			if (pos+len > end) {
+				mErrors++;
+				return;
+			}
+			switch (type) {
+			case PT_SR:
+				// Header, SSRC of the sender and sender info come first
+				parseReportBlocks(buffer, getInt(buffer, pos+4), pos+28, count, pos+len);
+				break;
+			case PT_RR:
+				parseReportBlocks(buffer, getInt(buffer, pos+4), pos+8, count, pos+len);
+				break;
+			case PT_SDES:
+				parseSdes(buffer, pos, count, pos+len);
+				break;
+			case PT_BYE:
+				for (int i=0, p=pos+4; i<count && p+4<=pos+len; i++, p+=4) {
+					if (getInt(buffer, p) == mReport.getSSRC()) mReport.setBye();
+				}
+				break;
+			case PT_RTPFB:
+				if (count == FMT_NACK && len >= 12 && getInt(buffer, pos+8) == mSender.getSSRC()) parseNack(buffer, pos+12, pos+len);
+				if (count == FMT_TMMBR) parseTmmbr(buffer, pos+12, pos+len);
+				break;
+			case PT_PSFB:
+				if (count == FMT_PLI && len >= 12 && getInt(buffer, pos+8) == mSender.getSSRC()) requestKeyFrame();
+				if (count == FMT_FIR) parseFir(buffer, pos+12, pos+len);
+				if (count == FMT_AFB) parseRemb(buffer, pos+12, pos+len);
+				break;
+			default:
+				break;
+			}
+			pos += len;
+		}
+	}
+
+	private void parseReportBlocks(byte[] buffer, int reporter, int pos, int count, int end) {
+		for (int i=0; i<count && pos+24<=end; i++, pos+=24) {
+			if (getInt(buffer, pos) != mSender.getSSRC()) continue;
+			int fraction = buffer[pos+4]&0xFF;
+			// Signed 24 bits
+			int cumulative = buffer[pos+5]<<16 | (buffer[pos+6]&0xFF)<<8 | (buffer[pos+7]&0xFF);
+			long highest = getInt(buffer, pos+8)&0xFFFFFFFFL;
+			long jitter = getInt(buffer, pos+12)&0xFFFFFFFFL;
+			long lsr = getInt(buffer, pos+16)&0xFFFFFFFFL;
+			long dlsr = getInt(buffer, pos+20)&0xFFFFFFFFL;
+			long rtt = -1;
+			if (lsr != 0) {
+				// The SR are timestamped with System.nanoTime(), see SenderReport
+				long rt = (ntpMiddle(System.nanoTime())-lsr-dlsr)&0xFFFFFFFFL;
+				if (rt < 0x80000000L) rtt = rt*1000/65536;
+			}
+			mReport.update(reporter, fraction, cumulative, highest, jitter, rtt);
+		}
+	}
+
+	private void parseNack(byte[] buffer, int pos, int end) {
+		FeedbackListener listener = mFeedbackListener;
+		mNacks++;
+		if (listener == null) return;
+		for (; pos+4<=end; pos+=4) {
+			// The packet identifier and the bitmask of the 16 following lost packets
+			int pid = (buffer[pos]&0xFF)<<8 | (buffer[pos+1]&0xFF);
+			int blp = (buffer[pos+2]&0xFF)<<8 | (buffer[pos+3]&0xFF);
+			listener.onNack(this, pid, blp);
+		}
+	}
+
+	/** 
+	 * The FCI entries of a FIR give the SSRC of the media sender and a sequence number,
+	 * a FIR with the same sequence number as the previous one is a repetition of it.
+	 */
+	private void parseFir(byte[] buffer, int pos, int end) {
+		for (; pos+8<=end; pos+=8) {
+			if (getInt(buffer, pos) != mSender.getSSRC()) continue;
+			int sequence = buffer[pos+4]&0xFF;
+			if (sequence == mFirSequence) continue;
+			mFirSequence = sequence;
+			requestKeyFrame();
+		}
+	}
+
+	private void requestKeyFrame() {
+		FeedbackListener listener = mFeedbackListener;
+		mKeyFrameRequests++;
+		if (listener != null) listener.onKeyFrameRequest(this);
+	}
+
+	/** The FCI entries of a TMMBR give a maximum bitrate for each SSRC. */
+	private void parseTmmbr(byte[] buffer, int pos, int end) {
+		for (; pos+8<=end; pos+=8) {
+			if (getInt(buffer, pos) != mSender.getSSRC()) continue;
+			int exp = (buffer[pos+4]&0xFC)>>2;
+			long mantissa = (buffer[pos+4]&0x03)<<15 | (buffer[pos+5]&0xFF)<<7 | (buffer[pos+6]&0xFE)>>1;
+			mReport.setMaxBitrate(mantissa<<exp);
+		}
+	}
+
+	/** Receiver Estimated Maximum Bitrate (draft-alvestrand-rmcat-remb), an estimate for a list of SSRC. */
+	private void parseRemb(byte[] buffer, int pos, int end) {
+		if (pos+8 > end || buffer[pos] != 'R' || buffer[pos+1] != 'E' || buffer[pos+2] != 'M' || buffer[pos+3] != 'B') return;
+		int count = buffer[pos+4]&0xFF;
+		int exp = (buffer[pos+5]&0xFC)>>2;
+		long mantissa = (buffer[pos+5]&0x03)<<16 | (buffer[pos+6]&0xFF)<<8 | (buffer[pos+7]&0xFF);
+		for (int i=0, p=pos+8; i<count && p+4<=end; i++, p+=4) {
+			if (getInt(buffer, p) == mSender.getSSRC()) {
+				mReport.setMaxBitrate(mantissa<<exp);
+				return;
+			}
+		}
+	}
+
+	private void parseSdes(byte[] buffer, int packet, int count, int end) {
+		int pos = packet+4;
+		for (int i=0; i<count && pos+4<=end; i++) {
+			int ssrc = getInt(buffer, pos);
+			pos += 4;
+			while (pos < end && buffer[pos] != 0) {
+				if (pos+2 > end) return;
+				int type = buffer[pos]&0xFF, len = buffer[pos+1]&0xFF;
+				if (pos+2+len > end) return;
+				// CNAME
+				if (type == 1 && (ssrc == mReport.getSSRC() || mReport.getReportCount() == 0)) {
+					mReport.setCname(new String(buffer, pos+2, len));
+				}
+				pos += 2+len;
+			}
+			// The list of items ends with a null item, chunks are aligned on 32 bits
+			pos = packet + ((pos+1-packet+3) & ~3);
+		}
+	}
+
+	/** 
+	 * Notified of the feedback messages (RFC 4585) of the receiver about our SSRC.
+	 * Called from the Thread that received the RTCP packet.
+	 */
+	public interface FeedbackListener {
+
+		/**
+		 * Called for each FCI entry of a Generic NACK.
+		 * @param receiver The receiver of the message
+		 * @param sequence The sequence number of a lost packet
+		 * @param lost A bitmask of the following lost packets, bit i set if sequence+i+1 is lost
+		 */
+		void onNack(RtcpReceiver receiver, int sequence, int lost);
+
+		/**
+		 * Called when the receiver needs a key frame, after a PLI or a FIR.
+		 * @param receiver The receiver of the message
+		 */
+		void onKeyFrameRequest(RtcpReceiver receiver);
+
+	}
+
+	/** Returns the middle 32 bits of the NTP timestamp, as the LSR field of the receiver reports. */
+	static long ntpMiddle(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return ((hb&0xFFFF)<<16 | lb>>>16)&0xFFFFFFFFL;
+	}
+
+	private static int getInt(byte[] buffer, int pos) {
+		return (buffer[pos]&0xFF)<<24 | (buffer[pos+1]&0xFF)<<16 | (buffer[pos+2]&0xFF)<<8 | (buffer[pos+3]&0xFF);
+	}
+
+}
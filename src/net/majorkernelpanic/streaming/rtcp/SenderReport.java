@@ -26,14 +26,17 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.nio.channels.IllegalSelectorException;
-import android.os.SystemClock;
-import android.util.Log;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.Platform;
+import net.majorkernelpanic.streaming.Platform.Log;
 
 /**
  * Implementation of Sender Report RTCP packets.
  */
 public class SenderReport {
 
+	public final static String TAG = "SenderReport";
+
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
@@ -48,6 +51,7 @@ public class SenderReport {
 	private int mOctetCount = 0, mPacketCount = 0;
 	private long interval, delta, now, oldnow;
 	private byte mTcpHeader[];
+	private final RtcpReceiver mReceiver = new RtcpReceiver(this);
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -95,9 +99,32 @@ public class SenderReport {
 	}
 
 	public void close() {
+		mReceiver.stop();
 		usock.close();
 	}
 
+	/** 
+	 * Starts listening for the RTCP packets sent back by the receiver on the local port of the socket.
+	 * Over TCP the packets come through the RTSP connection and must be passed to {@link #getReceiver()}.
+	 */
+	public void startReceiving() {
+		if (mTransport == TRANSPORT_UDP && usock != null) mReceiver.start(usock);
+	}
+
+	public void stopReceiving() {
+		mReceiver.stop();
+	}
+
+	/** Returns the parser of the RTCP packets sent back by the receiver. */
+	public RtcpReceiver getReceiver() {
+		return mReceiver;
+	}
+
+	/** Returns what the receiver reported about the stream. */
+	public ReceptionReport getReceptionReport() {
+		return mReceiver.getReport();
+	}
+
 	/**
 	 * Sets the temporal interval between two RTCP Sender Reports.
 	 * Default interval is set to 3 seconds.
@@ -121,7 +148,7 @@ public class SenderReport {
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
 
-		now = SystemClock.elapsedRealtime();
+		now = Platform.elapsedRealtime();
 		delta += oldnow != 0 ? now-oldnow : 0;
 		oldnow = now;
 		if (interval>0 && delta>=interval) {
@@ -207,11 +234,10 @@ public class SenderReport {
 			upack.setLength(PACKET_LENGTH);
 			usock.send(upack);		
 		} else {
-			synchronized (mOutputStream) {
-				try {
-					mOutputStream.write(mTcpHeader);
-					mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-				} catch (Exception e) {}
+			try {
+				InterleavedWriter.send(mOutputStream, mTcpHeader, mBuffer, PACKET_LENGTH, InterleavedWriter.FLAG_CONTROL);
+			} catch (IOException e) {
+				Log.e(TAG, "Sender report not sent: "+e.getMessage());
 			}
 		}
 	}
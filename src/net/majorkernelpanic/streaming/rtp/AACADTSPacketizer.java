@@ -19,9 +19,8 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import net.majorkernelpanic.streaming.audio.AACStream;
-import android.os.SystemClock;
-import android.util.Log;
+import net.majorkernelpanic.streaming.Platform;
+import net.majorkernelpanic.streaming.Platform.Log;
 
 /**
  *   
@@ -37,6 +36,26 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final static String TAG = "AACADTSPacketizer";
 
+	/** There are 13 supported frequencies by ADTS. **/
+	public static final int[] SAMPLING_RATES = {
+		96000, // 0
+		88200, // 1
+		64000, // 2
+		48000, // 3
+		44100, // 4
+		32000, // 5
+		24000, // 6
+		22050, // 7
+		16000, // 8
+		12000, // 9
+		11025, // 10
+		8000,  // 11
+		7350,  // 12
+		-1,   // 13
+		-1,   // 14
+		-1,   // 15
+	};
+
 	private Thread t;
 	private int samplingRate = 8000;
 
@@ -82,7 +101,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		// ADTS header fields that we need to parse
 		boolean protection;
 		int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
-		long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
+		long oldtime = Platform.elapsedRealtime(), now = oldtime;
 		byte[] header = new byte[8]; 
 
 		try {
@@ -115,7 +134,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				// Read CRS if any
 				if (!protection) is.read(header,0,2);
 
-				samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
+				samplingRate = SAMPLING_RATES[(header[2]&0x3C) >> 2];
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
 				// We update the RTP timestamp
@@ -19,24 +19,25 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.media.MediaCodec.BufferInfo;
-import android.os.SystemClock;
-import android.util.Log;
+import net.majorkernelpanic.streaming.Platform.Log;
+import net.majorkernelpanic.streaming.metrics.Histogram;
+import net.majorkernelpanic.streaming.metrics.Metrics;
 
 /**
  * RFC 3640.  
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
  * This packetizer is used by the AACStream class in conjunction with the 
- * MediaCodec API introduced in Android 4.1 (API Level 16).       
+ * MediaCodec API introduced in Android 4.1 (API Level 16), it reads the 
+ * frames of the encoder from an {@link EncoderInputStream}.
  * 
  */
-@SuppressLint("NewApi")
 public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	private final static String TAG = "AACLATMPacketizer";
 
+	private final static Histogram sUnitTime = Metrics.histogram(Metrics.name("packetizer_unit_ns", "packetizer", TAG), "Time spent packetizing an access unit, in ns");
+
 	private Thread t;
 
 	public AACLATMPacketizer() {
@@ -68,56 +69,13 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
-	@SuppressLint("NewApi")
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
-		int length = 0;
-		long oldts;
-		BufferInfo bufferInfo;
-
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
-					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+				send((EncoderInputStream) is);
 			}
 		} catch (IOException e) {
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -129,4 +87,54 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/** 
+	 * Reads a frame of the encoder and sends it in one RTP packet.
+	 * Called by the Thread of the packetizer, and by the benchmarks.
+	 */
+	void send(EncoderInputStream encoder) throws IOException, InterruptedException {
+		long oldts;
+
+		buffer = socket.requestBuffer();
+		int length = encoder.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
+
+		if (length>0) {
+			long start = Metrics.now();
+
+			//Log.d(TAG,"length: "+length+" ts: "+encoder.getLastPresentationTimeUs());
+			oldts = ts;
+			ts = encoder.getLastPresentationTimeUs()*1000;
+
+			// Seems to happen sometimes
+			if (oldts>ts) {
+				socket.commitBuffer();
+				return;
+			}
+
+			socket.markNextPacket();
+			socket.updateTimestamp(ts);
+			socket.setOutputTime(encoder.getLastOutputTime());
+
+			// AU-headers-length field: contains the size in bits of a AU-header
+			// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
+			// 13 bits will be enough because ADTS uses 13 bits for frame length
+			buffer[rtphl] = 0;
+			buffer[rtphl+1] = 0x10; 
+
+			// AU-size
+			buffer[rtphl+2] = (byte) (length>>5);
+			buffer[rtphl+3] = (byte) (length<<3);
+
+			// AU-Index
+			buffer[rtphl+3] &= 0xF8;
+			buffer[rtphl+3] |= 0x00;
+
+			send(rtphl+length+4);
+			sUnitTime.since(start);
+
+		} else {
+			socket.commitBuffer();
+		}
+
+	}
+
 }
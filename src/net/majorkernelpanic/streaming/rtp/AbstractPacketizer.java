@@ -37,12 +37,18 @@ abstract public class AbstractPacketizer {
 	// Maximum size of RTP packets
 	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
 
+	// Maximum size of the RTP packets whose payload is a slice of an access unit, see RtpSocket.getMaxPacketSize()
+	protected int maxPacketSize = MAXPACKETSIZE;
+
 	protected RtpSocket socket = null;
 	protected InputStream is = null;
 	protected byte[] buffer;
 	
 	protected long ts = 0;
 
+	protected boolean aggregation = false;
+	protected volatile long aggregates = 0, saved = 0;
+
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
 		ts = new Random().nextInt();
@@ -80,6 +86,24 @@ abstract public class AbstractPacketizer {
 		socket.setDestination(dest, rtpPort, rtcpPort);		
 	}
 
+	/**
+	 * Enables the aggregation of small NAL units of the same access unit in one RTP packet
+	 * (STAP-A for H.264, AP for H.265). Ignored by the other packetizers.
+	 */
+	public void setAggregation(boolean aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	/** Returns the number of aggregation packets sent. */
+	public long getAggregatedPackets() {
+		return aggregates;
+	}
+
+	/** Returns how many packets less have been sent thanks to aggregation. */
+	public long getPacketsSaved() {
+		return saved;
+	}
+
 	/** Starts the packetizer. */
 	public abstract void start();
 
@@ -91,6 +115,11 @@ abstract public class AbstractPacketizer {
 		socket.commitBuffer(length);
 	}
 
+	/** Same as {@link #send(int)}, but the payload of the packet is a slice of an access unit. */
+	protected void send(int length, AccessUnit unit, int offset, int size) throws IOException {
+		socket.commitBuffer(length, unit, offset, size);
+	}
+
 	/** For debugging purposes. */
 	protected static String printBuffer(byte[] buffer, int start,int end) {
 		String str = "";
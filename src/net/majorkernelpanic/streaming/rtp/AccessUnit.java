@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * An output buffer of an encoder, handed to a packetizer by {@link EncoderSource#readAccessUnit()}.
+ *
+ * The packetizer reads the NAL unit headers with the absolute get methods of {@link #getBuffer()},
+ * and commits the payloads of its RTP packets as slices of the unit with
+ * {@link RtpSocket#commitBuffer(int, AccessUnit, int, int)}. Every packet in the FIFO holds a
+ * reference on the unit, and the buffer goes back to the encoder when the last one is released.
+ * One instance is reused for each index of output buffer of the codec.
+ */
+public class AccessUnit {
+
+	public final static String TAG = "AccessUnit";
+
+	/** Same flags as the BufferInfo of a MediaCodec. */
+	public final static int FLAG_KEY_FRAME = 1, FLAG_CODEC_CONFIG = 2;
+
+	private final EncoderSource mSource;
+	private final int mIndex;
+	private final AtomicInteger mReferences = new AtomicInteger();
+	private ByteBuffer mBuffer = null, mView = null, mReadView = null;
+	private long mPresentationTimeUs;
+	private int mOffset, mSize, mFlags;
+
+	public AccessUnit(EncoderSource source, int index) {
+		mSource = source;
+		mIndex = index;
+	}
+
+	/** 
+	 * Called when the encoder returns the buffer, the caller holds the first reference. 
+	 * @param flags See {@link #FLAG_KEY_FRAME} and {@link #FLAG_CODEC_CONFIG}
+	 */
+	public void set(ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+		if (buffer != mBuffer) {
+			mBuffer = buffer;
+			// The first view is only used by the Thread of the RtpSocket, the other by the packetizer
+			mView = buffer.duplicate();
+			mReadView = buffer.duplicate();
+		}
+		mOffset = offset;
+		mSize = size;
+		mFlags = flags;
+		mPresentationTimeUs = presentationTimeUs;
+		mReferences.set(1);
+	}
+
+	/** Returns the buffer of the codec. Only use its absolute get methods, its position may be used by the codec. */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int getSize() {
+		return mSize;
+	}
+
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public long getPresentationTimeUs() {
+		return mPresentationTimeUs;
+	}
+
+	public boolean isKeyFrame() {
+		return (mFlags & FLAG_KEY_FRAME) != 0;
+	}
+
+	/** Copies a slice of the unit in a byte array. Only called by the packetizer. */
+	public void copy(int offset, byte[] dst, int dstOffset, int length) {
+		mReadView.clear();
+		mReadView.position(offset);
+		mReadView.get(dst, dstOffset, length);
+	}
+
+	/** Adds a reference on the unit, the buffer will not be released before {@link #release()} is called. */
+	public void retain() {
+		mReferences.incrementAndGet();
+	}
+
+	/** Drops a reference on the unit, the buffer goes back to the codec with the last one. */
+	public void release() {
+		if (mReferences.decrementAndGet() == 0) {
+			try {
+				mSource.releaseOutputBuffer(mIndex);
+			} catch (IllegalStateException e) {
+				// The codec has already been stopped
+				Log.v(TAG, "Buffer "+mIndex+" not released: "+e.getMessage());
+			}
+		}
+	}
+
+	/** Copies a slice of the unit in a byte array. Only called by the Thread of the RtpSocket. */
+	void get(int offset, byte[] dst, int dstOffset, int length) {
+		mView.clear();
+		mView.position(offset);
+		mView.get(dst, dstOffset, length);
+	}
+
+	/** Returns a slice of the unit, valid until the next call. Only called by the Thread of the RtpSocket. */
+	ByteBuffer slice(int offset, int length) {
+		mView.clear();
+		mView.position(offset);
+		mView.limit(offset+length);
+		return mView;
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Loss based control: additive increase, multiplicative decrease.
+ *
+ * When the receivers lose more than {@link #LOSS_HIGH} of the packets, the bitrate falls to 85% of what
+ * reached them, and when packets start to wait in the FIFO of the socket, to 85% of what is actually sent.
+ * It then stays there long enough for the queues on the path to drain. Otherwise it increases by a fixed
+ * step per second while they lose less than {@link #LOSS_LOW}. In between, it is kept as is, for no
+ * longer than {@link #MAX_LOSS_DURATION}: the losses then come from the bitrate itself.
+ */
+public class AimdRateControl implements RateControl {
+
+	public final static float LOSS_HIGH = 0.10f, LOSS_LOW = 0.02f;
+
+	/** Losses above {@link #LOSS_LOW} that last longer than this mean that the bitrate sits above what the link carries, in ms. */
+	public final static long MAX_LOSS_DURATION = 2000;
+
+	/** Packets waiting longer than this in the FIFO of the socket mean that the link is saturated, in ms. */
+	public final static long MAX_QUEUE_DELAY = 200;
+
+	private final long mStep;
+	private long mHoldUntil = 0, mLossSince = -1;
+
+	/**
+	 * @param step The increase of the bitrate per second, in bit/s
+	 */
+	public AimdRateControl(long step) {
+		mStep = step;
+	}
+
+	@Override
+	public long update(NetworkState state) {
+		long bitrate = state.getBitrate(), now = state.getTime();
+		long sent = state.getSendRate()>0 ? Math.min(state.getSendRate(), bitrate) : bitrate;
+		float loss = state.getLoss();
+		if (loss >= LOSS_LOW) {
+			if (mLossSince < 0) mLossSince = now;
+		} else if (loss >= 0) {
+			mLossSince = -1;
+		}
+		if (state.getQueueDelay() > MAX_QUEUE_DELAY || loss > LOSS_HIGH || (mLossSince >= 0 && now-mLossSince >= MAX_LOSS_DURATION)) {
+			// Decreasing in proportion to the losses leaves the bitrate above what the link carries
+			bitrate = (long) (sent*(1-Math.max(loss, 0))*0.85);
+			mHoldUntil = now + Math.max(2*state.getRtt(), 500);
+			mLossSince = -1;
+		} else if (loss >= 0 && loss < LOSS_LOW && now >= mHoldUntil) {
+			bitrate += mStep*state.getInterval()/1000;
+		}
+		if (state.getMaxBitrate() > 0) bitrate = Math.min(bitrate, state.getMaxBitrate());
+		return bitrate;
+	}
+
+	@Override
+	public void reset(long bitrate) {
+		mHoldUntil = 0;
+		mLossSince = -1;
+	}
+
+	public String toString() {
+		return "AIMD +"+mStep/1000+" kbps/s";
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an Annex B byte stream (H.264 or H.265) in NAL units.
+ *
+ * A buffer of a MediaCodec may contain several NAL units (AUD, SEI, SPS, PPS, slices...)
+ * each one preceded by 0x000001 or 0x00000001. The splitter returns them one after the other
+ * as offset ranges in the buffer, start codes and trailing zeros excluded, and never copies them.
+ * Data before the first start code is returned as a NAL unit too, some encoders do not
+ * prepend start codes to the first one.
+ *
+ * The buffer is scanned eight bytes at a time, only the words that contain a zero byte
+ * are looked at byte by byte. Only absolute get methods are used on the buffer.
+ */
+public class AnnexBSplitter {
+
+	private final static long ONES = 0x0101010101010101L;
+	private final static long HIGHS = 0x8080808080808080L;
+
+	private ByteBuffer mBuffer;
+	private int mPosition, mEnd;
+	private int mOffset, mLength;
+
+	/**
+	 * Starts splitting a new buffer.
+	 * @param buffer The buffer that contains the stream
+	 * @param offset The offset of the stream in the buffer
+	 * @param length The length of the stream
+	 */
+	public void reset(ByteBuffer buffer, int offset, int length) {
+		mBuffer = buffer;
+		mPosition = offset;
+		mEnd = offset+length;
+		mOffset = offset;
+		mLength = 0;
+	}
+
+	/**
+	 * Moves to the next NAL unit of the buffer.
+	 * @return false if there is none
+	 */
+	public boolean next() {
+		while (mPosition < mEnd) {
+			int start = mPosition, end;
+			int code = findStartCode(mBuffer, mPosition, mEnd);
+			if (code < mEnd) {
+				end = code;
+				mPosition = code+3;
+			} else {
+				end = mEnd;
+				mPosition = mEnd;
+			}
+			// Removes the leading zero of a four bytes start code and the trailing zeros
+			while (end > start && mBuffer.get(end-1) == 0) end--;
+			if (end > start) {
+				mOffset = start;
+				mLength = end-start;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the offset in the buffer of the current NAL unit, its header included. */
+	public int getOffset() {
+		return mOffset;
+	}
+
+	/** Returns the length of the current NAL unit, its header included. */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Returns the position of the first 0x000001 sequence between from and end,
+	 * or end if there is none.
+	 */
+	public static int findStartCode(ByteBuffer buffer, int from, int end) {
+		int i = from;
+		while (i+2 < end) {
+			if (i+8 <= end) {
+				long word = buffer.getLong(i);
+				// No zero byte in the word, no start code can begin in it
+				if (((word-ONES) & ~word & HIGHS) == 0) {
+					i += 8;
+					continue;
+				}
+			}
+			int stop = Math.min(i+8, end-2);
+			for (; i<stop; i++) {
+				if (buffer.get(i) == 0 && buffer.get(i+1) == 0 && buffer.get(i+2) == 1) return i;
+			}
+		}
+		return end;
+	}
+
+}
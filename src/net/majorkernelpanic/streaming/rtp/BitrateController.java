@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.Platform;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * Adapts the bitrate of a live encoder to the network.
+ *
+ * Periodically, the controller gathers the losses, round trip time and jitter reported by the receivers
+ * of an {@link RtpSocket} (by all its sinks in fan-out mode, the worst one wins), the REMB/TMMBR
+ * they sent, and how long packets wait in the FIFO of the socket. The {@link RateControl} turns that
+ * into a bitrate, which is kept between a floor and a ceiling and given to the {@link Encoder}.
+ * Small changes are not applied, encoders do not like to be reconfigured too often.
+ */
+public class BitrateController implements Runnable {
+
+	public final static String TAG = "BitrateController";
+
+	/** Default period of the controller, in ms. */
+	public final static long DEFAULT_INTERVAL = 500;
+
+	/** Changes smaller than this fraction of the bitrate are not applied. */
+	private final static float MIN_CHANGE = 0.05f;
+
+	/** Changes the bitrate of the encoder, called from the Thread of the controller. */
+	public interface Encoder {
+		void setBitrate(int bitrate);
+	}
+
+	private final RateControl mControl;
+	private final Encoder mEncoder;
+	private final NetworkState mState = new NetworkState();
+	private volatile int mMin, mMax;
+	private volatile long mBitrate, mTarget;
+	private volatile long mAdjustments = 0;
+	private long mInterval = DEFAULT_INTERVAL, mLastStep = 0, mLastSent = 0;
+	private RtpSocket mSocket;
+	private Thread mThread;
+
+	/**
+	 * @param control The control law
+	 * @param encoder The encoder
+	 * @param min The floor of the bitrate in bit/s
+	 * @param max The ceiling of the bitrate in bit/s, the encoder starts at it
+	 */
+	public BitrateController(RateControl control, Encoder encoder, int min, int max) {
+		if (min <= 0 || max < min) throw new IllegalArgumentException("Invalid bitrate bounds: "+min+"-"+max);
+		mControl = control;
+		mEncoder = encoder;
+		mMin = min;
+		mMax = max;
+		mBitrate = mTarget = max;
+	}
+
+	/** Changes the floor and the ceiling of the bitrate, the bitrate is brought back between them at the next step. */
+	public void setBounds(int min, int max) {
+		if (min <= 0 || max < min) throw new IllegalArgumentException("Invalid bitrate bounds: "+min+"-"+max);
+		mMin = min;
+		mMax = max;
+	}
+
+	public int getMinBitrate() {
+		return mMin;
+	}
+
+	public int getMaxBitrate() {
+		return mMax;
+	}
+
+	/** Returns the bitrate last given to the encoder, in bit/s. */
+	public long getBitrate() {
+		return mBitrate;
+	}
+
+	/** 
+	 * Returns the bitrate decided by the control law, in bit/s. It is what the law 
+	 * starts from at the next step, so that small changes add up until they are applied.
+	 */
+	public long getTarget() {
+		return mTarget;
+	}
+
+	/** Returns how many times the bitrate of the encoder has been changed. */
+	public long getAdjustments() {
+		return mAdjustments;
+	}
+
+	public RateControl getControl() {
+		return mControl;
+	}
+
+	/** Sets the period of the controller in ms. */
+	public void setInterval(long interval) {
+		mInterval = interval;
+	}
+
+	/** Starts adapting the bitrate to what the receivers of the socket report. */
+	public synchronized void start(RtpSocket socket) {
+		if (mThread != null) return;
+		mSocket = socket;
+		mBitrate = mTarget = mMax;
+		mLastStep = mLastSent = 0;
+		mControl.reset(mBitrate);
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(mInterval);
+				update(measure(Platform.elapsedRealtime()));
+			}
+		} catch (InterruptedException ignore) {}
+	}
+
+	/** Fills the state of the network from the socket, only the reports received since the previous step count. */
+	private NetworkState measure(long now) {
+		RtpSocket socket = mSocket;
+		long sent = socket.getSentBytes();
+		long rate = mLastStep != 0 && now > mLastStep ? (sent-mLastSent)*8000/(now-mLastStep) : 0;
+		// The counter is reset when the Thread of the socket stops
+		if (rate < 0) rate = 0;
+		mState.set(now, mTarget, rate);
+		mState.setQueueDelay(socket.getQueueDelay()/1000000);
+		if (socket.isFanOut()) {
+			for (RtpSink sink : socket.getSinks()) measure(sink.getReceptionReport());
+		} else {
+			measure(socket.getReceptionReport());
+		}
+		mLastStep = now;
+		mLastSent = sent;
+		return mState;
+	}
+
+	private void measure(ReceptionReport report) {
+		if (report.getLastReportTime() > mLastStep) {
+			mState.setReport(report.getFractionLost(), report.getRtt(), report.getJitterMs());
+		}
+		mState.setMaxBitrate(report.getMaxBitrate());
+	}
+
+	/**
+	 * Runs one step of the control law and changes the bitrate of the encoder if needed.
+	 * @return The bitrate of the encoder
+	 */
+	public long update(NetworkState state) {
+		long target = mControl.update(state);
+		target = Math.max(mMin, Math.min(mMax, target));
+		mTarget = target;
+		if (Math.abs(target-mBitrate) >= mBitrate*MIN_CHANGE || ((target == mMin || target == mMax) && target != mBitrate)) {
+			Log.d(TAG, "Bitrate: "+mBitrate/1000+" -> "+target/1000+" kbps, "+state);
+			mBitrate = target;
+			mAdjustments++;
+			mEncoder.setBitrate((int) target);
+		}
+		return mBitrate;
+	}
+
+}
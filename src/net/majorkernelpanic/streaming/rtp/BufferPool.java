@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * A pool of packet buffers shared by all the {@link RtpSocket}.
+ * Buffers are allocated one slab at a time and recycled when the FIFO of a socket shrinks.
+ * The pool never keeps more than a given number of idle buffers, the others are left to the GC.
+ */
+public class BufferPool {
+
+	public final static String TAG = "BufferPool";
+
+	/** Number of buffers allocated at once when the pool is empty. */
+	public final static int SLAB_SIZE = 16;
+
+	private static BufferPool sDefault = null;
+
+	private final int mBufferSize;
+	private final byte[][] mFree;
+	private int mFreeCount = 0;
+	private long mAllocated = 0;
+
+	/**
+	 * @param bufferSize The size of the buffers
+	 * @param maxIdle The maximum number of idle buffers kept by the pool
+	 */
+	public BufferPool(int bufferSize, int maxIdle) {
+		mBufferSize = bufferSize;
+		mFree = new byte[Math.max(maxIdle, SLAB_SIZE)][];
+	}
+
+	/** Returns the pool used by default by the {@link RtpSocket}, its buffers are {@link RtpSocket#MTU} long. */
+	public static synchronized BufferPool getDefault() {
+		if (sDefault == null) {
+			sDefault = new BufferPool(RtpSocket.MTU, 512);
+		}
+		return sDefault;
+	}
+
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/** Returns a buffer, a new slab is allocated if no buffer is available. */
+	public synchronized byte[] acquire() {
+		if (mFreeCount == 0) {
+			for (int i=0;i<SLAB_SIZE;i++) {
+				mFree[mFreeCount++] = new byte[mBufferSize];
+			}
+			mAllocated += SLAB_SIZE;
+		}
+		byte[] buffer = mFree[--mFreeCount];
+		mFree[mFreeCount] = null;
+		return buffer;
+	}
+
+	/** Gives a buffer back to the pool. */
+	public synchronized void release(byte[] buffer) {
+		if (buffer.length == mBufferSize && mFreeCount < mFree.length) {
+			mFree[mFreeCount++] = buffer;
+		}
+	}
+
+	/** Returns the number of idle buffers in the pool. */
+	public synchronized int getIdleCount() {
+		return mFreeCount;
+	}
+
+	/** Returns the number of buffers allocated by the pool since its creation. */
+	public synchronized long getAllocatedCount() {
+		return mAllocated;
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Delay based control: the bitrate decreases as soon as queues build up on the path,
+ * before packets are lost.
+ *
+ * The smallest round trip time seen recently is taken as the delay of the path when it is empty.
+ * When the round trip time exceeds it by more than {@link #RTT_THRESHOLD}, or when packets wait in the FIFO
+ * of the socket, the bitrate falls to 85% of what is actually sent. Otherwise it grows by
+ * {@link #INCREASE} per second. Heavy losses are still treated like {@link AimdRateControl} does:
+ * when the path was already full as the stream started, the round trip time never falls below the
+ * first one and only the losses tell that the link is overused.
+ */
+public class DelayRateControl implements RateControl {
+
+	/** Queuing delay on the path above which the link is considered overused, in ms. */
+	public final static long RTT_THRESHOLD = 60;
+
+	/** Delay in the FIFO of the socket above which the link is considered overused, in ms. */
+	public final static long MAX_QUEUE_DELAY = 100;
+
+	/** Relative increase of the bitrate per second when the link is not overused. */
+	public final static float INCREASE = 0.08f;
+
+	/** The smallest round trip time is forgotten after this delay, the path may have changed, in ms. */
+	private final static long BASE_RTT_WINDOW = 10000;
+
+	private long mBaseRtt = -1, mBaseRttTime = 0;
+	private long mHoldUntil = 0;
+
+	@Override
+	public long update(NetworkState state) {
+		long bitrate = state.getBitrate(), now = state.getTime(), rtt = state.getRtt();
+		if (rtt >= 0 && (mBaseRtt < 0 || rtt <= mBaseRtt || now-mBaseRttTime > BASE_RTT_WINDOW)) {
+			mBaseRtt = rtt;
+			mBaseRttTime = now;
+		}
+		boolean overuse = state.getQueueDelay() > MAX_QUEUE_DELAY || (rtt >= 0 && rtt-mBaseRtt > RTT_THRESHOLD);
+		if (overuse || state.getLoss() > AimdRateControl.LOSS_HIGH) {
+			long sent = state.getSendRate()>0 ? Math.min(state.getSendRate(), bitrate) : bitrate;
+			bitrate = (long) (sent*(1-Math.max(state.getLoss(), 0))*0.85);
+			// Gives the queues the time to drain before increasing again
+			mHoldUntil = now + Math.max(2*rtt, 500);
+		} else if (now >= mHoldUntil) {
+			bitrate += (long) (bitrate*INCREASE*state.getInterval()/1000);
+		}
+		if (state.getMaxBitrate() > 0) bitrate = Math.min(bitrate, state.getMaxBitrate());
+		return bitrate;
+	}
+
+	@Override
+	public void reset(long bitrate) {
+		mBaseRtt = -1;
+		mBaseRttTime = 0;
+		mHoldUntil = 0;
+	}
+
+	public String toString() {
+		return "delay based, base rtt: "+mBaseRtt+" ms";
+	}
+
+}
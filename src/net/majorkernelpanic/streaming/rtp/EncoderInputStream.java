@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the output buffers of an encoder, read by the packetizers: either copied with
+ * {@link #read(byte[], int, int)}, or without copies with {@link #readAccessUnit()}.
+ * The encoder itself is behind {@link #dequeue()}, a MediaCodec in {@link MediaCodecInputStream}.
+ * This class is not thread safe !
+ */
+public abstract class EncoderInputStream extends InputStream implements EncoderSource {
+
+	private ByteBuffer mBuffer = null;
+	private AccessUnit[] mUnits = new AccessUnit[0];
+	private int mIndex = -1, mOffset = 0, mSize = 0, mFlags = 0;
+	private long mPresentationTimeUs = 0, mOutputTime = 0;
+	protected volatile boolean mClosed = false;
+
+	/**
+	 * Waits for the next output buffer of the encoder and gives it to {@link #setOutputBuffer}.
+	 * Returns without calling it if the stream is closed or the Thread interrupted.
+	 */
+	protected abstract void dequeue() throws IOException;
+
+	/** Called by {@link #dequeue()} with the next output buffer of the encoder. */
+	protected void setOutputBuffer(int index, ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags, long outputTime) {
+		mIndex = index;
+		mBuffer = buffer;
+		mOffset = offset;
+		mSize = size;
+		mPresentationTimeUs = presentationTimeUs;
+		mFlags = flags;
+		mOutputTime = outputTime;
+		buffer.clear();
+		buffer.position(offset);
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) > 0 ? b[0]&0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int min = 0;
+
+		try {
+			if (mBuffer==null) {
+				dequeue();
+			}
+
+			if (mClosed) throw new IOException("This InputStream was closed");
+			if (mBuffer == null) return 0;
+
+			min = Math.min(length, available());
+			mBuffer.get(buffer, offset, min);
+			if (available() <= 0) {
+				mBuffer = null;
+				releaseOutputBuffer(mIndex);
+			}
+
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+
+		return min;
+	}
+
+	/**
+	 * Returns the next output buffer of the encoder without copying it.
+	 * The caller must call {@link AccessUnit#release()} once it does not need the unit anymore,
+	 * the buffer is released to the encoder when the RTP packets that refer to it have been sent too.
+	 * Can't be mixed with {@link #read(byte[], int, int)} on a partially read buffer.
+	 */
+	@Override
+	public AccessUnit readAccessUnit() throws IOException {
+		try {
+			if (mBuffer == null) {
+				dequeue();
+			}
+		} catch (IllegalStateException e) {
+			throw new IOException("The codec has been stopped");
+		}
+		if (mClosed) throw new IOException("This InputStream was closed");
+		if (mBuffer == null) throw new IOException("Interrupted");
+		if (mIndex >= mUnits.length) {
+			AccessUnit[] units = new AccessUnit[Math.max(mIndex+1, 2*mUnits.length)];
+			System.arraycopy(mUnits, 0, units, 0, mUnits.length);
+			mUnits = units;
+		}
+		if (mUnits[mIndex] == null) {
+			mUnits[mIndex] = new AccessUnit(this, mIndex);
+		}
+		AccessUnit unit = mUnits[mIndex];
+		unit.set(mBuffer, mOffset, mSize, mPresentationTimeUs, mFlags);
+		mBuffer = null;
+		return unit;
+	}
+
+	@Override
+	public int available() {
+		if (mBuffer != null)
+			return mOffset + mSize - mBuffer.position();
+		else
+			return 0;
+	}
+
+	/** Returns the presentation time of the last buffer read, in us. */
+	public long getLastPresentationTimeUs() {
+		return mPresentationTimeUs;
+	}
+
+	/** Returns the flags of the last buffer read, see {@link AccessUnit#FLAG_KEY_FRAME}. */
+	public int getLastFlags() {
+		return mFlags;
+	}
+
+	/** Returns when the last buffer read has been output by the encoder, in ns ({@link System#nanoTime()}). */
+	@Override
+	public long getLastOutputTime() {
+		return mOutputTime;
+	}
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ * Where the H.264 and H.265 packetizers take the access units of the encoder from:
+ * a {@link MediaCodecInputStream} on Android, recorded or synthetic frames on a desktop JVM.
+ * The source is also the {@link java.io.InputStream} of the packetizer.
+ */
+public interface EncoderSource {
+
+	/**
+	 * Waits for the next access unit of the encoder. The caller releases it with {@link AccessUnit#release()}.
+	 * @throws IOException If the source has been closed or the encoder has failed
+	 */
+	AccessUnit readAccessUnit() throws IOException;
+
+	/** Gives the buffer of a unit back to the encoder, called when the last reference on the unit is released. */
+	void releaseOutputBuffer(int index);
+
+	/** Returns when the encoder has output the last unit read, in ns ({@link System#nanoTime()}). */
+	long getLastOutputTime();
+
+}
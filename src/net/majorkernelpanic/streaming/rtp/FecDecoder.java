@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.FecEncoder.FEC_HEADER_LENGTH;
+import static net.majorkernelpanic.streaming.rtp.FecEncoder.LEVEL_HEADER_LENGTH;
+import static net.majorkernelpanic.streaming.rtp.FecEncoder.getLong;
+import static net.majorkernelpanic.streaming.rtp.FecEncoder.setLong;
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.RTP_HEADER_LENGTH;
+
+/**
+ * Rebuilds the packets lost by the receiver of a stream protected by a {@link FecEncoder}.
+ *
+ * The recent media packets are kept, when a FEC packet arrives and only one of the packets
+ * of its group is missing, the missing packet is the XOR of the FEC packet and of the others.
+ * Receivers of the stream can use it, and so can tests that drop packets on purpose.
+ */
+public class FecDecoder {
+
+	public final static String TAG = "FecDecoder";
+
+	private final static int WINDOW = 64;
+
+	private final int mPayloadType;
+	private final byte[][] mPackets = new byte[WINDOW][];
+	private final int[] mLengths = new int[WINDOW], mSequences = new int[WINDOW];
+	private final byte[] mRecovered = new byte[RtpSocket.MTU];
+
+	// The SSRC of the media stream, given to the packets rebuilt
+	private final byte[] mSsrc = new byte[4];
+	private boolean mSsrcKnown = false;
+
+	private volatile long mReceived = 0, mRecoveredCount = 0, mUnrecoverable = 0;
+
+	/**
+	 * @param payloadType The payload type of the FEC packets
+	 */
+	public FecDecoder(int payloadType) {
+		mPayloadType = payloadType;
+		for (int i=0;i<WINDOW;i++) {
+			mPackets[i] = new byte[RtpSocket.MTU];
+			mSequences[i] = -1;
+		}
+	}
+
+	/**
+	 * Passes a packet of the stream to the decoder, media or FEC.
+	 * @return The length of the packet rebuilt, available with {@link #getRecoveredPacket()}, or 0
+	 */
+	public int receive(byte[] packet, int length) {
+		if ((packet[1]&0x7F) != mPayloadType) {
+			keep(packet, length);
+			return 0;
+		}
+		if (length < RTP_HEADER_LENGTH+FEC_HEADER_LENGTH+LEVEL_HEADER_LENGTH) return 0;
+		int h = RTP_HEADER_LENGTH;
+		// The long mask (L=1) is not produced by the encoder
+		if ((packet[h]&0x40) != 0) return 0;
+		int base = (int) getLong(packet, h+2, h+4);
+		int protection = (int) getLong(packet, h+10, h+12);
+		int mask = (int) getLong(packet, h+12, h+14);
+		if (length < h+FEC_HEADER_LENGTH+LEVEL_HEADER_LENGTH+protection) return 0;
+
+		int missing = -1, lost = 0;
+		for (int i=0;i<16;i++) {
+			if ((mask & (0x8000>>>i)) == 0) continue;
+			int seq = (base+i)&0xFFFF, slot = seq%WINDOW;
+			if (mSequences[slot] != seq) {
+				missing = seq;
+				lost++;
+			}
+		}
+		if (lost == 0) return 0;
+		// A group of one packet is rebuilt from the FEC packet alone, the SSRC comes from the other packets
+		if (lost > 1 || !mSsrcKnown) {
+			mUnrecoverable += lost;
+			return 0;
+		}
+
+		// The recovery fields of the FEC header, XORed with the other packets of the group
+		int bits = packet[h]&0x3F, marker = packet[h+1]&0xFF;
+		long ts = getLong(packet, h+4, h+8);
+		int len = (int) getLong(packet, h+8, h+10);
+		byte[] r = mRecovered;
+		System.arraycopy(packet, h+FEC_HEADER_LENGTH+LEVEL_HEADER_LENGTH, r, RTP_HEADER_LENGTH, protection);
+		for (int i=0;i<16;i++) {
+			if ((mask & (0x8000>>>i)) == 0) continue;
+			int seq = (base+i)&0xFFFF, slot = seq%WINDOW;
+			if (seq == missing) continue;
+			byte[] p = mPackets[slot];
+			int payload = mLengths[slot]-RTP_HEADER_LENGTH;
+			bits ^= p[0]&0x3F;
+			marker ^= p[1]&0xFF;
+			ts ^= getLong(p, 4, 8);
+			len ^= payload;
+			for (int j=0;j<payload;j++) r[RTP_HEADER_LENGTH+j] ^= p[RTP_HEADER_LENGTH+j];
+		}
+		if (len < 0 || len > protection) {
+			mUnrecoverable++;
+			return 0;
+		}
+		r[0] = (byte) (0x80 | bits);
+		r[1] = (byte) marker;
+		setLong(r, missing, 2, 4);
+		setLong(r, ts, 4, 8);
+		System.arraycopy(mSsrc, 0, r, 8, 4);
+		mRecoveredCount++;
+		keep(r, RTP_HEADER_LENGTH+len);
+		return RTP_HEADER_LENGTH+len;
+	}
+
+	/** Returns the last packet rebuilt. */
+	public byte[] getRecoveredPacket() {
+		return mRecovered;
+	}
+
+	private void keep(byte[] packet, int length) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF), slot = seq%WINDOW;
+		if (packet != mRecovered) {
+			mReceived++;
+			System.arraycopy(packet, 8, mSsrc, 0, 4);
+			mSsrcKnown = true;
+		}
+		System.arraycopy(packet, 0, mPackets[slot], 0, Math.min(length, RtpSocket.MTU));
+		mLengths[slot] = length;
+		mSequences[slot] = seq;
+	}
+
+	/** Returns the number of media packets received. */
+	public long getReceivedPackets() {
+		return mReceived;
+	}
+
+	/** Returns the number of packets rebuilt. */
+	public long getRecoveredPackets() {
+		return mRecoveredCount;
+	}
+
+	/** Returns the number of lost packets that could not be rebuilt, only counting the groups whose FEC packet arrived. */
+	public long getUnrecoverablePackets() {
+		return mUnrecoverable;
+	}
+
+	/** Returns the ratio of lost packets that could be rebuilt. */
+	public float getRecoveryRate() {
+		long lost = mRecoveredCount+mUnrecoverable;
+		return lost>0 ? (float)mRecoveredCount/lost : 0;
+	}
+
+	public String toString() {
+		return "received: "+mReceived+" recovered: "+mRecoveredCount+" unrecoverable: "+mUnrecoverable+" rate: "+getRecoveryRate();
+	}
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Generates XOR parity packets (ULPFEC, RFC 5109) over groups of consecutive RTP packets.
+ *
+ * Each FEC packet protects one group with a single level of protection, the receiver
+ * can rebuild any one packet of the group that has been lost with the {@link FecDecoder}.
+ * Groups are smaller for key frames, which are protected more, and never span two frames
+ * so that the parity of a frame is sent right after it.
+ * FEC packets are sent in their own RTP stream: own SSRC, own sequence numbers and payload type.
+ *
+ * Only used by the Thread of the {@link RtpSocket}.
+ */
+public class FecEncoder {
+
+	public final static String TAG = "FecEncoder";
+
+	/** Length of the FEC header and of the header of a protection level with a 16 bits mask. */
+	public final static int FEC_HEADER_LENGTH = 10, LEVEL_HEADER_LENGTH = 4;
+
+	/** Maximum number of packets in a group, the length of the mask. */
+	public final static int MAX_GROUP_SIZE = 16;
+
+	private final static int HEADER_LENGTH = RtpSocket.RTP_HEADER_LENGTH+FEC_HEADER_LENGTH+LEVEL_HEADER_LENGTH;
+
+	private final int mPayloadType, mKeyFrameGroup, mGroup;
+	private final byte[] mPacket = new byte[HEADER_LENGTH+RtpSocket.MTU];
+	private final byte[] mParity = new byte[RtpSocket.MTU];
+	private int mSsrc, mSeq;
+
+	// The group being protected
+	private int mCount = 0, mSize, mBase, mMaxLength, mMask = 0;
+	private int mBits, mMarker, mLengths;
+	private long mTimestamps, mTimestamp;
+	private boolean mKeyFrame;
+
+	private volatile long mMediaPackets = 0, mMediaBytes = 0, mFecPackets = 0, mFecBytes = 0;
+
+	/**
+	 * @param payloadType The payload type of the FEC packets
+	 * @param keyFrameGroup The number of packets protected by a FEC packet in key frames
+	 * @param group The number of packets protected by a FEC packet in the other frames
+	 */
+	public FecEncoder(int payloadType, int keyFrameGroup, int group) {
+		if (keyFrameGroup<1 || keyFrameGroup>MAX_GROUP_SIZE || group<1 || group>MAX_GROUP_SIZE) {
+			throw new IllegalArgumentException("Invalid FEC group sizes: "+keyFrameGroup+"/"+group);
+		}
+		mPayloadType = payloadType;
+		mKeyFrameGroup = keyFrameGroup;
+		mGroup = group;
+	}
+
+	public int getPayloadType() {
+		return mPayloadType;
+	}
+
+	public int getKeyFrameGroupSize() {
+		return mKeyFrameGroup;
+	}
+
+	public int getGroupSize() {
+		return mGroup;
+	}
+
+	/** Sets the SSRC and the first sequence number of the FEC stream. */
+	public void setStream(int ssrc, int seq) {
+		mSsrc = ssrc;
+		mSeq = seq;
+	}
+
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/**
+	 * Adds a media packet to the current group.
+	 * @param packet The RTP packet, its payload must be in the buffer
+	 * @param length The length of the packet
+	 * @param keyFrame Whether the packet belongs to a key frame
+	 * @return The length of the FEC packet available with {@link #getPacket()} if the packet closed a group, 0 otherwise
+	 */
+	public int protect(byte[] packet, int length, boolean keyFrame) {
+		int seq = (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+		int fec = 0;
+		// A key frame starts its own group, and a group can't protect more than 16 sequence numbers
+		if (mCount > 0 && (keyFrame != mKeyFrame || ((seq-mBase)&0xFFFF) >= MAX_GROUP_SIZE)) {
+			fec = close();
+		}
+		if (mCount == 0) {
+			mKeyFrame = keyFrame;
+			mSize = keyFrame ? mKeyFrameGroup : mGroup;
+			mBase = seq;
+			mMaxLength = 0;
+			mBits = mMarker = mLengths = 0;
+			mTimestamps = 0;
+		}
+		int payload = length-RtpSocket.RTP_HEADER_LENGTH;
+		mBits ^= packet[0]&0x3F;
+		mMarker ^= packet[1]&0xFF;
+		mTimestamps ^= getLong(packet, 4, 8);
+		mLengths ^= payload;
+		mTimestamp = getLong(packet, 4, 8);
+		// The part of the parity not used by the previous packets is zeroed
+		for (int i=mMaxLength;i<payload;i++) mParity[i] = 0;
+		for (int i=0;i<payload;i++) mParity[i] ^= packet[RtpSocket.RTP_HEADER_LENGTH+i];
+		if (payload > mMaxLength) mMaxLength = payload;
+		mMask |= 0x8000 >>> ((seq-mBase)&0xFFFF);
+		mCount++;
+		mMediaPackets++;
+		mMediaBytes += length;
+		// The end of a frame closes the group, unless a FEC packet is already waiting to be sent
+		if (fec == 0 && (mCount == mSize || (packet[1]&0x80) != 0)) {
+			fec = close();
+		}
+		return fec;
+	}
+
+	/** Writes the FEC packet of the current group. */
+	private int close() {
+		byte[] p = mPacket;
+		// RTP header
+		p[0] = (byte) 0x80;
+		p[1] = (byte) mPayloadType;
+		mSeq = (mSeq+1) & 0xFFFF;
+		setLong(p, mSeq, 2, 4);
+		setLong(p, mTimestamp, 4, 8);
+		setLong(p, mSsrc, 8, 12);
+		// FEC header: E=0, L=0, recovery fields of P, X, CC, M, PT, timestamp and length
+		int h = RtpSocket.RTP_HEADER_LENGTH;
+		p[h] = (byte) (mBits&0x3F);
+		p[h+1] = (byte) mMarker;
+		setLong(p, mBase, h+2, h+4);
+		setLong(p, mTimestamps, h+4, h+8);
+		setLong(p, mLengths, h+8, h+10);
+		// Level 0 header: protection length and mask
+		setLong(p, mMaxLength, h+10, h+12);
+		setLong(p, mMask, h+12, h+14);
+		System.arraycopy(mParity, 0, p, HEADER_LENGTH, mMaxLength);
+		int length = HEADER_LENGTH+mMaxLength;
+		mCount = 0;
+		mMask = 0;
+		mFecPackets++;
+		mFecBytes += length;
+		return length;
+	}
+
+	/** Returns the last FEC packet. */
+	public byte[] getPacket() {
+		return mPacket;
+	}
+
+	/** Forgets the current group, called when the stream restarts. */
+	public void reset() {
+		mCount = 0;
+		mMask = 0;
+	}
+
+	/** Returns the number of media packets protected. */
+	public long getMediaPackets() {
+		return mMediaPackets;
+	}
+
+	/** Returns the number of FEC packets generated. */
+	public long getFecPackets() {
+		return mFecPackets;
+	}
+
+	/** Returns the ratio between the bytes of the FEC packets and the bytes of the media packets. */
+	public float getOverhead() {
+		return mMediaBytes>0 ? (float)mFecBytes/mMediaBytes : 0;
+	}
+
+	public String toString() {
+		return "media: "+mMediaPackets+" fec: "+mFecPackets+" overhead: "+getOverhead();
+	}
+
+	static long getLong(byte[] buffer, int begin, int end) {
+		long n = 0;
+		for (int i=begin;i<end;i++) n = n<<8 | (buffer[i]&0xFF);
+		return n;
+	}
+
+	static void setLong(byte[] buffer, long n, int begin, int end) {
+		for (end--; end >= begin; end--) {
+			buffer[end] = (byte) (n % 256);
+			n >>= 8;
+		}
+	}
+
+}
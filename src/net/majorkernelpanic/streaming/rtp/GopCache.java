@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ * Keeps the packets of the current group of pictures of a stream: the last key frame and the frames
+ * that follow it, so that a client joining an {@link RtpSocket} in fan-out mode can start decoding
+ * right away instead of waiting for the next key frame.
+ *
+ * The packets are copied in a buffer of fixed size. When a group of pictures does not fit, the cache
+ * stays empty until the next key frame, the client then waits for a key frame as it did before.
+ * Only used by the Thread of the socket.
+ */
+public class GopCache {
+
+	public final static String TAG = "GopCache";
+
+	/** Default size of the cache, in bytes. Less than the queue of an {@link InterleavedWriter}, which gets it at once. */
+	public final static int DEFAULT_MAX_BYTES = 192*1024;
+
+	private final static int MAX_PACKETS = 2048;
+
+	private final byte[] mData;
+	private final int[] mOffsets = new int[MAX_PACKETS], mLengths = new int[MAX_PACKETS], mFlags = new int[MAX_PACKETS];
+	private final int[] mFrames = new int[MAX_PACKETS];
+	private int mCount = 0, mBytes = 0, mFrameCount = 0;
+	private long mLastTimestamp = -1;
+	private boolean mValid = false, mKeyFrame = false;
+
+	private volatile long mReplays = 0, mMisses = 0, mReplayedPackets = 0, mOverflows = 0;
+
+	/**
+	 * @param maxBytes The size of the cache, in bytes
+	 */
+	public GopCache(int maxBytes) {
+		mData = new byte[maxBytes];
+	}
+
+	public int getMaxBytes() {
+		return mData.length;
+	}
+
+	/**
+	 * Adds a packet that has just been sent.
+	 * @param packet The RTP packet, its payload must be in the buffer
+	 * @param length The length of the packet
+	 * @param keyFrame Whether the packet belongs to a key frame
+	 * @param flags The flags of the packet for an {@link InterleavedWriter}
+	 */
+	void add(byte[] packet, int length, boolean keyFrame, int flags) {
+		// The first packet of a key frame starts a new group
+		if (keyFrame && !mKeyFrame) {
+			mCount = mBytes = mFrameCount = 0;
+			mLastTimestamp = -1;
+			mValid = true;
+		}
+		mKeyFrame = keyFrame;
+		if (!mValid) return;
+		if (mCount == MAX_PACKETS || mBytes+length > mData.length) {
+			mValid = false;
+			mCount = 0;
+			mOverflows++;
+			return;
+		}
+		long ts = getTimestamp(packet, 0);
+		if (ts != mLastTimestamp) {
+			mLastTimestamp = ts;
+			mFrameCount++;
+		}
+		System.arraycopy(packet, 0, mData, mBytes, length);
+		mOffsets[mCount] = mBytes;
+		mLengths[mCount] = length;
+		mFlags[mCount] = flags;
+		mFrames[mCount] = mFrameCount-1;
+		mBytes += length;
+		mCount++;
+	}
+
+	/** Forgets the packets, called when the stream restarts. */
+	void clear() {
+		mCount = mBytes = mFrameCount = 0;
+		mLastTimestamp = -1;
+		mValid = mKeyFrame = false;
+	}
+
+	/**
+	 * Sends the cached packets to a client that has just joined, before the live packet that is about to be sent.
+	 * The frames already complete get timestamps right before the timestamp of the live packet, so that the
+	 * client decodes them at once and shows the live frames without delay. The packets of the frame of the live
+	 * packet keep their timestamp. Each sink gives the packets its own sequence numbers.
+	 * @param socket The socket of the sink
+	 * @param sink The client
+	 * @param scratch A buffer of {@link RtpSocket#MTU} bytes the packets are copied to
+	 * @param rtpts The RTP timestamp of the live packet
+	 * @param keyFrame Whether the live packet belongs to a key frame
+	 */
+	void replay(RtpSocket socket, RtpSink sink, byte[] scratch, long rtpts, boolean keyFrame) throws IOException {
+		// The live packet starts a new group, or there is nothing to replay
+		if (keyFrame && !mKeyFrame) return;
+		if (!mValid || mCount == 0) {
+			mMisses++;
+			return;
+		}
+		int complete = mLastTimestamp == rtpts ? mFrameCount-1 : mFrameCount;
+		for (int i=0;i<mCount;i++) {
+			int length = mLengths[i];
+			if (length > scratch.length) continue;
+			System.arraycopy(mData, mOffsets[i], scratch, 0, length);
+			long ts = getTimestamp(scratch, 0);
+			if (mFrames[i] < complete) ts = (rtpts-(complete-mFrames[i])) & 0xFFFFFFFFL;
+			scratch[4] = (byte) (ts>>24);
+			scratch[5] = (byte) (ts>>16);
+			scratch[6] = (byte) (ts>>8);
+			scratch[7] = (byte) ts;
+			sink.send(socket, scratch, length, (scratch[2]&0xFF)<<8 | (scratch[3]&0xFF), ts, mFlags[i]);
+		}
+		mReplays++;
+		mReplayedPackets += mCount;
+	}
+
+	/** Returns the number of packets in the cache, 0 if the current group did not fit. */
+	public int getPacketCount() {
+		return mValid ? mCount : 0;
+	}
+
+	/** Returns the number of clients that got the cached packets when they joined. */
+	public long getReplays() {
+		return mReplays;
+	}
+
+	/** Returns the number of clients that joined while the cache was empty. */
+	public long getMisses() {
+		return mMisses;
+	}
+
+	/** Returns the number of packets sent to the clients that joined. */
+	public long getReplayedPackets() {
+		return mReplayedPackets;
+	}
+
+	/** Returns the number of groups of pictures that did not fit in the cache. */
+	public long getOverflows() {
+		return mOverflows;
+	}
+
+	public String toString() {
+		return "replays: "+mReplays+" misses: "+mMisses+" packets: "+mReplayedPackets+" overflows: "+mOverflows;
+	}
+
+	private static long getTimestamp(byte[] packet, int offset) {
+		return (packet[offset+4]&0xFFL)<<24 | (packet[offset+5]&0xFF)<<16 | (packet[offset+6]&0xFF)<<8 | (packet[offset+7]&0xFF);
+	}
+
+}
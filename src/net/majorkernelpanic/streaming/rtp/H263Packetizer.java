@@ -19,7 +19,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.util.Log;
+import net.majorkernelpanic.streaming.Platform.Log;
 
 /**
  *   RFC 4629.
@@ -18,10 +18,12 @@
 
 package net.majorkernelpanic.streaming.rtp;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.media.MediaCodec;
-import android.util.Log;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.Platform.Log;
+import net.majorkernelpanic.streaming.metrics.Histogram;
+import net.majorkernelpanic.streaming.metrics.Metrics;
 
 /**
  * 
@@ -37,10 +39,15 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H264Packetizer";
 
+	private final static Histogram sUnitTime = Metrics.histogram(Metrics.name("packetizer_unit_ns", "packetizer", TAG), "Time spent packetizing an access unit, in ns");
+
 	private Thread t = null;
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
+	private AnnexBSplitter splitter = new AnnexBSplitter();
+	private int[] aggOffsets = new int[64], aggLengths = new int[64];
+	private int aggCount = 0, aggSize = 0;
 	private byte[] sps = null, pps = null, stapa = null;
 	byte[] header = new byte[5];	
 	private int count = 0;
@@ -104,12 +111,14 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
+		if (is instanceof EncoderSource) {
 			streamType = 1;
 			socket.setCacheSize(0);
 		} else {
 			streamType = 0;	
 			socket.setCacheSize(400);
+			// resync() reads the stream one byte at a time
+			if (!(is instanceof BufferedInputStream)) is = new BufferedInputStream(is);
 		}
 
 		try {
@@ -117,7 +126,19 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
-				send();
+				if (streamType == 0) {
+					send();
+				} else {
+					AccessUnit unit = ((EncoderSource)is).readAccessUnit();
+					socket.setOutputTime(((EncoderSource)is).getLastOutputTime());
+					long start = Metrics.now();
+					try {
+						send(unit);
+					} finally {
+						unit.release();
+					}
+					sUnitTime.since(start);
+				}
 				// We measure how long it took to receive NAL units from the phone
 				duration = System.nanoTime() - oldtime;
 
@@ -138,63 +159,21 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
 		int sum = 1, len = 0, type;
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-		}
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts += delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
 
-
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
-		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
-			count++;
-			if (count>4) {
-				sps = null;
-				pps = null;
-			}
-		}
-
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		boolean keyFrame = (((MediaCodecInputStream)is).getLastBufferInfo().flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
-		if ((type == 5 || keyFrame) && sps != null && pps != null) {
-			Log.v(TAG,"SPS and PPS prepend to sync frame in the stream.");
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
-		}
+		socket.setKeyFrame(type == 5);
+		socket.setDisposable(type >= 1 && type <= 5 && (header[4]&0x60) == 0);
+		sendParameterSets(type, false);
 
 		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
@@ -238,6 +217,165 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Sends the NAL units contained in an output buffer of the MediaCodec.
+	 * The marker bit is only set on the last packet of the access unit.
+	 * Called by the Thread of the packetizer, and by the benchmarks.
+	 */
+	void send(AccessUnit unit) throws IOException, InterruptedException {
+		ByteBuffer data = unit.getBuffer();
+		boolean prefixed = false, more;
+
+		ts = unit.getPresentationTimeUs()*1000L;
+		socket.setKeyFrame(unit.isKeyFrame());
+		// Depends on the transport chosen at SETUP time
+		maxPacketSize = socket.getMaxPacketSize();
+		socket.setDisposable(false);
+
+		splitter.reset(data, unit.getOffset(), unit.getSize());
+		more = splitter.next();
+		while (more) {
+			int nal = splitter.getOffset(), length = splitter.getLength();
+			more = splitter.next();
+			// The slices of a frame no other frame refers to have a nal_ref_idc of 0
+			int type = data.get(nal)&0x1F;
+			if (type >= 1 && type <= 5) socket.setDisposable((data.get(nal)&0x60) == 0);
+			if (!prefixed) prefixed = sendParameterSets(type, unit.isKeyFrame());
+			aggregate(unit, nal, length, !more);
+		}
+	}
+
+	/**
+	 * Small NAL units are kept until the next one does not fit in the same STAP-A packet (RFC 6184).
+	 * The others are sent right away with {@link #send(AccessUnit, int, int, boolean)}.
+	 */
+	private void aggregate(AccessUnit unit, int nal, int length, boolean last) throws IOException, InterruptedException {
+		// The aggregation packets are written in the buffers of the FIFO
+		int max = Math.min(MAXPACKETSIZE, maxPacketSize)-rtphl;
+		// STAP-A NAL header + NALU size + NALU
+		if (!aggregation || 3+length > max) {
+			flush(unit, false);
+			send(unit, nal, length, last);
+			return;
+		}
+		if (aggCount == aggOffsets.length || aggSize+2+length > max) {
+			flush(unit, false);
+		}
+		if (aggCount == 0) aggSize = 1;
+		aggOffsets[aggCount] = nal;
+		aggLengths[aggCount++] = length;
+		aggSize += 2+length;
+		if (last) flush(unit, true);
+	}
+
+	/** Sends the NAL units kept by {@link #aggregate(AccessUnit, int, int, boolean)}. */
+	private void flush(AccessUnit unit, boolean last) throws IOException, InterruptedException {
+		if (aggCount == 0) return;
+		if (aggCount == 1) {
+			aggCount = 0;
+			send(unit, aggOffsets[0], aggLengths[0], last);
+			return;
+		}
+
+		buffer = socket.requestBuffer();
+		int pos = rtphl+1, nal = 0;
+		for (int i=0;i<aggCount;i++) {
+			int len = aggLengths[i];
+			buffer[pos++] = (byte) (len>>8);
+			buffer[pos++] = (byte) (len&0xFF);
+			unit.copy(aggOffsets[i], buffer, pos, len);
+			// Forbidden bit and highest NRI of the aggregated NAL units
+			nal = (nal & 0x80) | (buffer[pos] & 0x80) | Math.max(nal & 0x60, buffer[pos] & 0x60);
+			pos += len;
+		}
+		// STAP-A NAL header is 24
+		buffer[rtphl] = (byte) (nal | 24);
+		socket.updateTimestamp(ts);
+		if (last) socket.markNextPacket();
+		super.send(pos);
+
+		aggregates++;
+		saved += aggCount-1;
+		aggCount = 0;
+	}
+
+	/**
+	 * Sends one NAL unit of an access unit.
+	 * The payloads of the RTP packets are not copied here, they are slices of the access unit.
+	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 */
+	private void send(AccessUnit unit, int nal, int length, boolean last) throws IOException, InterruptedException {
+		int end = nal+length;
+
+		header[4] = unit.getBuffer().get(nal);
+
+		// Small NAL unit => Single NAL unit 
+		if (length<=maxPacketSize-rtphl-2) {
+			buffer = socket.requestBuffer();
+			buffer[rtphl] = header[4];
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(rtphl+1, unit, nal+1, length-1);
+		}
+		// Large NAL unit => Split nal unit 
+		else {
+
+			// Set FU-A header
+			header[1] = (byte) (header[4] & 0x1F);  // FU header type
+			header[1] += 0x80; // Start bit
+			// Set FU-A indicator
+			header[0] = (byte) ((header[4] & 0x60) & 0xFF); // FU indicator NRI
+			header[0] += 28;
+
+			int pos = nal+1, len;
+			while (pos < end) {
+				len = end-pos > maxPacketSize-rtphl-2 ? maxPacketSize-rtphl-2 : end-pos;
+				buffer = socket.requestBuffer();
+				buffer[rtphl] = header[0];
+				buffer[rtphl+1] = header[1];
+				socket.updateTimestamp(ts);
+				// Last packet before next NAL
+				if (pos+len >= end) {
+					// End bit on
+					buffer[rtphl+1] += 0x40;
+					if (last) socket.markNextPacket();
+				}
+				super.send(rtphl+2, unit, pos, len);
+				pos += len;
+				// Switch start bit
+				header[1] = (byte) (header[1] & 0x7F); 
+			}
+		}
+	}
+
+	/**
+	 * We send two packets containing NALU type 7 (SPS) and 8 (PPS) before each key frame.
+	 * Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+	 * @return true if the STAP-A has been sent
+	 */
+	private boolean sendParameterSets(int type, boolean keyFrame) throws IOException, InterruptedException {
+		// The stream already contains NAL unit type 7 or 8, we don't need 
+		// to add them to the stream ourselves
+		if (type == 7 || type == 8) {
+			Log.v(TAG,"SPS or PPS present in the stream.");
+			count++;
+			if (count>4) {
+				sps = null;
+				pps = null;
+			}
+		}
+
+		if ((type == 5 || keyFrame) && sps != null && pps != null) {
+			Log.v(TAG,"SPS and PPS prepend to sync frame in the stream.");
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
+			super.send(rtphl+stapa.length);
+			return true;
+		}
+		return false;
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0, len;
 		while (sum<length) {
@@ -19,9 +19,10 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import android.annotation.SuppressLint;
-import android.media.MediaCodec;
-import android.util.Log;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.Platform.Log;
+import net.majorkernelpanic.streaming.metrics.Histogram;
+import net.majorkernelpanic.streaming.metrics.Metrics;
 
 /**
  * 
@@ -36,16 +37,19 @@ import android.util.Log;
 public class H265Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H265Packetizer";
+
+	private final static Histogram sUnitTime = Metrics.histogram(Metrics.name("packetizer_unit_ns", "packetizer", TAG), "Time spent packetizing an access unit, in ns");
 	public final static int H265_NALU_HEADER_SIZE = 2;
 
 	private Thread t = null;
-	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
+	private AnnexBSplitter splitter = new AnnexBSplitter();
+	private int[] aggOffsets = new int[64], aggLengths = new int[64];
+	private int aggCount = 0, aggSize = 0;
 	private byte[] vps = null, sps = null, pps = null, stapa = null;
 	byte[] header = new byte[4+H265_NALU_HEADER_SIZE];
 	private int count = 0;
-	private int streamType = 1;
 
 
 	public H265Packetizer() {
@@ -113,17 +117,22 @@ public class H265Packetizer extends AbstractPacketizer implements Runnable {
 		stats.reset();
 		count = 0;
 
-		if (is instanceof MediaCodecInputStream) {
-			streamType = 1;
-			socket.setCacheSize(0);
-		}
+		socket.setCacheSize(0);
 
 		try {
 			while (!Thread.interrupted()) {
 
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
-				send();
+				AccessUnit unit = ((EncoderSource)is).readAccessUnit();
+				socket.setOutputTime(((EncoderSource)is).getLastOutputTime());
+				long start = Metrics.now();
+				try {
+					send(unit);
+				} finally {
+					unit.release();
+				}
+				sUnitTime.since(start);
 				// We measure how long it took to receive NAL units from the phone
 				duration = System.nanoTime() - oldtime;
 
@@ -141,32 +150,100 @@ public class H265Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	/**
-	 * Reads a NAL unit in the FIFO and sends it.
-	 * If it is too big, we split it in FU-A units (RFC 3984).
+	 * Sends the NAL units contained in an output buffer of the MediaCodec.
+	 * The marker bit is only set on the last packet of the access unit.
+	 * Called by the Thread of the packetizer, and by the benchmarks.
 	 */
-	@SuppressLint("NewApi")
-	private void send() throws IOException, InterruptedException {
-		int sum = H265_NALU_HEADER_SIZE, len = 0, type;
-
-		if (streamType == 0) {
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,header.length);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+H265_NALU_HEADER_SIZE;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				return;
+	void send(AccessUnit unit) throws IOException, InterruptedException {
+		ByteBuffer data = unit.getBuffer();
+		boolean prefixed = false, more;
+
+		ts = unit.getPresentationTimeUs()*1000L;
+		socket.setKeyFrame(unit.isKeyFrame());
+		// Depends on the transport chosen at SETUP time
+		maxPacketSize = socket.getMaxPacketSize();
+		socket.setDisposable(false);
+
+		splitter.reset(data, unit.getOffset(), unit.getSize());
+		more = splitter.next();
+		while (more) {
+			int nal = splitter.getOffset(), length = splitter.getLength();
+			more = splitter.next();
+			if (length < H265_NALU_HEADER_SIZE) {
+				if (!more) flush(unit, true);
+				continue;
 			}
-		} else {
+			// Sub-layer non-reference pictures have an even VCL NAL unit type below 16
+			int type = (data.get(nal)&0x7E)>>1;
+			if (type < 32) socket.setDisposable(type < 16 && (type&1) == 0);
+			if (!prefixed) prefixed = sendParameterSets(type, unit.isKeyFrame());
+			aggregate(unit, nal, length, !more);
 		}
+	}
 
-		// Parses the NAL unit type
-		type = (header[4]&0x7E)>>1;
+	/**
+	 * Small NAL units are kept until the next one does not fit in the same AP packet (RFC 7798).
+	 * The others are sent right away with {@link #send(AccessUnit, int, int, boolean)}.
+	 */
+	private void aggregate(AccessUnit unit, int nal, int length, boolean last) throws IOException, InterruptedException {
+		// The aggregation packets are written in the buffers of the FIFO
+		int max = Math.min(MAXPACKETSIZE, maxPacketSize)-rtphl;
+		// AP payload header + NALU size + NALU
+		if (!aggregation || H265_NALU_HEADER_SIZE+2+length > max) {
+			flush(unit, false);
+			send(unit, nal, length, last);
+			return;
+		}
+		if (aggCount == aggOffsets.length || aggSize+2+length > max) {
+			flush(unit, false);
+		}
+		if (aggCount == 0) aggSize = H265_NALU_HEADER_SIZE;
+		aggOffsets[aggCount] = nal;
+		aggLengths[aggCount++] = length;
+		aggSize += 2+length;
+		if (last) flush(unit, true);
+	}
 
+	/** Sends the NAL units kept by {@link #aggregate(AccessUnit, int, int, boolean)}. */
+	private void flush(AccessUnit unit, boolean last) throws IOException, InterruptedException {
+		if (aggCount == 0) return;
+		if (aggCount == 1) {
+			aggCount = 0;
+			send(unit, aggOffsets[0], aggLengths[0], last);
+			return;
+		}
 
+		buffer = socket.requestBuffer();
+		int pos = rtphl+H265_NALU_HEADER_SIZE, f = 0, layerId = 0x3F, tid = 7;
+		for (int i=0;i<aggCount;i++) {
+			int len = aggLengths[i];
+			buffer[pos++] = (byte) (len>>8);
+			buffer[pos++] = (byte) (len&0xFF);
+			unit.copy(aggOffsets[i], buffer, pos, len);
+			// Forbidden bit, lowest LayerId and lowest TID of the aggregated NAL units
+			f |= buffer[pos] & 0x80;
+			layerId = Math.min(layerId, (buffer[pos]&0x01)<<5 | (buffer[pos+1]&0xF8)>>3);
+			tid = Math.min(tid, buffer[pos+1]&0x07);
+			pos += len;
+		}
+		// AP payload header type is 48
+		buffer[rtphl] = (byte) (f | 48<<1 | layerId>>5);
+		buffer[rtphl+1] = (byte) ((layerId&0x1F)<<3 | tid);
+		socket.updateTimestamp(ts);
+		if (last) socket.markNextPacket();
+		super.send(pos);
+
+		aggregates++;
+		saved += aggCount-1;
+		aggCount = 0;
+	}
+
+	/**
+	 * We send a packet containing NALU type 32 (VPS) 33 (SPS) and 34 (PPS) before each key frame.
+	 * Those should allow the H265 stream to be decoded even if no SDP was sent to the decoder.
+	 * @return true if the aggregation packet has been sent
+	 */
+	private boolean sendParameterSets(int type, boolean keyFrame) throws IOException, InterruptedException {
 		// The stream already contains NAL unit type 32 or 33 or 34, we don't need
 		// to add them to the stream ourselves
 		if (type == 32 || type == 33 || type == 34) {
@@ -179,31 +256,38 @@ public class H265Packetizer extends AbstractPacketizer implements Runnable {
 			}
 		}
 
-		// We send two packets containing NALU type 32 (VPS) 33 (SPS) and 34 (PPS)
-		// Those should allow the H265 stream to be decoded even if no SDP was sent to the decoder.
-		boolean keyFrame = (((MediaCodecInputStream)is).getLastBufferInfo().flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
 		if ((type == 19 || keyFrame) && vps != null && sps != null && pps != null) {
 			Log.v(TAG,"VPS SPS and PPS prepend to sync frame in the stream.");
 			buffer = socket.requestBuffer();
-			socket.markNextPacket();
 			socket.updateTimestamp(ts);
 			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
 			super.send(rtphl+stapa.length);
+			return true;
 		}
+		return false;
+	}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
+	/**
+	 * Sends one NAL unit of an access unit.
+	 * The payloads of the RTP packets are not copied here, they are slices of the access unit.
+	 * If it is too big, we split it in FU units (RFC 7798).
+	 */
+	private void send(AccessUnit unit, int nal, int naluLength, boolean last) throws IOException, InterruptedException {
+		ByteBuffer data = unit.getBuffer();
+		int end = nal+naluLength;
+
+		header[4] = data.get(nal);
+		header[5] = data.get(nal+1);
 
 		// Small NAL unit => Single NAL unit 
-		final int NALU = MAXPACKETSIZE-rtphl-3;
+		final int NALU = maxPacketSize-rtphl-3;
 		if (naluLength<=NALU) {
 			buffer = socket.requestBuffer();
 			buffer[rtphl] = header[4];
 			buffer[rtphl+1] = header[5];
-			len = fill(buffer, rtphl+H265_NALU_HEADER_SIZE,  naluLength-H265_NALU_HEADER_SIZE);
 			socket.updateTimestamp(ts);
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
+			if (last) socket.markNextPacket();
+			super.send(rtphl+H265_NALU_HEADER_SIZE, unit, nal+H265_NALU_HEADER_SIZE, naluLength-H265_NALU_HEADER_SIZE);
 		}
 		// Large NAL unit => Split nal unit 
 		else {
@@ -216,37 +300,27 @@ public class H265Packetizer extends AbstractPacketizer implements Runnable {
 			header[0] = (byte) ((header[4] & 0x81) & 0xFF); // FU indicator NRI
 			header[0] |= (49 << 1);
 
-			while (sum < naluLength) {
+			int pos = nal+H265_NALU_HEADER_SIZE, len;
+			while (pos < end) {
+				len = end-pos > NALU ? NALU : end-pos;
 				buffer = socket.requestBuffer();
 				buffer[rtphl] = header[0];
 				buffer[rtphl+1] = header[1];
 				buffer[rtphl+2] = header[2];
 				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+3,  naluLength-sum > NALU ? NALU : naluLength-sum  ))<0) return; sum += len;
 				// Last packet before next NAL
-				if (sum >= naluLength) {
+				if (pos+len >= end) {
 					// End bit on
 					buffer[rtphl+2] |= 0x40;
-					socket.markNextPacket();
+					if (last) socket.markNextPacket();
 				}
-				super.send(len+rtphl+3);
+				super.send(rtphl+3, unit, pos, len);
+				pos += len;
 				// Switch start bit
 				header[2] = (byte) (header[2] & 0x7F);
-				//Log.d(TAG,"----- FU-A unit, sum:"+sum);
-			}
-		}
-	}
-
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
+				//Log.d(TAG,"----- FU-A unit, pos:"+pos);
 			}
-			else sum+=len;
 		}
-		return sum;
 	}
 
 }
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import net.majorkernelpanic.streaming.Platform.Log;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+
+/**
+ * Writes the interleaved RTP and RTCP packets (RFC 2326, section 10.12) and the RTSP responses
+ * of a TCP connection from its own Thread, so that a slow client never blocks the Thread of an
+ * {@link RtpSocket} that serves other clients, nor the encoder.
+ *
+ * Packets are copied with their interleaved header in a ring buffer, and consecutive packets are written
+ * to the connection in a single call. The queue is bounded in bytes and in time. When the oldest
+ * packet has waited for more than half the maximum delay, non-reference frames are dropped; when it has
+ * waited for more than the maximum delay or the queue is full, all the frames of a video channel are
+ * dropped until the next key frame, which is requested once the queue has drained. Frames are always
+ * dropped whole, from their first packet on. RTCP packets are only dropped if the queue is full.
+ * RTSP responses, written with the methods of the {@link OutputStream}, never wait for the client: when
+ * the queue is full, the packets queued make room for them, and if that is not enough the connection is closed.
+ *
+ * Instead of its own Thread, the writer can be drained with {@link #drain(WritableByteChannel)} by the
+ * Thread of a selector, it is then told when data is queued in an empty queue.
+ */
+public class InterleavedWriter extends OutputStream implements Runnable {
+
+	public final static String TAG = "InterleavedWriter";
+
+	private final static Counter sDropped = Metrics.counter(Metrics.name("rtp_dropped_packets", "reason", "tcp_congestion"), "Packets not sent");
+
+	/** The packet belongs to a key frame. */
+	public final static int FLAG_KEY_FRAME = 0x01;
+
+	/** The packet belongs to a frame that no other frame refers to. */
+	public final static int FLAG_DISPOSABLE = 0x02;
+
+	/** An RTCP packet, it is not part of a frame. */
+	public final static int FLAG_CONTROL = 0x04;
+
+	/** Default size of the queue, in bytes. */
+	public final static int DEFAULT_MAX_BYTES = 256*1024;
+
+	/** Default maximum time a packet can wait in the queue, in ns. */
+	public final static long DEFAULT_MAX_DELAY = 500000000L;
+
+	private final static int MAX_ENTRIES = 1024;
+	private final static int MAX_WRITE = 64*1024;
+
+	private final OutputStream mOutput;
+	private final Runnable mOnPending;
+	private final long mMaxDelay;
+	private final byte[] mRing;
+	private final ByteBuffer mView;
+	private final int[] mStarts = new int[MAX_ENTRIES], mLengths = new int[MAX_ENTRIES], mChannels = new int[MAX_ENTRIES];
+	private final long[] mTimes = new long[MAX_ENTRIES];
+	private int mFirst = 0, mCount = 0, mHead = 0, mTail = 0, mBytes = 0, mWriting = 0;
+	private boolean mClosed = false;
+	private Thread mThread;
+
+	// The state of each channel
+	private final boolean[] mVideo = new boolean[256], mDropping = new boolean[256], mSkipping = new boolean[256], mRequested = new boolean[256];
+	private final long[] mFrames = new long[256];
+	private final KeyFrameRequester[] mRequesters = new KeyFrameRequester[256];
+
+	private volatile long mPackets = 0, mDropped = 0, mSkippedFrames = 0, mFreezes = 0, mSentBytes = 0;
+
+	public InterleavedWriter(OutputStream output) {
+		this(output, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param output The output stream of the connection
+	 * @param maxBytes The size of the queue, in bytes
+	 * @param maxDelay The maximum time a packet can wait in the queue, in ns
+	 */
+	public InterleavedWriter(OutputStream output, int maxBytes, long maxDelay) {
+		this(output, null, maxBytes, maxDelay);
+	}
+
+	/**
+	 * The queue is not drained by a Thread of the writer but with {@link #drain(WritableByteChannel)}.
+	 * @param onPending Called when data is queued in an empty queue, with the lock of the writer held
+	 */
+	public InterleavedWriter(Runnable onPending) {
+		this(null, onPending, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY);
+	}
+
+	private InterleavedWriter(OutputStream output, Runnable onPending, int maxBytes, long maxDelay) {
+		mOutput = output;
+		mOnPending = onPending;
+		mRing = new byte[maxBytes];
+		mView = ByteBuffer.wrap(mRing);
+		mMaxDelay = maxDelay;
+	}
+
+	/**
+	 * Tells that a channel carries a video stream, its packets are dropped by whole frames until the next key frame.
+	 * @param channel The channel of the RTP packets
+	 * @param requester Asked for a key frame once the queue has drained after frames have been dropped, can be null
+	 */
+	public synchronized void setVideoChannel(int channel, KeyFrameRequester requester) {
+		mVideo[channel&0xFF] = true;
+		mRequesters[channel&0xFF] = requester;
+	}
+
+	/** Starts the Thread of the writer, does nothing if the queue is drained with {@link #drain(WritableByteChannel)}. */
+	public synchronized void start() {
+		if (mThread != null || mClosed || mOutput == null) return;
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Queues an interleaved packet. Can be called from any Thread, never blocks.
+	 * @param channel The channel of the packet
+	 * @param packet The RTP or RTCP packet
+	 * @param length The length of the packet
+	 * @param flags A combination of {@link #FLAG_KEY_FRAME}, {@link #FLAG_DISPOSABLE} and {@link #FLAG_CONTROL}
+	 * @return false if the packet has been dropped
+	 */
+	public boolean send(int channel, byte[] packet, int length, int flags) {
+		KeyFrameRequester requester = null;
+		boolean drop;
+		channel &= 0xFF;
+		synchronized (this) {
+			if (mClosed) return false;
+			mPackets++;
+			long now = System.nanoTime();
+			long age = mCount > 0 ? now-mTimes[mFirst] : 0;
+			int start = allocate(4+length);
+			boolean late = age > mMaxDelay/2, congested = start < 0 || age > mMaxDelay;
+			if ((flags & FLAG_CONTROL) != 0 || !mVideo[channel]) {
+				drop = (flags & FLAG_CONTROL) != 0 ? start < 0 : congested;
+			} else {
+				long frame = (packet[4]&0xFFL)<<24 | (packet[5]&0xFF)<<16 | (packet[6]&0xFF)<<8 | (packet[7]&0xFF);
+				boolean first = frame != mFrames[channel];
+				mFrames[channel] = frame;
+				if (mDropping[channel]) {
+					// Resumes with the first packet of a key frame once the queue has drained
+					drop = !first || (flags & FLAG_KEY_FRAME) == 0 || late || congested;
+					if (drop && !late && !congested && !mRequested[channel]) {
+						mRequested[channel] = true;
+						requester = mRequesters[channel];
+					}
+					mDropping[channel] = drop;
+				} else if (!first) {
+					// The rest of a frame follows the fate of its first packet, unless the queue is full
+					drop = mSkipping[channel] || start < 0;
+					if (start < 0 && !mSkipping[channel]) freeze(channel);
+				} else if (congested) {
+					drop = true;
+					freeze(channel);
+				} else {
+					mSkipping[channel] = drop = late && (flags & FLAG_DISPOSABLE) != 0;
+					if (drop) mSkippedFrames++;
+				}
+			}
+			if (drop) {
+				mDropped++;
+				sDropped.increment();
+			} else {
+				mRing[start] = '$';
+				mRing[start+1] = (byte) channel;
+				mRing[start+2] = (byte) (length>>8);
+				mRing[start+3] = (byte) length;
+				System.arraycopy(packet, 0, mRing, start+4, length);
+				push(start, 4+length, now, channel);
+			}
+		}
+		if (requester != null) requester.request();
+		return !drop;
+	}
+
+	/** All the frames of the channel are dropped until the next key frame. */
+	private void freeze(int channel) {
+		mDropping[channel] = true;
+		mSkipping[channel] = false;
+		mRequested[channel] = false;
+		mFreezes++;
+	}
+
+	/** Returns where n bytes can be copied in the ring, or -1 if there is not enough room. */
+	private int allocate(int n) {
+		if (mCount == MAX_ENTRIES) return -1;
+		if (mCount == 0 || mHead > mTail) {
+			if (mRing.length-mHead >= n) return mHead;
+			return mTail >= n ? 0 : -1;
+		}
+		return mTail-mHead >= n ? mHead : -1;
+	}
+
+	/** Queues n bytes copied at start, channel is -1 for what is not an interleaved packet. */
+	private void push(int start, int length, long now, int channel) {
+		int i = (mFirst+mCount)%MAX_ENTRIES;
+		mStarts[i] = start;
+		mLengths[i] = length;
+		mChannels[i] = channel;
+		mTimes[i] = now;
+		mHead = start+length;
+		mBytes += length;
+		if (mCount++ == 0) {
+			notifyAll();
+			if (mOnPending != null) mOnPending.run();
+		}
+	}
+
+	/** Returns where the consecutive entries at the front of the queue end, at most MAX_WRITE bytes after start. */
+	private int contiguous(int start) {
+		int end = start;
+		for (int count=0; count < mCount && end-start < MAX_WRITE; count++) {
+			int i = (mFirst+count)%MAX_ENTRIES;
+			if (mStarts[i] != end) break;
+			end += mLengths[i];
+		}
+		return end;
+	}
+
+	/** Removes n bytes from the front of the queue, the first entry may be left partially written. */
+	private void consume(int n) {
+		mWriting = 0;
+		mBytes -= n;
+		mSentBytes += n;
+		while (n > 0) {
+			if (n < mLengths[mFirst]) {
+				mStarts[mFirst] += n;
+				mLengths[mFirst] -= n;
+				break;
+			}
+			n -= mLengths[mFirst];
+			mFirst = (mFirst+1)%MAX_ENTRIES;
+			mCount--;
+		}
+		mTail = mCount > 0 ? mStarts[mFirst] : 0;
+		if (mCount == 0) mHead = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Drops the packets of the queue to make room for an RTSP response, except those being written and the
+	 * first one, which may have been written in part. The video channels are frozen until their next key frame.
+	 * @return false if nothing can be dropped without dropping a response queued before
+	 */
+	private boolean dropPackets() {
+		int keep = 0, bytes = 0;
+		while (keep < mCount && (keep == 0 || bytes < mWriting)) {
+			bytes += mLengths[(mFirst+keep)%MAX_ENTRIES];
+			keep++;
+		}
+		if (keep == mCount) return false;
+		for (int n = keep; n < mCount; n++) {
+			if (mChannels[(mFirst+n)%MAX_ENTRIES] < 0) return false;
+		}
+		for (int n = keep; n < mCount; n++) {
+			int channel = mChannels[(mFirst+n)%MAX_ENTRIES];
+			if (mVideo[channel] && !mDropping[channel]) freeze(channel);
+		}
+		mDropped += mCount-keep;
+		sDropped.add(mCount-keep);
+		int last = (mFirst+keep-1)%MAX_ENTRIES;
+		mHead = mStarts[last]+mLengths[last];
+		mBytes = bytes;
+		mCount = keep;
+		return true;
+	}
+
+	/**
+	 * Queues data that is not an interleaved packet, an RTSP response. Never waits for the client: the packets
+	 * queued are dropped if there is no room for it, and the connection is closed if that is not enough.
+	 */
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		synchronized (this) {
+			while (length > 0) {
+				if (mClosed) throw new IOException("Connection closed");
+				int n = Math.min(length, mRing.length/4), start = allocate(n);
+				if (start < 0 && dropPackets()) start = allocate(n);
+				if (start < 0) break;
+				System.arraycopy(buffer, offset, mRing, start, n);
+				push(start, n, System.nanoTime(), -1);
+				offset += n;
+				length -= n;
+			}
+		}
+		if (length > 0) {
+			close();
+			throw new IOException("The client does not read its connection");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	/** Stops the Thread and closes the connection, the packets still queued are lost. */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+		if (mOutput != null) mOutput.close();
+	}
+
+	/**
+	 * Writes what is queued to a non-blocking channel, without waiting. Only one Thread should drain the writer.
+	 * @return true if the queue is empty, false if the channel is full or if the caller should come back later
+	 * to let other connections be written
+	 */
+	public boolean drain(WritableByteChannel channel) throws IOException {
+		int budget = mRing.length;
+		while (budget > 0) {
+			int start, end;
+			synchronized (this) {
+				if (mClosed) throw new IOException("Connection closed");
+				if (mCount == 0) return true;
+				start = mStarts[mFirst];
+				end = contiguous(start);
+				mWriting = end-start;
+			}
+			mView.limit(end).position(start);
+			int n = channel.write(mView);
+			synchronized (this) {
+				consume(n);
+			}
+			if (n < end-start) return false;
+			budget -= n;
+		}
+		return false;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				int start, end;
+				synchronized (this) {
+					while (mCount == 0 && !mClosed) wait();
+					if (mClosed) break;
+					// Consecutive entries of the ring are written at once
+					start = mStarts[mFirst];
+					end = contiguous(start);
+					mWriting = end-start;
+				}
+				mOutput.write(mRing, start, end-start);
+				synchronized (this) {
+					consume(end-start);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Connection lost: "+e.getMessage());
+		} catch (InterruptedException ignore) {}
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Sends an interleaved packet on the output stream of a TCP connection: queues it if the stream
+	 * is an {@link InterleavedWriter}, writes it otherwise.
+	 * @param output The output stream of the connection
+	 * @param header The interleaved header, its channel is used and its length is overwritten
+	 */
+	public static void send(OutputStream output, byte[] header, byte[] packet, int length, int flags) throws IOException {
+		if (output instanceof InterleavedWriter) {
+			((InterleavedWriter) output).send(header[1], packet, length, flags);
+			return;
+		}
+		synchronized (output) {
+			header[2] = (byte) (length>>8);
+			header[3] = (byte) (length&0xFF);
+			output.write(header);
+			output.write(packet, 0, length);
+		}
+	}
+
+	/** Returns the number of bytes in the queue. */
+	public synchronized int getQueuedBytes() {
+		return mBytes;
+	}
+
+	/** Returns how long the oldest packet of the queue has waited, in ns. */
+	public synchronized long getQueueDelay() {
+		return mCount > 0 ? System.nanoTime()-mTimes[mFirst] : 0;
+	}
+
+	/** Returns the number of interleaved packets queued or dropped. */
+	public long getPackets() {
+		return mPackets;
+	}
+
+	/** Returns the number of interleaved packets dropped. */
+	public long getDroppedPackets() {
+		return mDropped;
+	}
+
+	/** Returns the number of non-reference frames dropped. */
+	public long getSkippedFrames() {
+		return mSkippedFrames;
+	}
+
+	/** Returns how many times the frames have been dropped until the next key frame. */
+	public long getFreezes() {
+		return mFreezes;
+	}
+
+	/** Returns the number of bytes written to the connection. */
+	public long getSentBytes() {
+		return mSentBytes;
+	}
+
+	public String toString() {
+		return "packets: "+mPackets+" dropped: "+mDropped+" skipped frames: "+mSkippedFrames+" freezes: "+mFreezes+" sent: "+mSentBytes+" bytes";
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Asks the encoder for a key frame when receivers need one: after a PLI or a FIR (RFC 4585, RFC 5104),
+ * or when a new client joins the stream.
+ *
+ * Requests are coalesced: the encoder is asked at most once every minimum interval, and a key frame
+ * answers all the requests received before it. A request received too soon is not lost, it is sent
+ * once the interval has elapsed if no key frame has been produced meanwhile.
+ * The packetizer tells the requester about each frame with {@link #onFrame(boolean, long)}, which is
+ * how the delay between a request and the key frame is measured and how delayed requests are sent.
+ */
+public class KeyFrameRequester {
+
+	public final static String TAG = "KeyFrameRequester";
+
+	/** Default minimum delay between two requests to the encoder, in ns. */
+	public final static long DEFAULT_MIN_INTERVAL = 1000000000L;
+
+	/** Asks the encoder for a key frame. */
+	public interface Encoder {
+		void requestKeyFrame();
+	}
+
+	private final Encoder mEncoder;
+	private final long mMinInterval;
+
+	// When the oldest request not answered by a key frame was received, and when the encoder was last asked
+	private long mPending = 0, mLastRequest = 0;
+
+	private volatile long mRequests = 0, mEncoderRequests = 0, mAnswered = 0;
+	private volatile long mTotalLatency = 0, mMaxLatency = 0;
+
+	/**
+	 * @param encoder The encoder
+	 * @param minInterval The minimum delay between two requests to the encoder, in ns
+	 */
+	public KeyFrameRequester(Encoder encoder, long minInterval) {
+		mEncoder = encoder;
+		mMinInterval = minInterval;
+	}
+
+	public long getMinInterval() {
+		return mMinInterval;
+	}
+
+	/** Requests a key frame. Can be called from any Thread. */
+	public void request() {
+		long now = System.nanoTime();
+		boolean send;
+		synchronized (this) {
+			mRequests++;
+			if (mPending == 0) mPending = now;
+			send = poll(now);
+		}
+		if (send) mEncoder.requestKeyFrame();
+	}
+
+	/**
+	 * Called by the packetizer for each frame sent.
+	 * @param keyFrame Whether the frame is a key frame
+	 * @param now The current time, as returned by {@link System#nanoTime()}
+	 */
+	public void onFrame(boolean keyFrame, long now) {
+		boolean send;
+		synchronized (this) {
+			if (keyFrame) {
+				if (mPending != 0) {
+					long latency = now-mPending;
+					mAnswered++;
+					mTotalLatency += latency;
+					if (latency > mMaxLatency) mMaxLatency = latency;
+					mPending = 0;
+				}
+				return;
+			}
+			send = poll(now);
+		}
+		if (send) mEncoder.requestKeyFrame();
+	}
+
+	/** Decides if the encoder must be asked for a key frame now. */
+	private boolean poll(long now) {
+		if (mPending == 0 || (mLastRequest != 0 && now-mLastRequest < mMinInterval)) return false;
+		mLastRequest = now;
+		mEncoderRequests++;
+		return true;
+	}
+
+	/** Returns the number of key frames requested by the receivers. */
+	public long getRequests() {
+		return mRequests;
+	}
+
+	/** Returns the number of times the encoder has been asked for a key frame. */
+	public long getEncoderRequests() {
+		return mEncoderRequests;
+	}
+
+	/** Returns the number of key frames that answered a request. */
+	public long getAnsweredRequests() {
+		return mAnswered;
+	}
+
+	/** Returns the average delay between a request and the next key frame, in ns. */
+	public long getAverageLatency() {
+		return mAnswered>0 ? mTotalLatency/mAnswered : 0;
+	}
+
+	/** Returns the longest delay between a request and the next key frame, in ns. */
+	public long getMaxLatency() {
+		return mMaxLatency;
+	}
+
+	public String toString() {
+		return "requests: "+mRequests+" encoder: "+mEncoderRequests+" answered: "+mAnswered+
+				" latency avg: "+getAverageLatency()/1000000+" ms max: "+mMaxLatency/1000000+" ms";
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Receives the buffers of a MediaCodec with {@link MediaCodec#setCallback(MediaCodec.Callback, Handler)},
+ * on a Thread of its own, instead of polling the codec with dequeueOutputBuffer and dequeueInputBuffer.
+ *
+ * The output buffers are handed to the {@link MediaCodecInputStream} through a bounded queue, the 
+ * input buffers to the Thread that feeds the codec, if it is not fed by a Surface, through another one.
+ * The codec config and the format changes are parsed by the {@link Listener} on the Thread of the callbacks,
+ * not by the packetizer. Must be attached to the codec before it is configured.
+ */
+@SuppressLint("NewApi")
+public class MediaCodecBridge extends MediaCodec.Callback {
+
+	public final static String TAG = "MediaCodecBridge";
+
+	/** Capacity of the queues. Codecs have fewer buffers than that, the Thread of the callbacks never blocks. */
+	public final static int QUEUE_SIZE = 64;
+
+	// Queued to wake up the readers when the codec fails
+	private final static int ERROR = -1;
+
+	/** Called on the Thread of the callbacks. */
+	public interface Listener {
+		void onOutputFormatChanged(MediaFormat format);
+		void onCodecConfig(ByteBuffer buffer, BufferInfo info);
+	}
+
+	private final HandlerThread mThread;
+	private final ArrayBlockingQueue<Integer> mOutputs = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final ArrayBlockingQueue<Integer> mInputs = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final ByteBuffer[] mBuffers = new ByteBuffer[QUEUE_SIZE];
+	private final BufferInfo[] mInfos = new BufferInfo[QUEUE_SIZE];
+	private final long[] mTimes = new long[QUEUE_SIZE];
+	private MediaCodec mMediaCodec;
+	private Listener mListener;
+	private MediaFormat mFormat;
+	private volatile Exception mError = null;
+	private volatile long mDropped = 0;
+
+	public MediaCodecBridge(String name) {
+		for (int i=0; i<QUEUE_SIZE; i++) mInfos[i] = new BufferInfo();
+		mThread = new HandlerThread(name);
+		mThread.start();
+	}
+
+	/** The callbacks of the codec are called from now on, must be called before {@link MediaCodec#configure}. */
+	public void attach(MediaCodec codec) {
+		mMediaCodec = codec;
+		codec.setCallback(this, new Handler(mThread.getLooper()));
+	}
+
+	/** Sets the listener, it is told about the format of the codec right away if it is already known. */
+	public synchronized void setListener(Listener listener) {
+		mListener = listener;
+		if (listener != null && mFormat != null) listener.onOutputFormatChanged(mFormat);
+	}
+
+	/** Returns the output format of the codec, null until the codec has reported it. */
+	public synchronized MediaFormat getOutputFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * Waits for the next output buffer of the codec.
+	 * @return The index of the buffer, see {@link #getOutputBuffer(int)} and {@link #getOutputInfo(int)}
+	 * @throws IOException If the codec has failed
+	 */
+	public int takeOutputBuffer() throws InterruptedException, IOException {
+		return check(mOutputs, mOutputs.take());
+	}
+
+	/** Returns an output buffer given by {@link #takeOutputBuffer()}, its position and limit frame the data. */
+	public ByteBuffer getOutputBuffer(int index) {
+		return mBuffers[index];
+	}
+
+	public BufferInfo getOutputInfo(int index) {
+		return mInfos[index];
+	}
+
+	/** Returns when the codec has output the buffer, in ns ({@link System#nanoTime()}). */
+	public long getOutputTime(int index) {
+		return mTimes[index];
+	}
+
+	/**
+	 * Waits for the next input buffer of the codec, get it with {@link MediaCodec#getInputBuffer(int)}.
+	 * @throws IOException If the codec has failed
+	 */
+	public int takeInputBuffer() throws InterruptedException, IOException {
+		return check(mInputs, mInputs.take());
+	}
+
+	/** Returns the number of output buffers given back to the codec because the queue was full. */
+	public long getDroppedCount() {
+		return mDropped;
+	}
+
+	/** Gives the output buffers still in the queue back to the codec, and forgets the input buffers. */
+	public void clear() {
+		Integer index;
+		while ((index = mOutputs.poll()) != null) {
+			if (index == ERROR) continue;
+			try {
+				mMediaCodec.releaseOutputBuffer(index, false);
+			} catch (IllegalStateException e) {
+				// The codec has already been stopped
+			}
+		}
+		mInputs.clear();
+	}
+
+	/** Stops the Thread of the callbacks, call it once the codec has been released. */
+	public void release() {
+		mThread.quit();
+		mOutputs.clear();
+		mInputs.clear();
+	}
+
+	@Override
+	public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+		if (index >= QUEUE_SIZE) {
+			Log.e(TAG, "Buffer "+index+" dropped, the codec has too many buffers");
+			codec.releaseOutputBuffer(index, false);
+			mDropped++;
+			return;
+		}
+		ByteBuffer buffer = codec.getOutputBuffer(index);
+		if (buffer == null) {
+			codec.releaseOutputBuffer(index, false);
+			return;
+		}
+		mTimes[index] = System.nanoTime();
+		mBuffers[index] = buffer;
+		mInfos[index].set(info.offset, info.size, info.presentationTimeUs, info.flags);
+		if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			synchronized (this) {
+				if (mListener != null) mListener.onCodecConfig(buffer.duplicate(), info);
+			}
+		}
+		if (!mOutputs.offer(index)) {
+			codec.releaseOutputBuffer(index, false);
+			mDropped++;
+		}
+	}
+
+	@Override
+	public void onInputBufferAvailable(MediaCodec codec, int index) {
+		mInputs.offer(index);
+	}
+
+	@Override
+	public synchronized void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+		Log.i(TAG, format.toString());
+		mFormat = format;
+		if (mListener != null) mListener.onOutputFormatChanged(format);
+	}
+
+	@Override
+	public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+		Log.e(TAG, "The codec has failed", e);
+		mError = e;
+		mOutputs.offer(ERROR);
+		mInputs.offer(ERROR);
+	}
+
+	private int check(ArrayBlockingQueue<Integer> queue, int index) throws IOException {
+		if (index == ERROR) {
+			// The next readers fail too
+			queue.offer(ERROR);
+			throw new IOException("The codec has failed", mError);
+		}
+		return index;
+	}
+
+}
@@ -19,9 +19,10 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.function.BiConsumer;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Metrics;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
@@ -33,145 +34,173 @@ import android.util.Log;
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
  * libstreaming with the new MediaCodec API. This class is not thread safe !  
+ * The codec is polled with dequeueOutputBuffer, unless its buffers are received by a {@link MediaCodecBridge}.
+ * What is done with the buffers is in {@link EncoderInputStream}.
  */
 @SuppressLint("NewApi")
-public class MediaCodecInputStream extends InputStream {
+public class MediaCodecInputStream extends EncoderInputStream {
 
 	public final String TAG = "MediaCodecInputStream"; 
 
 	private MediaCodec mMediaCodec = null;
 	private BufferInfo mBufferInfo = new BufferInfo();
 	private ByteBuffer[] mBuffers = null;
-	private ByteBuffer mBuffer = null;
-	private int mIndex = -1;
-	private boolean mClosed = false;
+	private final MediaCodecBridge mBridge;
+	private final Counter mOutputBuffers;
 	
 	public MediaFormat mMediaFormat;
 	private BiConsumer<String, String> mCallback;
 	private byte[] mSPS, mPPS, mVPS;
 	private boolean mFound;
 
+	// The bridge calls it on the Thread of the callbacks of the codec
+	private final MediaCodecBridge.Listener mBridgeListener = new MediaCodecBridge.Listener() {
+		@Override
+		public void onOutputFormatChanged(MediaFormat format) {
+			onFormat(format);
+		}
+		@Override
+		public void onCodecConfig(ByteBuffer buffer, BufferInfo info) {
+			onConfig(buffer, info.size);
+		}
+	};
+
 	public MediaCodecInputStream(MediaCodec mediaCodec) {
+		this(mediaCodec, null);
+	}
+
+	/**
+	 * @param mediaCodec The codec
+	 * @param bridge The bridge attached to the codec, or null to poll the codec
+	 */
+	public MediaCodecInputStream(MediaCodec mediaCodec, MediaCodecBridge bridge) {
 		mMediaCodec = mediaCodec;
-		mBuffers = mMediaCodec.getOutputBuffers();
+		mBridge = bridge;
+		mOutputBuffers = Metrics.counter(Metrics.name("encoder_output_buffers", "codec", String.valueOf(mediaCodec.getName())), "Buffers output by the encoders");
+		if (bridge != null) {
+			bridge.setListener(mBridgeListener);
+		} else {
+			mBuffers = mMediaCodec.getOutputBuffers();
+		}
 	}
 
 	public void setMediaFormatCallback(BiConsumer<String, String> callback) {
 		mCallback = callback;
+		// The format may have been received before
+		if (mBridge != null) mBridge.setListener(mBridgeListener);
 	}
 
+	/** Waits for the next output buffer of the codec. */
 	@Override
-	public void close() {
-		mClosed = true;
+	protected void dequeue() throws IOException {
+		if (mBridge != null) {
+			take();
+			return;
+		}
+		while (!Thread.interrupted() && !mClosed) {
+			int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (index>=0 ){
+				mOutputBuffers.increment();
+				if (mBufferInfo.flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
+					onConfig(mBuffers[index], mBufferInfo.size);
+				}
+
+				//Log.d(TAG,"Index: "+index+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				setOutputBuffer(index, mBuffers[index], mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags, System.nanoTime());
+				break;
+			} else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+			} else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				onFormat(mMediaCodec.getOutputFormat());
+			} else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Log.v(TAG,"No buffer available...");
+				//return 0;
+			} else {
+				Log.e(TAG,"Message: "+index);
+				//return 0;
+			}
+		}			
 	}
 
-	@Override
-	public int read() throws IOException {
-		return 0;
+	/** Waits for the next output buffer given by the bridge, the codec config has already been parsed by it. */
+	private void take() throws IOException {
+		if (mClosed) return;
+		int index;
+		try {
+			index = mBridge.takeOutputBuffer();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		BufferInfo info = mBridge.getOutputInfo(index);
+		mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+		mOutputBuffers.increment();
+		setOutputBuffer(index, mBridge.getOutputBuffer(index), info.offset, info.size, info.presentationTimeUs, info.flags, mBridge.getOutputTime(index));
 	}
 
-	@Override
-	public int read(byte[] buffer, int offset, int length) throws IOException {
-		int min = 0;
+	/** Extracts the parameter sets from a codec config buffer, once. */
+	private void onConfig(ByteBuffer buffer, int len) {
+		if (!mFound && mCallback != null) {
+			byte[] csd = new byte[len];
+			buffer.get(csd,0,len);
+			if (extractSpsPpsFromH264(csd, len)) {
+				mCallback.accept(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP),
+						Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
+				mFound = true;
+			}
+		}
+	}
 
-		try {
-			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						if (mBufferInfo.flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG && !mFound && mCallback != null) {
-							int len = mBufferInfo.size;
-							byte[] csd = new byte[len];
-							mBuffers[mIndex].get(csd,0,len);
-							if (extractSpsPpsFromH264(csd, len)) {
-								mCallback.accept(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP),
-										Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
-								mFound = true;
-							}
-						}
-
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-
-						if (!mFound && mCallback != null) {
-							MediaFormat format = mMediaFormat;
-							switch (format.getString(MediaFormat.KEY_MIME)) {
-								case MediaFormat.MIMETYPE_VIDEO_AVC:
-									ByteBuffer spsb = format.getByteBuffer("csd-0");
-									ByteBuffer ppsb = format.getByteBuffer("csd-1");
-									mSPS = new byte[spsb.capacity() - 4];
-									spsb.position(4);
-									spsb.get(mSPS, 0, mSPS.length);
-									mPPS = new byte[ppsb.capacity() - 4];
-									ppsb.position(4);
-									ppsb.get(mPPS, 0, mPPS.length);
-									mCallback.accept(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP),
-											Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
-									mFound = true;
-									break;
-								case MediaFormat.MIMETYPE_VIDEO_HEVC:
-									ByteBuffer csd0b = format.getByteBuffer("csd-0");
-									int len = csd0b.remaining();
-									byte[] csd = new byte[len];
-									csd0b.get(csd,0,len);
-									if (extractVpsSpsPpsFromH265(csd, len)) {
-										StringBuilder sb = new StringBuilder();
-										sb.append(Base64.encodeToString(mVPS, 0, mVPS.length, Base64.NO_WRAP));
-										sb.append("-");
-										sb.append(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP));
-										sb.append("-");
-										sb.append(Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
-										String sps = sb.toString();
-										mCallback.accept(sps, sps);
-										mFound = true;
-									}
-									break;
-							}
-						}
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
+	/** Extracts the parameter sets from the output format of the codec, once. */
+	private void onFormat(MediaFormat format) {
+		mMediaFormat = format;
+		Log.i(TAG,mMediaFormat.toString());
+
+		if (!mFound && mCallback != null) {
+			switch (format.getString(MediaFormat.KEY_MIME)) {
+				case MediaFormat.MIMETYPE_VIDEO_AVC:
+					ByteBuffer spsb = format.getByteBuffer("csd-0");
+					ByteBuffer ppsb = format.getByteBuffer("csd-1");
+					mSPS = new byte[spsb.capacity() - 4];
+					spsb.position(4);
+					spsb.get(mSPS, 0, mSPS.length);
+					mPPS = new byte[ppsb.capacity() - 4];
+					ppsb.position(4);
+					ppsb.get(mPPS, 0, mPPS.length);
+					mCallback.accept(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP),
+							Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
+					mFound = true;
+					break;
+				case MediaFormat.MIMETYPE_VIDEO_HEVC:
+					ByteBuffer csd0b = format.getByteBuffer("csd-0");
+					int len = csd0b.remaining();
+					byte[] csd = new byte[len];
+					csd0b.get(csd,0,len);
+					if (extractVpsSpsPpsFromH265(csd, len)) {
+						StringBuilder sb = new StringBuilder();
+						sb.append(Base64.encodeToString(mVPS, 0, mVPS.length, Base64.NO_WRAP));
+						sb.append("-");
+						sb.append(Base64.encodeToString(mSPS, 0, mSPS.length, Base64.NO_WRAP));
+						sb.append("-");
+						sb.append(Base64.encodeToString(mPPS, 0, mPPS.length, Base64.NO_WRAP));
+						String sps = sb.toString();
+						mCallback.accept(sps, sps);
+						mFound = true;
 					}
-				}			
-			}
-			
-			if (mClosed) throw new IOException("This InputStream was closed");
-			
-			min = length < mBufferInfo.size - mBuffer.position() ? length : mBufferInfo.size - mBuffer.position(); 
-			mBuffer.get(buffer, offset, min);
-			if (mBuffer.position()>=mBufferInfo.size) {
-				mMediaCodec.releaseOutputBuffer(mIndex, false);
-				mBuffer = null;
+					break;
 			}
-			
-		} catch (RuntimeException e) {
-			e.printStackTrace();
 		}
-
-		return min;
 	}
 	
-	public int available() {
-		if (mBuffer != null) 
-			return mBufferInfo.size - mBuffer.position();
-		else 
-			return 0;
-	}
-
 	public BufferInfo getLastBufferInfo() {
 		return mBufferInfo;
 	}
 
+	@Override
+	public void releaseOutputBuffer(int index) {
+		mMediaCodec.releaseOutputBuffer(index, false);
+	}
+
 	private boolean extractSpsPpsFromH264(byte[] csd, int len) {
 		int p = 4, q = 4;
 		if (len>0 && csd[0]==0 && csd[1]==0 && csd[2]==0 && csd[3]==1) {
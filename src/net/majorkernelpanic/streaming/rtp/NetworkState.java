@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * What a {@link RateControl} knows about the network when it decides the bitrate of the encoder.
+ * Filled by the {@link BitrateController} from the RTCP reports of the receivers and from the
+ * FIFO of the {@link RtpSocket}, or by a simulation of the network from a trace in the tests.
+ */
+public class NetworkState {
+
+	private long mTime, mInterval, mBitrate, mSendRate, mMaxBitrate;
+	private float mLoss = -1, mJitter = -1;
+	private long mRtt = -1, mQueueDelay = 0;
+
+	void set(long time, long bitrate, long sendRate) {
+		mInterval = mTime != 0 ? time-mTime : 0;
+		mTime = time;
+		mBitrate = bitrate;
+		mSendRate = sendRate;
+		mLoss = mJitter = -1;
+		mRtt = -1;
+		mMaxBitrate = 0;
+		mQueueDelay = 0;
+	}
+
+	void setReport(float loss, long rtt, float jitter) {
+		// With several receivers, the worst one decides
+		mLoss = Math.max(mLoss, loss);
+		mRtt = Math.max(mRtt, rtt);
+		mJitter = Math.max(mJitter, jitter);
+	}
+
+	void setMaxBitrate(long bitrate) {
+		if (bitrate > 0 && (mMaxBitrate == 0 || bitrate < mMaxBitrate)) mMaxBitrate = bitrate;
+	}
+
+	void setQueueDelay(long delay) {
+		mQueueDelay = delay;
+	}
+
+	/** Returns the time of the measurement, in ms. */
+	public long getTime() {
+		return mTime;
+	}
+
+	/** Returns the time elapsed since the previous measurement in ms, 0 for the first one. */
+	public long getInterval() {
+		return mInterval;
+	}
+
+	/** Returns the bitrate of the encoder in bit/s. */
+	public long getBitrate() {
+		return mBitrate;
+	}
+
+	/** Returns the bitrate actually sent in bit/s. */
+	public long getSendRate() {
+		return mSendRate;
+	}
+
+	/** Returns the fraction of packets lost reported since the previous measurement, or -1 if no report arrived. */
+	public float getLoss() {
+		return mLoss;
+	}
+
+	/** Returns the round trip time in ms, or -1 if it is unknown. */
+	public long getRtt() {
+		return mRtt;
+	}
+
+	/** Returns the interarrival jitter in ms, or -1 if it is unknown. */
+	public float getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the time the last packet waited in the FIFO of the socket, in ms. */
+	public long getQueueDelay() {
+		return mQueueDelay;
+	}
+
+	/** Returns the maximum bitrate requested by the receivers with REMB or TMMBR in bit/s, 0 if none did. */
+	public long getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	public String toString() {
+		return "bitrate: "+mBitrate/1000+" kbps sent: "+mSendRate/1000+" kbps loss: "+mLoss+" rtt: "+mRtt+" ms jitter: "+mJitter+" ms queue: "+mQueueDelay+" ms";
+	}
+
+}
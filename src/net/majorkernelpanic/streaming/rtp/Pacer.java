@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * A token bucket that tells the {@link RtpSocket} when each packet may leave.
+ *
+ * The bucket fills at the pacing rate and holds at most the burst size, a packet is sent
+ * as soon as there are enough tokens for it. A key frame is thus spread over the time it
+ * takes to send it at the pacing rate, which should be a few times the bitrate of the stream.
+ * To never fall behind the encoder, a packet that has been waiting for more than the maximum
+ * delay is sent right away, the tokens it takes are then paid back by the next packets.
+ *
+ * Only used by the Thread of the socket.
+ */
+public class Pacer {
+
+	public final static String TAG = "Pacer";
+
+	private final double mRate;
+	private final long mBurst;
+	private final long mMaxDelay;
+	private double mTokens;
+	private long mLast = 0;
+
+	private volatile long mPackets = 0, mTotalDelay = 0, mMaxQueueDelay = 0, mLastDelay = 0, mLate = 0;
+
+	/**
+	 * @param bitrate The pacing rate in bit/s
+	 * @param burst The number of bytes that can be sent at once
+	 * @param maxDelay The maximum time a packet may be held back by the pacer, in ns
+	 */
+	public Pacer(long bitrate, int burst, long maxDelay) {
+		if (bitrate <= 0 || burst <= 0) throw new IllegalArgumentException("Invalid pacing rate: "+bitrate+" burst: "+burst);
+		mRate = bitrate/8e9;
+		mBurst = burst;
+		mMaxDelay = maxDelay;
+		mTokens = burst;
+	}
+
+	/** Returns the pacing rate in bit/s. */
+	public long getRate() {
+		return (long) (mRate*8e9);
+	}
+
+	public long getBurst() {
+		return mBurst;
+	}
+
+	/**
+	 * Returns how long the packet must still wait before being sent, 0 if it can be sent now.
+	 * @param length The length of the packet in bytes
+	 * @param queued When the packet was committed, as returned by {@link System#nanoTime()}
+	 * @param now The current time, as returned by {@link System#nanoTime()}
+	 */
+	public long delay(int length, long queued, long now) {
+		refill(now);
+		if (mTokens >= length || now-queued >= mMaxDelay) return 0;
+		long wait = (long) ((length-mTokens)/mRate);
+		// Never hold the packet longer than the maximum delay
+		return Math.min(wait, mMaxDelay-(now-queued));
+	}
+
+	/**
+	 * Must be called once the packet has been sent.
+	 * @param length The length of the packet in bytes
+	 * @param queued When the packet was committed, as returned by {@link System#nanoTime()}
+	 * @param now The current time, as returned by {@link System#nanoTime()}
+	 */
+	public void sent(int length, long queued, long now) {
+		refill(now);
+		if (mTokens < length) mLate++;
+		// Sending a late packet puts the bucket in debt, but not for more than one burst
+		mTokens = Math.max(mTokens-length, -mBurst);
+		long delay = now-queued;
+		mLastDelay = delay;
+		mTotalDelay += delay;
+		if (delay > mMaxQueueDelay) mMaxQueueDelay = delay;
+		mPackets++;
+	}
+
+	private void refill(long now) {
+		if (mLast != 0) {
+			mTokens = Math.min(mTokens+(now-mLast)*mRate, mBurst);
+		}
+		mLast = now;
+	}
+
+	/** Returns the number of packets that went through the pacer. */
+	public long getPackets() {
+		return mPackets;
+	}
+
+	/** Returns the time the last packet spent in the FIFO, in ns. */
+	public long getLastQueueDelay() {
+		return mLastDelay;
+	}
+
+	/** Returns the average time spent by a packet in the FIFO, in ns. */
+	public long getAverageQueueDelay() {
+		return mPackets>0 ? mTotalDelay/mPackets : 0;
+	}
+
+	/** Returns the longest time spent by a packet in the FIFO, in ns. */
+	public long getMaxQueueDelay() {
+		return mMaxQueueDelay;
+	}
+
+	/** Returns the number of packets sent before the bucket had enough tokens for them. */
+	public long getLatePackets() {
+		return mLate;
+	}
+
+	public String toString() {
+		return "rate: "+getRate()/1000+" kbps packets: "+mPackets+" late: "+mLate+" delay avg: "+getAverageQueueDelay()/1000+" us max: "+mMaxQueueDelay/1000+" us";
+	}
+
+}
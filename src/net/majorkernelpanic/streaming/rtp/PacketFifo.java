@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring used by the {@link RtpSocket}
+ * to hand packets from the packetizer to the Thread that sends them.
+ *
+ * The ring only deals with slot indices, the buffers themselves are owned by the socket.
+ * The producer calls {@link #acquire()} then {@link #publish()}, the consumer calls
+ * {@link #await(long)} then {@link #release(int)}. Each counter is only written by one
+ * side, and lives on its own cache line so that both threads do not keep stealing
+ * it from each other.
+ */
+public class PacketFifo {
+
+	/** Busy spins while waiting. Lowest latency, burns a core. */
+	public final static int WAIT_SPIN = 0x00;
+
+	/** Spins for a while, then yields the CPU between checks. */
+	public final static int WAIT_YIELD = 0x01;
+
+	/** Spins for a while, then parks the waiting thread until the other side wakes it up. */
+	public final static int WAIT_PARK = 0x02;
+
+	private final static int SPIN_TRIES = 100;
+	private final static long PARK_NANOS = 1000000L;
+
+	private final int mCapacity;
+	private final Sequence mHead = new Sequence();
+	private final Sequence mTail = new Sequence();
+	private volatile Thread mWaitingProducer, mWaitingConsumer;
+	private volatile int mWaitStrategy = WAIT_PARK;
+	private volatile int mHighWaterMark = 0;
+
+	/**
+	 * @param capacity The number of slots of the ring
+	 */
+	public PacketFifo(int capacity) {
+		mCapacity = capacity;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Sets how the producer and the consumer wait for each other.
+	 * @param strategy Can be {@link #WAIT_SPIN}, {@link #WAIT_YIELD} or {@link #WAIT_PARK}
+	 */
+	public void setWaitStrategy(int strategy) {
+		mWaitStrategy = strategy;
+	}
+
+	public int getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	/** Returns the number of packets published but not released yet. */
+	public int getOccupancy() {
+		return (int) (mHead.value - mTail.value);
+	}
+
+	/** Returns the highest occupancy observed since the last call to {@link #resetHighWaterMark()}. */
+	public int getHighWaterMark() {
+		return mHighWaterMark;
+	}
+
+	public void resetHighWaterMark() {
+		mHighWaterMark = 0;
+	}
+
+	/**
+	 * Producer side: waits until a slot is free and returns its index.
+	 * The slot belongs to the producer until {@link #publish()} is called.
+	 */
+	public int acquire() throws InterruptedException {
+		long head = mHead.value;
+		int tries = 0;
+		while (head - mTail.value >= mCapacity) {
+			tries = idle(tries, true, PARK_NANOS);
+		}
+		return (int) (head % mCapacity);
+	}
+
+	/** Producer side: hands the slot returned by {@link #acquire()} to the consumer. */
+	public void publish() {
+		long head = mHead.value+1;
+		mHead.value = head;
+		int occupancy = (int) (head - mTail.value);
+		if (occupancy > mHighWaterMark) mHighWaterMark = occupancy;
+		Thread consumer = mWaitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Consumer side: waits until at least one packet has been published.
+	 * @param timeout The maximum time to wait in ns
+	 * @return The number of packets that can be read, 0 if the timeout expired
+	 */
+	public int await(long timeout) throws InterruptedException {
+		long tail = mTail.value;
+		long available = mHead.value - tail;
+		if (available > 0) return (int) available;
+		long deadline = System.nanoTime() + timeout;
+		int tries = 0;
+		while ((available = mHead.value - tail) <= 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) return 0;
+			tries = idle(tries, false, left < PARK_NANOS ? left : PARK_NANOS);
+		}
+		return (int) available;
+	}
+
+	/** Returns the index of the n-th packet that can be read, n starting at 0. */
+	public int peek(int n) {
+		return (int) ((mTail.value+n) % mCapacity);
+	}
+
+	/** Consumer side: gives count slots back to the producer. */
+	public void release(int count) {
+		mTail.value = mTail.value + count;
+		Thread producer = mWaitingProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	private int idle(int tries, boolean producer, long parkNanos) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		int strategy = mWaitStrategy;
+		if (strategy == WAIT_SPIN || tries < SPIN_TRIES) {
+			return tries+1;
+		}
+		if (strategy == WAIT_YIELD) {
+			Thread.yield();
+		} else {
+			// The other side checks the waiting thread after each update of its counter,
+			// and we check the counter again before parking, so no wake-up can be missed
+			if (producer) {
+				mWaitingProducer = Thread.currentThread();
+				if (mHead.value - mTail.value >= mCapacity) LockSupport.parkNanos(this, parkNanos);
+				mWaitingProducer = null;
+			} else {
+				mWaitingConsumer = Thread.currentThread();
+				if (mHead.value - mTail.value <= 0) LockSupport.parkNanos(this, parkNanos);
+				mWaitingConsumer = null;
+			}
+		}
+		return tries;
+	}
+
+	/** Keeps the counter away from the fields that are written by the other thread. */
+	static class LeftPadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	static class Value extends LeftPadding {
+		protected volatile long value;
+	}
+
+	/** A counter that has a cache line for itself. */
+	static final class Sequence extends Value {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+}
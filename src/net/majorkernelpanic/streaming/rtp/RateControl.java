@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The control law of a {@link BitrateController}: decides the bitrate of the encoder from the state of the network.
+ * See {@link AimdRateControl} and {@link DelayRateControl}.
+ */
+public interface RateControl {
+
+	/**
+	 * Called periodically, always from the same Thread.
+	 * @param state The state of the network
+	 * @return The bitrate the encoder should use in bit/s, the controller keeps it between its bounds
+	 */
+	public long update(NetworkState state);
+
+	/** Forgets the past, called when the stream (re)starts at the given bitrate. */
+	public void reset(long bitrate);
+
+}
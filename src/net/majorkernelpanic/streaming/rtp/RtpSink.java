@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_TCP;
+import static net.majorkernelpanic.streaming.rtp.RtpSocket.TRANSPORT_UDP;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+
+/**
+ * One client of an {@link RtpSocket} in fan-out mode.
+ * The packets produced by the packetizer are sent once to every sink of the socket.
+ * Each sink rewrites the sequence number and the SSRC of those packets before they
+ * leave, and has its own RTCP sender report, so that every client sees an independent
+ * RTP session even though there is only one encoder.
+ */
+public class RtpSink {
+
+	public static final String TAG = "RtpSink";
+
+	private SenderReport mReport;
+	private DatagramPacket mPacket;
+	private InetSocketAddress mTarget;
+
+	private int mTransport;
+	private int mSsrc, mSeq, mPort = -1;
+	private volatile int mSeqOffset = 0;
+	private volatile boolean mJoining = true;
+	private byte mTcpHeader[];
+	private OutputStream mOutputStream = null;
+	private final Counter mSentBytes;
+
+	public RtpSink() {
+		Random random = new Random();
+		mSsrc = random.nextInt();
+		mSeq = random.nextInt(0x10000);
+		mTransport = TRANSPORT_UDP;
+		mTcpHeader = new byte[] {'$',0,0,0};
+		mPacket = new DatagramPacket(new byte[1], 1);
+		mReport = new SenderReport();
+		mReport.setSSRC(mSsrc);
+		mSentBytes = Metrics.counter(Metrics.name("rtp_sent_bytes", "ssrc", Integer.toHexString(mSsrc)), "Bytes of RTP sent to a client, by SSRC");
+	}
+
+	/** Closes the RTCP socket of the sink. */
+	public void close() {
+		mReport.close();
+		Metrics.remove(mSentBytes.getName());
+	}
+
+	/** Returns what this client reported about the stream in its RTCP Receiver Reports. */
+	public ReceptionReport getReceptionReport() {
+		return mReport.getReceptionReport();
+	}
+
+	/** Returns the parser of the RTCP packets sent back by this client, they must be passed to it when TCP is used. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReport.getReceiver();
+	}
+
+	/** Sets the destination address and the ports to which the packets of this client will be sent. */
+	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
+		mTransport = TRANSPORT_UDP;
+		mPort = dport;
+		mPacket.setAddress(dest);
+		mPacket.setPort(dport);
+		mTarget = new InetSocketAddress(dest, dport);
+		mReport.setDestination(dest, rtcpPort);
+		mReport.startReceiving();
+	}
+
+	/**
+	 * If a TCP is used as the transport protocol for this client,
+	 * the output stream to which RTP packets will be written to must
+	 * be specified with this method.
+	 */
+	public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
+		mTransport = TRANSPORT_TCP;
+		mOutputStream = outputStream;
+		mTcpHeader[1] = channelIdentifier;
+		mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+	}
+
+	/** Returns the SSRC used for this client. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the sequence number of the last packet sent to this client. */
+	public int getSequenceNumber() {
+		return mSeq;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	/** Returns the local port of the RTCP socket of this client. */
+	public int getLocalPort() {
+		return mReport.getLocalPort();
+	}
+
+	/**
+	 * Sends a packet of the shared FIFO to this client.
+	 * Only called by the Thread of the {@link RtpSocket}, which owns the buffer at that time.
+	 * @param socket The {@link RtpSocket} that owns the buffer
+	 * @param buffer The RTP packet, its sequence number and SSRC will be overwritten
+	 * @param length The length of the packet
+	 * @param seq The sequence number of the packet in the socket, the one in the buffer may be the one of another sink
+	 * @param rtpts The RTP timestamp of the packet
+	 * @param flags The flags of the packet for an {@link InterleavedWriter}
+	 */
+	void send(RtpSocket socket, byte[] buffer, int length, int seq, long rtpts, int flags) throws IOException {
+		mSeq = (mSeq+1) & 0xFFFF;
+		// Both sequences are incremented for each packet, so that a NACK can be mapped to the packet of the socket
+		mSeqOffset = (mSeq-seq) & 0xFFFF;
+		mReport.update(length, rtpts);
+		write(socket, buffer, length, mSeq, flags);
+	}
+
+	/**
+	 * Sends a packet of the {@link SendHistory} of the socket to this client again.
+	 * @param seq The sequence number of the packet for this client
+	 */
+	void resend(RtpSocket socket, byte[] buffer, int length, int seq) throws IOException {
+		write(socket, buffer, length, seq, 0);
+	}
+
+	/**
+	 * Returns true the first time it is called, the socket then sends the packets of its {@link GopCache} to the client.
+	 * Only called by the Thread of the {@link RtpSocket}.
+	 */
+	boolean join() {
+		if (!mJoining) return false;
+		mJoining = false;
+		return true;
+	}
+
+	/** The next packet sent to the client is preceded by the {@link GopCache} again, when it is added back to the socket. */
+	void rejoin() {
+		mJoining = true;
+	}
+
+	/** Converts a sequence number of this client in the sequence number of the packet in the socket. */
+	int toSocketSequence(int seq) {
+		return (seq-mSeqOffset) & 0xFFFF;
+	}
+
+	private void write(RtpSocket socket, byte[] buffer, int length, int seq, int flags) throws IOException {
+		buffer[2] = (byte) (seq>>8);
+		buffer[3] = (byte) seq;
+		buffer[8] = (byte) (mSsrc>>24);
+		buffer[9] = (byte) (mSsrc>>16);
+		buffer[10] = (byte) (mSsrc>>8);
+		buffer[11] = (byte) mSsrc;
+
+		if (mTransport == TRANSPORT_UDP) {
+			mPacket.setData(buffer, 0, length);
+			socket.send(mPacket, mTarget);
+		} else {
+			InterleavedWriter.send(mOutputStream, mTcpHeader, buffer, length, flags);
+		}
+		mSentBytes.add(length);
+	}
+
+}
@@ -22,13 +22,23 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
-import android.os.SystemClock;
-import android.util.Log;
+import net.majorkernelpanic.streaming.metrics.Counter;
+import net.majorkernelpanic.streaming.metrics.Histogram;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+import net.majorkernelpanic.streaming.Platform;
+import net.majorkernelpanic.streaming.Platform.Log;
 
 /**
  * A basic implementation of an RTP socket.
@@ -49,30 +59,80 @@ public class RtpSocket implements Runnable {
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1500;
 
+	/** Maximum length of an RTP packet in an interleaved frame, whose length is on 16 bits. */
+	public static final int MAX_TCP_PACKET_SIZE = 65535;
+
+	/** Default minimum and maximum number of packets in the FIFO. */
+	public static final int FIFO_MIN_SIZE = 32, FIFO_MAX_SIZE = 300;
+
+	/** Number of buffers taken from the {@link BufferPool} when the FIFO grows. */
+	private static final int FIFO_GROW_STEP = 16;
+
+	/** The FIFO may shrink at most once per period, in ns. */
+	private static final long FIFO_SHRINK_PERIOD = 5000000000L;
+
+	private static final Counter sDropped = Metrics.counter(Metrics.name("rtp_dropped_packets", "reason", "drop_rate"), "Packets not sent");
+	private static final Counter sOverflows = Metrics.counter("rtp_fifo_overflows", "Times the FIFO of a socket was full and its packetizer had to wait");
+
 	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
-	private byte[][] mBuffers;
-	private long[] mTimestamps;
+	private DatagramChannel mChannel = null;
+	private ByteBuffer mDirectBuffer = null;
+	private final ByteBuffer[] mGather = new ByteBuffer[2];
+	private InetSocketAddress mTarget = null;
+	private DatagramPacket mPacket;
+	private byte[][] mBuffers, mReturned, mSpare;
+	private int[] mLengths, mPayloadOffsets, mPayloadLengths;
+	private long[] mTimestamps, mQueued, mOutputs;
+	private AccessUnit[] mUnits;
+	private BufferPool mPool;
 
 	private SenderReport mReport;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private PacketFifo mFifo, mReturnFifo;
+	private volatile Thread mThread;
+	private FifoCallback mFifoCallback = null;
+	private volatile Pacer mPacer = null;
+	private volatile SendHistory mHistory = null;
+	private volatile FecEncoder mFec = null;
+	private volatile KeyFrameRequester mKeyFrameRequester = null;
+	private volatile GopCache mGopCache = null;
+	private byte[] mReplayBuffer;
+	private boolean mKeyFrame = false, mDisposable = false;
+	private boolean[] mKeyFrames, mDisposables;
+	private int mRtxPayloadType = 0, mRtxSsrc, mRtxSeq;
+	private byte[] mRtxBuffer;
+	private int[] mNackSequences;
+	private RtpSink[] mNackTargets;
+	private long[] mNackTimes;
 
 	private int mTransport;
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
-	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
+	private int mBufferIn, mBufferOut;
+	private int mMinBuffers, mMaxBuffers, mAllocated, mSpareCount;
+	private boolean mOverflow = false;
+	private long mShrinkTime = 0;
+	private volatile long mGrowCount = 0, mShrinkCount = 0, mOverflowCount = 0;
+	private volatile long mQueueDelay = 0, mFirstPacket = 0, mOutputLatency = 0;
+	private long mOutputTime = 0;
+	private long mTcpErrors = 0;
+	private byte[] mLargeBuffer = null;
+	private volatile int mPathMtu = MTU, mMaxTcpPacketSize = 0;
 	private byte mTcpHeader[];
 	protected OutputStream mOutputStream = null;
 	private boolean mUdpSleep;
 	private int mDropRate;
 	private Random mRandom = new Random();
+	private boolean mFanOut = false;
+	private final CopyOnWriteArrayList<RtpSink> mSinks = new CopyOnWriteArrayList<>();
+	private boolean mBatched = false;
 	
 	private AverageBitrate mAverageBitrate;
+	private final BatchStatistics mBatchStats = new BatchStatistics();
+	private volatile Counter mSentBytes;
+	private volatile Histogram mFifoWait, mSendTime;
 
 	/**
 	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
@@ -81,38 +141,18 @@ public class RtpSocket implements Runnable {
 	public RtpSocket() {
 		
 		mCacheSize = 0;
-		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		mPool = BufferPool.getDefault();
+		mPacket = new DatagramPacket(new byte[1], 1);
 		mReport = new SenderReport();
+		mReport.getReceiver().setFeedbackListener(new Feedback(null));
 		mAverageBitrate = new AverageBitrate();
 		mTransport = TRANSPORT_UDP;
 		mTcpHeader = new byte[] {'$',0,0,0};
-		
-		resetFifo();
-
-		for (int i=0; i<mBufferCount; i++) {
-
-			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+		mSsrc = mRandom.nextInt();
+		registerMetrics();
 
-			/*							     Version(2)  Padding(0)					 					*/
-			/*									 ^		  ^			Extension(0)						*/
-			/*									 |		  |				^								*/
-			/*									 | --------				|								*/
-			/*									 | |---------------------								*/
-			/*									 | ||  -----------------------> Source Identifier(0)	*/
-			/*									 | ||  |												*/
-			mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
-
-			/* Payload Type */
-			mBuffers[i][1] = (byte) 96;
-
-			/* Byte 2,3        ->  Sequence Number                   */
-			/* Byte 4,5,6,7    ->  Timestamp                         */
-			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
-
-		}
+		setFifoSize(FIFO_MIN_SIZE, FIFO_MAX_SIZE);
+		resetFifo();
 
 		try {
 		mSocket = new MulticastSocket();
@@ -124,28 +164,181 @@ public class RtpSocket implements Runnable {
 	}
 
 	private void resetFifo() {
-		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
 		mReport.reset();
 		mAverageBitrate.reset();
 	}
 	
-	/** Closes the underlying socket. */
+	/**
+	 * Stops the Thread of the socket, the packets still in the FIFO are not sent, closes the underlying 
+	 * socket and gives the buffers of the FIFO back to the {@link BufferPool}. The packetizer must be stopped.
+	 */
 	public void close() {
+		Thread thread = mThread;
+		if (thread != null) {
+			// The buffers are only released once the Thread does not send them anymore
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		mSocket.close();
+		mReport.close();
+		closeChannel();
+		releaseBuffers();
+		Metrics.remove(mSentBytes.getName(), mFifoWait.getName(), mSendTime.getName());
+	}
+
+	/** Registers the metrics of the socket, labeled with its SSRC, those of the previous SSRC are removed. */
+	private void registerMetrics() {
+		if (mSentBytes != null) Metrics.remove(mSentBytes.getName(), mFifoWait.getName(), mSendTime.getName());
+		String ssrc = Integer.toHexString(mSsrc);
+		mSentBytes = Metrics.counter(Metrics.name("rtp_sent_bytes", "ssrc", ssrc), "Bytes of RTP sent to a client, by SSRC");
+		mFifoWait = Metrics.histogram(Metrics.name("rtp_fifo_wait_ns", "ssrc", ssrc), "Time the packetizer waits for a buffer of the FIFO, in ns");
+		mSendTime = Metrics.histogram(Metrics.name("rtp_send_ns", "ssrc", ssrc), "Time spent sending a packet, in ns");
+	}
+
+	/**
+	 * Sets the bounds of the FIFO. It starts with min buffers, grows when the packetizer
+	 * goes faster than the network, and shrinks back when the traffic allows it.
+	 * The packetizer only blocks when max packets are waiting to be sent.
+	 * Must not be called while streaming.
+	 * @param min The minimum number of packets in the FIFO
+	 * @param max The maximum number of packets in the FIFO
+	 */
+	public void setFifoSize(int min, int max) {
+		if (min<1 || max<min) throw new IllegalArgumentException("Invalid FIFO size: "+min+"-"+max);
+		int strategy = mFifo != null ? mFifo.getWaitStrategy() : PacketFifo.WAIT_PARK;
+		releaseBuffers();
+		mMinBuffers = min;
+		mMaxBuffers = max;
+		mBuffers = new byte[max][];
+		mReturned = new byte[max][];
+		mSpare = new byte[max][];
+		mLengths = new int[max];
+		mPayloadOffsets = new int[max];
+		mPayloadLengths = new int[max];
+		mUnits = new AccessUnit[max];
+		mTimestamps = new long[max];
+		mQueued = new long[max];
+		mOutputs = new long[max];
+		mKeyFrames = new boolean[max];
+		mDisposables = new boolean[max];
+		mFifo = new PacketFifo(max);
+		mReturnFifo = new PacketFifo(max);
+		setWaitStrategy(strategy);
+		grow(min);
+	}
+
+	/** Returns the number of buffers currently allocated to the FIFO. */
+	public int getFifoSize() {
+		return mAllocated;
+	}
+
+	/** The callback is called from the Thread of the packetizer, it should return quickly. */
+	public void setFifoCallback(FifoCallback callback) {
+		mFifoCallback = callback;
+	}
+
+	public long getFifoGrowCount() {
+		return mGrowCount;
+	}
+
+	public long getFifoShrinkCount() {
+		return mShrinkCount;
+	}
+
+	/** Returns how many times the packetizer had to wait because the FIFO could not grow anymore. */
+	public long getFifoOverflowCount() {
+		return mOverflowCount;
+	}
+
+	/**
+	 * Selects how the packets are sent over UDP.
+	 * By default, the Thread wakes up for every packet and sends it with a blocking {@link MulticastSocket}.
+	 * In batched mode, it sends everything that has been committed in one wake-up, through a
+	 * {@link DatagramChannel} fed from a direct {@link ByteBuffer}.
+	 * Must be called before the ports are advertised to the receiver (the local RTP port changes)
+	 * and never while streaming.
+	 */
+	public void setBatchedSend(boolean batched) {
+		if (batched == mBatched) return;
+		if (batched) {
+			try {
+				mChannel = DatagramChannel.open();
+				mChannel.bind(new InetSocketAddress(0));
+				mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, mSocket.getTimeToLive());
+				mDirectBuffer = ByteBuffer.allocateDirect(MTU);
+				connectChannel();
+			} catch (IOException e) {
+				Log.e(TAG, "DatagramChannel could not be opened, falling back to the MulticastSocket");
+				closeChannel();
+				return;
+			}
+		} else {
+			closeChannel();
+		}
+		mBatched = batched;
+	}
+
+	public boolean isBatchedSend() {
+		return mBatched;
+	}
+
+	/** Returns how the Thread of the socket has been sending packets so far. */
+	public BatchStatistics getBatchStatistics() {
+		return mBatchStats;
+	}
+
+	/**
+	 * Sets how the packetizer and the Thread of the socket wait for each other.
+	 * @param strategy Can be {@link PacketFifo#WAIT_SPIN}, {@link PacketFifo#WAIT_YIELD} or {@link PacketFifo#WAIT_PARK}
+	 */
+	public void setWaitStrategy(int strategy) {
+		mFifo.setWaitStrategy(strategy);
+		mReturnFifo.setWaitStrategy(strategy);
+	}
+
+	/** Returns the number of packets waiting in the FIFO. */
+	public int getFifoOccupancy() {
+		return mFifo.getOccupancy();
+	}
+
+	/** Returns the highest number of packets that have been waiting in the FIFO at the same time. */
+	public int getFifoHighWaterMark() {
+		return mFifo.getHighWaterMark();
+	}
+
+	/**
+	 * A connected channel can write a packet straight from the buffer of the codec,
+	 * see {@link #commitBuffer(int, AccessUnit, int, int)}.
+	 */
+	private void connectChannel() {
+		if (mChannel == null || mTarget == null || mTarget.getAddress().isAnyLocalAddress()) return;
+		try {
+			if (mChannel.isConnected()) mChannel.disconnect();
+			mChannel.connect(mTarget);
+		} catch (IOException e) {
+			Log.e(TAG, "DatagramChannel could not be connected: "+e.getMessage());
+		}
+	}
+
+	private void closeChannel() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+			mChannel = null;
+			mDirectBuffer = null;
+		}
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
-		}
 		mReport.setSSRC(mSsrc);
+		registerMetrics();
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -156,6 +349,8 @@ public class RtpSocket implements Runnable {
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mReport.getReceptionReport().setClockFrequency(clock);
+		for (RtpSink sink : mSinks) sink.getReceptionReport().setClockFrequency(clock);
 	}
 
 	/** Sets the size of the FIFO in ms. */
@@ -163,9 +358,146 @@ public class RtpSocket implements Runnable {
 		mCacheSize = cacheSize;
 	}
 	
+	/**
+	 * Paces the packets with a token bucket instead of the average delay between packets.
+	 * @param pacer The pacer, or null to disable pacing
+	 */
+	public void setPacer(Pacer pacer) {
+		mPacer = pacer;
+	}
+
+	public Pacer getPacer() {
+		return mPacer;
+	}
+
+	/**
+	 * Keeps the packets sent in a {@link SendHistory} and sends them again when a receiver NACKs them.
+	 * Must be called before the stream starts.
+	 * @param history The history, or null to disable retransmissions
+	 * @param rtxPayloadType The payload type of the RTX packets (RFC 4588), or 0 to send
+	 * the packets again as they were. RTX is not used in fan-out mode.
+	 */
+	public void setRetransmission(SendHistory history, int rtxPayloadType) {
+		if (history != null) {
+			int n = history.getMaxRequests();
+			mNackSequences = new int[n];
+			mNackTargets = new RtpSink[n];
+			mNackTimes = new long[n];
+			if (rtxPayloadType > 0) {
+				mRtxSsrc = mRandom.nextInt();
+				mRtxSeq = mRandom.nextInt(0x10000);
+				mRtxBuffer = new byte[MTU+2];
+			}
+		}
+		mRtxPayloadType = history != null ? rtxPayloadType : 0;
+		mHistory = history;
+	}
+
+	/**
+	 * Protects the packets with XOR parity packets sent in their own RTP stream.
+	 * Must be called before the stream starts. FEC is not used in fan-out mode.
+	 * @param fec The encoder, or null to disable FEC
+	 */
+	public void setFec(FecEncoder fec) {
+		if (fec != null) fec.setStream(mRandom.nextInt(), mRandom.nextInt(0x10000));
+		mFec = fec;
+	}
+
+	public FecEncoder getFec() {
+		return mFec;
+	}
+
+	/** 
+	 * Sets what asks the encoder for a key frame when a receiver sends a PLI or a FIR,
+	 * or when {@link #requestKeyFrame()} is called.
+	 * @param requester The requester, or null to ignore the requests
+	 */
+	public void setKeyFrameRequester(KeyFrameRequester requester) {
+		mKeyFrameRequester = requester;
+	}
+
+	public KeyFrameRequester getKeyFrameRequester() {
+		return mKeyFrameRequester;
+	}
+
+	/** Asks the encoder for a key frame, when a new client joins the stream for instance. */
+	public void requestKeyFrame() {
+		KeyFrameRequester requester = mKeyFrameRequester;
+		if (requester != null) requester.request();
+	}
+
+	/**
+	 * Keeps the last group of pictures, a client added with {@link #addSink(RtpSink)} gets it
+	 * before the live packets. Only used in fan-out mode, must be called before the stream starts.
+	 * @param cache The cache, or null to disable it
+	 */
+	public void setGopCache(GopCache cache) {
+		if (cache != null && mReplayBuffer == null) mReplayBuffer = new byte[MTU];
+		mGopCache = cache;
+	}
+
+	public GopCache getGopCache() {
+		return mGopCache;
+	}
+
+	/** Returns the history of the packets sent, or null if retransmissions are disabled. */
+	public SendHistory getSendHistory() {
+		return mHistory;
+	}
+
+	/** Returns the payload type of the RTX packets, 0 if RTX is not used. */
+	public int getRtxPayloadType() {
+		return mRtxPayloadType;
+	}
+
+	/** Returns the SSRC of the RTX packets. */
+	public int getRtxSSRC() {
+		return mRtxSsrc;
+	}
+
+	/**
+	 * Sets the MTU of the path to the receivers, the UDP packets are not longer than it.
+	 * @param mtu The MTU, not more than {@link #MTU}
+	 */
+	public void setPathMtu(int mtu) {
+		if (mtu < 576 || mtu > MTU) throw new IllegalArgumentException("Invalid MTU: "+mtu);
+		mPathMtu = mtu;
+	}
+
+	public int getPathMtu() {
+		return mPathMtu;
+	}
+
+	/**
+	 * Lets the packets sent over the RTSP connection be longer than the MTU, so that 
+	 * the packetizers split fewer NAL units. Only used when the socket is not in fan-out mode,
+	 * and when the packets are neither kept for retransmissions nor protected by FEC.
+	 * @param size The maximum length of the packets, up to {@link #MAX_TCP_PACKET_SIZE}, 0 to use the MTU
+	 */
+	public void setMaxTcpPacketSize(int size) {
+		if (size < 0 || size > MAX_TCP_PACKET_SIZE) throw new IllegalArgumentException("Invalid packet size: "+size);
+		mMaxTcpPacketSize = size;
+	}
+
+	/**
+	 * Returns the maximum length of the RTP packets, header included, for the current transport.
+	 * Over UDP, it leaves room for the IP and UDP headers, and for what FEC and RTX add to a packet.
+	 * Only the payloads committed with {@link #commitBuffer(int, AccessUnit, int, int)} can exceed the buffers.
+	 */
+	public int getMaxPacketSize() {
+		if (mTransport == TRANSPORT_TCP && !mFanOut && mMaxTcpPacketSize > 0 && mHistory == null && mFec == null) {
+			return mMaxTcpPacketSize;
+		}
+		int size = mPathMtu-28;
+		if (mFec != null) size -= FecEncoder.FEC_HEADER_LENGTH+FecEncoder.LEVEL_HEADER_LENGTH;
+		if (mRtxPayloadType > 0) size -= 2;
+		return size;
+	}
+
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
 		mSocket.setTimeToLive(ttl);
+		if (mChannel != null) mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
@@ -173,10 +505,10 @@ public class RtpSocket implements Runnable {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
+			mTarget = dest != null ? new InetSocketAddress(dest, dport) : null;
+			mPacket.setPort(dport);
+			mPacket.setAddress(dest);
+			connectChannel();
 			mReport.setDestination(dest, rtcpPort);
 		}
 	}
@@ -195,13 +527,62 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
+	/**
+	 * In fan-out mode, packets are not sent to the destination of the socket anymore
+	 * but to every {@link RtpSink} added with {@link #addSink(RtpSink)}.
+	 * The packetizer and the FIFO are shared by all the sinks.
+	 */
+	public void setFanOut(boolean fanOut) {
+		mFanOut = fanOut;
+	}
+
+	public boolean isFanOut() {
+		return mFanOut;
+	}
+
+	/**
+	 * Adds a client to the socket, only used in fan-out mode.
+	 * A client added again after {@link #removeSink(RtpSink)} gets the current group of pictures first, as a new one.
+	 */
+	public void addSink(RtpSink sink) {
+		sink.getReceptionReport().setClockFrequency(mClock);
+		sink.getRtcpReceiver().setFeedbackListener(new Feedback(sink));
+		sink.rejoin();
+		mSinks.addIfAbsent(sink);
+	}
+
+	/** Removes a client from the socket. */
+	public void removeSink(RtpSink sink) {
+		mSinks.remove(sink);
+	}
+
+	/** Returns the clients of the socket in fan-out mode. */
+	public List<RtpSink> getSinks() {
+		return Collections.unmodifiableList(mSinks);
+	}
+
+	/** Returns the number of clients of the socket in fan-out mode. */
+	public int getSinkCount() {
+		return mSinks.size();
+	}
+
 	public int getPort() {
 		return mPort;
 	}
 
+	/** Returns what the receiver reported about the stream in its RTCP Receiver Reports. */
+	public ReceptionReport getReceptionReport() {
+		return mReport.getReceptionReport();
+	}
+
+	/** Returns the parser of the RTCP packets sent back by the receiver, they must be passed to it when TCP is used. */
+	public RtcpReceiver getRtcpReceiver() {
+		return mReport.getReceiver();
+	}
+
 	public int[] getLocalPorts() {
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel != null ? mChannel.socket().getLocalPort() : mSocket.getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -213,33 +594,147 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
-		return mBuffers[mBufferIn];
+		long start = Metrics.now();
+		mBufferIn = mFifo.acquire();
+		byte[] buffer = takeBuffer();
+		mBuffers[mBufferIn] = buffer;
+		mFifoWait.since(start);
+
+		/*							     Version(2)  Padding(0)					 					*/
+		/*									 ^		  ^			Extension(0)						*/
+		/*									 |		  |				^								*/
+		/*									 | --------				|								*/
+		/*									 | |---------------------								*/
+		/*									 | ||  -----------------------> Source Identifier(0)	*/
+		/*									 | ||  |												*/
+		buffer[0] = (byte) Integer.parseInt("10000000",2);
+
+		/* Payload Type */
+		buffer[1] = (byte) 96;
+
+		/* Byte 2,3        ->  Sequence Number                   */
+		/* Byte 4,5,6,7    ->  Timestamp                         */
+		/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+		setLong(buffer, mSsrc, 8, 12);
+
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer that is not in the FIFO anymore, grows the FIFO if there is none,
+	 * or waits for the Thread to send a packet if the FIFO can't grow.
+	 */
+	private byte[] takeBuffer() throws InterruptedException {
+		shrink();
+		if (mSpareCount == 0) drainReturned();
+		if (mSpareCount == 0 && mAllocated < mMaxBuffers) {
+			grow(Math.min(FIFO_GROW_STEP, mMaxBuffers-mAllocated));
+			mGrowCount++;
+			if (mFifoCallback != null) mFifoCallback.onFifoGrow(this, mAllocated);
+		}
+		if (mSpareCount == 0) {
+			if (!mOverflow) {
+				mOverflow = true;
+				mOverflowCount++;
+				sOverflows.increment();
+				Log.v(TAG, "FIFO full with "+mAllocated+" packets");
+				if (mFifoCallback != null) mFifoCallback.onFifoOverflow(this, mAllocated);
+			}
+			while (mSpareCount == 0) {
+				mReturnFifo.await(1000000000L);
+				drainReturned();
+			}
+		} else if (mFifo.getOccupancy() < mAllocated/2) {
+			mOverflow = false;
+		}
+		byte[] buffer = mSpare[--mSpareCount];
+		mSpare[mSpareCount] = null;
+		return buffer;
+	}
+
+	/** Takes n buffers from the pool. */
+	private void grow(int n) {
+		for (int i=0;i<n;i++) {
+			mSpare[mSpareCount++] = mPool.acquire();
+		}
+		mAllocated += n;
+	}
+
+	/** Gives the buffers that have not been needed lately back to the pool. */
+	private void shrink() {
+		long now = System.nanoTime();
+		if (now-mShrinkTime < FIFO_SHRINK_PERIOD) return;
+		mShrinkTime = now;
+		int target = Math.max(mMinBuffers, 2*mFifo.getHighWaterMark());
+		mFifo.resetHighWaterMark();
+		drainReturned();
+		int n = Math.min(mAllocated-target, mSpareCount);
+		if (n <= 0) return;
+		for (int i=0;i<n;i++) {
+			mPool.release(mSpare[--mSpareCount]);
+			mSpare[mSpareCount] = null;
+		}
+		mAllocated -= n;
+		mShrinkCount++;
+		if (mFifoCallback != null) mFifoCallback.onFifoShrink(this, mAllocated);
+	}
+
+	/** Collects the buffers of the packets sent by the Thread. */
+	private void drainReturned() {
+		int n = mReturnFifo.getOccupancy();
+		for (int i=0;i<n;i++) {
+			int slot = mReturnFifo.peek(i);
+			mSpare[mSpareCount++] = mReturned[slot];
+			mReturned[slot] = null;
+		}
+		if (n>0) mReturnFifo.release(n);
+	}
+
+	private void releaseBuffers() {
+		if (mFifo == null) return;
+		drainReturned();
+		for (int i=0;i<mMaxBuffers;i++) {
+			if (mBuffers[i] != null) mSpare[mSpareCount++] = mBuffers[i];
+			if (mUnits[i] != null) mUnits[i].release();
+			mBuffers[i] = null;
+			mUnits[i] = null;
+		}
+		while (mSpareCount>0) {
+			mPool.release(mSpare[--mSpareCount]);
+			mSpare[mSpareCount] = null;
+		}
+		mAllocated = 0;
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
 
+		// An empty packet is skipped by the Thread
+		mLengths[mBufferIn] = 0;
+		mQueued[mBufferIn] = System.nanoTime();
+		mOutputs[mBufferIn] = 0;
+		mFifo.publish();
+
 		if (mThread == null) {
 			mThread = new Thread(this, TAG);
 			mThread.start();
 		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
 
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		mLengths[mBufferIn] = length;
+		mKeyFrames[mBufferIn] = mKeyFrame;
+		mDisposables[mBufferIn] = mDisposable;
+		mQueued[mBufferIn] = System.nanoTime();
+		mOutputs[mBufferIn] = mOutputTime;
+		mOutputTime = 0;
 
 		mAverageBitrate.push(length);
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mFifo.publish();
 
 		if (mThread == null) {
 			mThread = new Thread(this, TAG);
@@ -248,6 +743,48 @@ public class RtpSocket implements Runnable {
 		
 	}
 
+	/**
+	 * Sends an RTP packet whose payload is a slice of an {@link AccessUnit}.
+	 * Only the RTP header and the payload header (FU-A indicator...) are written in the buffer,
+	 * the payload is not copied before the packet leaves the FIFO. With a connected
+	 * {@link DatagramChannel} (batched mode, unicast), it is never copied at all.
+	 * The unit is retained until the packet has been sent.
+	 * @param length The number of bytes written in the buffer, RTP header included
+	 * @param unit The access unit that contains the payload
+	 * @param offset The offset of the payload in the buffer of the unit
+	 * @param size The length of the payload
+	 */
+	public void commitBuffer(int length, AccessUnit unit, int offset, int size) throws IOException {
+		unit.retain();
+		mUnits[mBufferIn] = unit;
+		mPayloadOffsets[mBufferIn] = offset;
+		mPayloadLengths[mBufferIn] = size;
+		commitBuffer(length+size);
+	}
+
+	/** Returns when the first packet has been sent since the Thread of the socket started, in ns ({@link System#nanoTime()}), 0 if none has. */
+	public long getFirstPacketTime() {
+		return mFirstPacket;
+	}
+
+	/**
+	 * Tells when the encoder has output the frame of the next packet, in ns ({@link System#nanoTime()}).
+	 * Called by the packetizer before the first packet of a frame, the latency to the network is measured.
+	 */
+	public void setOutputTime(long time) {
+		mOutputTime = time;
+	}
+
+	/** Returns the average time between the output of a frame by the encoder and its first packet, in ns. */
+	public long getOutputLatency() {
+		return mOutputLatency;
+	}
+
+	/** Returns the time the last packet sent waited in the FIFO, in ns. */
+	public long getQueueDelay() {
+		return mThread != null ? mQueueDelay : 0;
+	}
+
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
 	public long getBitrate() {
 		return mAverageBitrate.average();
@@ -271,6 +808,24 @@ public class RtpSocket implements Runnable {
 		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
 	}
 
+	/** 
+	 * Tells whether the next packets belong to a key frame, FEC protects them more.
+	 * Called by the packetizer for each frame, the {@link KeyFrameRequester} learns when key frames are sent.
+	 */
+	public void setKeyFrame(boolean keyFrame) {
+		mKeyFrame = keyFrame;
+		KeyFrameRequester requester = mKeyFrameRequester;
+		if (requester != null) requester.onFrame(keyFrame, System.nanoTime());
+	}
+
+	/** 
+	 * Tells whether the next packets belong to a frame that no other frame refers to,
+	 * an {@link InterleavedWriter} drops them first when the client can't keep up.
+	 */
+	public void setDisposable(boolean disposable) {
+		mDisposable = disposable;
+	}
+
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
 		mBuffers[mBufferIn][1] |= 0x80;
@@ -284,64 +839,303 @@ public class RtpSocket implements Runnable {
 		mDropRate = rate;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
+	/** 
+	 * The Thread sends the packets in the FIFO one by one at a constant rate.
+	 * In batched mode, all the packets committed when it wakes up are sent before it waits again.
+	 */
 	@Override
 	public void run() {
 		Statistics stats = new Statistics(50,3000);
+		if (!mFanOut) mReport.startReceiving();
+		GopCache cache = mGopCache;
+		if (cache != null) cache.clear();
+		mFirstPacket = mOutputLatency = 0;
 		try {
 			// Caches mCacheSize milliseconds of the stream in the FIFO.
 			Thread.sleep(mCacheSize);
 			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+			int count;
+			while ((count = mFifo.await(4000000000L)) > 0) {
+				if (!mBatched) count = 1;
+				long cpu = Platform.threadCpuTimeNanos();
+				Pacer pacer = mPacer;
+				SendHistory history = mHistory;
+				FecEncoder fec = mFanOut ? null : mFec;
+				if (history != null) retransmit(history);
+				for (int i=0;i<count;i++) {
+					mBufferOut = mFifo.peek(i);
+					if (mLengths[mBufferOut] == 0) continue;
+					if (mUnits[mBufferOut] != null && !canGather()) copyPayload();
+					if (mOldTimestamp != 0) {
+						// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
+						// compute the time lapse that the packet represents.
+						if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
+							stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
+							long d = stats.average()/1000000;
+							//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
+							// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
+							if (mCacheSize>0 && pacer == null) Thread.sleep(d);
+						} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
+							Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+						}
+						delta += mTimestamps[mBufferOut]-mOldTimestamp;
+						if (delta>500000000 || delta<0) {
+							//Log.d(TAG,"occupancy: "+mFifo.getOccupancy());
+							delta = 0;
+						}
 					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
+					if (pacer != null) pace(pacer);
+					mQueueDelay = System.nanoTime()-mQueued[mBufferOut];
+					if (mFirstPacket == 0) mFirstPacket = System.nanoTime();
+					if (mOutputs[mBufferOut] != 0) {
+						long latency = System.nanoTime()-mOutputs[mBufferOut];
+						mOutputLatency = mOutputLatency == 0 ? latency : mOutputLatency+(latency-mOutputLatency)/16;
 					}
-				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30 && mRandom.nextInt(10000) >= mDropRate) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-						if (mUdpSleep) Thread.sleep(0, 1000);
+					long rtpts = (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L;
+					if (!mFanOut) mReport.update(mLengths[mBufferOut], rtpts);
+					mOldTimestamp = mTimestamps[mBufferOut];
+					int seq = (mBuffers[mBufferOut][2]&0xFF)<<8 | (mBuffers[mBufferOut][3]&0xFF);
+					if (mRandom.nextInt(10000) >= mDropRate) {
+						long start = Metrics.now();
+						if (mFanOut) {
+							sendToSinks(rtpts, seq);
+						} else if (mTransport == TRANSPORT_UDP) {
+							if (mUnits[mBufferOut] != null) {
+								sendGathered();
+							} else {
+								mPacket.setData(mBuffers[mBufferOut], 0, mLengths[mBufferOut]);
+								send(mPacket, mTarget);
+							}
+							if (mUdpSleep) Thread.sleep(0, 1000);
+						} else if (mUnits[mBufferOut] != null) {
+							sendTCPGathered(getFlags(mBufferOut));
+						} else {
+							sendTCP(mBuffers[mBufferOut], mLengths[mBufferOut], getFlags(mBufferOut));
+						}
+						mSendTime.since(start);
+						// The bytes of each client are counted by its sink in fan-out mode
+						if (!mFanOut) mSentBytes.add(mLengths[mBufferOut]);
 					} else {
-						sendTCP();
+						sDropped.increment();
+					}
+					if (fec != null) {
+						if (mUnits[mBufferOut] != null) copyPayload();
+						int length = fec.protect(mBuffers[mBufferOut], mLengths[mBufferOut], mKeyFrames[mBufferOut]);
+						if (length > 0) sendPacket(fec.getPacket(), length);
+					}
+					if (history != null) {
+						// The history keeps the packet and gives another buffer to the FIFO
+						if (mUnits[mBufferOut] != null) copyPayload();
+						mBuffers[mBufferOut] = history.store(mBuffers[mBufferOut], seq, mLengths[mBufferOut], System.nanoTime());
 					}
 				}
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				// The buffers go back to the packetizer
+				for (int i=0;i<count;i++) {
+					int slot = mFifo.peek(i), returned = mReturnFifo.acquire();
+					if (mUnits[slot] != null) {
+						mUnits[slot].release();
+						mUnits[slot] = null;
+					}
+					mReturned[returned] = mBuffers[slot];
+					mBuffers[slot] = null;
+					mReturnFifo.publish();
+				}
+				mFifo.release(count);
+				mBatchStats.push(count, Platform.threadCpuTimeNanos()-cpu);
 			}
+		} catch (InterruptedException ignore) {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		mReport.stopReceiving();
+		if (mHistory != null) mHistory.clear();
 		mThread = null;
 		resetFifo();
 	}
 
-	private void sendTCP() {
-		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
-			mTcpHeader[2] = (byte) (len>>8);
-			mTcpHeader[3] = (byte) (len&0xFF);
+	/** Waits until the pacer lets the current packet go. */
+	private void pace(Pacer pacer) throws InterruptedException {
+		int len = mLengths[mBufferOut];
+		long queued = mQueued[mBufferOut], now = System.nanoTime();
+		long wait = pacer.delay(len, queued, now);
+		if (wait > 0) {
+			Thread.sleep(wait/1000000, (int) (wait%1000000));
+			now = System.nanoTime();
+		}
+		pacer.sent(len, queued, now);
+	}
+
+	/**
+	 * Sends a UDP packet with the socket or with the channel in batched mode.
+	 * Only called by the Thread of the socket.
+	 */
+	void send(DatagramPacket packet, InetSocketAddress target) throws IOException {
+		if (mChannel != null) {
+			mDirectBuffer.clear();
+			mDirectBuffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+			mDirectBuffer.flip();
+			mChannel.send(mDirectBuffer, target);
+		} else {
+			mSocket.send(packet);
+		}
+		mBatchStats.mSendCalls++;
+	}
+
+	/** The payload can be sent from the buffer of the codec. */
+	private boolean canGather() {
+		return !mFanOut && (mTransport == TRANSPORT_TCP || mChannel != null && mChannel.isConnected());
+	}
+
+	/** Copies the payload of the current packet after its header, the access unit is not needed anymore. */
+	private void copyPayload() {
+		int size = mPayloadLengths[mBufferOut];
+		mUnits[mBufferOut].get(mPayloadOffsets[mBufferOut], mBuffers[mBufferOut], mLengths[mBufferOut]-size, size);
+		mUnits[mBufferOut].release();
+		mUnits[mBufferOut] = null;
+	}
+
+	/** Writes the header of the current packet and its payload, still in the buffer of the codec, in one call. */
+	private void sendGathered() throws IOException {
+		int size = mPayloadLengths[mBufferOut];
+		mDirectBuffer.clear();
+		mDirectBuffer.put(mBuffers[mBufferOut], 0, mLengths[mBufferOut]-size);
+		mDirectBuffer.flip();
+		mGather[0] = mDirectBuffer;
+		mGather[1] = mUnits[mBufferOut].slice(mPayloadOffsets[mBufferOut], size);
+		mChannel.write(mGather);
+		mBatchStats.mSendCalls++;
+	}
+
+	/** Sends the current packet to every client, a failing client does not affect the others. */
+	private void sendToSinks(long rtpts, int seq) {
+		byte[] buffer = mBuffers[mBufferOut];
+		int len = mLengths[mBufferOut], flags = getFlags(mBufferOut);
+		GopCache cache = mGopCache;
+		for (RtpSink sink : mSinks) {
+			try {
+				// A new client gets the current group of pictures first
+				if (sink.join() && cache != null) cache.replay(this, sink, mReplayBuffer, rtpts, mKeyFrames[mBufferOut]);
+				sink.send(this, buffer, len, seq, rtpts, flags);
+			} catch (IOException e) {
+				Log.e(TAG, "Packet not sent to sink "+Integer.toHexString(sink.getSSRC())+": "+e.getMessage());
+			}
+		}
+		// Each sink has written its own sequence number in the buffer, the cache keeps the one of the socket
+		buffer[2] = (byte) (seq>>8);
+		buffer[3] = (byte) seq;
+		if (cache != null) cache.add(buffer, len, mKeyFrames[mBufferOut], flags);
+	}
+
+	/** The flags of a packet of the FIFO for an {@link InterleavedWriter}. */
+	private int getFlags(int slot) {
+		return (mKeyFrames[slot] ? InterleavedWriter.FLAG_KEY_FRAME : 0) | (mDisposables[slot] ? InterleavedWriter.FLAG_DISPOSABLE : 0);
+	}
+
+	/** 
+	 * Sends the current packet on the TCP connection, its payload is still in the buffer of the codec
+	 * and may not fit in the buffer of the FIFO.
+	 */
+	private void sendTCPGathered(int flags) {
+		int size = mPayloadLengths[mBufferOut], header = mLengths[mBufferOut]-size;
+		if (mLargeBuffer == null) mLargeBuffer = new byte[MAX_TCP_PACKET_SIZE];
+		System.arraycopy(mBuffers[mBufferOut], 0, mLargeBuffer, 0, header);
+		mUnits[mBufferOut].get(mPayloadOffsets[mBufferOut], mLargeBuffer, header, size);
+		sendTCP(mLargeBuffer, mLengths[mBufferOut], flags);
+	}
+
+	/** Sends a packet on the TCP connection, only the first error is logged. */
+	private void sendTCP(byte[] buffer, int len, int flags) {
+		try {
+			InterleavedWriter.send(mOutputStream, mTcpHeader, buffer, len, flags);
+		} catch (IOException e) {
+			if (mTcpErrors++ == 0) Log.e(TAG, "TCP write failed: "+e.getMessage());
+		}
+	}
+
+	/** Sends the packets NACKed by the receivers again, if they are still in the history. */
+	private void retransmit(SendHistory history) {
+		int n = history.drainRequests(mNackSequences, mNackTargets, mNackTimes);
+		for (int i=0;i<n;i++) {
+			RtpSink sink = mNackTargets[i];
+			mNackTargets[i] = null;
+			long now = System.nanoTime();
+			int index = history.find(sink != null ? sink.toSocketSequence(mNackSequences[i]) : mNackSequences[i], now);
+			if (index < 0) continue;
+			// A packet NACKed again before the previous retransmission could arrive is only sent once, 
+			// the sinks share the packets of the history so they are not checked
+			long rtt = sink != null ? -1 : mReport.getReceptionReport().getRtt();
+			long interval = sink != null ? 0 : rtt > 0 ? rtt*1000000L : SendHistory.DEFAULT_RESEND_INTERVAL;
+			if (!history.acquire(index, interval, now)) continue;
+			byte[] buffer = history.getBuffer(index);
+			int length = history.getLength(index);
 			try {
-				mOutputStream.write(mTcpHeader);
-				mOutputStream.write(mBuffers[mBufferOut], 0, len);
-			} catch (Exception e) {}
+				if (sink != null) {
+					sink.resend(this, buffer, length, mNackSequences[i]);
+				} else if (mRtxPayloadType > 0) {
+					sendRtx(buffer, length);
+				} else {
+					sendPacket(buffer, length);
+				}
+				history.sent(mNackTimes[i], System.nanoTime());
+			} catch (IOException e) {
+				Log.e(TAG, "Retransmission failed: "+e.getMessage());
+			}
+		}
+	}
+
+	/** Sends a packet to the destination of the socket, used for retransmissions and FEC. */
+	private void sendPacket(byte[] buffer, int length) throws IOException {
+		if (mTransport == TRANSPORT_UDP) {
+			mPacket.setData(buffer, 0, length);
+			send(mPacket, mTarget);
+		} else {
+			sendTCP(buffer, length, 0);
+		}
+	}
+
+	/** 
+	 * Sends a packet again in an RTX packet (RFC 4588), with the SSRC and the sequence numbers
+	 * of the RTX stream, the original sequence number comes before the payload.
+	 */
+	private void sendRtx(byte[] buffer, int length) throws IOException {
+		System.arraycopy(buffer, 0, mRtxBuffer, 0, RTP_HEADER_LENGTH);
+		mRtxBuffer[1] = (byte) ((buffer[1]&0x80) | mRtxPayloadType);
+		mRtxSeq = (mRtxSeq+1) & 0xFFFF;
+		setLong(mRtxBuffer, mRtxSeq, 2, 4);
+		setLong(mRtxBuffer, mRtxSsrc, 8, 12);
+		mRtxBuffer[RTP_HEADER_LENGTH] = buffer[2];
+		mRtxBuffer[RTP_HEADER_LENGTH+1] = buffer[3];
+		System.arraycopy(buffer, RTP_HEADER_LENGTH, mRtxBuffer, RTP_HEADER_LENGTH+2, length-RTP_HEADER_LENGTH);
+		sendPacket(mRtxBuffer, length+2);
+	}
+
+	/** 
+	 * Queues the packets NACKed by a receiver, the Thread of the socket sends them again.
+	 * Passes the PLI and FIR to the {@link KeyFrameRequester}.
+	 */
+	private class Feedback implements RtcpReceiver.FeedbackListener {
+
+		private final RtpSink mSink;
+
+		public Feedback(RtpSink sink) {
+			mSink = sink;
 		}
+
+		@Override
+		public void onNack(RtcpReceiver receiver, int sequence, int lost) {
+			SendHistory history = mHistory;
+			if (history == null) return;
+			history.request(sequence, mSink);
+			for (int i=0;i<16;i++) {
+				if ((lost & (1<<i)) != 0) history.request((sequence+i+1) & 0xFFFF, mSink);
+			}
+		}
+
+		@Override
+		public void onKeyFrameRequest(RtcpReceiver receiver) {
+			requestKeyFrame();
+		}
+
 	}
 
 	private void setLong(byte[] buffer, long n, int begin, int end) {
@@ -351,6 +1145,20 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
+	/** Notified when the number of buffers of the FIFO changes. */
+	public interface FifoCallback {
+
+		/** Called when the FIFO has grown to size packets. */
+		public void onFifoGrow(RtpSocket socket, int size);
+
+		/** Called when the FIFO has shrunk to size packets. */
+		public void onFifoShrink(RtpSocket socket, int size);
+
+		/** Called when the FIFO is full and can't grow anymore, the packetizer will wait. */
+		public void onFifoOverflow(RtpSocket socket, int size);
+
+	}
+
 	/** 
 	 * Computes an average bit rate. 
 	 **/
@@ -377,7 +1185,7 @@ public class RtpSocket implements Runnable {
 		public void reset() {
 			mSum = new long[mSize];
 			mElapsed = new long[mSize];
-			mNow = SystemClock.elapsedRealtime();
+			mNow = Platform.elapsedRealtime();
 			mOldNow = mNow;
 			mCount = 0;
 			mDelta = 0;
@@ -386,7 +1194,7 @@ public class RtpSocket implements Runnable {
 		}
 		
 		public void push(int length) {
-			mNow = SystemClock.elapsedRealtime();
+			mNow = Platform.elapsedRealtime();
 			if (mCount>0) {
 				mDelta += mNow - mOldNow;
 				mTotal += length;
@@ -420,6 +1228,53 @@ public class RtpSocket implements Runnable {
 
 	}
 	
+	/**
+	 * Measures how well the Thread of the socket batches its work.
+	 * A wake-up and a send call both cost a system call, so the number of packets per
+	 * system call is around 0.5 when packets are sent one by one and gets close to 1
+	 * when many packets are sent per wake-up.
+	 */
+	public static class BatchStatistics {
+
+		private volatile long mWakeups, mPackets, mSendCalls, mCpuTime;
+
+		private void push(int packets, long cpuTime) {
+			mWakeups++;
+			mPackets += packets;
+			mCpuTime += cpuTime;
+		}
+
+		public long getWakeups() {
+			return mWakeups;
+		}
+
+		public long getPackets() {
+			return mPackets;
+		}
+
+		public long getSendCalls() {
+			return mSendCalls;
+		}
+
+		/** Returns the CPU time spent by the Thread to send packets, in ns. */
+		public long getCpuTime() {
+			return mCpuTime;
+		}
+
+		public float getPacketsPerWakeup() {
+			return mWakeups>0 ? (float)mPackets/mWakeups : 0;
+		}
+
+		public float getPacketsPerSyscall() {
+			return mWakeups+mSendCalls>0 ? (float)mPackets/(mWakeups+mSendCalls) : 0;
+		}
+
+		public String toString() {
+			return "packets: "+mPackets+" per wake-up: "+getPacketsPerWakeup()+" per syscall: "+getPacketsPerSyscall()+" cpu: "+mCpuTime/1000000+" ms";
+		}
+
+	}
+	
 	/** Computes the proper rate at which packets are sent. */
 	protected static class Statistics {
 
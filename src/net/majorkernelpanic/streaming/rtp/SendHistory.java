@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * The packets recently sent by an {@link RtpSocket}, kept so that they can be sent again
+ * when the receiver asks for them with a Generic NACK (RFC 4585).
+ *
+ * The history takes the buffers of the packets once they have been sent, and gives the
+ * {@link RtpSocket} another one from the {@link BufferPool} in exchange, so the FIFO keeps its size.
+ * Packets are forgotten when they are older than the maximum age, or when the history
+ * would hold more than the maximum number of bytes.
+ *
+ * Only the Thread of the socket stores and looks up packets. The NACKed sequence numbers are
+ * queued by the Thread that receives the RTCP packets with {@link #request(int, RtpSink)}.
+ */
+public class SendHistory {
+
+	public final static String TAG = "SendHistory";
+
+	/** Default maximum age of the packets, in ns. */
+	public final static long DEFAULT_MAX_AGE = 1000000000L;
+
+	/** Default maximum size of the history, in bytes. */
+	public final static int DEFAULT_MAX_BYTES = 1<<20;
+
+	/** A packet is not sent again before this delay when the round trip time is unknown, in ns. */
+	public final static long DEFAULT_RESEND_INTERVAL = 20000000L;
+
+	private final static int CAPACITY = 1024;
+	private final static int MAX_REQUESTS = 256;
+
+	private final BufferPool mPool;
+	private final long mMaxAge;
+	private final int mMaxBytes;
+	private final byte[][] mBuffers = new byte[CAPACITY][];
+	private final int[] mSequences = new int[CAPACITY], mLengths = new int[CAPACITY];
+	private final long[] mSent = new long[CAPACITY], mResent = new long[CAPACITY];
+	private int mHead = 0, mCount = 0, mBytes = 0;
+
+	// NACKed sequence numbers not handled yet
+	private final int[] mRequests = new int[MAX_REQUESTS];
+	private final RtpSink[] mTargets = new RtpSink[MAX_REQUESTS];
+	private final long[] mRequestTimes = new long[MAX_REQUESTS];
+	private int mRequestCount = 0;
+
+	// Token bucket that limits the bitrate of the retransmissions
+	private volatile double mRate = 0;
+	private double mTokens = 0;
+	private long mLast = 0;
+
+	private volatile long mRequested = 0, mDropped = 0, mRetransmitted = 0, mMisses = 0, mLimited = 0;
+	private volatile long mTotalLatency = 0, mMaxLatency = 0;
+
+	/**
+	 * @param maxAge The maximum age of the packets, in ns
+	 * @param maxBytes The maximum size of the history, in bytes
+	 */
+	public SendHistory(long maxAge, int maxBytes) {
+		mPool = BufferPool.getDefault();
+		mMaxAge = maxAge;
+		mMaxBytes = maxBytes;
+	}
+
+	public long getMaxAge() {
+		return mMaxAge;
+	}
+
+	public int getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * Limits the bitrate of the retransmissions.
+	 * @param bitrate The maximum bitrate in bit/s, 0 for no limit
+	 */
+	public void setRateLimit(long bitrate) {
+		mRate = bitrate/8e9;
+	}
+
+	/** Returns the maximum bitrate of the retransmissions in bit/s, 0 if there is no limit. */
+	public long getRateLimit() {
+		return (long) (mRate*8e9);
+	}
+
+	/**
+	 * Queues a sequence number NACKed by a receiver. Can be called from any Thread.
+	 * @param sequence The sequence number of the packet, as sent to the receiver
+	 * @param target The sink of the receiver in fan-out mode, null otherwise
+	 * @return false if too many requests are pending, the request is then dropped
+	 */
+	public synchronized boolean request(int sequence, RtpSink target) {
+		mRequested++;
+		if (mRequestCount == MAX_REQUESTS) {
+			mDropped++;
+			return false;
+		}
+		mRequests[mRequestCount] = sequence;
+		mTargets[mRequestCount] = target;
+		mRequestTimes[mRequestCount] = System.nanoTime();
+		mRequestCount++;
+		return true;
+	}
+
+	/**
+	 * Moves the pending requests to the arrays given by the Thread of the socket.
+	 * @return The number of requests
+	 */
+	synchronized int drainRequests(int[] sequences, RtpSink[] targets, long[] times) {
+		int n = mRequestCount;
+		System.arraycopy(mRequests, 0, sequences, 0, n);
+		System.arraycopy(mTargets, 0, targets, 0, n);
+		System.arraycopy(mRequestTimes, 0, times, 0, n);
+		for (int i=0;i<n;i++) mTargets[i] = null;
+		mRequestCount = 0;
+		return n;
+	}
+
+	/** Returns the maximum number of requests returned by {@link #drainRequests(int[], RtpSink[], long[])}. */
+	int getMaxRequests() {
+		return MAX_REQUESTS;
+	}
+
+	/**
+	 * Keeps a packet that has just been sent.
+	 * @param buffer The buffer of the packet, the history owns it from now on
+	 * @param sequence The sequence number of the packet
+	 * @param length The length of the packet
+	 * @param now The current time, as returned by {@link System#nanoTime()}
+	 * @return A buffer that the FIFO can use instead
+	 */
+	byte[] store(byte[] buffer, int sequence, int length, long now) {
+		byte[] spare = null;
+		while (mCount > 0 && (mCount == CAPACITY || mBytes+length > mMaxBytes || now-mSent[oldest()] > mMaxAge)) {
+			int i = oldest();
+			if (spare == null) spare = mBuffers[i];
+			else mPool.release(mBuffers[i]);
+			mBytes -= mLengths[i];
+			mBuffers[i] = null;
+			mCount--;
+		}
+		mBuffers[mHead] = buffer;
+		mSequences[mHead] = sequence;
+		mLengths[mHead] = length;
+		mSent[mHead] = now;
+		mResent[mHead] = 0;
+		mHead = (mHead+1)%CAPACITY;
+		mCount++;
+		mBytes += length;
+		return spare != null ? spare : mPool.acquire();
+	}
+
+	/**
+	 * Looks for a packet in the history.
+	 * @return The index of the packet, or -1 if it is not in the history anymore
+	 */
+	int find(int sequence, long now) {
+		if (mCount > 0) {
+			int newest = (mHead-1+CAPACITY)%CAPACITY;
+			int d = (mSequences[newest]-sequence)&0xFFFF;
+			if (d < mCount) {
+				int i = (newest-d+CAPACITY)%CAPACITY;
+				if (mSequences[i] == sequence && now-mSent[i] <= mMaxAge) return i;
+			}
+		}
+		mMisses++;
+		return -1;
+	}
+
+	/**
+	 * Decides if a packet of the history can be sent again now, and if so takes the tokens it needs.
+	 * @param index The index returned by {@link #find(int, long)}
+	 * @param interval The minimum delay between two retransmissions of the packet, in ns
+	 */
+	boolean acquire(int index, long interval, long now) {
+		// The previous retransmission may still be on its way
+		if (mResent[index] != 0 && now-mResent[index] < interval) return false;
+		double rate = mRate;
+		if (rate > 0) {
+			if (mLast != 0) mTokens = Math.min(mTokens+(now-mLast)*rate, 4*RtpSocket.MTU+rate*1e8);
+			else mTokens = 4*RtpSocket.MTU;
+			mLast = now;
+			if (mTokens < mLengths[index]) {
+				mLimited++;
+				return false;
+			}
+			mTokens -= mLengths[index];
+		}
+		mResent[index] = now;
+		return true;
+	}
+
+	/** Must be called once a packet of the history has been sent again. */
+	void sent(long requestTime, long now) {
+		long latency = now-requestTime;
+		mRetransmitted++;
+		mTotalLatency += latency;
+		if (latency > mMaxLatency) mMaxLatency = latency;
+	}
+
+	byte[] getBuffer(int index) {
+		return mBuffers[index];
+	}
+
+	int getLength(int index) {
+		return mLengths[index];
+	}
+
+	/** Gives all the buffers back to the pool. */
+	void clear() {
+		for (int i=0;i<CAPACITY;i++) {
+			if (mBuffers[i] != null) mPool.release(mBuffers[i]);
+			mBuffers[i] = null;
+		}
+		mHead = mCount = mBytes = 0;
+	}
+
+	private int oldest() {
+		return (mHead-mCount+CAPACITY)%CAPACITY;
+	}
+
+	/** Returns the number of packets NACKed by the receivers. */
+	public long getRequestedPackets() {
+		return mRequested;
+	}
+
+	/** Returns the number of packets sent again. */
+	public long getRetransmittedPackets() {
+		return mRetransmitted;
+	}
+
+	/** Returns the number of NACKed packets that were not in the history anymore. */
+	public long getMisses() {
+		return mMisses;
+	}
+
+	/** Returns the number of retransmissions prevented by the rate limit. */
+	public long getRateLimitedPackets() {
+		return mLimited;
+	}
+
+	/** Returns the number of requests dropped because too many were pending. */
+	public long getDroppedRequests() {
+		return mDropped;
+	}
+
+	/** Returns the ratio of NACKed packets that were found in the history. */
+	public float getHitRate() {
+		long hits = mRequested-mDropped-mMisses;
+		return mRequested-mDropped>0 ? (float)hits/(mRequested-mDropped) : 0;
+	}
+
+	/** Returns the average time between the reception of a NACK and the retransmission, in ns. */
+	public long getAverageLatency() {
+		return mRetransmitted>0 ? mTotalLatency/mRetransmitted : 0;
+	}
+
+	/** Returns the longest time between the reception of a NACK and the retransmission, in ns. */
+	public long getMaxLatency() {
+		return mMaxLatency;
+	}
+
+	public String toString() {
+		return "nacked: "+mRequested+" resent: "+mRetransmitted+" misses: "+mMisses+" limited: "+mLimited+
+				" hit rate: "+getHitRate()+" latency avg: "+getAverageLatency()/1000+" us max: "+mMaxLatency/1000+" us";
+	}
+
+}
@@ -0,0 +1,908 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.Platform;
+import net.majorkernelpanic.streaming.metrics.Histogram;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * The signaling of an RTSP server, which runs on a desktop JVM as well as on Android: the connections are 
+ * accepted and read by an {@link RtspSelector}, their requests are parsed and answered by a few workers, 
+ * in the order each client sent them, and the idle sessions are reaped.
+ *
+ * What is streamed is up to the subclass, each connection gets its own {@link Streams} from 
+ * {@link #createStreams(Client)}. {@link RtspServer} streams the Sessions of the device, 
+ * {@link net.majorkernelpanic.streaming.jvm.SourceServer} the sources that stand in for the encoders on a JVM.
+ */
+public abstract class RequestProcessor {
+
+	public final static String TAG = "RequestProcessor";
+
+	/** The server name that will appear in responses. */
+	public static String SERVER_NAME = "MajorKernelPanic RTSP Server";
+
+	/** Number of Threads processing the requests that do not start or stop a stream. */
+	public final static int DEFAULT_WORKERS = 4;
+
+	/** Number of Threads processing the requests that configure, start or stop the streams, and releasing the sessions. */
+	public final static int DEFAULT_SESSION_WORKERS = 2;
+
+	/** A client that has sent more requests than this without waiting for the responses is not read until they are processed. */
+	public final static int MAX_PIPELINED_REQUESTS = 8;
+
+	/** A session is torn down when its client has sent neither a request nor an RTCP report for this long, in seconds. */
+	public final static int SESSION_TIMEOUT = 60;
+
+	/** Period of the reaper of the idle sessions, in ms. */
+	private final static long REAPER_INTERVAL = 5000;
+
+	private final static SecureRandom sRandom = new SecureRandom();
+
+	// One histogram per method, the unknown methods share the last one so that clients can't add series
+	private final static Histogram[] sRequestTimes = new Histogram[Request.METHODS.length+1];
+	static {
+		for (int i = 0; i < sRequestTimes.length; i++) {
+			String method = i < Request.METHODS.length ? Request.METHODS[i] : "other";
+			sRequestTimes[i] = Metrics.histogram(Metrics.name("rtsp_request_ns", "method", method), 
+					"Time from the reception of a request to its response, in ns");
+		}
+	}
+
+	private final Set<Connection> mConnections = Collections.synchronizedSet(new HashSet<Connection>());
+	private RtspSelector mListener;
+	private ThreadPoolExecutor mExecutor, mSessionExecutor;
+	private ScheduledThreadPoolExecutor mReaper;
+
+	/** Credentials for Basic Auth */
+	private volatile String mUsername;
+	private volatile String mPassword;
+
+	/** The connection of a client, what its {@link Streams} need to send it the tracks. */
+	public interface Client {
+
+		Socket getSocket();
+
+		/** The responses and the interleaved packets are queued in the writer. */
+		InterleavedWriter getOutput();
+
+		/** Passes the interleaved RTCP packets received on a channel to a receiver. */
+		void setReceiver(int channel, RtcpReceiver receiver);
+
+	}
+
+	/**
+	 * What a client receives, from its DESCRIBE to its TEARDOWN. The methods are called by one worker 
+	 * at a time, in the order of the requests, and may block while the streams start or stop.
+	 */
+	public interface Streams {
+
+		/**
+		 * Configures the streams requested by a DESCRIBE.
+		 * @param uri The uri that the client has requested
+		 * @return The session description
+		 */
+		String describe(String uri) throws IllegalStateException, IOException;
+
+		/** Indicates if the streams described have this track. */
+		boolean trackExists(int trackId);
+
+		/**
+		 * Sends a track to the client, from now or from the next PLAY.
+		 * @param trackId The id of the track
+		 * @param rtpPort The client_port for RTP of the Transport header, -1 if there is none
+		 * @param rtcpPort The client_port for RTCP of the Transport header
+		 * @return The Transport header of the response, up to the ssrc parameter
+		 */
+		String setup(int trackId, int rtpPort, int rtcpPort) throws IOException;
+
+		/** Sends the tracks set up again after a {@link #pause()}. */
+		void play() throws IOException;
+
+		/** Stops sending the tracks until the next {@link #play()}. */
+		void pause();
+
+		/** Stops sending the tracks after a TEARDOWN or once the connection is closed, the client may DESCRIBE again. */
+		void release();
+
+		/** Returns what the client reported for a track in its RTCP Receiver Reports, null if it does not receive it. */
+		ReceptionReport getReceptionReport(int trackId);
+
+	}
+
+	/** Creates the streams of a new connection, called from the Thread of its selector: nothing that blocks. */
+	protected abstract Streams createStreams(Client client);
+
+	/** Returns the bitrate of all the streams, in bit/s. */
+	protected abstract long getBitrate();
+
+	/** Called when a request could not be processed, the client receives an "Internal Server Error". */
+	protected void onError(Exception e) {}
+
+	/**
+	 * Set Basic authorization to access RTSP Stream
+	 * @param username username
+	 * @param password password
+	 */
+	public void setAuthorization(String username, String password) {
+		mUsername = username;
+		mPassword = password;
+	}
+
+	/**
+	 * Starts accepting connections.
+	 * @param port The port of the server, 0 for any free port
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (mListener != null) return;
+		try {
+			// Each connection has at most one task queued, its requests are processed in order,
+			// the encoders are started and stopped by other Threads so that they never hold up the signaling
+			mExecutor = createWorkers(DEFAULT_WORKERS);
+			mSessionExecutor = createWorkers(DEFAULT_SESSION_WORKERS);
+			mReaper = new ScheduledThreadPoolExecutor(1);
+			mReaper.scheduleWithFixedDelay(this::reap, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+			mListener = new RtspSelector(port, RtspSelector.DEFAULT_THREADS, Connection::new);
+			Log.i(TAG,"RTSP server listening on port "+mListener.getLocalPort());
+		} catch (IOException e) {
+			mExecutor.shutdown();
+			mSessionExecutor.shutdown();
+			mReaper.shutdown();
+			mExecutor = mSessionExecutor = null;
+			mReaper = null;
+			mListener = null;
+			throw e;
+		}
+	}
+
+	/** Closes the connections, and waits for the workers to release their streams. */
+	public synchronized void stop() {
+		if (mListener == null) return;
+		try {
+			// The connections are closed, their streams are released by the workers
+			mListener.close();
+			mReaper.shutdown();
+			mExecutor.shutdown();
+			mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+			mSessionExecutor.shutdown();
+			mSessionExecutor.awaitTermination(5, TimeUnit.SECONDS);
+			Log.i(TAG,"RTSP server stopped !");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			mListener = null;
+			mExecutor = mSessionExecutor = null;
+			mReaper = null;
+		}
+	}
+
+	public synchronized boolean isStarted() {
+		return mListener != null;
+	}
+
+	/** Returns the port the server listens on, -1 if it is not started. */
+	public synchronized int getLocalPort() {
+		return mListener != null ? mListener.getLocalPort() : -1;
+	}
+
+	/**
+	 * Returns what each client reported in its RTCP Receiver Reports.
+	 * @return The reports of the audio track (index 0) and of the video track (index 1)
+	 * of each client, keyed by the address and port of its RTSP connection
+	 */
+	public Map<String, ReceptionReport[]> getReceptionReports() {
+		Map<String, ReceptionReport[]> reports = new HashMap<>();
+		synchronized (mConnections) {
+			for (Connection connection : mConnections) {
+				reports.put(connection.getClientAddress(), connection.getReceptionReports());
+			}
+		}
+		return reports;
+	}
+
+	/** Returns the number of RTSP sessions, a session starts with the first SETUP of a client and ends with its TEARDOWN. */
+	public int getSessionCount() {
+		int count = 0;
+		synchronized (mConnections) {
+			for (Connection connection : mConnections) {
+				if (connection.getSessionId() != null) count++;
+			}
+		}
+		return count;
+	}
+
+	/** Returns the number of connections open. */
+	public int getConnectionCount() {
+		return mConnections.size();
+	}
+
+	/**
+	 * Returns the state of the server as "name: value" lines (text/parameters): the sessions, the 
+	 * connections, the threads of the process, its CPU time in ms and the bitrate of the streams.
+	 * Sent to the clients that ask for parameters with GET_PARAMETER.
+	 */
+	public String getStatistics() {
+		String[] tasks = new File("/proc/self/task").list();
+		return "sessions: "+getSessionCount()+"\r\n"+
+				"connections: "+mConnections.size()+"\r\n"+
+				"threads: "+(tasks != null ? tasks.length : Thread.activeCount())+"\r\n"+
+				"cpu_time: "+Platform.elapsedCpuTime()+"\r\n"+
+				"bitrate: "+getBitrate()+"\r\n";
+	}
+
+	private static ThreadPoolExecutor createWorkers(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/** Closes the connections of the clients that have been silent for longer than {@link #SESSION_TIMEOUT}. */
+	private void reap() {
+		long deadline = Platform.elapsedRealtime() - SESSION_TIMEOUT*1000L;
+		synchronized (mConnections) {
+			for (Connection connection : mConnections) {
+				if (connection.getLastActivity() < deadline) {
+					Log.i(TAG, "Session of "+connection.getClientAddress()+" timed out");
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client, its requests are processed one after the other by the workers of the server,
+	 * in the order they have been received. The requests that configure, start or stop the streams,
+	 * and the release of the streams, are processed by the session workers, the others by the request workers.
+	 */
+	private class Connection implements RtspSelector.Handler, Runnable {
+
+		private final RtspSelector.Client mChannel;
+		private final Socket mClient;
+		private final InterleavedWriter mOutput;
+		private final ArrayDeque<Request> mRequests = new ArrayDeque<>(), mFreeRequests = new ArrayDeque<>();
+		private final ThreadPoolExecutor mRequestWorkers = mExecutor, mSessionWorkers = mSessionExecutor;
+		private ThreadPoolExecutor mWorkers;
+		private boolean mRunning = false, mClosed = false;
+
+		// What the client receives, nothing until it sends a DESCRIBE
+		private final Streams mStreams;
+
+		// The RTSP session, from the first SETUP to the TEARDOWN
+		private String mSessionId;
+
+		// Any request keeps the session alive, so do the RTCP reports of the client
+		private volatile long mLastRequest = Platform.elapsedRealtime();
+
+		public Connection(RtspSelector.Client client) {
+			mChannel = client;
+			mClient = client.getSocket();
+			// The responses and the interleaved packets are written by the selector
+			mOutput = client.getOutput();
+			mStreams = createStreams(client);
+			mConnections.add(this);
+			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		}
+
+		@Override
+		public synchronized boolean onRequest(byte[] data, int offset, int length) {
+			Request request = mFreeRequests.poll();
+			if (request == null) request = new Request();
+			request.set(data, offset, length);
+			request.received = Metrics.now();
+			try {
+				// Parsed here to know which workers process it, the parser does not block
+				request.parse();
+			} catch (IllegalStateException e) {
+				// We don't understand the request :/
+				request.method = null;
+				request.methodIndex = Request.METHODS.length;
+			}
+			mRequests.add(request);
+			mLastRequest = Platform.elapsedRealtime();
+			if (!mRunning) {
+				mRunning = true;
+				mWorkers = getWorkers(request);
+				mWorkers.execute(this);
+			}
+			return mRequests.size() < MAX_PIPELINED_REQUESTS;
+		}
+
+		@Override
+		public synchronized void onClosed() {
+			mClosed = true;
+			if (!mRunning) {
+				mRunning = true;
+				mWorkers = mSessionWorkers;
+				mWorkers.execute(this);
+			}
+		}
+
+		/** Processes the requests received so far, releases the streams once the client has left. */
+		public void run() {
+			Request request;
+			while (true) {
+				synchronized (this) {
+					if (mClosed) {
+						if (moveTo(mSessionWorkers)) return;
+						break;
+					}
+					request = mRequests.peek();
+					if (request == null) {
+						mRunning = false;
+						return;
+					}
+					if (moveTo(getWorkers(request))) return;
+					mRequests.poll();
+					if (mRequests.size() == MAX_PIPELINED_REQUESTS-1) mChannel.resume();
+				}
+				boolean sent = process(request);
+				synchronized (this) {
+					mFreeRequests.add(request);
+					if (!sent) {
+						mChannel.close();
+						mFreeRequests.addAll(mRequests);
+						mRequests.clear();
+					}
+				}
+			}
+			mStreams.release();
+			mConnections.remove(this);
+			Log.i(TAG, "Client disconnected");
+		}
+
+		/** Returns the workers that process a request, the session workers if it may block on an encoder. */
+		private ThreadPoolExecutor getWorkers(Request request) {
+			String method = request.method;
+			if (method == Request.DESCRIBE || method == Request.SETUP || method == Request.PLAY
+					|| method == Request.PAUSE || method == Request.TEARDOWN) {
+				return mSessionWorkers;
+			}
+			return mRequestWorkers;
+		}
+
+		/** 
+		 * Hands the connection over to other workers, with its lock held.
+		 * Returns false if they are already the current ones, or if they have been shut down with the server.
+		 */
+		private boolean moveTo(ThreadPoolExecutor workers) {
+			if (workers == mWorkers) return false;
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+			mWorkers = workers;
+			return true;
+		}
+
+		/** Sends the response to a request, returns false if the connection should be closed. */
+		private boolean process(Request request) {
+			Response response = null;
+
+			if (request.method == null) {
+				response = new Response(request);
+				response.status = Response.STATUS_BAD_REQUEST;
+			}
+
+			// Do something accordingly like starting the streams, sending a session description
+			if (response == null) {
+				try {
+					response = processRequest(request);
+				}
+				catch (Exception e) {
+					// This alerts the main thread that something has gone wrong in this thread
+					onError(e);
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+					e.printStackTrace();
+					response = new Response(request);
+				}
+			}
+
+			// We always send a response
+			// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
+			try {
+				response.send(mOutput);
+			} catch (IOException e) {
+				Log.e(TAG,"Response was not sent properly");
+				return false;
+			}
+			if (request.received != 0) {
+				sRequestTimes[request.methodIndex].since(request.received);
+			}
+			return true;
+		}
+
+		String getSessionId() {
+			return mSessionId;
+		}
+
+		/** Returns when the client has last sent a request or an RTCP report, in ms since boot. */
+		long getLastActivity() {
+			long last = mLastRequest;
+			for (ReceptionReport report : getReceptionReports()) {
+				if (report != null && !report.hasLeft()) last = Math.max(last, report.getLastReportTime());
+			}
+			return last;
+		}
+
+		/** Closes the connection, the streams of the client are released by a worker. */
+		void close() {
+			mChannel.close();
+		}
+
+		String getClientAddress() {
+			return mClient.getInetAddress().getHostAddress()+":"+mClient.getPort();
+		}
+
+		/** Returns the reports of the client for the audio and the video tracks, null for a track it does not receive. */
+		ReceptionReport[] getReceptionReports() {
+			ReceptionReport[] reports = new ReceptionReport[2];
+			for (int id=0; id<2; id++) {
+				reports[id] = mStreams.getReceptionReport(id);
+			}
+			return reports;
+		}
+
+		public Response processRequest(Request request) throws IllegalStateException, IOException {
+			Response response = new Response(request);
+
+            //Ask for authorization unless this is an OPTIONS request
+            if(!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS"))
+            {
+                response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
+                response.status = Response.STATUS_UNAUTHORIZED;
+            }
+            else if (request.session != null && !request.session.equals(mSessionId))
+            {
+                // The session has been torn down, or has timed out, or belongs to someone else
+                response.status = Response.STATUS_SESSION_NOT_FOUND;
+            }
+            else
+            {
+			    /* ********************************************************************************** */
+			    /* ********************************* Method DESCRIBE ******************************** */
+			    /* ********************************************************************************** */
+                if (request.method.equalsIgnoreCase("DESCRIBE")) {
+
+                    // Parse the requested URI and configure the streams
+                    String requestContent = mStreams.describe(request.uri);
+                    String requestAttributes =
+                            "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
+                                    "Content-Type: application/sdp\r\n";
+
+                    response.attributes = requestAttributes;
+                    response.content = requestContent;
+
+                    // If no exception has been thrown, we reply with OK
+                    response.status = Response.STATUS_OK;
+
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************* Method OPTIONS ********************************* */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("OPTIONS")) {
+                    response.status = Response.STATUS_OK;
+                    response.attributes = "Public: OPTIONS,DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************** Method SETUP ********************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("SETUP")) {
+                    if (request.trackId < 0) {
+                        response.status = Response.STATUS_BAD_REQUEST;
+                        return response;
+                    }
+
+                    if (!mStreams.trackExists(request.trackId)) {
+                        response.status = Response.STATUS_NOT_FOUND;
+                        return response;
+                    }
+
+                    String transport = mStreams.setup(request.trackId, request.clientPort1, request.clientPort2);
+
+                    if (mSessionId == null) {
+                        mSessionId = String.format("%016x", sRandom.nextLong());
+                    }
+
+                    response.attributes = "Transport: " + transport +
+                            ";mode=play\r\n" +
+                            "Session: " + mSessionId + ";timeout=" + SESSION_TIMEOUT + "\r\n" +
+                            "Cache-Control: no-cache\r\n";
+
+                    // If no exception has been thrown, we reply with OK
+                    response.status = Response.STATUS_OK;
+
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************** Method PLAY *********************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("PLAY")) {
+                    String requestAttributes = "RTP-Info: ";
+                    if (mStreams.trackExists(0))
+                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
+                    if (mStreams.trackExists(1))
+                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
+                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\n";
+                    if (mSessionId != null) requestAttributes += "Session: " + mSessionId + ";timeout=" + SESSION_TIMEOUT + "\r\n";
+
+                    mStreams.play();
+
+                    response.attributes = requestAttributes;
+
+                    // If no exception has been thrown, we reply with OK
+                    response.status = Response.STATUS_OK;
+
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************** Method PAUSE ********************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("PAUSE")) {
+                    mStreams.pause();
+                    if (mSessionId != null) response.attributes = "Session: " + mSessionId + "\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************* Method TEARDOWN ******************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                    // The connection may stay open, the client can DESCRIBE and SETUP again
+                    mStreams.release();
+                    mSessionId = null;
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ***************************** Method GET_PARAMETER ******************************* */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                    // Used as a keep-alive by most clients, those asking for parameters get the statistics of the server
+                    if (mSessionId != null) response.attributes = "Session: " + mSessionId + "\r\n";
+                    if (request.hasParameter("metrics")) {
+                        response.attributes += "Content-Type: text/plain; version=0.0.4\r\n";
+                        response.content = Metrics.snapshot().toString();
+                    } else if (request.contentLength > 0) {
+                        response.attributes += "Content-Type: text/parameters\r\n";
+                        response.content = getStatistics();
+                    }
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************* Unknown method ? ******************************* */
+                /* ********************************************************************************** */
+                else {
+                    Log.e(TAG, "Command unknown: " + request);
+                    response.status = Response.STATUS_BAD_REQUEST;
+                }
+            }
+			return response;
+
+		}
+
+        /**
+         * Check if the request is authorized
+         * @param request
+         * @return true or false
+         */
+        private boolean isAuthorized(Request request)
+        {
+            String auth = request.authorization;
+            String username = mUsername, password = mPassword;
+            if(username == null || password == null || username.isEmpty())
+                return true;
+
+            if(auth != null && !auth.isEmpty())
+            {
+                String received = auth.substring(auth.lastIndexOf(" ")+1);
+                String local = username+":"+password;
+                String localEncoded = Base64.getEncoder().encodeToString(local.getBytes());
+                if(localEncoded.equals(received))
+                    return true;
+            }
+
+            return false;
+        }
+	}
+
+	/**
+	 * A request, parsed in place from the bytes received: the tokens of the request line and the headers 
+	 * used by the server are compared to constants and their values parsed directly, without copies nor regexes.
+	 * The objects are reused by a connection, strings equal to those of its previous request are reused too.
+	 */
+	static class Request {
+
+		// The methods of the requests are interned to these constants
+		public static final String OPTIONS = "OPTIONS";
+		public static final String DESCRIBE = "DESCRIBE";
+		public static final String SETUP = "SETUP";
+		public static final String PLAY = "PLAY";
+		public static final String PAUSE = "PAUSE";
+		public static final String TEARDOWN = "TEARDOWN";
+		public static final String GET_PARAMETER = "GET_PARAMETER";
+		public static final String SET_PARAMETER = "SET_PARAMETER";
+
+		static final String[] METHODS = {OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER, SET_PARAMETER};
+
+		public String method;
+		/** The index of the method in {@link #METHODS}, METHODS.length if it is unknown or missing. */
+		public int methodIndex;
+		public String uri;
+		/** The CSeq header, -1 if it is missing. */
+		public int cseq;
+		/** The identifier of the Session header, null if it is missing. */
+		public String session;
+		/** The Authorization header, null if it is missing. */
+		public String authorization;
+		/** The trackID parameter of the uri, -1 if it is missing. */
+		public int trackId;
+		/** The client_port parameter of the Transport header, -1 if it is missing. */
+		public int clientPort1, clientPort2;
+		/** The Content-Length header. */
+		public int contentLength;
+		/** When the request has been received, see {@link Metrics#now()}. */
+		public long received;
+
+		private byte[] mData = new byte[512];
+		private int mLength = 0, mContent = 0;
+
+		/** Copies a request, the buffer of the object is reused. */
+		void set(byte[] data, int offset, int length) {
+			if (length > mData.length) mData = new byte[Math.max(length, 2*mData.length)];
+			System.arraycopy(data, offset, mData, 0, length);
+			mLength = length;
+		}
+
+		/** Parse the method, uri & headers of a RTSP request */
+		void parse() throws IllegalStateException {
+			String uri = this.uri, session = this.session, authorization = this.authorization;
+			byte[] data = mData;
+			int i = 0, start, end = mLength;
+			method = this.uri = this.session = this.authorization = null;
+			methodIndex = METHODS.length;
+			cseq = trackId = clientPort1 = clientPort2 = -1;
+			contentLength = 0;
+
+			// Parsing request method & uri
+			for (start = i; i < end && isTokenChar(data[i]); i++);
+			if (i == start || i == end || data[i] != ' ') throw new IllegalStateException("Malformed request line");
+			method = intern(start, i);
+			for (start = ++i; i < end && (data[i]&0xFF) > ' '; i++);
+			if (i == start || !startsWith(i+1, end, "RTSP/")) throw new IllegalStateException("Malformed request line");
+			this.uri = reuse(uri, start, i);
+			int track = indexOf(start, i, "trackID=");
+			if (track >= 0) trackId = parseInt(track, i, -1);
+			while (i < end && data[i++] != '\n');
+
+			// Parsing headers of the request, up to the empty line
+			while (i < end) {
+				int next = i;
+				while (next < end && data[next] != '\n') next++;
+				int lineEnd = next > i && data[next-1] == '\r' ? next-1 : next;
+				if (lineEnd == i) {
+					i = next+1;
+					break;
+				}
+				int colon = i;
+				while (colon < lineEnd && data[colon] != ':') colon++;
+				if (colon == i || colon == lineEnd) throw new IllegalStateException("Malformed header");
+				int value = colon+1, valueEnd = lineEnd;
+				while (value < valueEnd && (data[value]&0xFF) <= ' ') value++;
+				while (valueEnd > value && (data[valueEnd-1]&0xFF) <= ' ') valueEnd--;
+				if (equalsIgnoreCase(i, colon, "cseq")) {
+					cseq = parseInt(value, valueEnd, -1);
+				} else if (equalsIgnoreCase(i, colon, "session")) {
+					int id = value;
+					while (id < valueEnd && data[id] != ';') id++;
+					this.session = reuse(session, value, id);
+				} else if (equalsIgnoreCase(i, colon, "authorization")) {
+					this.authorization = reuse(authorization, value, valueEnd);
+				} else if (equalsIgnoreCase(i, colon, "transport")) {
+					int port = indexOf(value, valueEnd, "client_port=");
+					if (port >= 0) {
+						clientPort1 = parseInt(port, valueEnd, -1);
+						while (port < valueEnd && data[port] >= '0' && data[port] <= '9') port++;
+						clientPort2 = port < valueEnd && data[port] == '-' ? parseInt(port+1, valueEnd, -1) : -1;
+						if (clientPort2 < 0 && clientPort1 >= 0) clientPort2 = clientPort1+1;
+					}
+				} else if (equalsIgnoreCase(i, colon, "content-length")) {
+					contentLength = parseInt(value, valueEnd, 0);
+				}
+				i = next+1;
+			}
+			mContent = Math.min(i, end);
+		}
+
+		/** Indicates if the body of the request, a GET_PARAMETER, has a line with that parameter. */
+		boolean hasParameter(String name) {
+			int i = mContent, end = mLength;
+			while (i < end) {
+				int next = i;
+				while (next < end && mData[next] != '\n') next++;
+				int start = i, lineEnd = next;
+				while (start < lineEnd && (mData[start]&0xFF) <= ' ') start++;
+				while (lineEnd > start && (mData[lineEnd-1]&0xFF) <= ' ') lineEnd--;
+				if (equalsIgnoreCase(start, lineEnd, name)) return true;
+				i = next+1;
+			}
+			return false;
+		}
+
+		/** Returns the buffer of the request, with room for at least length bytes, once the request is not needed anymore. */
+		byte[] getBuffer(int length) {
+			if (length > mData.length) mData = new byte[length];
+			return mData;
+		}
+
+		private String intern(int start, int end) {
+			for (int i = 0; i < METHODS.length; i++) {
+				if (equalsIgnoreCase(start, end, METHODS[i])) {
+					methodIndex = i;
+					return METHODS[i];
+				}
+			}
+			return new String(mData, start, end-start);
+		}
+
+		/** Returns the string if it is equal to the bytes, a new one otherwise. */
+		private String reuse(String string, int start, int end) {
+			if (string != null && string.length() == end-start) {
+				int i = 0;
+				while (i < end-start && string.charAt(i) == (mData[start+i]&0xFF)) i++;
+				if (i == end-start) return string;
+			}
+			return new String(mData, start, end-start);
+		}
+
+		/** Parses the digits at start, returns fallback if there is none. */
+		private int parseInt(int start, int end, int fallback) {
+			int value = 0, i;
+			for (i = start; i < end && i-start < 9 && mData[i] >= '0' && mData[i] <= '9'; i++) {
+				value = value*10+mData[i]-'0';
+			}
+			return i > start ? value : fallback;
+		}
+
+		/** Returns where the token ends in the bytes, -1 if it is not found, ignoring the case. */
+		private int indexOf(int start, int end, String token) {
+			for (int i = start; i <= end-token.length(); i++) {
+				if (startsWith(i, end, token)) return i+token.length();
+			}
+			return -1;
+		}
+
+		/** Indicates if the bytes begin with the token, ignoring the case. */
+		private boolean startsWith(int start, int end, String token) {
+			if (end-start < token.length()) return false;
+			for (int i = 0; i < token.length(); i++) {
+				if (lower(mData[start+i]) != lower(token.charAt(i))) return false;
+			}
+			return true;
+		}
+
+		private static int lower(int c) {
+			return c >= 'A' && c <= 'Z' ? c+('a'-'A') : c;
+		}
+
+		private boolean equalsIgnoreCase(int start, int end, String token) {
+			return end-start == token.length() && startsWith(start, end, token);
+		}
+
+		private static boolean isTokenChar(byte b) {
+			return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_';
+		}
+
+	}
+
+	/** A response, written in the buffer of its request. */
+	static class Response {
+
+		// Status code definitions
+		public static final String STATUS_OK = "200 OK";
+		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
+        public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
+		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+
+		public String status = STATUS_INTERNAL_SERVER_ERROR;
+		public String content = "";
+		public String attributes = "";
+
+		private final Request mRequest;
+
+		public Response(Request request) {
+			this.mRequest = request;
+		}
+
+		public Response() {
+			// Be carefull if you modify the send() method because request might be null !
+			mRequest = null;
+		}
+
+		public void send(OutputStream output) throws IOException {
+			int seqid = mRequest != null ? mRequest.cseq : -1;
+			if (seqid < 0) Log.e(TAG,"Error parsing CSeq");
+
+			// The headers and the content are ASCII
+			int length = 80+status.length()+SERVER_NAME.length()+attributes.length()+content.length();
+			byte[] buffer = mRequest != null ? mRequest.getBuffer(length) : new byte[length];
+			int n = put(buffer, 0, "RTSP/1.0 ");
+			n = put(buffer, n, status);
+			n = put(buffer, n, "\r\nServer: ");
+			n = put(buffer, n, SERVER_NAME);
+			if (seqid >= 0) {
+				n = put(buffer, n, "\r\nCseq: ");
+				n = put(buffer, n, seqid);
+			}
+			n = put(buffer, n, "\r\nContent-Length: ");
+			n = put(buffer, n, content.length());
+			n = put(buffer, n, "\r\n");
+			n = put(buffer, n, attributes);
+			n = put(buffer, n, "\r\n");
+			n = put(buffer, n, content);
+
+			output.write(buffer, 0, n);
+		}
+
+		private static int put(byte[] buffer, int offset, String string) {
+			for (int i=0; i<string.length(); i++) {
+				buffer[offset++] = (byte) string.charAt(i);
+			}
+			return offset;
+		}
+
+		private static int put(byte[] buffer, int offset, int value) {
+			int digits = 1;
+			for (int v = value; v >= 10; v /= 10) digits++;
+			for (int i = digits-1; i >= 0; i--, value /= 10) {
+				buffer[offset+i] = (byte) ('0'+value%10);
+			}
+			return offset+digits;
+		}
+	}
+
+}
@@ -19,72 +19,117 @@
 package net.majorkernelpanic.streaming.rtsp;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 
-class RtcpDeinterleaver extends InputStream implements Runnable {
+/**
+ * Removes the interleaved binary data (RFC 2326, section 10.12) from what is received on an RTSP connection.
+ * 
+ * When TCP is used, the client sends its RTCP packets on the RTSP connection between the requests,
+ * each one preceded by '$', the channel identifier and its length on two bytes. Those frames are
+ * passed to the {@link RtcpReceiver} registered for their channel and the requests, with their body
+ * if they have a Content-Length, are passed one by one to a {@link Listener}. A frame can only begin 
+ * where a request can, at the start of the stream, after another frame or after a request.
+ * No Thread is used, the data is parsed as it is received, a frame or a request split between two 
+ * reads is left in the buffer until it is complete.
+ */
+class RtcpDeinterleaver {
 	
 	public final static String TAG = "RtcpDeinterleaver";
-	
-	private IOException mIOException;
-	private InputStream mInputStream;
-	private PipedInputStream mPipedInputStream;
-	private PipedOutputStream mPipedOutputStream;
-	private byte[] mBuffer;
-	
-	public RtcpDeinterleaver(InputStream inputStream) {
-		mInputStream = inputStream;
-		mPipedInputStream = new PipedInputStream(4096);
-		try {
-			mPipedOutputStream = new PipedOutputStream(mPipedInputStream);
-		} catch (IOException e) {}
-		mBuffer = new byte[1024];
-		new Thread(this).start();
+
+	/** Largest interleaved frame. */
+	public final static int MAX_FRAME_SIZE = 4+65535;
+
+	/** Largest request, headers and body. */
+	public final static int MAX_REQUEST_SIZE = 16*1024;
+
+	/** Receives the requests, called from the Thread that parses the data. */
+	interface Listener {
+		/**
+		 * @param data The request, only valid during the call
+		 * @return false to stop parsing, the rest of the data is left in the buffer
+		 */
+		boolean onRequest(byte[] data, int offset, int length);
 	}
 
-	@Override
-	public void run() {
-		try {
-			while (true) {
-				int len = mInputStream.read(mBuffer, 0, 1024);
-				mPipedOutputStream.write(mBuffer, 0, len);
+	private final RtcpReceiver[] mReceivers = new RtcpReceiver[256];
+
+	/**
+	 * Passes the frames received on a channel to a receiver.
+	 * @param channel The channel identifier
+	 * @param receiver The receiver, or null to drop the frames of the channel
+	 */
+	public void setReceiver(int channel, RtcpReceiver receiver) {
+		mReceivers[channel&0xFF] = receiver;
+	}
+
+	/**
+	 * Parses the complete frames and requests of a heap buffer, from its position to its limit.
+	 * The position is left at the beginning of what could not be parsed.
+	 * @return The number of bytes needed to parse what is left, at least one more than what is left
+	 * @throws IOException If a request is too large
+	 */
+	public int parse(ByteBuffer buffer, Listener listener) throws IOException {
+		byte[] data = buffer.array();
+		int offset = buffer.arrayOffset();
+		while (buffer.hasRemaining()) {
+			int start = offset+buffer.position(), end = offset+buffer.limit();
+			int length;
+			if (data[start] == '$') {
+				if (end-start < 4) return 4;
+				length = 4+((data[start+2]&0xFF)<<8 | (data[start+3]&0xFF));
+				if (end-start < length) return length;
+				RtcpReceiver receiver = mReceivers[data[start+1]&0xFF];
+				if (receiver != null) receiver.parse(data, start+4, length-4);
+				buffer.position(buffer.position()+length);
+			} else if (data[start] == '\r' || data[start] == '\n') {
+				// Line breaks between requests are ignored
+				buffer.position(buffer.position()+1);
+			} else {
+				length = requestLength(data, start, end);
+				if (length < 0) {
+					if (end-start >= MAX_REQUEST_SIZE) throw new IOException("Request too large");
+					return end-start+1;
+				}
+				if (end-start < length) return length;
+				buffer.position(buffer.position()+length);
+				if (!listener.onRequest(data, start, length)) break;
 			}
-		} catch (IOException e) {
-			try {
-				mPipedInputStream.close();
-			} catch (IOException ignore) {}
-			mIOException = e;
 		}
+		return buffer.remaining()+1;
 	}
 
-	@Override
-	public int read(byte[] buffer) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
-		}
-		return mPipedInputStream.read(buffer);
-	}		
-	
-	@Override
-	public int read(byte[] buffer, int offset, int length) throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
-		}
-		return mPipedInputStream.read(buffer, offset, length);
-	}	
-	
-	@Override
-	public int read() throws IOException {
-		if (mIOException != null) {
-			throw mIOException;
+	/** Returns the length of the request, with its body, or -1 if its headers are not complete. */
+	private static int requestLength(byte[] data, int start, int end) throws IOException {
+		int line = start, contentLength = 0;
+		for (int i=start; i<end; i++) {
+			if (data[i] != '\n') continue;
+			int next = i+1;
+			// The headers end with an empty line
+			if (i-line == 0 || (i-line == 1 && data[line] == '\r')) {
+				if (next-start+contentLength > MAX_REQUEST_SIZE) throw new IOException("Request too large");
+				return next-start+contentLength;
+			}
+			if (startsWith(data, line, i, "content-length:")) {
+				contentLength = 0;
+				for (int j=line+15; j<i; j++) {
+					if (data[j] >= '0' && data[j] <= '9') {
+						contentLength = contentLength*10+data[j]-'0';
+						if (contentLength > MAX_REQUEST_SIZE) throw new IOException("Request too large");
+					}
+				}
+			}
+			line = next;
 		}
-		return mPipedInputStream.read();
+		return -1;
 	}
 
-	@Override
-	public void close() throws IOException {
-		mInputStream.close();
+	private static boolean startsWith(byte[] data, int start, int end, String prefix) {
+		if (end-start < prefix.length()) return false;
+		for (int i=0; i<prefix.length(); i++) {
+			if (Character.toLowerCase((char) data[start+i]) != prefix.charAt(i)) return false;
+		}
+		return true;
 	}
 
 }
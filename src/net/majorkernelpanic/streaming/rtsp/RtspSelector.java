@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * Accepts the RTSP connections and reads and writes them with a few Threads, whatever the number of clients.
+ * 
+ * Each Thread runs a {@link Selector}, the connections are spread between them. What a client sends is
+ * parsed by a {@link RtcpDeinterleaver} as it arrives: its RTCP packets go to their receivers and its 
+ * requests, once complete, to the {@link Handler} of the connection. The responses and the interleaved 
+ * RTP packets are queued in an {@link InterleavedWriter} that the selector drains when the connection
+ * can be written. Nothing that can block should be done by a handler, it runs on the Thread of the selector.
+ */
+class RtspSelector {
+
+	public final static String TAG = "RtspSelector";
+
+	/** Default number of Threads running a selector. */
+	public final static int DEFAULT_THREADS = 2;
+
+	private final static int BUFFER_SIZE = 4096;
+
+	/** Connections not accepted yet, beyond that a burst of clients waits for the retransmissions of their SYN. */
+	private final static int BACKLOG = 1024;
+
+	/** Receives the requests of a connection, from the Thread of its selector. */
+	interface Handler extends RtcpDeinterleaver.Listener {
+		/** The connection has been closed by the client, after an error, or because the server stops. Called once. */
+		void onClosed();
+	}
+
+	/** Creates the handler of each new connection, called from the Thread of its selector. */
+	interface Acceptor {
+		Handler accept(Client client) throws IOException;
+	}
+
+	private final ServerSocketChannel mServer;
+	private final Acceptor mAcceptor;
+	private final Loop[] mLoops;
+	private int mNext = 0;
+
+	/**
+	 * Binds the server and starts the Threads.
+	 * @param port The port of the server
+	 * @param threads The number of Threads running a selector
+	 * @param acceptor Creates the handlers of the connections
+	 */
+	public RtspSelector(int port, int threads, Acceptor acceptor) throws IOException {
+		mAcceptor = acceptor;
+		mServer = ServerSocketChannel.open();
+		mLoops = new Loop[Math.max(1, threads)];
+		try {
+			mServer.socket().setReuseAddress(true);
+			mServer.socket().bind(new InetSocketAddress(port), BACKLOG);
+			mServer.configureBlocking(false);
+			for (int i=0; i<mLoops.length; i++) {
+				mLoops[i] = new Loop();
+			}
+			mServer.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			for (Loop loop : mLoops) {
+				if (loop != null) loop.mSelector.close();
+			}
+			mServer.close();
+			throw e;
+		}
+		for (Loop loop : mLoops) {
+			loop.start();
+		}
+	}
+
+	public int getLocalPort() {
+		return mServer.socket().getLocalPort();
+	}
+
+	/** Stops accepting connections, closes all of them and waits for the Threads to stop. */
+	public void close() {
+		try {
+			mServer.close();
+		} catch (IOException ignore) {}
+		for (Loop loop : mLoops) {
+			loop.mRunning = false;
+			loop.mSelector.wakeup();
+		}
+		for (Loop loop : mLoops) {
+			try {
+				loop.join();
+			} catch (InterruptedException ignore) {}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = mServer.accept()) != null) {
+			final SocketChannel accepted = channel;
+			final Loop loop = mLoops[mNext++%mLoops.length];
+			accepted.configureBlocking(false);
+			loop.post(new Runnable() {
+				@Override
+				public void run() {
+					loop.register(accepted);
+				}
+			});
+		}
+	}
+
+	/** A Thread running a selector. */
+	private class Loop extends Thread {
+
+		private final Selector mSelector;
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+		private volatile boolean mRunning = true;
+
+		public Loop() throws IOException {
+			super(TAG);
+			mSelector = Selector.open();
+		}
+
+		/** Runs a task on the Thread of the selector. */
+		public void post(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		private void register(SocketChannel channel) {
+			Client client = new Client(channel, this);
+			try {
+				client.mKey = channel.register(mSelector, SelectionKey.OP_READ, client);
+				client.mHandler = mAcceptor.accept(client);
+			} catch (IOException e) {
+				Log.e(TAG, "Connection refused: "+e.getMessage());
+				client.closeNow();
+			}
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+			while (mRunning) {
+				try {
+					mSelector.select();
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Select failed");
+					break;
+				}
+				while ((task = mTasks.poll()) != null) {
+					task.run();
+				}
+				for (SelectionKey key : mSelector.selectedKeys()) {
+					if (key.attachment() == null) {
+						try {
+							accept();
+						} catch (IOException e) {
+							Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Accept failed");
+						}
+						continue;
+					}
+					Client client = (Client) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) client.write();
+						if (key.isValid() && key.isReadable()) client.read();
+					} catch (IOException | CancelledKeyException e) {
+						client.closeNow();
+					}
+				}
+				mSelector.selectedKeys().clear();
+			}
+			for (SelectionKey key : mSelector.keys()) {
+				if (key.attachment() != null) ((Client) key.attachment()).closeNow();
+			}
+			try {
+				mSelector.close();
+			} catch (IOException ignore) {}
+		}
+
+	}
+
+	/** A connection, its methods can be called from any Thread. */
+	final class Client implements RtcpDeinterleaver.Listener, RequestProcessor.Client {
+
+		private final SocketChannel mChannel;
+		private final Loop mLoop;
+		private final InterleavedWriter mOutput;
+		private final RtcpDeinterleaver mDeinterleaver = new RtcpDeinterleaver();
+		private ByteBuffer mInput = ByteBuffer.allocate(BUFFER_SIZE);
+		private SelectionKey mKey;
+		private Handler mHandler;
+		private boolean mPaused = false;
+		private boolean mClosed = false;
+
+		private final Runnable mWrite = new Runnable() {
+			@Override
+			public void run() {
+				if (mClosed) return;
+				try {
+					write();
+				} catch (IOException | CancelledKeyException e) {
+					closeNow();
+				}
+			}
+		};
+
+		private final Runnable mResume = new Runnable() {
+			@Override
+			public void run() {
+				if (mClosed || !mPaused) return;
+				mPaused = false;
+				try {
+					parse();
+					if (!mPaused) mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+				} catch (IOException | CancelledKeyException e) {
+					closeNow();
+				}
+			}
+		};
+
+		private final Runnable mClose = new Runnable() {
+			@Override
+			public void run() {
+				closeNow();
+			}
+		};
+
+		private Client(SocketChannel channel, final Loop loop) {
+			mChannel = channel;
+			mLoop = loop;
+			mOutput = new InterleavedWriter(new Runnable() {
+				@Override
+				public void run() {
+					loop.post(mWrite);
+				}
+			});
+		}
+
+		@Override
+		public Socket getSocket() {
+			return mChannel.socket();
+		}
+
+		@Override
+		public InterleavedWriter getOutput() {
+			return mOutput;
+		}
+
+		@Override
+		public void setReceiver(int channel, RtcpReceiver receiver) {
+			mDeinterleaver.setReceiver(channel, receiver);
+		}
+
+		/** 
+		 * Reads the connection again after the handler has refused more requests. Whenever it is called,
+		 * it runs after the handler has refused them on the Thread of the selector.
+		 */
+		public void resume() {
+			mLoop.post(mResume);
+		}
+
+		/** Closes the connection, what is still queued in the writer is lost. */
+		public void close() {
+			mLoop.post(mClose);
+		}
+
+		@Override
+		public boolean onRequest(byte[] data, int offset, int length) {
+			if (mHandler.onRequest(data, offset, length)) return true;
+			// The request has been taken but the handler can't take more for now
+			mPaused = true;
+			mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+			return false;
+		}
+
+		private void read() throws IOException {
+			if (mChannel.read(mInput) < 0) throw new IOException("Client disconnected");
+			parse();
+		}
+
+		private void parse() throws IOException {
+			mInput.flip();
+			int needed = mDeinterleaver.parse(mInput, this);
+			mInput.compact();
+			if (needed > mInput.capacity() && !mPaused) {
+				// A frame or a request does not fit in the buffer
+				ByteBuffer input = ByteBuffer.allocate(Math.min(Math.max(needed, 2*mInput.capacity()), RtcpDeinterleaver.MAX_FRAME_SIZE));
+				mInput.flip();
+				input.put(mInput);
+				mInput = input;
+			}
+		}
+
+		private void write() throws IOException {
+			boolean empty = mOutput.drain(mChannel);
+			int ops = mKey.interestOps();
+			mKey.interestOps(empty ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+		}
+
+		private void closeNow() {
+			if (mClosed) return;
+			mClosed = true;
+			if (mKey != null) mKey.cancel();
+			try {
+				mOutput.close();
+				mChannel.close();
+			} catch (IOException ignore) {}
+			if (mHandler != null) mHandler.onClosed();
+		}
+
+	}
+
+}
@@ -18,25 +18,26 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.URI;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Locale;
+import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import net.majorkernelpanic.streaming.FanOutSession;
 import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.metrics.Metrics;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtp.RtpSink;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.video.EncoderPool;
+import net.majorkernelpanic.streaming.video.VideoStream;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
@@ -50,7 +51,6 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.ServiceManager;
 import android.preference.PreferenceManager;
-import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -60,14 +60,17 @@ import android.util.Log;
  * For each connected client, a Session is instantiated.
  * The Session will start or stop streams according to what the client wants.
  * 
+ * The connections are read and written by the few Threads of an {@link RtspSelector}, the requests 
+ * are processed by a fixed number of worker Threads, so starting an encoder only blocks the clients
+ * waiting for a worker, and the number of Threads does not grow with the number of clients.
+ * That signaling is done by a {@link RequestProcessor}, which also runs on a desktop JVM,
+ * the Service gives it the Sessions of the device.
+ * 
  */
 public class RtspServer extends Service {
 
 	public final static String TAG = "RtspServer";
 
-	/** The server name that will appear in responses. */
-	public static String SERVER_NAME = "MajorKernelPanic RTSP Server";
-
 	/** Port used by default. */
 	public static final int DEFAULT_RTSP_PORT = 8554;
 
@@ -89,21 +92,25 @@ public class RtspServer extends Service {
 	/** Key used in the SharedPreferences for the port used by the RTSP server. */
 	public final static String KEY_PORT = "rtsp_port";
 
+	/** Key used in the SharedPreferences to store whether unicast clients share the same encoder or not. */
+	public final static String KEY_FAN_OUT = "rtsp_fanout";
+
+	/** Key used in the SharedPreferences to store whether the durations are measured in the {@link Metrics}. */
+	public final static String KEY_METRICS = "metrics";
+
 	protected SessionBuilder mSessionBuilder;
 	protected SharedPreferences mSharedPreferences;
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<>(2);
 	protected Session sSession;	
+	protected boolean mFanOut = false;
+	protected final HashMap<String,FanOutSession> mFanOutSessions = new HashMap<>();
 	
-	private RequestListener mListenerThread;
+	private final Processor mProcessor = new Processor();
 	private final IBinder mBinder = new LocalBinder();
 	private boolean mRestart = false;
 	private final LinkedList<CallbackListener> mListeners = new LinkedList<>();
-
-    /** Credentials for Basic Auth */
-    private String mUsername;
-    private String mPassword;
 	
 	private int mTransport;
 	private Context mContext;
@@ -174,8 +181,7 @@ public class RtspServer extends Service {
      */
     public void setAuthorization(String username, String password)
     {
-        mUsername = username;
-        mPassword = password;
+        mProcessor.setAuthorization(username, password);
     }
 
 	/** 
@@ -184,21 +190,24 @@ public class RtspServer extends Service {
 	 */
 	public void start() {
 		if (!mEnabled || mRestart) stop();
-		if (mEnabled && mListenerThread == null) {
+		if (mEnabled && !mProcessor.isStarted()) {
 			try {
 				if (mTransport == MediaStream.TRANSPORT_MULTICAST) {
 					multicastStart();
 				}
-				mListenerThread = new RequestListener();
+				mProcessor.start(mPort);
 			} catch (Exception e) {
-				mListenerThread = null;
+				if (e instanceof BindException) {
+					Log.e(TAG,"Port already in use !");
+					postError(e, ERROR_BIND_FAILED);
+				}
 			}
 		}
 		mRestart = false;
 	}
 
 	public boolean isStarted() {
-		return mListenerThread != null;
+		return mProcessor.isStarted();
 	}
 
 	/** 
@@ -206,9 +215,10 @@ public class RtspServer extends Service {
 	 * To stop the Android Service you need to call {@link android.content.Context#stopService(Intent)}; 
 	 */
 	public void stop() {
-		if (mListenerThread != null) {
+		if (mProcessor.isStarted()) {
 			try {
-				mListenerThread.kill();
+				// The connections are closed, their sessions are released by the workers
+				mProcessor.stop();
 				if (mTransport == MediaStream.TRANSPORT_MULTICAST) {
 					multicastStop();
 				}
@@ -217,9 +227,13 @@ public class RtspServer extends Service {
 						session.stop();
 				    } 
 				}
+				synchronized (mFanOutSessions) {
+					for (FanOutSession session : mFanOutSessions.values()) {
+						session.release();
+					}
+					mFanOutSessions.clear();
+				}
 			} catch (Exception e) {
-			} finally {
-				mListenerThread = null;
 			}
 		}
 	}
@@ -248,7 +262,39 @@ public class RtspServer extends Service {
 		}
 		return bitrate;
 	}
+
+	/**
+	 * Returns what each client reported in its RTCP Receiver Reports.
+	 * @return The reports of the audio track (index 0) and of the video track (index 1)
+	 * of each client, keyed by the address and port of its RTSP connection
+	 */
+	public Map<String, ReceptionReport[]> getReceptionReports() {
+		return mProcessor.getReceptionReports();
+	}
 	
+	/** Returns the number of RTSP sessions, a session starts with the first SETUP of a client and ends with its TEARDOWN. */
+	public int getSessionCount() {
+		return mProcessor.getSessionCount();
+	}
+
+	/**
+	 * Returns the state of the server as "name: value" lines (text/parameters): the sessions, the 
+	 * connections, the threads of the process, its CPU time in ms and the bitrate of the sessions.
+	 * Sent to the clients that ask for parameters with GET_PARAMETER.
+	 */
+	public String getStatistics() {
+		return mProcessor.getStatistics();
+	}
+
+	/**
+	 * Returns the counters and the histograms of the sockets, the packetizers, the encoders and of this server.
+	 * The durations are only measured when the {@link #KEY_METRICS} preference is set.
+	 * Also sent in the text exposition format of Prometheus to the clients that ask for the "metrics" parameter with GET_PARAMETER.
+	 */
+	public Metrics.Snapshot getMetrics() {
+		return Metrics.snapshot();
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		return START_STICKY;
@@ -262,6 +308,8 @@ public class RtspServer extends Service {
 		mPort = Integer.parseInt(mSharedPreferences.getString(KEY_PORT, String.valueOf(mPort)));
 		mEnabled = mSharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
 		mTransport = Integer.parseInt(mSharedPreferences.getString("transport", "2"));
+		mFanOut = mSharedPreferences.getBoolean(KEY_FAN_OUT, mFanOut);
+		Metrics.setEnabled(mSharedPreferences.getBoolean(KEY_METRICS, false));
 
 		// If the configuration is modified, the server will adjust
 		mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
@@ -306,6 +354,7 @@ public class RtspServer extends Service {
 	@Override
 	public void onDestroy() {
 		stop();
+		EncoderPool.getInstance().clear();
 		mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 	}
 
@@ -325,6 +374,13 @@ public class RtspServer extends Service {
 				mEnabled = sharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
 				start();
 			}
+			else if (key.equals(KEY_FAN_OUT)) {
+				// Only taken into account by clients that connect after the change
+				mFanOut = sharedPreferences.getBoolean(KEY_FAN_OUT, mFanOut);
+			}
+			else if (key.equals(KEY_METRICS)) {
+				Metrics.setEnabled(sharedPreferences.getBoolean(KEY_METRICS, false));
+			}
 		}
 	};
 
@@ -378,427 +434,288 @@ public class RtspServer extends Service {
 		session.setOrigin(client.getLocalAddress().getHostAddress());
 		return session;
 	}
-	
-	class RequestListener extends Thread implements Runnable {
-
-		private final ServerSocket mServer;
 
-		public RequestListener() throws IOException {
-			try {
-				mServer = new ServerSocket();
-				mServer.setReuseAddress(true);
-				mServer.bind(new InetSocketAddress(mPort));
-				start();
-			} catch (BindException e) {
-				Log.e(TAG,"Port already in use !");
-				postError(e, ERROR_BIND_FAILED);
-				throw e;
+	/**
+	 * In fan-out mode, all the unicast clients requesting the same streams share the same
+	 * {@link Session}, so there is only one encoder and one packetizer per stream.
+	 * By default the {@link Session} is created with {@link #handleRequest(String, Socket)}.
+	 * @param uri The uri that the client has requested
+	 * @param client The socket associated to the client
+	 * @return The shared session, configured
+	 */
+	protected FanOutSession handleFanOutRequest(String uri, Socket client) throws IllegalStateException, IOException {
+		String query = URI.create(uri).getQuery();
+		String key = query != null ? query : "";
+		synchronized (mFanOutSessions) {
+			FanOutSession session = mFanOutSessions.get(key);
+			if (session == null) {
+				session = new FanOutSession(handleRequest(uri, client));
+				session.configure();
+				mFanOutSessions.put(key, session);
+				mSessions.put(session.getSession(), null);
 			}
+			return session;
 		}
+	}
 
-		public void run() {
-			Log.i(TAG,"RTSP server listening on port "+mServer.getLocalPort());
-			while (!Thread.interrupted()) {
-				try {
-					new WorkerThread(mServer.accept()).start();
-				} catch (SocketException e) {
-					break;
-				} catch (IOException e) {
-					Log.e(TAG,e.getMessage());
-					continue;
-				}
+	/** Detaches a client from its shared session, the session is released with its last client. */
+	protected void releaseFanOutClient(FanOutSession session, FanOutSession.Client client) {
+		synchronized (mFanOutSessions) {
+			client.release();
+			if (session.getClientCount() == 0 && mFanOutSessions.values().remove(session)) {
+				mSessions.remove(session.getSession());
+				session.release();
 			}
-			Log.i(TAG,"RTSP server stopped !");
 		}
+	}
+	
+	/** The signaling of the server, each connection gets its {@link SessionStreams}. */
+	private class Processor extends RequestProcessor {
 
-		public void kill() {
-			try {
-				mServer.close();
-			} catch (IOException e) {}
-			try {
-				this.join();
-			} catch (InterruptedException ignore) {}
+		@Override
+		protected Streams createStreams(Client client) {
+			return new SessionStreams(client);
+		}
+
+		@Override
+		protected long getBitrate() {
+			return RtspServer.this.getBitrate();
+		}
+
+		@Override
+		protected void onError(Exception e) {
+			// This alerts the main thread that something has gone wrong in this thread
+			postError(e, ERROR_START_FAILED);
 		}
 
 	}
 
-	// One thread per client
-	class WorkerThread extends Thread implements Runnable {
+	/**
+	 * What a client receives: a {@link Session} of its own, its share of a {@link FanOutSession}, 
+	 * or the multicast session of the server.
+	 */
+	class SessionStreams implements RequestProcessor.Streams {
 
+		private final RequestProcessor.Client mChannel;
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
+		private final InterleavedWriter mOutput;
 
-		// Each client has an associated session
-		private Session mSession;
+		// Each client has an associated session, an empty one until it sends a DESCRIBE
+		private Session mSession = new Session();
 
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			mSession = new Session();
-		}
+		// In fan-out mode, the session is shared with other clients
+		private FanOutSession mFanOutSession;
+		private FanOutSession.Client mFanOutClient;
 
-		public void run() {
-			Request request;
-			Response response;
+		// The tracks set up, from the first SETUP to the TEARDOWN
+		private int mTracks = 0;
+		private boolean mPaused = false;
 
-			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		public SessionStreams(RequestProcessor.Client client) {
+			mChannel = client;
+			mClient = client.getSocket();
+			mOutput = client.getOutput();
+		}
 
-			while (!Thread.interrupted()) {
+		@Override
+		public String describe(String uri) throws IllegalStateException, IOException {
+			if (mFanOut && (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP)) {
+				if (mFanOutClient == null) {
+					mFanOutSession = handleFanOutRequest(uri, mClient);
+					mFanOutClient = mFanOutSession.addClient();
+				}
+				mSession = mFanOutSession.getSession();
+			} else {
+				Session previous = mSession;
+				mSession = handleRequest(uri, mClient);
+				if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
+					if (previous != mSession && mFanOutClient == null) {
+						// The session of a previous DESCRIBE on this connection is not used anymore
+						mSessions.remove(previous);
+						previous.syncStop();
+						previous.release();
+					}
+					mSessions.put(mSession, null);
+					mSession.syncConfigure();
+				}
+			}
+			return mSession.getSessionDescription();
+		}
 
-				request = null;
-				response = null;
+		@Override
+		public boolean trackExists(int trackId) {
+			return mSession.trackExists(trackId);
+		}
 
-				// Parse the request
-				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// Client has left
-					break;
-				} catch (Exception e) {
-					// We don't understand the request :/
-					response = new Response();
-					response.status = Response.STATUS_BAD_REQUEST;
+		@Override
+		public String setup(int trackId, int rtpPort, int rtcpPort) throws IOException {
+			int p2, p1, ssrc, src[];
+			String destination;
+
+			if (rtpPort < 0 || mTransport == MediaStream.TRANSPORT_MULTICAST) {
+				int[] ports = mSession.getTrack(trackId).getDestinationPorts();
+				p1 = ports[0];
+				p2 = ports[1];
+			} else {
+				p1 = rtpPort;
+				p2 = rtcpPort;
+			}
+
+			if (mFanOutClient != null) {
+				// The encoder is shared, only a new sink is added for this client
+				RtpSink sink;
+				boolean streaming = isStreaming();
+				if (mTransport == MediaStream.TRANSPORT_UDP) {
+					sink = mFanOutClient.setup(trackId, mClient.getInetAddress(), p1, p2);
+				} else {
+					byte channelIdentifier = (trackId == 1) ? (byte) 0x00 : (byte) 0x02;
+					sink = mFanOutClient.setup(trackId, mOutput, channelIdentifier);
+					mChannel.setReceiver(channelIdentifier+1, sink.getRtcpReceiver());
+					setVideoChannel(trackId, channelIdentifier);
+				}
+				if (!streaming && isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STARTED);
+				}
+				ssrc = sink.getSSRC();
+				src = new int[] {mSession.getTrack(trackId).getLocalPorts()[0], sink.getLocalPort()};
+				destination = mClient.getInetAddress().getHostAddress();
+			} else {
+
+				ssrc = mSession.getTrack(trackId).getSSRC();
+				src = mSession.getTrack(trackId).getLocalPorts();
+				destination = mSession.getDestination();
+
+				switch (mTransport) {
+					case MediaStream.TRANSPORT_UDP:
+						mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+						break;
+					case MediaStream.TRANSPORT_TCP:
+						byte channelIdentifier = (trackId == 1) ? (byte) 0x00 : (byte) 0x02;
+						mSession.getTrack(trackId).setOutputStream(mOutput, channelIdentifier);
+						mChannel.setReceiver(channelIdentifier+1, ((MediaStream) mSession.getTrack(trackId)).getPacketizer().getRtpSocket().getRtcpReceiver());
+						setVideoChannel(trackId, channelIdentifier);
+						break;
+					default:
+						break;
 				}
 
-				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
-					}
-					catch (Exception e) {
-						// This alerts the main thread that something has gone wrong in this thread
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
+				if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
+					boolean streaming = isStreaming();
+					mSession.syncStart(trackId);
+					if (!streaming && isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STARTED);
 					}
 				}
+			}
+
+			mTracks |= 1 << trackId;
 
-				// We always send a response
-				// The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
+			// The new client can't decode anything before the next key frame
+			((MediaStream) mSession.getTrack(trackId)).getPacketizer().getRtpSocket().requestKeyFrame();
+
+			// See: https://github.com/iamscottxu/obs-rtspserver/blob/master/rtsp-server/xop/RtspMessage.cpp
+			String transport;
+			switch (mTransport) {
+				case MediaStream.TRANSPORT_UDP:
+					transport = "RTP/AVP/UDP;unicast" +
+							";destination=" + destination +
+							";client_port=" + p1 + "-" + p2 +
+							";server_port=" + src[0] + "-" + src[1];
+					break;
+				case MediaStream.TRANSPORT_TCP:
+					transport = "RTP/AVP/TCP;unicast" +
+							";interleaved=" + (trackId == 1 ? "0-1" : "2-3") +
+							";destination=" + destination;
 					break;
+				default:
+					transport = "RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+							";destination=" + mSession.getDestination() +
+							";port="+p1+"-"+p2;
+					break;
+			}
+			return transport + ";ssrc=" + Integer.toHexString(ssrc);
+		}
+
+		@Override
+		public void play() throws IOException {
+			if (mPaused && mFanOutClient != null) {
+				// The shared encoder kept running, the client gets the current group of pictures again
+				mFanOutClient.resume();
+				mPaused = false;
+			} else if (mPaused) {
+				// Resumes the tracks stopped by the PAUSE
+				boolean streaming = isStreaming();
+				for (int id=0; id<2; id++) {
+					if ((mTracks & 1 << id) != 0) mSession.syncStart(id);
+				}
+				mPaused = false;
+				if (!streaming && isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STARTED);
 				}
+			}
+		}
 
+		@Override
+		public void pause() {
+			if (mFanOutClient != null && !mPaused) {
+				// A shared encoder keeps running for the other clients, only this one stops receiving packets
+				mFanOutClient.pause();
+				mPaused = true;
+			} else if (mFanOutClient == null && !mPaused && mTracks != 0 &&
+					(mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP)) {
+				boolean streaming = isStreaming();
+				mSession.syncStop();
+				mPaused = true;
+				if (streaming && !isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STOPPED);
+				}
 			}
+		}
 
-			if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
+		/** Releases the session of the client, an empty one replaces it in case the client sends a DESCRIBE again. */
+		@Override
+		public void release() {
+			if (mFanOutClient != null) {
+				// Streaming stops when the last client disconnects
+				boolean streaming = isStreaming();
+				releaseFanOutClient(mFanOutSession, mFanOutClient);
+				if (streaming && !isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STOPPED);
+				}
+			} else if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
 				// Streaming stops when client disconnects
 				boolean streaming = isStreaming();
 				mSession.syncStop();
 				if (streaming && !isStreaming()) {
 					postMessage(MESSAGE_STREAMING_STOPPED);
 				}
+				mSessions.remove(mSession);
 				mSession.release();
 			}
-
-			try {
-				mClient.close();
-			} catch (IOException ignore) {}
-
-			Log.i(TAG, "Client disconnected");
-
-		}
-
-		public Response processRequest(Request request) throws IllegalStateException, IOException {
-			Response response = new Response(request);
-
-            //Ask for authorization unless this is an OPTIONS request
-            if(!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS"))
-            {
-                response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
-                response.status = Response.STATUS_UNAUTHORIZED;
-            }
-            else
-            {
-			    /* ********************************************************************************** */
-			    /* ********************************* Method DESCRIBE ******************************** */
-			    /* ********************************************************************************** */
-                if (request.method.equalsIgnoreCase("DESCRIBE")) {
-
-                    // Parse the requested URI and configure the session
-                    mSession = handleRequest(request.uri, mClient);
-                    if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
-                        mSessions.put(mSession, null);
-                        mSession.syncConfigure();
-                    }
-
-                    String requestContent = mSession.getSessionDescription();
-                    String requestAttributes =
-                            "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
-                                    "Content-Type: application/sdp\r\n";
-
-                    response.attributes = requestAttributes;
-                    response.content = requestContent;
-
-                    // If no exception has been thrown, we reply with OK
-                    response.status = Response.STATUS_OK;
-
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************* Method OPTIONS ********************************* */
-                /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("OPTIONS")) {
-                    response.status = Response.STATUS_OK;
-                    response.attributes = "Public: OPTIONS,DESCRIBE,SETUP,TEARDOWN,PLAY\r\n";
-                    response.status = Response.STATUS_OK;
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************** Method SETUP ********************************** */
-                /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
-                    Matcher m;
-                    int p2, p1, ssrc, trackId, src[];
-                    String destination;
-
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
-
-                    if (!m.find()) {
-                        response.status = Response.STATUS_BAD_REQUEST;
-                        return response;
-                    }
-
-                    trackId = Integer.parseInt(m.group(1));
-
-                    if (!mSession.trackExists(trackId)) {
-                        response.status = Response.STATUS_NOT_FOUND;
-                        return response;
-                    }
-
-                    p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
-
-                    if (!m.find() || mTransport == MediaStream.TRANSPORT_MULTICAST) {
-                        int[] ports = mSession.getTrack(trackId).getDestinationPorts();
-                        p1 = ports[0];
-                        p2 = ports[1];
-                    } else {
-                        p1 = Integer.parseInt(m.group(1));
-                        if (m.group(2) == null) {
-                            p2 = p1+1;
-                        } else {
-                            p2 = Integer.parseInt(m.group(2));
-                        }
-                    }
-
-                    ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
-                    destination = mSession.getDestination();
-
-                    switch (mTransport) {
-                        case MediaStream.TRANSPORT_UDP:
-                            mSession.getTrack(trackId).setDestinationPorts(p1, p2);
-                            break;
-                        case MediaStream.TRANSPORT_TCP:
-                            byte channelIdentifier = (trackId == 1) ? (byte) 0x00 : (byte) 0x02;
-                            mSession.getTrack(trackId).setOutputStream(mOutput, channelIdentifier);
-                            break;
-                        default:
-                            break;
-                    }
-
-                    if (mTransport == MediaStream.TRANSPORT_UDP || mTransport == MediaStream.TRANSPORT_TCP) {
-                        boolean streaming = isStreaming();
-                        mSession.syncStart(trackId);
-                        if (!streaming && isStreaming()) {
-                            postMessage(MESSAGE_STREAMING_STARTED);
-                        }
-                    }
-
-                    // See: https://github.com/iamscottxu/obs-rtspserver/blob/master/rtsp-server/xop/RtspMessage.cpp
-                    String transport;
-                    switch (mTransport) {
-                        case MediaStream.TRANSPORT_UDP:
-                            transport = "Transport: RTP/AVP/UDP;unicast" +
-                                    ";destination=" + mSession.getDestination() +
-                                    ";client_port=" + p1 + "-" + p2 +
-                                    ";server_port=" + src[0] + "-" + src[1];
-                            break;
-                        case MediaStream.TRANSPORT_TCP:
-                            transport = "Transport: RTP/AVP/TCP;unicast" +
-                                    ";interleaved=" + (trackId == 1 ? "0-1" : "2-3") +
-                                    ";destination=" + mSession.getDestination();
-                            break;
-                        default:
-                            transport = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-                                    ";destination=" + mSession.getDestination() +
-                                    ";port="+p1+"-"+p2;
-                            break;
-                    }
-                    response.attributes = transport +
-                            ";ssrc=" + Integer.toHexString(ssrc) +
-                            ";mode=play\r\n" +
-                            "Session: " + "1185d20035702ca" + "\r\n" +
-                            "Cache-Control: no-cache\r\n";
-                    response.status = Response.STATUS_OK;
-
-                    // If no exception has been thrown, we reply with OK
-                    response.status = Response.STATUS_OK;
-
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************** Method PLAY *********************************** */
-                /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PLAY")) {
-                    String requestAttributes = "RTP-Info: ";
-                    if (mSession.trackExists(0))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
-                    if (mSession.trackExists(1))
-                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-                    requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
-
-                    response.attributes = requestAttributes;
-
-                    // If no exception has been thrown, we reply with OK
-                    response.status = Response.STATUS_OK;
-
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************** Method PAUSE ********************************** */
-                /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PAUSE")) {
-                    response.status = Response.STATUS_OK;
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************* Method TEARDOWN ******************************** */
-                /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("TEARDOWN")) {
-                    response.status = Response.STATUS_OK;
-                }
-
-                /* ********************************************************************************** */
-                /* ********************************* Unknown method ? ******************************* */
-                /* ********************************************************************************** */
-                else {
-                    Log.e(TAG, "Command unknown: " + request);
-                    response.status = Response.STATUS_BAD_REQUEST;
-                }
-            }
-			return response;
-
+			mSession = new Session();
+			mFanOutSession = null;
+			mFanOutClient = null;
+			mTracks = 0;
+			mPaused = false;
 		}
 
-        /**
-         * Check if the request is authorized
-         * @param request
-         * @return true or false
-         */
-        private boolean isAuthorized(Request request)
-        {
-            String auth = request.headers.get("authorization");
-            if(mUsername == null || mPassword == null || mUsername.isEmpty())
-                return true;
-
-            if(auth != null && !auth.isEmpty())
-            {
-                String received = auth.substring(auth.lastIndexOf(" ")+1);
-                String local = mUsername+":"+mPassword;
-                String localEncoded = Base64.encodeToString(local.getBytes(),Base64.NO_WRAP);
-                if(localEncoded.equals(received))
-                    return true;
-            }
-
-            return false;
-        }
-	}
-
-	static class Request {
-
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
-
-		public String method;
-		public String uri;
-		public HashMap<String,String> headers = new HashMap<>();
-
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
-			Request request = new Request();
-			String line;
-			Matcher matcher;
-
-			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
-
-			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				Log.d(TAG, line);
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+		@Override
+		public ReceptionReport getReceptionReport(int trackId) {
+			if (mFanOutClient != null) {
+				RtpSink sink = mFanOutClient.getSink(trackId);
+				return sink != null ? sink.getReceptionReport() : null;
 			}
-			if (line==null) throw new SocketException("Client disconnected");
-
-			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
-			Log.e(TAG,request.method+" "+request.uri);
-
-			return request;
-		}
-	}
-
-	static class Response {
-
-		// Status code definitions
-		public static final String STATUS_OK = "200 OK";
-		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
-        public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
-		public static final String STATUS_NOT_FOUND = "404 Not Found";
-		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
-
-		public String status = STATUS_INTERNAL_SERVER_ERROR;
-		public String content = "";
-		public String attributes = "";
-
-		private final Request mRequest;
-
-		public Response(Request request) {
-			this.mRequest = request;
-		}
-
-		public Response() {
-			// Be carefull if you modify the send() method because request might be null !
-			mRequest = null;
+			return mSession.getReceptionReport(trackId);
 		}
 
-		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
-
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+		/** Video frames are dropped whole by the writer when the client can't keep up. */
+		private void setVideoChannel(int trackId, int channel) {
+			if (mSession.getTrack(trackId) instanceof VideoStream) {
+				RtpSocket socket = ((VideoStream) mSession.getTrack(trackId)).getPacketizer().getRtpSocket();
+				mOutput.setVideoChannel(channel, socket.getKeyFrameRequester());
 			}
-
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
-
-			Log.d(TAG,response.replace("\r", ""));
-
-			output.write(response.getBytes());
 		}
+
 	}
 
 	private void multicastStart() throws IllegalStateException, IOException {
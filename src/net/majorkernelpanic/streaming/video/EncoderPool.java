@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import net.majorkernelpanic.streaming.Platform.Log;
+
+/**
+ * Keeps the encoders of the video streams that have stopped for a while, with the display that captures 
+ * their input, so that a client that reconnects does not wait for a new encoder to be created and started,
+ * and the device does not run out of codecs when clients reconnect every few seconds.
+ * 
+ * An encoder waits in the pool with its display detached, it is given to the next stream that has the same 
+ * configuration (mime type, {@link VideoQuality}, codec, video source) or released once its grace period is over.
+ * The pool also measures how long the streams take to send their first packet, with a new or a reused encoder.
+ */
+public class EncoderPool<E extends EncoderPool.Entry> implements Runnable {
+
+	public final static String TAG = "EncoderPool";
+
+	/** Default time an encoder is kept after its stream has stopped, in ms. */
+	public final static long DEFAULT_GRACE_PERIOD = 10000;
+
+	/** Maximum number of encoders kept, hardware encoders are scarce. */
+	public final static int MAX_IDLE = 2;
+
+	private final static EncoderPool<VideoStream.Encoder> sInstance = new EncoderPool<>();
+
+	/** What the pool keeps, see {@link VideoStream.Encoder}. */
+	static abstract class Entry {
+
+		final String key;
+		long expiry;
+
+		Entry(String key) {
+			this.key = key;
+		}
+
+		/** Releases the encoder, when it leaves the pool without being reused. */
+		abstract void release();
+
+	}
+
+	private final LinkedList<E> mIdle = new LinkedList<>();
+	private Thread mThread;
+
+	private long mColdStarts = 0, mWarmStarts = 0, mColdTime = 0, mWarmTime = 0, mExpired = 0;
+
+	public static EncoderPool<VideoStream.Encoder> getInstance() {
+		return sInstance;
+	}
+
+	/** Takes an encoder with that configuration, returns null if there is none. */
+	synchronized E take(String key) {
+		for (Iterator<E> it = mIdle.iterator(); it.hasNext();) {
+			E encoder = it.next();
+			if (encoder.key.equals(key)) {
+				it.remove();
+				return encoder;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keeps an encoder, its display should already be detached.
+	 * @param gracePeriod How long the encoder is kept, in ms
+	 */
+	void put(E encoder, long gracePeriod) {
+		E oldest = null;
+		synchronized (this) {
+			encoder.expiry = System.currentTimeMillis()+gracePeriod;
+			mIdle.add(encoder);
+			if (mIdle.size() > MAX_IDLE) oldest = mIdle.removeFirst();
+			if (mThread == null) {
+				mThread = new Thread(this, TAG);
+				mThread.setDaemon(true);
+				mThread.start();
+			}
+			notifyAll();
+		}
+		if (oldest != null) oldest.release();
+	}
+
+	/** Releases all the encoders of the pool. */
+	public void clear() {
+		ArrayList<E> encoders;
+		synchronized (this) {
+			encoders = new ArrayList<>(mIdle);
+			mIdle.clear();
+		}
+		for (E encoder : encoders) {
+			encoder.release();
+		}
+	}
+
+	/** Records how long a stream took to send its first packet, in ms. */
+	synchronized void onFirstPacket(boolean warm, long delay) {
+		if (warm) {
+			mWarmStarts++;
+			mWarmTime += delay;
+		} else {
+			mColdStarts++;
+			mColdTime += delay;
+		}
+	}
+
+	/** Releases the encoders once their grace period is over. */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				E expired = null;
+				synchronized (this) {
+					long now = System.currentTimeMillis(), next = Long.MAX_VALUE;
+					for (Iterator<E> it = mIdle.iterator(); it.hasNext() && expired == null;) {
+						E encoder = it.next();
+						if (encoder.expiry <= now) {
+							it.remove();
+							expired = encoder;
+							mExpired++;
+						} else {
+							next = Math.min(next, encoder.expiry);
+						}
+					}
+					if (expired == null) {
+						if (next == Long.MAX_VALUE) wait(); else wait(next-now);
+					}
+				}
+				if (expired != null) {
+					Log.d(TAG, "Encoder released: "+expired.key);
+					expired.release();
+				}
+			}
+		} catch (InterruptedException ignore) {}
+	}
+
+	/** Returns the number of encoders waiting in the pool. */
+	public synchronized int getIdleCount() {
+		return mIdle.size();
+	}
+
+	/** Returns the number of streams started with a new encoder that have sent a packet. */
+	public synchronized long getColdStarts() {
+		return mColdStarts;
+	}
+
+	/** Returns the number of streams started with an encoder of the pool that have sent a packet. */
+	public synchronized long getWarmStarts() {
+		return mWarmStarts;
+	}
+
+	/** Returns the average time to the first packet of the streams started with a new encoder, in ms. */
+	public synchronized long getColdStartTime() {
+		return mColdStarts > 0 ? mColdTime/mColdStarts : 0;
+	}
+
+	/** Returns the average time to the first packet of the streams started with an encoder of the pool, in ms. */
+	public synchronized long getWarmStartTime() {
+		return mWarmStarts > 0 ? mWarmTime/mWarmStarts : 0;
+	}
+
+	/** Returns the number of encoders released at the end of their grace period. */
+	public synchronized long getExpiredCount() {
+		return mExpired;
+	}
+
+	public synchronized String toString() {
+		return "idle: "+mIdle.size()+" cold: "+mColdStarts+" ("+getColdStartTime()+" ms) warm: "+mWarmStarts+
+				" ("+getWarmStartTime()+" ms) expired: "+mExpired;
+	}
+
+}
@@ -78,9 +78,10 @@ public class H264Stream extends VideoStream {
 	 */
 	public synchronized String getSessionDescription() throws IllegalStateException {
 		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
-		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP "+getPayloadTypes()+"\r\n" +
 		"a=rtpmap:96 H264/90000\r\n" +
-		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
+		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n" +
+		getRepairDescription();
 	}	
 
 	/**
@@ -78,9 +78,10 @@ public class H265Stream extends VideoStream {
 	 */
 	public synchronized String getSessionDescription() throws IllegalStateException {
 		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
-		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP "+getPayloadTypes()+"\r\n" +
 		"a=rtpmap:96 H265/90000\r\n" +
-		"a=fmtp:96 packetization-mode=1;sprop-sps="+mConfig.getB64SPS()+";sprop-pps"+mConfig.getB64PPS()+";sprop-vps"+mConfig.getB64VPS()+";\r\n";
+		"a=fmtp:96 packetization-mode=1;sprop-sps="+mConfig.getB64SPS()+";sprop-pps"+mConfig.getB64PPS()+";sprop-vps"+mConfig.getB64VPS()+";\r\n" +
+		getRepairDescription();
 	}	
 
 	/**
@@ -32,7 +32,18 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.rtp.AimdRateControl;
+import net.majorkernelpanic.streaming.rtp.BitrateController;
+import net.majorkernelpanic.streaming.rtp.DelayRateControl;
+import net.majorkernelpanic.streaming.rtp.FecEncoder;
+import net.majorkernelpanic.streaming.rtp.GopCache;
+import net.majorkernelpanic.streaming.rtp.KeyFrameRequester;
+import net.majorkernelpanic.streaming.rtp.MediaCodecBridge;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.Pacer;
+import net.majorkernelpanic.streaming.rtp.RateControl;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.SendHistory;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -70,6 +81,30 @@ public abstract class VideoStream extends MediaStream {
 
 	protected final static String TAG = "VideoStream";
 
+	/** Ratio between the pacing rate and the bitrate of the stream when pacing is enabled. */
+	public final static float PACING_FACTOR = 2.5f;
+
+	/** Maximum bitrate of the retransmissions, relative to the bitrate of the stream. */
+	public final static float RETRANSMISSION_FACTOR = 0.5f;
+
+	/** Payload type of the RTX packets when they are enabled. */
+	public final static int RTX_PAYLOAD_TYPE = 97;
+
+	/** Payload type of the FEC packets when they are enabled. */
+	public final static int FEC_PAYLOAD_TYPE = 98;
+
+	/** Number of packets protected by a FEC packet, in key frames and in the other frames. */
+	public final static int FEC_KEY_FRAME_GROUP = 4, FEC_GROUP = 10;
+
+	/** Minimum delay between two key frames requested by the receivers, in ns. */
+	public final static long KEY_FRAME_REQUEST_INTERVAL = KeyFrameRequester.DEFAULT_MIN_INTERVAL;
+
+	/** Default floor of the bitrate when it adapts to the network, relative to the bitrate of the stream. */
+	public final static float ABR_FLOOR_FACTOR = 0.1f;
+
+	/** Maximum number of output buffers discarded when an encoder is kept or reused. */
+	private final static int MAX_DRAINED_BUFFERS = 64;
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone(); 
 	protected SurfaceHolder.Callback mSurfaceHolderCallback = null;
@@ -81,6 +116,8 @@ public abstract class VideoStream extends MediaStream {
 	protected Thread mCameraThread;
 	protected Looper mCameraLooper;
 
+	protected BitrateController mBitrateController = null;
+
 	protected boolean mCameraOpenedManually = true;
 	protected boolean mFlashEnabled = false;
 	protected boolean mSurfaceReady = false;
@@ -97,6 +134,10 @@ public abstract class VideoStream extends MediaStream {
 	protected MediaProjection mMediaProjection;
 	private EGLRender mGLRender;
 
+	// When the stream started and whether its encoder came from the EncoderPool
+	protected long mStartTime = 0;
+	protected boolean mWarmStart = false;
+
 	/** 
 	 * Don't use this class directly.
 	 * Uses CAMERA_FACING_BACK by default.
@@ -209,10 +250,147 @@ public abstract class VideoStream extends MediaStream {
 	public synchronized void configure() throws IllegalStateException, IOException {
 		super.configure();
 		mOrientation = mRequestedOrientation;
+		// The local port changes with the transport, so it has to be chosen before the ports are advertised
+		mPacketizer.getRtpSocket().setBatchedSend(mSettings != null && mSettings.getBoolean("batch", false));
+		// The SDP depends on it, so it is decided before the session description is sent
+		if (!mStreaming) {
+			boolean rtx = mSettings != null && mSettings.getBoolean("rtx", false);
+			mPacketizer.getRtpSocket().setRetransmission(createSendHistory(), rtx ? RTX_PAYLOAD_TYPE : 0);
+			mPacketizer.getRtpSocket().setFec(createFecEncoder());
+			mPacketizer.getRtpSocket().setKeyFrameRequester(new KeyFrameRequester(this::requestKeyFrame, KEY_FRAME_REQUEST_INTERVAL));
+			mPacketizer.getRtpSocket().setGopCache(createGopCache());
+			configurePacketSize(mPacketizer.getRtpSocket());
+		}
 	}	
+
+	/**
+	 * Returns the cache of the last group of pictures sent to the clients that join a shared encoder,
+	 * or null if it has not been enabled in the preferences.
+	 */
+	protected GopCache createGopCache() {
+		if (mSettings == null || !mSettings.getBoolean("gop_cache", false)) return null;
+		return new GopCache(GopCache.DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Sets the MTU of the path to the receivers, and whether the packets sent over the RTSP connection
+	 * can be longer than the MTU, from the preferences. The packetizer picks the maximum size of the
+	 * packets for the transport chosen when the client sends its SETUP request.
+	 */
+	protected void configurePacketSize(RtpSocket socket) {
+		int mtu = mSettings != null ? Integer.parseInt(mSettings.getString("mtu", ""+RtpSocket.MTU)) : RtpSocket.MTU;
+		socket.setPathMtu(Math.max(576, Math.min(RtpSocket.MTU, mtu)));
+		boolean large = mSettings != null && mSettings.getBoolean("tcp_large_packets", false);
+		socket.setMaxTcpPacketSize(large ? RtpSocket.MAX_TCP_PACKET_SIZE : 0);
+	}
+
+	/**
+	 * Returns the history used to answer the Generic NACKs of the receivers,
+	 * or null if retransmissions have not been enabled in the preferences.
+	 * Retransmissions may use up to {@link #RETRANSMISSION_FACTOR} times the bitrate of the stream.
+	 */
+	protected SendHistory createSendHistory() {
+		if (mSettings == null || !mSettings.getBoolean("nack", false)) return null;
+		SendHistory history = new SendHistory(SendHistory.DEFAULT_MAX_AGE, SendHistory.DEFAULT_MAX_BYTES);
+		history.setRateLimit((long) (mRequestedQuality.bitrate*RETRANSMISSION_FACTOR));
+		return history;
+	}
+
+	/**
+	 * Returns the encoder of the XOR parity packets (RFC 5109) that protect the stream,
+	 * or null if FEC has not been enabled in the preferences.
+	 * Key frames get one FEC packet every {@link #FEC_KEY_FRAME_GROUP} packets,
+	 * the other frames one every {@link #FEC_GROUP} packets.
+	 */
+	protected FecEncoder createFecEncoder() {
+		if (mSettings == null || !mSettings.getBoolean("fec", false)) return null;
+		return new FecEncoder(FEC_PAYLOAD_TYPE, FEC_KEY_FRAME_GROUP, FEC_GROUP);
+	}
+
+	/** Returns the payload types of the stream, listed in the media description of the SDP. */
+	protected String getPayloadTypes() {
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		String types = "96";
+		if (socket.getRtxPayloadType() > 0) types += " "+socket.getRtxPayloadType();
+		if (socket.getFec() != null) types += " "+socket.getFec().getPayloadType();
+		return types;
+	}
+
+	/** 
+	 * Returns the attributes of the SDP that advertise the PLI and the FIR, and
+	 * the Generic NACKs, the RTX stream and the FEC stream if they are enabled.
+	 */
+	protected String getRepairDescription() {
+		RtpSocket socket = mPacketizer.getRtpSocket();
+		SendHistory history = socket.getSendHistory();
+		String description = "a=rtcp-fb:96 nack pli\r\n" +
+				"a=rtcp-fb:96 ccm fir\r\n";
+		if (history != null) {
+			description += "a=rtcp-fb:96 nack\r\n";
+			int rtx = socket.getRtxPayloadType();
+			if (rtx > 0) {
+				description += "a=rtpmap:"+rtx+" rtx/90000\r\n" +
+						"a=fmtp:"+rtx+" apt=96;rtx-time="+history.getMaxAge()/1000000+"\r\n";
+			}
+		}
+		if (socket.getFec() != null) {
+			description += "a=rtpmap:"+socket.getFec().getPayloadType()+" ulpfec/90000\r\n";
+		}
+		return description;
+	}
 	
 	protected void reconfigure(String sps, String pps) {};
 
+	/**
+	 * Returns the controller that adapts the bitrate of the encoder to the network,
+	 * or null if it has not been enabled in the preferences.
+	 * The bitrate of the stream is the ceiling, the floor is set in the preferences in kbit/s,
+	 * {@link #ABR_FLOOR_FACTOR} times the ceiling by default. The control law is loss based (AIMD)
+	 * unless the delay based one is enabled in the preferences.
+	 */
+	protected BitrateController createBitrateController() {
+		if (mSettings == null || !mSettings.getBoolean("abr", false)) return null;
+		int max = mQuality.bitrate;
+		int min = Integer.parseInt(mSettings.getString("abr_min", "0"))*1000;
+		if (min <= 0 || min > max) min = Math.max((int) (max*ABR_FLOOR_FACTOR), 1);
+		RateControl control = mSettings.getBoolean("abr_delay", false) ? new DelayRateControl() : new AimdRateControl(max/80);
+		return new BitrateController(control, this::setEncoderBitrate, min, max);
+	}
+
+	/** Returns the controller of the bitrate, null if the bitrate does not adapt to the network. */
+	public BitrateController getBitrateController() {
+		return mBitrateController;
+	}
+
+	/** Changes the bitrate of the encoder while it runs. */
+	@SuppressLint("NewApi")
+	public void setEncoderBitrate(int bitrate) {
+		MediaCodec codec = mMediaCodec;
+		if (codec == null) return;
+		try {
+			Bundle b = new Bundle();
+			b.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			codec.setParameters(b);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "setEncoderBitrate failed", e);
+		}
+	}
+
+	/**
+	 * Returns a pacer derived from the bitrate and the frame rate of the stream,
+	 * or null if pacing has not been enabled in the preferences.
+	 * The pacing rate is {@link #PACING_FACTOR} times the bitrate so that a key frame does not
+	 * delay the next frames too much, and no packet is held back for more than a frame interval.
+	 */
+	protected Pacer createPacer() {
+		if (mSettings == null || !mSettings.getBoolean("pacing", false)) return null;
+		int framerate = mQuality.framerate>0 ? mQuality.framerate : 15;
+		long rate = (long) (mQuality.bitrate*PACING_FACTOR);
+		// Enough for a few packets at once, or 5 ms at the pacing rate
+		int burst = (int) Math.max(4*RtpSocket.MTU, rate/8/200);
+		return new Pacer(rate, burst, 1000000000L/framerate);
+	}
+
 	/**
 	 * Starts the stream.
 	 * This will also open the camera and display the preview 
@@ -220,12 +398,47 @@ public abstract class VideoStream extends MediaStream {
 	 */
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!mPreviewStarted) mCameraOpenedManually = false;
+		boolean starting = !mStreaming;
+		if (starting) {
+			mStartTime = System.nanoTime();
+			mPacketizer.getRtpSocket().setPacer(createPacer());
+			mPacketizer.setAggregation(mSettings != null && mSettings.getBoolean("aggregation", false));
+		}
 		super.start();
+		if (starting && mStreaming && mMediaCodec != null) {
+			mBitrateController = createBitrateController();
+			if (mBitrateController != null) mBitrateController.start(mPacketizer.getRtpSocket());
+		}
 		Log.d(TAG,"Stream configuration: FPS: "+mQuality.framerate+" Width: "+mQuality.resX+" Height: "+mQuality.resY);
 	}
 
 	/** Stops the stream. */
 	public synchronized void stop() {
+		if (mBitrateController != null) mBitrateController.stop();
+		if (mStreaming) {
+			long first = mPacketizer.getRtpSocket().getFirstPacketTime();
+			if (first != 0 && first > mStartTime) {
+				long delay = (first-mStartTime)/1000000;
+				Log.d(TAG,"Time to the first packet: "+delay+" ms ("+(mWarmStart ? "warm" : "cold")+" start)");
+				EncoderPool.getInstance().onFirstPacket(mWarmStart, delay);
+			}
+		}
+		long gracePeriod = getGracePeriod();
+		if (mCamera != null && mStreaming && mMode == MODE_MEDIACODEC_API_2 && gracePeriod > 0) {
+			// The encoder and its display are kept for the next stream with the same configuration
+			mPacketizer.stop();
+			logOutputLatency();
+			Encoder encoder = new Encoder(getEncoderKey(), mMediaCodec, mBridge, mSurface, mCamera, mGLRender);
+			encoder.pause();
+			EncoderPool.getInstance().put(encoder, gracePeriod);
+			mMediaCodec = null;
+			mBridge = null;
+			mSurface = null;
+			mCamera = null;
+			mGLRender = null;
+			mStreaming = false;
+			return;
+		}
 		if (mCamera != null) {
 			// We need to restart the preview
 			if (!mCameraOpenedManually) {
@@ -291,9 +504,46 @@ public abstract class VideoStream extends MediaStream {
 	@SuppressLint({ "InlinedApi", "NewApi" })	
 	protected void encodeWithMediaCodecMethod2() throws RuntimeException, IOException {
 
+		Encoder encoder = EncoderPool.getInstance().take(getEncoderKey());
+		mWarmStart = encoder != null;
+		if (encoder != null) {
+			Log.d(TAG,"Video encoded using a MediaCodec kept from a previous stream");
+			mMediaCodec = encoder.codec;
+			mBridge = encoder.bridge;
+			mSurface = encoder.surface;
+			mCamera = encoder.display;
+			mGLRender = encoder.render;
+			encoder.resume();
+			// The bitrate may have been adapted to the network of the previous clients
+			setEncoderBitrate(mQuality.bitrate);
+			requestKeyFrame();
+		} else {
+			createEncoder();
+		}
+
+		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
+		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec, mBridge);
+		inputStream.setMediaFormatCallback((sps, pps) -> reconfigure(sps, pps));
+		mPacketizer.setInputStream(inputStream);
+		mPacketizer.getRtpSocket().setUdpSleep(mSettings != null && mSettings.getBoolean("sleep", false));
+		mPacketizer.getRtpSocket().setDropRate(mSettings != null ? Integer.parseInt(mSettings.getString("droprate", "0")) : 0);
+		mPacketizer.start();
+
+		mStreaming = true;
+
+	}
+
+	/** Creates, configures and starts the encoder, and the display that feeds it. */
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	private void createEncoder() throws RuntimeException, IOException {
 		Log.d(TAG,"Video encoded using the MediaCodec API with a surface");
 
 		mMediaCodec = MediaCodec.createEncoderByType(mMimeType);
+		if (mSettings != null && mSettings.getBoolean("codec_callbacks", false)) {
+			// The output buffers are received on a Thread of the bridge instead of being polled
+			mBridge = new MediaCodecBridge(TAG);
+			mBridge.attach(mMediaCodec);
+		}
 		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
@@ -327,17 +577,28 @@ public abstract class VideoStream extends MediaStream {
 
 		// Updates the parameters of the camera if needed
 		createCamera();
+	}
 
-		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
-		inputStream.setMediaFormatCallback((sps, pps) -> reconfigure(sps, pps));
-		mPacketizer.setInputStream(inputStream);
-		mPacketizer.getRtpSocket().setUdpSleep(mSettings != null && mSettings.getBoolean("sleep", false));
-		mPacketizer.getRtpSocket().setDropRate(mSettings != null ? Integer.parseInt(mSettings.getString("droprate", "0")) : 0);
-		mPacketizer.start();
-
-		mStreaming = true;
+	/**
+	 * Returns how long the encoder is kept after the stream stops, in ms, from the preferences
+	 * where it is in seconds. 0 if the encoder is released right away.
+	 */
+	protected long getGracePeriod() {
+		if (mSettings == null) return 0;
+		try {
+			return Long.parseLong(mSettings.getString("encoder_grace", "0"))*1000;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
 
+	/** Returns what a kept encoder must match to be reused by this stream. */
+	protected String getEncoderKey() {
+		String codec = mSettings != null ? mSettings.getString("codec", "") : "";
+		String source = mSettings != null ? mSettings.getString("video", "0") : "0";
+		String transport = mSettings != null ? mSettings.getString("transport", "2") : "2";
+		return mMimeType+" "+mQuality.resX+"x"+mQuality.resY+"@"+mQuality.framerate+" "+mQuality.bitrate+
+				" codec: "+codec+" source: "+source+" transport: "+transport+" projection: "+System.identityHashCode(mMediaProjection);
 	}
 
 	/**
@@ -389,24 +650,110 @@ public abstract class VideoStream extends MediaStream {
 
 	protected synchronized void destroyCamera() {
 		if (mCamera != null) {
-			if (mCamera instanceof VirtualDisplay) {
-				VirtualDisplay virtualDisplay = (VirtualDisplay) mCamera;
-				virtualDisplay.release();
+			releaseDisplay(mCamera, mGLRender);
+			mGLRender = null;
+			mCamera = null;
+		}
+	}
+
+	private static void releaseDisplay(Object display, EGLRender render) {
+		if (display instanceof VirtualDisplay) {
+			VirtualDisplay virtualDisplay = (VirtualDisplay) display;
+			virtualDisplay.release();
+		}
+		if (display instanceof IBinder) {
+			if (render != null) {
+				render.stop();
 			}
-			if (mCamera instanceof IBinder) {
-				if (mGLRender != null) {
-					mGLRender.stop();
-					mGLRender = null;
+			IBinder displayBinder = (IBinder) display;
+			SurfaceControl.destroyDisplay(displayBinder);
+		}
+	}
+
+	/** 
+	 * An encoder, started, and the display that feeds it, kept by the {@link EncoderPool} between two streams.
+	 * While it waits, the display is detached from the encoder so that nothing is encoded.
+	 */
+	static class Encoder extends EncoderPool.Entry {
+
+		final MediaCodec codec;
+		final MediaCodecBridge bridge;
+		final Surface surface;
+		final Object display;
+		final EGLRender render;
+
+		Encoder(String key, MediaCodec codec, MediaCodecBridge bridge, Surface surface, Object display, EGLRender render) {
+			super(key);
+			this.codec = codec;
+			this.bridge = bridge;
+			this.surface = surface;
+			this.display = display;
+			this.render = render;
+		}
+
+		/** Detaches the display, the frames already encoded are discarded. */
+		void pause() {
+			setDisplaySurface(null);
+			drain();
+		}
+
+		/** Attaches the display again, after discarding what was encoded before the encoder was paused. */
+		void resume() {
+			drain();
+			setDisplaySurface(render != null ? render.getDecodeSurface() : surface);
+		}
+
+		void release() {
+			releaseDisplay(display, render);
+			try {
+				codec.stop();
+				codec.release();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (bridge != null) bridge.release();
+		}
+
+		private void setDisplaySurface(Surface target) {
+			if (display instanceof VirtualDisplay) {
+				((VirtualDisplay) display).setSurface(target);
+			} else if (display instanceof IBinder) {
+				try {
+					SurfaceControl.openTransaction();
+					SurfaceControl.setDisplaySurface((IBinder) display, target);
+				} finally {
+					SurfaceControl.closeTransaction();
 				}
-				IBinder displayBinder = (IBinder) mCamera;
-				SurfaceControl.destroyDisplay(displayBinder);
 			}
-			mCamera = null;
 		}
+
+		private void drain() {
+			if (bridge != null) {
+				bridge.clear();
+				return;
+			}
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			try {
+				for (int i=0; i<MAX_DRAINED_BUFFERS; i++) {
+					int index = codec.dequeueOutputBuffer(info, 0);
+					if (index == MediaCodec.INFO_TRY_AGAIN_LATER) break;
+					if (index >= 0) codec.releaseOutputBuffer(index, false);
+				}
+			} catch (IllegalStateException e) {
+				Log.e(TAG, "Could not drain the encoder", e);
+			}
+		}
+
 	}
 
+	/**
+	 * Asks the encoder for a key frame. The requests of the receivers go through the 
+	 * {@link KeyFrameRequester} of the socket, which coalesces them.
+	 */
 	// See: https://github.com/JumpingYang001/webrtc/blob/master/sdk/android/src/java/org/webrtc/HardwareVideoEncoder.java
 	public void requestKeyFrame() {
+		MediaCodec codec = mMediaCodec;
+		if (codec == null) return;
 		// Ideally MediaCodec would honor BUFFER_FLAG_SYNC_FRAME so we could
 		// indicate this in queueInputBuffer() below and guarantee _this_ frame
 		// be encoded as a key frame, but sadly that flag is ignored.  Instead,
@@ -414,7 +761,7 @@ public abstract class VideoStream extends MediaStream {
 		try {
 			Bundle b = new Bundle();
 			b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-			mMediaCodec.setParameters(b);
+			codec.setParameters(b);
 		} catch (IllegalStateException e) {
 			Log.e(TAG, "requestKeyFrame failed", e);
 			return;
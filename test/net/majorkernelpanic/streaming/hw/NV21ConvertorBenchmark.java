@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.hw;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link NV21Convertor#convert(byte[], ByteBuffer)} of a 720p frame of the camera, to planar and semi planar YUV 420. */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NV21ConvertorBenchmark {
+
+	@Param({"true", "false"})
+	public boolean planar;
+
+	private NV21Convertor mConvertor;
+	private byte[] mFrame;
+	private ByteBuffer mBuffer;
+
+	@Setup
+	public void setUp() {
+		mConvertor = new NV21Convertor();
+		mConvertor.setSize(1280, 720);
+		mConvertor.setPlanar(planar);
+		mFrame = new byte[mConvertor.getBufferSize()];
+		mBuffer = ByteBuffer.allocate(mConvertor.getBufferSize());
+	}
+
+	@Benchmark
+	public ByteBuffer convert() {
+		mBuffer.clear();
+		mConvertor.convert(mFrame, mBuffer);
+		return mBuffer;
+	}
+
+}
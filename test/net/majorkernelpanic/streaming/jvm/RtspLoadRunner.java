@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import net.majorkernelpanic.streaming.Platform;
+
+/**
+ * Load test of the RTSP signaling, of the packetizers and of the {@link net.majorkernelpanic.streaming.rtp.RtpSocket}
+ * on loopback: a {@link SourceServer} streams a synthetic {@link AnnexBSource} in the same process, and viewers are 
+ * added step by step. Each one opens an RTSP session (OPTIONS, DESCRIBE, SETUP, PLAY) over UDP or TCP interleaved,
+ * then receives and depacketizes the RTP stream. After each step, the throughput, the losses, the jitter and the time
+ * to the first frame of the viewers are printed, with the sessions, the Threads and the CPU usage of the server.
+ * The ramp stops at the first step where a viewer fails, loses too many packets, or gets less than 90% of the 
+ * throughput of the first viewers, the capacity of the server is the previous step.
+ *
+ * The viewers share the CPUs with the server, the capacity found is the one of the machine divided between the two.
+ * 
+ * Usage: java net.majorkernelpanic.streaming.jvm.RtspLoadRunner [-tcp] [-fps 30] [-bitrate 1000000] [-gop 30]
+ * [-start 1] [-step 1] [-max 20] [-interval 10] [-loss 1], or from the test sources: 
+ * mvn -Pload test-compile exec:java -Dload.args="-tcp", gradle rtspLoad -Pload="-tcp"
+ */
+public class RtspLoadRunner {
+
+	public final static String TAG = "RtspLoadRunner";
+
+	/** The viewers send a GET_PARAMETER this often, so that the server does not reap their session, in ms. */
+	public final static long KEEP_ALIVE = 20000;
+
+	/** The viewers give up when the server does not respond for this long, in ms. */
+	public final static int TIMEOUT = 10000;
+
+	/** What a viewer has received, summed over its tracks. */
+	static class Sample {
+
+		long bytes, received, expected, frames, broken;
+		float jitter;
+
+		Sample minus(Sample previous) {
+			Sample delta = new Sample();
+			delta.bytes = bytes-previous.bytes;
+			delta.received = received-previous.received;
+			delta.expected = expected-previous.expected;
+			delta.frames = frames-previous.frames;
+			delta.broken = broken-previous.broken;
+			delta.jitter = jitter;
+			return delta;
+		}
+
+	}
+
+	/** What a viewer receives on one track. The packets are depacketized to count the NAL units and the frames. */
+	static class Track {
+
+		final int id;
+		final boolean video, hevc;
+		final int payloadType;
+		final long clock;
+		int channel = -1;
+		DatagramSocket rtp, rtcp;
+
+		private long mPackets = 0, mBytes = 0, mFrames = 0, mNals = 0, mBroken = 0;
+		private int mBaseSeq = -1, mMaxSeq = 0, mCycles = 0;
+		private long mTransit = 0, mEpoch = 0;
+		private double mJitter = 0;
+		private boolean mInFragment = false, mDamaged = false;
+		private volatile long mFirstPacket = 0, mFirstFrame = 0;
+
+		Track(int id, boolean video, String encoding, int payloadType, long clock) {
+			this.id = id;
+			this.video = video;
+			this.hevc = encoding.equalsIgnoreCase("H265");
+			this.payloadType = payloadType;
+			this.clock = clock;
+		}
+
+		synchronized void onPacket(byte[] data, int offset, int length, long now) {
+			if (length < 12) return;
+			mBytes += length;
+			// RTX and FEC packets have payload types of their own
+			if ((data[offset+1]&0x7F) != payloadType) return;
+			if (mFirstPacket == 0) {
+				mFirstPacket = now;
+				mEpoch = now;
+			}
+			mPackets++;
+
+			int seq = (data[offset+2]&0xFF)<<8 | (data[offset+3]&0xFF);
+			if (mBaseSeq < 0) {
+				mBaseSeq = mMaxSeq = seq;
+			} else {
+				int delta = (seq-mMaxSeq)&0xFFFF;
+				if (delta != 0 && delta < 0x8000) {
+					if (seq < mMaxSeq) mCycles += 0x10000;
+					if (delta > 1) mDamaged = true;
+					mMaxSeq = seq;
+				}
+			}
+
+			// Interarrival jitter (RFC 3550 A.8)
+			long timestamp = ((long) (data[offset+4]&0xFF)<<24 | (data[offset+5]&0xFF)<<16 | (data[offset+6]&0xFF)<<8 | (data[offset+7]&0xFF));
+			long transit = (now-mEpoch)*clock/1000000000L-timestamp;
+			if (mPackets > 1) mJitter += (Math.abs(transit-mTransit)-mJitter)/16;
+			mTransit = transit;
+
+			int header = 12+4*(data[offset]&0x0F);
+			if (video) depacketize(data, offset+header, length-header);
+			if ((data[offset+1]&0x80) != 0) {
+				mFrames++;
+				if (mDamaged) mBroken++;
+				mDamaged = false;
+				if (mFirstFrame == 0) mFirstFrame = now;
+			}
+		}
+
+		/** Counts the NAL units of a packet, single, aggregated or fragmented (RFC 6184, RFC 7798). */
+		private void depacketize(byte[] data, int offset, int length) {
+			if (length < (hevc ? 3 : 2)) return;
+			int type = hevc ? (data[offset]>>1)&0x3F : data[offset]&0x1F;
+			if (type == (hevc ? 48 : 24)) {
+				int i = offset+(hevc ? 2 : 1);
+				while (i+2 <= offset+length) {
+					mNals++;
+					i += 2+((data[i]&0xFF)<<8 | (data[i+1]&0xFF));
+				}
+			} else if (type == (hevc ? 49 : 28)) {
+				int fu = data[offset+(hevc ? 2 : 1)];
+				if ((fu&0x80) != 0) {
+					mInFragment = true;
+				} else if (!mInFragment) {
+					mDamaged = true;
+				}
+				if ((fu&0x40) != 0) {
+					if (mInFragment) mNals++;
+					mInFragment = false;
+				}
+			} else {
+				mNals++;
+			}
+		}
+
+		synchronized void addTo(Sample sample) {
+			sample.bytes += mBytes;
+			sample.received += mPackets;
+			sample.expected += mBaseSeq < 0 ? 0 : mCycles+mMaxSeq-mBaseSeq+1;
+			sample.frames += mFrames;
+			sample.broken += mBroken;
+			sample.jitter = Math.max(sample.jitter, (float) (mJitter*1000/clock));
+		}
+
+		synchronized long getNalCount() {
+			return mNals;
+		}
+
+	}
+
+	/** A response of the server. */
+	static class Response {
+		int status;
+		final HashMap<String,String> headers = new HashMap<>();
+		String content = "";
+	}
+
+	/** An RTSP connection: requests, responses, and the RTP packets interleaved with them. */
+	static class Connection {
+
+		protected final String mHost;
+		protected final int mPort;
+		protected final String mBase;
+		protected Socket mSocket;
+		protected InputStream mIn;
+		protected OutputStream mOut;
+		protected volatile String mSession;
+		private int mCseq = 0;
+		private byte[] mBuffer = new byte[65540];
+
+		Connection(String host, int port, String path) {
+			mHost = host;
+			mPort = port;
+			mBase = "rtsp://"+host+":"+port+(path.startsWith("/") ? "" : "/")+path;
+		}
+
+		void open() throws IOException {
+			mSocket = new Socket();
+			mSocket.connect(new InetSocketAddress(mHost, mPort), TIMEOUT);
+			mSocket.setSoTimeout(TIMEOUT);
+			mSocket.setTcpNoDelay(true);
+			mIn = new BufferedInputStream(mSocket.getInputStream(), 65536);
+			mOut = mSocket.getOutputStream();
+		}
+
+		void close() {
+			try {
+				if (mSocket != null) mSocket.close();
+			} catch (IOException ignore) {}
+		}
+
+		/** Sends a request, the response is read by the caller. */
+		synchronized void send(String method, String uri, String headers, String content) throws IOException {
+			StringBuilder request = new StringBuilder();
+			request.append(method).append(' ').append(uri).append(" RTSP/1.0\r\n");
+			request.append("CSeq: ").append(++mCseq).append("\r\n");
+			if (mSession != null) request.append("Session: ").append(mSession).append("\r\n");
+			if (headers != null) request.append(headers);
+			if (content != null) request.append("Content-Length: ").append(content.length()).append("\r\n");
+			request.append("\r\n");
+			if (content != null) request.append(content);
+			mOut.write(request.toString().getBytes("US-ASCII"));
+			mOut.flush();
+		}
+
+		/** Sends a request and waits for its response, the interleaved packets received meanwhile are processed. */
+		Response request(String method, String uri, String headers, String content) throws IOException {
+			send(method, uri, headers, content);
+			Response response;
+			while ((response = readMessage()) == null);
+			if (response.status != 200) throw new IOException(method+" failed with status "+response.status);
+			String session = response.headers.get("session");
+			if (session != null) mSession = session.split(";")[0].trim();
+			return response;
+		}
+
+		/** Reads a response, or an interleaved packet and returns null. */
+		Response readMessage() throws IOException {
+			int b = read();
+			if (b == '$') {
+				int channel = read(), length = read()<<8 | read();
+				readFully(mBuffer, length);
+				onPacket(channel, mBuffer, length);
+				return null;
+			}
+			if (b == '\r' || b == '\n') return null;
+			Response response = new Response();
+			String line = readLine(b);
+			String[] status = line.split(" ");
+			if (status.length < 2 || !status[0].startsWith("RTSP/")) throw new IOException("Malformed response: "+line);
+			response.status = Integer.parseInt(status[1]);
+			while (!(line = readLine(read())).isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon > 0) response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon+1).trim());
+			}
+			String length = response.headers.get("content-length");
+			if (length != null) {
+				int n = Integer.parseInt(length);
+				byte[] content = new byte[n];
+				readFully(content, n);
+				response.content = new String(content, "US-ASCII");
+			}
+			return response;
+		}
+
+		/** Called with the packets interleaved in the connection. */
+		void onPacket(int channel, byte[] data, int length) {}
+
+		private int read() throws IOException {
+			int b = mIn.read();
+			if (b < 0) throw new EOFException("Connection closed by the server");
+			return b;
+		}
+
+		private void readFully(byte[] buffer, int length) throws IOException {
+			for (int n = 0, r; n < length; n += r) {
+				if ((r = mIn.read(buffer, n, length-n)) < 0) throw new EOFException("Connection closed by the server");
+			}
+		}
+
+		private String readLine(int first) throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int b = first; b != '\n'; b = read()) {
+				if (b != '\r') line.append((char) b);
+			}
+			return line.toString();
+		}
+
+	}
+
+	/** A viewer, in its own Thread, plus one per track over UDP. */
+	static class Viewer extends Connection implements Runnable {
+
+		final int id;
+		private final boolean mTcp;
+		private final ArrayList<Track> mTracks = new ArrayList<>();
+		private final ArrayList<Thread> mThreads = new ArrayList<>();
+		private final long mStart = System.nanoTime();
+		private volatile boolean mClosed = false;
+		private volatile String mError = null;
+		private long mLastKeepAlive = 0, mLastStep = 0;
+		private Sample mLast = new Sample();
+
+		Viewer(int id, String host, int port, String path, boolean tcp) {
+			super(host, port, path);
+			this.id = id;
+			mTcp = tcp;
+		}
+
+		void start() {
+			Thread thread = new Thread(this, TAG+"-"+id);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				open();
+				request("OPTIONS", mBase, null, null);
+				parseDescription(request("DESCRIBE", mBase, "Accept: application/sdp\r\n", null).content);
+				for (int i=0; i<mTracks.size(); i++) setup(mTracks.get(i), i);
+				request("PLAY", mBase, "Range: npt=0.000-\r\n", null);
+				mLastKeepAlive = System.currentTimeMillis();
+				// Only the responses to the keep-alives come on the connection over UDP
+				mSocket.setSoTimeout(0);
+				while (!mClosed) readMessage();
+			} catch (Exception e) {
+				if (!mClosed) mError = e.getMessage() != null ? e.getMessage() : e.toString();
+			} finally {
+				close();
+			}
+		}
+
+		/** The tracks, their codec and their clock rate. */
+		private void parseDescription(String sdp) throws IOException {
+			boolean video = false;
+			int payloadType = 96, id = -1;
+			String encoding = "";
+			long clock = 90000;
+			for (String line : (sdp+"\nm=").split("\r?\n")) {
+				if (line.startsWith("m=")) {
+					if (id >= 0) mTracks.add(new Track(id, video, encoding, payloadType, clock));
+					String[] media = line.substring(2).split(" ");
+					video = media[0].equals("video");
+					payloadType = media.length > 3 ? Integer.parseInt(media[3]) : 96;
+					id = -1;
+				} else if (line.startsWith("a=rtpmap:"+payloadType+" ")) {
+					String[] map = line.substring(line.indexOf(' ')+1).split("/");
+					encoding = map[0];
+					if (map.length > 1) clock = Long.parseLong(map[1].trim());
+				} else if (line.startsWith("a=control:")) {
+					int track = line.indexOf("trackID=");
+					if (track >= 0) id = Integer.parseInt(line.substring(track+8).trim());
+				}
+			}
+			if (mTracks.isEmpty()) throw new IOException("No track in the session description");
+		}
+
+		private void setup(Track track, int index) throws IOException {
+			String transport;
+			if (mTcp) {
+				transport = "RTP/AVP/TCP;unicast;interleaved="+2*index+"-"+(2*index+1);
+			} else {
+				track.rtp = new DatagramSocket();
+				track.rtcp = new DatagramSocket();
+				track.rtp.setReceiveBufferSize(1<<20);
+				transport = "RTP/AVP/UDP;unicast;client_port="+track.rtp.getLocalPort()+"-"+track.rtcp.getLocalPort();
+			}
+			Response response = request("SETUP", mBase+(mBase.endsWith("/") ? "" : "/")+"trackID="+track.id, "Transport: "+transport+"\r\n", null);
+			String reply = response.headers.get("transport");
+			if (reply == null) throw new IOException("No Transport in the response to SETUP");
+			if (reply.contains("multicast")) throw new IOException("The server streams in multicast");
+			if (reply.contains("/TCP")) {
+				int interleaved = reply.indexOf("interleaved=");
+				track.channel = interleaved >= 0 ? Integer.parseInt(reply.substring(interleaved+12).split("[-;]")[0]) : 2*index;
+				if (track.rtp != null) {
+					track.rtp.close();
+					track.rtcp.close();
+					track.rtp = track.rtcp = null;
+				}
+			} else {
+				if (track.rtp == null) throw new IOException("The server streams over UDP, run the test without -tcp");
+				receive(track);
+			}
+		}
+
+		private void receive(final Track track) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[65536];
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					try {
+						while (!mClosed) {
+							track.rtp.receive(packet);
+							track.onPacket(buffer, 0, packet.getLength(), System.nanoTime());
+						}
+					} catch (IOException ignore) {}
+				}
+			}, TAG+"-"+id+"-"+track.id);
+			thread.setDaemon(true);
+			thread.start();
+			mThreads.add(thread);
+		}
+
+		@Override
+		void onPacket(int channel, byte[] data, int length) {
+			for (Track track : mTracks) {
+				if (track.channel == channel) track.onPacket(data, 0, length, System.nanoTime());
+			}
+		}
+
+		/** Sends a GET_PARAMETER if the last one is too old, the response is read by the Thread of the viewer. */
+		void keepAlive() {
+			long now = System.currentTimeMillis();
+			if (mLastKeepAlive == 0 || now-mLastKeepAlive < KEEP_ALIVE || mClosed) return;
+			mLastKeepAlive = now;
+			try {
+				send("GET_PARAMETER", mBase, null, null);
+			} catch (IOException e) {
+				mError = e.getMessage();
+			}
+		}
+
+		void stop() {
+			mClosed = true;
+			try {
+				if (mSession != null) send("TEARDOWN", mBase, null, null);
+			} catch (IOException ignore) {}
+			close();
+			for (Track track : mTracks) {
+				if (track.rtp != null) track.rtp.close();
+				if (track.rtcp != null) track.rtcp.close();
+			}
+		}
+
+		String getError() {
+			return mError;
+		}
+
+		/** Returns the time to the first frame in ms, of the video if there is one, -1 if none has been received yet. */
+		long getTimeToFirstFrame() {
+			Track first = null;
+			for (Track track : mTracks) if (first == null || track.video) first = track;
+			long frame = first != null ? first.mFirstFrame : 0;
+			return frame != 0 ? (frame-mStart)/1000000 : -1;
+		}
+
+		/** Returns what has been received since the previous call, and the throughput over that time in bit/s. */
+		Sample step(long now, long[] bitrate) {
+			Sample sample = new Sample();
+			long first = Long.MAX_VALUE;
+			for (Track track : mTracks) {
+				track.addTo(sample);
+				if (track.mFirstPacket != 0) first = Math.min(first, track.mFirstPacket);
+			}
+			Sample delta = sample.minus(mLast);
+			long since = Math.max(mLastStep, first);
+			bitrate[0] = first != Long.MAX_VALUE && now > since ? delta.bytes*8000000000L/(now-since) : 0;
+			mLast = sample;
+			mLastStep = now;
+			return delta;
+		}
+
+	}
+
+	/**
+	 * The CPU time and the number of the Threads of the server, the ones of the viewers and of the runner
+	 * do not count: on loopback, they share the CPUs with the server.
+	 */
+	static class ServerThreads {
+
+		private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+		private final Thread mRunner = Thread.currentThread();
+		private final HashMap<Long,Long> mCpuTimes = new HashMap<>();
+		private long mCpuTime = 0;
+		int count;
+
+		/** Returns the CPU time of the server since the previous call, in ns. */
+		long step() {
+			long[] ids = mThreads.getAllThreadIds();
+			long total = 0;
+			count = 0;
+			for (ThreadInfo info : mThreads.getThreadInfo(ids)) {
+				if (info == null || info.getThreadId() == mRunner.getId() || info.getThreadName().startsWith(TAG+"-")) continue;
+				long time = mThreads.getThreadCpuTime(info.getThreadId());
+				if (time < 0) continue;
+				count++;
+				// The Threads that end take their CPU time with them, it is kept
+				mCpuTimes.put(info.getThreadId(), time);
+			}
+			for (long time : mCpuTimes.values()) total += time;
+			long delta = total-mCpuTime;
+			mCpuTime = total;
+			return delta;
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int fps = 30, bitrate = 1000000, gop = 30;
+		int start = 1, step = 1, max = 20, interval = 10;
+		float maxLoss = 1;
+		boolean tcp = false;
+		for (int i=0; i<args.length; i++) {
+			switch (args[i]) {
+				case "-tcp": tcp = true; break;
+				case "-fps": fps = Integer.parseInt(args[++i]); break;
+				case "-bitrate": bitrate = Integer.parseInt(args[++i]); break;
+				case "-gop": gop = Integer.parseInt(args[++i]); break;
+				case "-start": start = Integer.parseInt(args[++i]); break;
+				case "-step": step = Integer.parseInt(args[++i]); break;
+				case "-max": max = Integer.parseInt(args[++i]); break;
+				case "-interval": interval = Integer.parseInt(args[++i]); break;
+				case "-loss": maxLoss = Float.parseFloat(args[++i]); break;
+				default:
+					System.err.println("Usage: RtspLoadRunner [-tcp] [-fps 30] [-bitrate 1000000] [-gop 30] [-start 1] [-step 1] [-max 20] [-interval 10] [-loss 1]");
+					System.exit(1);
+			}
+		}
+
+		// A line per connection would drown the report
+		Platform.setLogger(new Platform.StreamLogger(System.err, Platform.WARN));
+		SourceServer server = new SourceServer(AnnexBSource.synthetic(fps, bitrate, gop));
+		server.start(0);
+		String host = InetAddress.getLoopbackAddress().getHostAddress(), path = "/";
+		int port = server.getLocalPort();
+
+		ArrayList<Viewer> viewers = new ArrayList<>();
+		ServerThreads threads = new ServerThreads();
+		threads.step();
+		long wall = System.nanoTime(), reference = 0;
+		int capacity = 0;
+		String reason = null;
+
+		System.out.println("Load test of a SourceServer on rtsp://"+host+":"+port+path+" over "+(tcp ? "TCP" : "UDP")+", "+
+				"synthetic H.264 "+bitrate/1000+" kbit/s "+fps+" fps GOP "+gop+", "+interval+" s per step, "+
+				Runtime.getRuntime().availableProcessors()+" CPUs");
+		for (int target = start; reason == null && viewers.size() < max; target = Math.min(max, target+step)) {
+			int joined = viewers.size();
+			while (viewers.size() < target) {
+				Viewer viewer = new Viewer(viewers.size(), host, port, path, tcp);
+				viewers.add(viewer);
+				viewer.start();
+			}
+			for (int t=0; t<interval; t++) {
+				Thread.sleep(1000);
+				for (Viewer viewer : viewers) viewer.keepAlive();
+			}
+
+			long now = System.nanoTime(), min = Long.MAX_VALUE, sum = 0, received = 0, expected = 0, broken = 0;
+			float jitter = 0;
+			int failed = 0, waiting = 0;
+			long[] rate = new long[1];
+			ArrayList<Long> firstFrames = new ArrayList<>();
+			for (Viewer viewer : viewers) {
+				Sample delta = viewer.step(now, rate);
+				if (viewer.getError() != null) {
+					failed++;
+					continue;
+				}
+				long ttff = viewer.getTimeToFirstFrame();
+				if (ttff < 0) {
+					waiting++;
+					continue;
+				}
+				if (viewer.id >= joined) firstFrames.add(ttff);
+				min = Math.min(min, rate[0]);
+				sum += rate[0];
+				received += delta.received;
+				expected += delta.expected;
+				broken += delta.broken;
+				jitter = Math.max(jitter, delta.jitter);
+			}
+			int playing = viewers.size()-failed-waiting;
+			long average = playing > 0 ? sum/playing : 0;
+			float loss = expected > 0 ? Math.max(0, 100f*(expected-received)/expected) : 0;
+			Collections.sort(firstFrames);
+
+			long cpu = threads.step(), elapsed = System.nanoTime()-wall;
+			wall += elapsed;
+
+			System.out.println(String.format(Locale.US, "%4d viewers: %3d failed %3d waiting  %8d kbit/s  per viewer: min %6d avg %6d kbit/s  "+
+					"loss: %5.2f%%  jitter: %6.1f ms  broken frames: %4d  first frame: p50 %5s max %5s ms  "+
+					"server: %d sessions %d threads %d%% cpu",
+					viewers.size(), failed, waiting, sum/1000, playing > 0 ? min/1000 : 0, average/1000, loss, jitter, broken,
+					firstFrames.isEmpty() ? "-" : String.valueOf(firstFrames.get(firstFrames.size()/2)),
+					firstFrames.isEmpty() ? "-" : String.valueOf(firstFrames.get(firstFrames.size()-1)),
+					server.getSessionCount(), threads.count, cpu*100/Math.max(1, elapsed)));
+
+			if (reference == 0) reference = average;
+			if (failed > 0) {
+				for (Viewer viewer : viewers) if (viewer.getError() != null) reason = "viewer "+viewer.id+" failed: "+viewer.getError();
+			} else if (waiting > 0) {
+				reason = waiting+" viewers got no frame in "+interval+" s";
+			} else if (loss > maxLoss) {
+				reason = String.format(Locale.US, "%.2f%% of the packets were lost", loss);
+			} else if (min < reference*9/10) {
+				reason = "a viewer got "+min/1000+" kbit/s instead of "+reference/1000;
+			} else {
+				capacity = viewers.size();
+			}
+		}
+
+		for (Viewer viewer : viewers) viewer.stop();
+		server.stop();
+		System.out.println("Capacity: "+capacity+" viewers over "+(tcp ? "TCP" : "UDP")+
+				(reason != null ? ", fell over at "+viewers.size()+": "+reason : ", the maximum tested"));
+	}
+
+}
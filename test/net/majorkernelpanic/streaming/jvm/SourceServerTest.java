@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.jvm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The signaling of the RTSP server on the JVM with a {@link SourceServer}: a client describes the
+ * synthetic video track, sets it up over TCP or UDP, receives it from a key frame on, stops receiving
+ * it when it pauses, and its session ends with its TEARDOWN.
+ */
+public class SourceServerTest {
+
+	private SourceServer mServer;
+
+	/** A connection to the server, the interleaved packets are read along with the responses. */
+	private static class Client implements AutoCloseable {
+
+		final Socket mSocket;
+		final DataInputStream mInput;
+		String mSession;
+		int mCSeq = 0;
+
+		Client(int port) throws IOException {
+			mSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+			mSocket.setSoTimeout(5000);
+			mInput = new DataInputStream(mSocket.getInputStream());
+		}
+
+		/** Sends a request, returns its response, the interleaved packets received before are ignored. */
+		String request(String method, String uri, String headers) throws IOException {
+			String request = method+" "+uri+" RTSP/1.0\r\nCSeq: "+(++mCSeq)+"\r\n"+
+					(mSession != null ? "Session: "+mSession+"\r\n" : "")+headers+"\r\n";
+			mSocket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+			while (true) {
+				int c = mInput.readUnsignedByte();
+				if (c == '$') {
+					readPacket();
+					continue;
+				}
+				StringBuilder response = new StringBuilder().append((char) c);
+				while (response.indexOf("\r\n\r\n") < 0) response.append((char) mInput.readUnsignedByte());
+				String header = response.toString();
+				String length = header(header, "Content-Length");
+				byte[] content = new byte[length != null ? Integer.parseInt(length) : 0];
+				mInput.readFully(content);
+				assertTrue(header, header.startsWith("RTSP/1.0 200 OK\r\n"));
+				assertEquals(String.valueOf(mCSeq), header(header, "CSeq"));
+				String session = header(header, "Session");
+				if (session != null) mSession = session.split(";")[0];
+				return header+new String(content, StandardCharsets.US_ASCII);
+			}
+		}
+
+		/** Reads the next interleaved packet of the connection, after its '$'. */
+		byte[] readPacket() throws IOException {
+			int channel = mInput.readUnsignedByte();
+			byte[] packet = new byte[mInput.readUnsignedShort()];
+			mInput.readFully(packet);
+			assertEquals(0, channel);
+			return packet;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mSocket.close();
+		}
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new SourceServer(AnnexBSource.synthetic(30, 500000, 30));
+		mServer.start(0);
+	}
+
+	@After
+	public void tearDown() {
+		mServer.stop();
+	}
+
+	@Test
+	public void testInterleaved() throws Exception {
+		try (Client client = new Client(mServer.getLocalPort())) {
+			String uri = "rtsp://localhost:"+mServer.getLocalPort()+"/";
+			client.request("OPTIONS", uri, "");
+			String description = client.request("DESCRIBE", uri, "");
+			assertTrue(description, description.contains("m=video 0 RTP/AVP 96\r\na=rtpmap:96 H264/90000\r\n"));
+			assertTrue(description, description.contains("a=control:trackID=1\r\n"));
+			String setup = client.request("SETUP", uri+"trackID=1", "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n");
+			assertTrue(setup, setup.contains("Transport: RTP/AVP/TCP;unicast;interleaved=0-1;ssrc="));
+			assertEquals(1, mServer.getSessionCount());
+			client.request("PLAY", uri, "");
+
+			// The first packet starts a key frame, the ones after it follow each other
+			byte[] packet = nextPacket(client);
+			assertTrue(isKeyFrame(packet));
+			int seq = sequence(packet);
+			for (int i=0; i<30; i++) {
+				packet = nextPacket(client);
+				assertEquals(++seq & 0xFFFF, sequence(packet));
+			}
+
+			client.request("PAUSE", uri, "");
+			// What was queued before the PAUSE may still come, then nothing
+			client.mSocket.setSoTimeout(300);
+			try {
+				while (true) nextPacket(client);
+			} catch (SocketTimeoutException e) {
+				// The sink has been removed
+			}
+			client.mSocket.setSoTimeout(5000);
+
+			client.request("TEARDOWN", uri, "");
+			assertEquals(0, mServer.getSessionCount());
+			assertEquals(0, mServer.getRtpSocket().getSinkCount());
+		}
+	}
+
+	@Test
+	public void testUdp() throws Exception {
+		try (Client client = new Client(mServer.getLocalPort()); DatagramSocket rtp = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			rtp.setSoTimeout(5000);
+			String uri = "rtsp://localhost:"+mServer.getLocalPort()+"/";
+			client.request("DESCRIBE", uri, "");
+			int port = rtp.getLocalPort();
+			String setup = client.request("SETUP", uri+"trackID=1", "Transport: RTP/AVP/UDP;unicast;client_port="+port+"-"+(port+1)+"\r\n");
+			assertTrue(setup, setup.contains(";client_port="+port+"-"+(port+1)+";server_port="));
+			client.request("PLAY", uri, "");
+
+			DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+			rtp.receive(packet);
+			byte[] data = new byte[packet.getLength()];
+			System.arraycopy(packet.getData(), 0, data, 0, data.length);
+			assertTrue(isKeyFrame(data));
+			client.request("TEARDOWN", uri, "");
+			assertEquals(0, mServer.getRtpSocket().getSinkCount());
+		}
+	}
+
+	/** The SETUP of a track that has not been described is refused. */
+	@Test
+	public void testSetupBeforeDescribe() throws Exception {
+		try (Client client = new Client(mServer.getLocalPort())) {
+			String request = "SETUP rtsp://localhost/trackID=1 RTSP/1.0\r\nCSeq: 1\r\nTransport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n\r\n";
+			client.mSocket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+			StringBuilder response = new StringBuilder();
+			while (response.indexOf("\r\n\r\n") < 0) response.append((char) client.mInput.readUnsignedByte());
+			assertTrue(response.toString(), response.toString().startsWith("RTSP/1.0 404"));
+			assertEquals(0, mServer.getRtpSocket().getSinkCount());
+		}
+	}
+
+	/** Returns the value of a header of a response, null if it does not have it. */
+	private static String header(String response, String name) {
+		for (String line : response.split("\r\n")) {
+			if (line.regionMatches(true, 0, name+":", 0, name.length()+1)) return line.substring(name.length()+1).trim();
+		}
+		return null;
+	}
+
+	private static byte[] nextPacket(Client client) throws IOException {
+		int c = client.mInput.readUnsignedByte();
+		if (c != '$') fail("Not an interleaved packet: "+(char) c);
+		return client.readPacket();
+	}
+
+	private static int sequence(byte[] packet) {
+		return (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+	}
+
+	/** An SPS, an IDR slice, or a fragment or an aggregation that starts with one of them. */
+	private static boolean isKeyFrame(byte[] packet) {
+		int type = packet[12]&0x1F;
+		if (type == 24) type = packet[15]&0x1F;
+		else if (type == 28) type = (packet[13]&0x80) != 0 ? packet[13]&0x1F : 0;
+		return type == 5 || type == 7;
+	}
+
+}
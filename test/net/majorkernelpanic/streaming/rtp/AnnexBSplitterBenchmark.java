@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AnnexBSplitter} on the recorded H.264 stream repeated to a few megabytes, in a heap buffer or in a
+ * direct one like those of MediaCodec, one whole stream per operation. The byte by byte search of the
+ * start codes the packetizers did before it is the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnnexBSplitterBenchmark {
+
+	/** The size of the stream in MB. */
+	@Param({"4", "16"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean direct;
+
+	private ByteBuffer mBuffer;
+	private final AnnexBSplitter mSplitter = new AnnexBSplitter();
+
+	@Setup
+	public void setUp() throws IOException {
+		byte[] stream = Samples.repeat(Samples.h264(), size<<20);
+		mBuffer = direct ? ByteBuffer.allocateDirect(stream.length) : ByteBuffer.allocate(stream.length);
+		mBuffer.put(stream).clear();
+	}
+
+	@Benchmark
+	public int split() {
+		int sum = 0;
+		mSplitter.reset(mBuffer, 0, mBuffer.capacity());
+		while (mSplitter.next()) {
+			sum += mSplitter.getLength();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int bytewise() {
+		int sum = 0, start = 0, end = mBuffer.capacity();
+		for (int i = 0; i+2 < end; i++) {
+			if (mBuffer.get(i) == 0 && mBuffer.get(i+1) == 0 && mBuffer.get(i+2) == 1) {
+				sum += i-start;
+				start = i+3;
+				i += 2;
+			}
+		}
+		return sum+end-start;
+	}
+
+}
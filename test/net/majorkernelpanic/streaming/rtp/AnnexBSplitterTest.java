@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The NAL units found by {@link AnnexBSplitter}: start codes of three and four bytes, at every position
+ * relative to the eight bytes words it reads, trailing zeros, and random streams compared with a byte by byte split.
+ */
+public class AnnexBSplitterTest {
+
+	private final AnnexBSplitter mSplitter = new AnnexBSplitter();
+
+	@Test
+	public void testThreeAndFourBytesStartCodes() {
+		byte[] stream = bytes(0,0,0,1, 0x67,1,2,3, 0,0,1, 0x68,4, 0,0,0,1, 0x65,5,6,7,8,9,10,11,12,13);
+		assertNals(nals(new int[] {4, 4}, new int[] {11, 2}, new int[] {17, 10}), split(stream));
+	}
+
+	/** Some encoders do not put a start code before the first NAL unit. */
+	@Test
+	public void testNoLeadingStartCode() {
+		byte[] stream = bytes(0x67,1,2, 0,0,1, 0x68,3);
+		assertNals(nals(new int[] {0, 3}, new int[] {6, 2}), split(stream));
+	}
+
+	@Test
+	public void testTrailingZeros() {
+		// Zeros after a NAL unit, before the next start code and at the end of the stream
+		byte[] stream = bytes(0,0,0,1, 0x67,1, 0,0,0,0, 0,0,0,1, 0x68,2, 0,0);
+		assertNals(nals(new int[] {4, 2}, new int[] {14, 2}), split(stream));
+		// Nothing but zeros and start codes
+		assertNals(nals(), split(bytes(0,0,0,0,0,0,0,0,0,0,0,0)));
+		assertNals(nals(), split(bytes(0,0,1, 0,0,0,1, 0,0,1)));
+		assertNals(nals(), split(bytes()));
+	}
+
+	/** A start code at the end of the stream, or cut by its end. */
+	@Test
+	public void testEndOfStream() {
+		assertNals(nals(new int[] {0, 2}), split(bytes(0x67,1, 0,0,1)));
+		assertNals(nals(new int[] {0, 2}), split(bytes(0x67,1, 0,0)));
+		assertNals(nals(new int[] {0, 3}), split(bytes(0x67,1,1)));
+		assertNals(nals(new int[] {3, 1}), split(bytes(0,0,1, 0x68)));
+	}
+
+	/** Start codes of both lengths at every position in the words, in heap and direct buffers of both byte orders. */
+	@Test
+	public void testWordBoundaries() {
+		for (int shift = 0; shift < 24; shift++) {
+			for (int code = 3; code <= 4; code++) {
+				byte[] stream = new byte[shift+code+20];
+				for (int i = 0; i < shift; i++) stream[i] = (byte) (i+1);
+				stream[shift+code-1] = 1;
+				for (int i = shift+code; i < stream.length; i++) stream[i] = (byte) (0x40+i);
+				List<int[]> expected = shift > 0 ? nals(new int[] {0, shift}, new int[] {shift+code, 20}) : nals(new int[] {code, 20});
+				for (ByteBuffer buffer : buffers(stream, 0)) {
+					assertNals("Shift "+shift+", code "+code, expected, split(buffer, 0, stream.length));
+				}
+			}
+		}
+	}
+
+	/** The stream does not start at the beginning of the buffer, and the buffer goes on after its end. */
+	@Test
+	public void testOffsetAndLength() {
+		byte[] stream = bytes(0,0,1, 0x67,1,2,3,4,5,6,7,8,9, 0,0,0,1, 0x68,1);
+		for (int offset = 0; offset < 9; offset++) {
+			for (ByteBuffer buffer : buffers(stream, offset)) {
+				assertNals(nals(new int[] {offset+3, 10}, new int[] {offset+17, 2}), split(buffer, offset, stream.length));
+				// The end of the stream cuts the second start code
+				assertNals(nals(new int[] {offset+3, 10}), split(buffer, offset, 16));
+			}
+		}
+	}
+
+	/** Random streams with many zeros and start codes, split as by a byte by byte search. */
+	@Test
+	public void testRandomStreams() {
+		Random random = new Random(7);
+		for (int n = 0; n < 2000; n++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int length = random.nextInt(200);
+			while (out.size() < length) {
+				switch (random.nextInt(6)) {
+					case 0: out.write(0); out.write(0); out.write(1); break;
+					case 1: out.write(0); out.write(0); out.write(0); out.write(1); break;
+					case 2: out.write(0); break;
+					default: out.write(1+random.nextInt(255)); break;
+				}
+			}
+			byte[] stream = out.toByteArray();
+			int offset = random.nextInt(8);
+			List<int[]> expected = reference(stream, offset);
+			for (ByteBuffer buffer : buffers(stream, offset)) {
+				assertNals(expected, split(buffer, offset, stream.length));
+			}
+		}
+	}
+
+	/** The recorded stream, 2 SPS, 2 PPS and 20 slices. */
+	@Test
+	public void testRecording() throws IOException {
+		byte[] stream = Samples.h264();
+		List<int[]> nals = split(stream);
+		assertEquals(24, nals.size());
+		assertNals(reference(stream, 0), nals);
+	}
+
+	private List<int[]> split(byte[] stream) {
+		return split(ByteBuffer.wrap(stream), 0, stream.length);
+	}
+
+	private List<int[]> split(ByteBuffer buffer, int offset, int length) {
+		List<int[]> nals = new ArrayList<>();
+		mSplitter.reset(buffer, offset, length);
+		while (mSplitter.next()) {
+			nals.add(new int[] {mSplitter.getOffset(), mSplitter.getLength()});
+		}
+		return nals;
+	}
+
+	/** Splits the stream byte by byte. */
+	private static List<int[]> reference(byte[] stream, int offset) {
+		List<int[]> nals = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i <= stream.length; i++) {
+			boolean code = i+2 < stream.length && stream[i] == 0 && stream[i+1] == 0 && stream[i+2] == 1;
+			if (!code && i < stream.length) continue;
+			int end = i;
+			while (end > start && stream[end-1] == 0) end--;
+			if (end > start) nals.add(new int[] {offset+start, end-start});
+			start = i+3;
+			i += 2;
+		}
+		return nals;
+	}
+
+	/** The stream at an offset in heap and direct buffers, in both byte orders, with bytes after it. */
+	private static ByteBuffer[] buffers(byte[] stream, int offset) {
+		ByteBuffer[] buffers = new ByteBuffer[4];
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = i < 2 ? ByteBuffer.allocate(offset+stream.length+16) : ByteBuffer.allocateDirect(offset+stream.length+16);
+			buffer.order(i%2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			for (int j = 0; j < offset; j++) buffer.put(j, (byte) 0);
+			for (int j = 0; j < stream.length; j++) buffer.put(offset+j, stream[j]);
+			// A start code right after the end of the stream
+			buffer.put(offset+stream.length, (byte) 0);
+			buffer.put(offset+stream.length+1, (byte) 0);
+			buffer.put(offset+stream.length+2, (byte) 1);
+			buffers[i] = buffer;
+		}
+		return buffers;
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	private static List<int[]> nals(int[]... nals) {
+		List<int[]> list = new ArrayList<>();
+		for (int[] nal : nals) list.add(nal);
+		return list;
+	}
+
+	private static void assertNals(List<int[]> expected, List<int[]> actual) {
+		assertNals(null, expected, actual);
+	}
+
+	/** Compares two lists of offsets and lengths, the message shows both when they differ. */
+	private static void assertNals(String message, List<int[]> expected, List<int[]> actual) {
+		assertEquals(message, format(expected), format(actual));
+	}
+
+	private static String format(List<int[]> nals) {
+		StringBuilder builder = new StringBuilder("[");
+		for (int[] nal : nals) builder.append(' ').append(nal[0]).append('+').append(nal[1]);
+		return builder.append(" ]").toString();
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The path of the output buffers of the encoder in {@link MediaCodecInputStream}, here in a {@link StubEncoder}, 
+ * one access unit of the recorded H.264 stream per operation: copied in RTP sized chunks with 
+ * {@link EncoderInputStream#read(byte[], int, int)} like the packetizers used to, or referred to 
+ * without copies by {@link EncoderInputStream#readAccessUnit()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderInputStreamBenchmark {
+
+	private StubEncoder mEncoder;
+	private final byte[] mBuffer = new byte[RtpSocket.MTU];
+
+	@Setup
+	public void setUp() throws IOException {
+		mEncoder = StubEncoder.fromStream(Samples.h264(), false, 30);
+	}
+
+	@Benchmark
+	public int copy() throws IOException {
+		int sum = 0, n;
+		do {
+			n = mEncoder.read(mBuffer, 14, mBuffer.length-14);
+			sum += n;
+		} while (mEncoder.available() > 0);
+		return sum;
+	}
+
+	@Benchmark
+	public void zeroCopy(Blackhole blackhole) throws IOException {
+		AccessUnit unit = mEncoder.readAccessUnit();
+		blackhole.consume(unit.getBuffer().get(unit.getOffset()));
+		unit.release();
+	}
+
+}
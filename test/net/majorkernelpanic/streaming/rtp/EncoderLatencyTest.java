@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The latency from the output of the encoder to the first RTP packet of each frame, through the
+ * {@link EncoderInputStream}, the {@link H264Packetizer} and the {@link RtpSocket} that the streams use.
+ * MediaCodec needs a device, a {@link StubEncoder} gives the recorded stream at a fixed frame rate instead,
+ * so how MediaCodecInputStream and MediaCodecBridge get the buffers of the codec is not part of it.
+ * The latency is measured from the moment the encoder has filled a buffer to the write of the first packet
+ * of the frame by the socket.
+ */
+public class EncoderLatencyTest {
+
+	private final static int FPS = 60, FRAMES = 300;
+
+	/** The first frames are not measured, the JIT is still at work. */
+	private final static int WARMUP = 60;
+
+	/** Gives a frame every period, like an encoder fed by a camera, and remembers when. */
+	private static class PacedEncoder extends StubEncoder {
+
+		private final long[] mOutputs = new long[FRAMES];
+		private long mStart = 0;
+
+		PacedEncoder(StubEncoder encoder) throws IOException {
+			super(frames(encoder), null, 1000000/FPS);
+		}
+
+		@Override
+		protected void dequeue() throws IOException {
+			int n = (int) getFrameCount();
+			if (mStart == 0) mStart = System.nanoTime();
+			long delay = n < FRAMES ? mStart+n*1000000000L/FPS-System.nanoTime() : Long.MAX_VALUE;
+			while (delay > 0 && !mClosed && !Thread.currentThread().isInterrupted()) {
+				LockSupport.parkNanos(delay);
+				delay = n < FRAMES ? mStart+n*1000000000L/FPS-System.nanoTime() : Long.MAX_VALUE;
+			}
+			if (mClosed || Thread.currentThread().isInterrupted()) return;
+			super.dequeue();
+			mOutputs[n] = getLastOutputTime();
+		}
+
+		private static byte[][] frames(StubEncoder encoder) throws IOException {
+			byte[][] frames = new byte[20][];
+			for (int i = 0; i < frames.length; i++) {
+				AccessUnit unit = encoder.readAccessUnit();
+				frames[i] = new byte[unit.getSize()];
+				unit.copy(unit.getOffset(), frames[i], 0, frames[i].length);
+				unit.release();
+			}
+			return frames;
+		}
+
+	}
+
+	/** Remembers when each packet has been written. */
+	private static class Capture extends ByteArrayOutputStream {
+
+		private final List<long[]> mWrites = new ArrayList<>();
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			mWrites.add(new long[] {count, System.nanoTime()});
+			super.write(b, off, len);
+		}
+
+		/** Returns when the first packet of each frame has been written, the frames are told apart by their RTP timestamps. */
+		synchronized List<Long> getFirstPackets() {
+			List<Long> times = new ArrayList<>();
+			long timestamp = -1;
+			for (int i = 0, w = 0; i+4 <= count; i += 4+((buf[i+2]&0xFF)<<8 | (buf[i+3]&0xFF))) {
+				while (w+1 < mWrites.size() && mWrites.get(w+1)[0] <= i) w++;
+				// The sender reports are on channel 1
+				if (buf[i+1] != 0) continue;
+				long ts = (buf[i+8]&0xFFL)<<24 | (buf[i+9]&0xFF)<<16 | (buf[i+10]&0xFF)<<8 | (buf[i+11]&0xFF);
+				if (ts != timestamp) times.add(mWrites.get(w)[1]);
+				timestamp = ts;
+			}
+			return times;
+		}
+
+	}
+
+	@Test
+	public void testLatency() throws Exception {
+		PacedEncoder encoder = new PacedEncoder(StubEncoder.fromStream(Samples.h264(), false, FPS));
+		H264Packetizer packetizer = new H264Packetizer();
+		Capture capture = new Capture();
+		packetizer.getRtpSocket().setOutputStream(capture, (byte) 0);
+		packetizer.setInputStream(encoder);
+		packetizer.start();
+		// The last frames go through the packetizer and the socket
+		Thread.sleep(FRAMES*1000L/FPS+200);
+		packetizer.stop();
+		Samples.close(packetizer.getRtpSocket());
+
+		List<Long> packets = capture.getFirstPackets();
+		assertEquals(FRAMES, packets.size());
+		long[] latencies = new long[FRAMES-WARMUP];
+		for (int n = WARMUP; n < FRAMES; n++) {
+			latencies[n-WARMUP] = packets.get(n)-encoder.mOutputs[n];
+		}
+		Arrays.sort(latencies);
+		String summary = String.format(Locale.US, "Encoder output to first RTP packet: p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us",
+				latencies[latencies.length/2]/1e3, latencies[latencies.length*9/10]/1e3, latencies[latencies.length*99/100]/1e3, latencies[latencies.length-1]/1e3);
+		System.out.println(summary);
+		// The packets keep up with the encoder
+		assertTrue(summary, latencies[latencies.length/2] < 1000000000L/FPS);
+	}
+
+}
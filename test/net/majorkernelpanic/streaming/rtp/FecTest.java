@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loopback of the FEC: the recorded stream of {@link Samples} is packetized by an {@link H264Packetizer} whose
+ * RtpSocket protects it with a {@link FecEncoder} over TCP. One packet of each group is dropped from what has been
+ * written, the marker packet of some groups, the first packet of others and always the first packet of the groups
+ * of key frames, and the {@link FecDecoder} must rebuild each of them exactly.
+ */
+public class FecTest {
+
+	private final static int FEC_PAYLOAD_TYPE = 127;
+
+	/** The packets written by the socket, without the interleaved headers of TCP. */
+	private static class Capture extends ByteArrayOutputStream {
+
+		List<byte[]> getPackets(int channel) {
+			List<byte[]> packets = new ArrayList<>();
+			byte[] data = toByteArray();
+			for (int i = 0; i+4 <= data.length;) {
+				int length = (data[i+2]&0xFF)<<8 | (data[i+3]&0xFF);
+				if (data[i] != '$' || i+4+length > data.length) throw new IllegalStateException("Not interleaved at "+i);
+				if (data[i+1] == channel) packets.add(Arrays.copyOfRange(data, i+4, i+4+length));
+				i += 4+length;
+			}
+			return packets;
+		}
+
+	}
+
+	@Test
+	public void testLoopback() throws IOException, InterruptedException {
+		StubEncoder encoder = StubEncoder.fromStream(Samples.h264(), false, 30);
+		H264Packetizer packetizer = new H264Packetizer();
+		RtpSocket socket = packetizer.getRtpSocket();
+		Capture capture = new Capture();
+		socket.setCacheSize(0);
+		socket.setOutputStream(capture, (byte) 0);
+		socket.setFec(new FecEncoder(FEC_PAYLOAD_TYPE, 4, 10));
+		for (int i = 0; i < 40; i++) {
+			AccessUnit unit = encoder.readAccessUnit();
+			try {
+				packetizer.send(unit);
+			} finally {
+				unit.release();
+			}
+		}
+		Samples.close(socket);
+
+		List<byte[]> packets = capture.getPackets(0);
+		Map<Integer,byte[]> media = new HashMap<>();
+		for (byte[] packet : packets) {
+			if (!isFec(packet)) media.put(seq(packet), packet);
+		}
+
+		// One packet of each group is dropped
+		Set<Integer> dropped = new HashSet<>();
+		int groups = 0, frames = 0, markers = 0, keyFrames = 0;
+		for (byte[] packet : packets) {
+			if (!isFec(packet)) continue;
+			int[] group = getGroup(packet);
+			int drop;
+			if (isKeyFrame(media.get(group[0]))) {
+				drop = group[0];
+				keyFrames++;
+			} else if (isMarker(media.get(group[group.length-1])) && frames++%2 == 0) {
+				drop = group[group.length-1];
+				markers++;
+			} else {
+				drop = group[groups%group.length];
+			}
+			dropped.add(drop);
+			groups++;
+		}
+		assertTrue(keyFrames > 0 && markers > 0);
+
+		FecDecoder decoder = new FecDecoder(FEC_PAYLOAD_TYPE);
+		Set<Integer> recovered = new HashSet<>();
+		for (byte[] packet : packets) {
+			if (!isFec(packet) && dropped.contains(seq(packet))) continue;
+			int length = decoder.receive(packet, packet.length);
+			if (length > 0) {
+				byte[] packetRecovered = Arrays.copyOf(decoder.getRecoveredPacket(), length);
+				int seq = seq(packetRecovered);
+				assertArrayEquals("Packet "+seq, media.get(seq), packetRecovered);
+				assertTrue(recovered.add(seq));
+			}
+		}
+		assertEquals(dropped, recovered);
+		assertEquals(0, decoder.getUnrecoverablePackets());
+		assertEquals(groups, decoder.getRecoveredPackets());
+	}
+
+	/** A group of a single packet, a frame that fits in one packet: the FEC packet is all there is to rebuild it from. */
+	@Test
+	public void testSinglePacketGroup() {
+		FecEncoder encoder = new FecEncoder(FEC_PAYLOAD_TYPE, 1, 1);
+		FecDecoder decoder = new FecDecoder(FEC_PAYLOAD_TYPE);
+		encoder.setStream(0x12345678, 100);
+		byte[][] packets = new byte[3][];
+		for (int i = 0; i < packets.length; i++) {
+			packets[i] = new byte[RtpSocket.RTP_HEADER_LENGTH+100+i*50];
+			for (int j = RtpSocket.RTP_HEADER_LENGTH; j < packets[i].length; j++) packets[i][j] = (byte) (i*31+j);
+			packets[i][0] = (byte) 0x80;
+			packets[i][1] = (byte) 0xE0;
+			FecEncoder.setLong(packets[i], 0xFFFF+i, 2, 4);
+			FecEncoder.setLong(packets[i], 3000L*i, 4, 8);
+			FecEncoder.setLong(packets[i], 0xCAFEBABEL, 8, 12);
+			int length = encoder.protect(packets[i], packets[i].length, i == 0);
+			assertTrue(length > 0);
+			byte[] fec = Arrays.copyOf(encoder.getPacket(), length);
+			if (i == 1) {
+				// The packet is lost, its FEC packet arrives
+				assertEquals(packets[i].length, decoder.receive(fec, fec.length));
+				assertArrayEquals(packets[i], Arrays.copyOf(decoder.getRecoveredPacket(), packets[i].length));
+			} else {
+				decoder.receive(packets[i], packets[i].length);
+				assertEquals(0, decoder.receive(fec, fec.length));
+			}
+		}
+		assertEquals(1, decoder.getRecoveredPackets());
+	}
+
+	/** Returns the sequence numbers of the packets protected by a FEC packet, in order. */
+	private static int[] getGroup(byte[] fec) {
+		int h = RtpSocket.RTP_HEADER_LENGTH;
+		int base = (fec[h+2]&0xFF)<<8 | (fec[h+3]&0xFF);
+		int mask = (fec[h+12]&0xFF)<<8 | (fec[h+13]&0xFF);
+		int[] group = new int[Integer.bitCount(mask)];
+		for (int i = 0, n = 0; i < 16; i++) {
+			if ((mask & 0x8000>>>i) != 0) group[n++] = (base+i)&0xFFFF;
+		}
+		return group;
+	}
+
+	private static boolean isFec(byte[] packet) {
+		return (packet[1]&0x7F) == FEC_PAYLOAD_TYPE;
+	}
+
+	private static boolean isMarker(byte[] packet) {
+		return (packet[1]&0x80) != 0;
+	}
+
+	private static int seq(byte[] packet) {
+		return (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+	}
+
+	/** Whether the packet carries an SPS, a PPS or a part of an IDR slice. */
+	private static boolean isKeyFrame(byte[] packet) {
+		int h = RtpSocket.RTP_HEADER_LENGTH;
+		int type = packet[h]&0x1F;
+		if (type == 28) type = packet[h+1]&0x1F;
+		if (type == 24) type = packet[h+3]&0x1F;
+		return type == 5 || type == 7 || type == 8;
+	}
+
+}
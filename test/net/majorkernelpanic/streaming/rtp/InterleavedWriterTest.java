@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The RTSP responses of a connection whose client does not read: the packets queued make room for
+ * them, and the connection is closed when that is not enough. The writer never waits for the client.
+ */
+public class InterleavedWriterTest {
+
+	/** A response with a session description, more than what is left in the queue once the packets have filled it. */
+	private final static byte[] RESPONSE = ("RTSP/1.0 200 OK\r\nCSeq: 3\r\nContent-Length: 4000\r\n\r\n"+new String(new char[4000]).replace('\0', 'v')).getBytes(StandardCharsets.US_ASCII);
+
+	private final static int PACKET_SIZE = 1000;
+
+	/** A connection that does not take anything until it is opened. */
+	private static class BlockedOutput extends ByteArrayOutputStream {
+
+		final CountDownLatch mOpen = new CountDownLatch(1);
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			try {
+				mOpen.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			synchronized (this) {
+				super.write(b, off, len);
+			}
+		}
+
+	}
+
+	@Test
+	public void testResponseDropsPackets() throws Exception {
+		BlockedOutput output = new BlockedOutput();
+		InterleavedWriter writer = new InterleavedWriter(output);
+		KeyFrameRequester requester = new KeyFrameRequester(() -> {}, 0);
+		writer.setVideoChannel(0, requester);
+		writer.start();
+		// The queue is almost full, the writer is stuck on the first packets
+		int sent = InterleavedWriter.DEFAULT_MAX_BYTES/(4+PACKET_SIZE)-1;
+		for (int frame = 0; frame < sent; frame++) {
+			assertTrue(writer.send(0, packet(frame, PACKET_SIZE), PACKET_SIZE, frame == 0 ? InterleavedWriter.FLAG_KEY_FRAME : 0));
+		}
+		assertEquals(0, writer.getDroppedPackets());
+
+		writer.write(RESPONSE);
+		assertTrue(writer.getDroppedPackets() > 0);
+		assertEquals(1, writer.getFreezes());
+
+		output.mOpen.countDown();
+		while (writer.getQueuedBytes() > 0) Thread.sleep(1);
+		// Whole packets, then the response
+		byte[] data;
+		synchronized (output) {
+			data = output.toByteArray();
+		}
+		int i = 0, packets = 0;
+		while (i < data.length && data[i] == '$') {
+			int length = (data[i+2]&0xFF)<<8 | (data[i+3]&0xFF);
+			assertEquals(PACKET_SIZE, length);
+			i += 4+length;
+			packets++;
+		}
+		assertEquals(sent-writer.getDroppedPackets(), packets);
+		assertArrayEquals(RESPONSE, Arrays.copyOfRange(data, i, data.length));
+
+		// The video resumes with a key frame, which is requested once the queue has drained
+		assertFalse(writer.send(0, packet(sent+1, PACKET_SIZE), PACKET_SIZE, 0));
+		assertEquals(1, requester.getRequests());
+		assertTrue(writer.send(0, packet(sent+2, PACKET_SIZE), PACKET_SIZE, InterleavedWriter.FLAG_KEY_FRAME));
+		writer.close();
+	}
+
+	/** The responses queued before cannot be dropped, the connection is closed instead. */
+	@Test
+	public void testResponsesThatDoNotFit() throws Exception {
+		BlockedOutput output = new BlockedOutput();
+		InterleavedWriter writer = new InterleavedWriter(output);
+		writer.start();
+		try {
+			writer.write(new byte[2*InterleavedWriter.DEFAULT_MAX_BYTES]);
+			fail("The response does not fit");
+		} catch (IOException e) {
+			// The connection is closed right away
+		}
+		assertFalse(writer.send(0, packet(0, PACKET_SIZE), PACKET_SIZE, InterleavedWriter.FLAG_KEY_FRAME));
+		output.mOpen.countDown();
+	}
+
+	/** An RTP packet of a frame, its timestamp is the number of the frame. */
+	private static byte[] packet(int frame, int length) {
+		byte[] packet = new byte[length];
+		packet[0] = (byte) 0x80;
+		packet[4] = (byte) (frame>>24);
+		packet[5] = (byte) (frame>>16);
+		packet[6] = (byte) (frame>>8);
+		packet[7] = (byte) frame;
+		return packet;
+	}
+
+}
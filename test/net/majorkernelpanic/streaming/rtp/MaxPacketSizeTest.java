@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The packets, the writes and the bytes that are not part of the NAL units, per frame, when the recorded streams
+ * of {@link Samples} are sent over RTSP/TCP with packets as long as the MTU allows and with packets of up to 64 KB,
+ * see {@link RtpSocket#setMaxTcpPacketSize(int)}. The connection is a plain OutputStream, each of its writes is a syscall.
+ */
+public class MaxPacketSizeTest {
+
+	/** The number of frames of the recorded streams. */
+	private final static int FRAMES = 20;
+
+	/** What has been sent for one frame. */
+	private static class Frame {
+		boolean key;
+		int packets, writes;
+		long bytes, nals;
+	}
+
+	/** Remembers where each write starts. */
+	private static class Capture extends ByteArrayOutputStream {
+
+		final List<Integer> mWrites = new ArrayList<>();
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			mWrites.add(count);
+			super.write(b, off, len);
+		}
+
+		/** Splits what has been written on channel 0 in frames, by their RTP timestamps. */
+		synchronized List<Frame> getFrames() {
+			List<Frame> frames = new ArrayList<>();
+			Frame frame = null;
+			long timestamp = -1;
+			for (int i = 0, w = 0; i+4 <= count; ) {
+				int length = (buf[i+2]&0xFF)<<8 | (buf[i+3]&0xFF);
+				int end = i+4+length;
+				if (buf[i+1] == 0) {
+					long ts = (buf[i+8]&0xFFL)<<24 | (buf[i+9]&0xFF)<<16 | (buf[i+10]&0xFF)<<8 | (buf[i+11]&0xFF);
+					if (ts != timestamp) frames.add(frame = new Frame());
+					timestamp = ts;
+					frame.packets++;
+					frame.bytes += 4+length;
+					while (w < mWrites.size() && mWrites.get(w) < end) {
+						if (mWrites.get(w) >= i) frame.writes++;
+						w++;
+					}
+				} else {
+					while (w < mWrites.size() && mWrites.get(w) < end) w++;
+				}
+				i = end;
+			}
+			return frames;
+		}
+
+	}
+
+	@Test
+	public void testH264() throws IOException, InterruptedException {
+		compare("H.264", false);
+	}
+
+	@Test
+	public void testH265() throws IOException, InterruptedException {
+		compare("H.265", true);
+	}
+
+	private static void compare(String name, boolean hevc) throws IOException, InterruptedException {
+		List<Frame> mtu = send(hevc, 0), large = send(hevc, RtpSocket.MAX_TCP_PACKET_SIZE);
+		for (int i = 0; i < FRAMES; i++) {
+			Frame before = mtu.get(i), after = large.get(i);
+			assertTrue(after.packets <= before.packets && after.writes <= before.writes && after.bytes-after.nals < before.bytes-before.nals);
+		}
+		System.out.println(summary(name+", "+(RtpSocket.MTU-28)+" B", mtu));
+		System.out.println(summary(name+", 64 KB", large));
+	}
+
+	/** Sends a loop of the recorded stream, returns what has been written for each frame. */
+	private static List<Frame> send(boolean hevc, int maxTcpPacketSize) throws IOException, InterruptedException {
+		StubEncoder encoder = StubEncoder.fromStream(hevc ? Samples.h265() : Samples.h264(), hevc, 30);
+		AbstractPacketizer packetizer = hevc ? new H265Packetizer() : new H264Packetizer();
+		RtpSocket socket = packetizer.getRtpSocket();
+		Capture capture = new Capture();
+		socket.setCacheSize(0);
+		socket.setOutputStream(capture, (byte) 0);
+		socket.setMaxTcpPacketSize(maxTcpPacketSize);
+		AnnexBSplitter splitter = new AnnexBSplitter();
+		boolean[] keys = new boolean[FRAMES];
+		long[] nals = new long[FRAMES];
+		for (int i = 0; i < FRAMES; i++) {
+			AccessUnit unit = encoder.readAccessUnit();
+			try {
+				keys[i] = unit.isKeyFrame();
+				splitter.reset(unit.getBuffer(), unit.getOffset(), unit.getSize());
+				while (splitter.next()) nals[i] += splitter.getLength();
+				if (hevc) ((H265Packetizer) packetizer).send(unit);
+				else ((H264Packetizer) packetizer).send(unit);
+			} finally {
+				unit.release();
+			}
+		}
+		Samples.close(socket);
+
+		List<Frame> frames = capture.getFrames();
+		assertEquals(FRAMES, frames.size());
+		for (int i = 0; i < FRAMES; i++) {
+			frames.get(i).key = keys[i];
+			frames.get(i).nals = nals[i];
+		}
+		return frames;
+	}
+
+	/** The mean per key frame and per other frame. */
+	private static String summary(String name, List<Frame> frames) {
+		StringBuilder summary = new StringBuilder(name);
+		for (boolean key : new boolean[] {true, false}) {
+			double n = 0, packets = 0, writes = 0, overhead = 0, size = 0;
+			for (Frame frame : frames) {
+				if (frame.key != key) continue;
+				n++;
+				packets += frame.packets;
+				writes += frame.writes;
+				overhead += frame.bytes-frame.nals;
+				size += frame.nals;
+			}
+			summary.append(String.format(Locale.US, ", %s frames (%.0f B): %.1f packets, %.1f writes, %.0f B of headers",
+					key ? "key" : "other", size/n, packets/n, writes/n, overhead/n));
+		}
+		return summary.toString();
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import net.majorkernelpanic.streaming.rtp.RateSimulator.Step;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The control laws replayed by a {@link RateSimulator} against the traces of test/resources/traces: a link whose
+ * capacity falls in steps and comes back up, a mobile link whose capacity changes every few seconds, and a
+ * lossy Wi-Fi. Starting from the ceiling, above the capacity of the link, each law must bring the bitrate
+ * below the capacity and keep it there without losing the packets nor filling the queue of the bottleneck.
+ */
+public class RateControlTest {
+
+	private final static String[] TRACES = {"/traces/steps.txt", "/traces/lte.txt", "/traces/wifi.txt"};
+
+	/** The floor and the ceiling of the bitrate, and how long the controller is given to get below the capacity, in ms. */
+	private final static int MIN = 200000, MAX = 4000000;
+	private final static long SETTLE = 10000;
+
+	/** Segments of the traces where the capacity does not change for this long must be converged upon on their own, in ms. */
+	private final static long SEGMENT = 20000;
+
+	@Test
+	public void testAimd() throws IOException {
+		for (String trace : TRACES) {
+			// The step of VideoStream
+			RateSimulator simulator = simulate(new AimdRateControl(MAX/80), trace);
+			assertConverges(trace, simulator);
+			// A loss based control fills the queue before it decreases, but does not keep it full
+			assertTrue(trace+": "+simulator, simulator.getAverageQueueDelay() < RateSimulator.DEFAULT_QUEUE_LIMIT/2);
+		}
+	}
+
+	@Test
+	public void testDelay() throws IOException {
+		for (String trace : TRACES) {
+			RateSimulator simulator = simulate(new DelayRateControl(), trace);
+			assertConverges(trace, simulator);
+			assertTrue(trace+": "+simulator, simulator.getAverageQueueDelay() < DelayRateControl.RTT_THRESHOLD);
+			// Each long enough segment of the trace, in its second half
+			List<Step> steps = simulator.getSteps();
+			for (int start = 0, i = 1; i <= steps.size(); i++) {
+				if (i < steps.size() && steps.get(i).capacity == steps.get(start).capacity) continue;
+				if (steps.get(i-1).time-steps.get(start).time >= SEGMENT) {
+					double ratio = ratio(steps.subList((start+i)/2, i));
+					assertTrue(String.format(Locale.US, "%s: %.3f of the capacity at %d ms", trace, ratio, steps.get(start).time), ratio < 1);
+				}
+				start = i;
+			}
+		}
+	}
+
+	private static RateSimulator simulate(RateControl control, String trace) throws IOException {
+		RateSimulator simulator = new RateSimulator(control, MIN, MAX);
+		simulator.load(trace);
+		simulator.run();
+		return simulator;
+	}
+
+	/** Once settled, the bitrate is below the capacity but not far below, and few packets are lost. */
+	private static void assertConverges(String trace, RateSimulator simulator) {
+		List<Step> steps = simulator.getSteps();
+		int settled = 0;
+		while (steps.get(settled).time < SETTLE) settled++;
+		double ratio = ratio(steps.subList(settled, steps.size()));
+		String message = String.format(Locale.US, "%s: %.3f of the capacity, %s", trace, ratio, simulator);
+		assertTrue(message, ratio < 1 && ratio > 0.8);
+		assertTrue(message, simulator.getLoss() < AimdRateControl.LOSS_HIGH);
+	}
+
+	/** Returns the ratio between the bitrate of the encoder and the capacity of the link over some steps. */
+	private static double ratio(List<Step> steps) {
+		double bitrate = 0, capacity = 0;
+		for (Step step : steps) {
+			bitrate += step.bitrate;
+			capacity += step.capacity;
+		}
+		return bitrate/capacity;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a recorded network trace against a {@link RateControl}, without encoder nor network,
+ * to compare control laws and tune them offline.
+ *
+ * The trace has one line per change of the network: the time in ms, the capacity of the link in kbit/s,
+ * the random loss in % and the round trip time of the empty path in ms. Lines starting with # are ignored.
+ * The link is a bottleneck with a FIFO: what is sent above its capacity waits in the FIFO and adds
+ * to the round trip time, what does not fit in it is lost. Receivers report at each step of the controller.
+ * The traces of {@link RateControlTest} are in test/resources/traces.
+ */
+public class RateSimulator {
+
+	/** Default size of the FIFO of the bottleneck, in ms at the capacity of the link. */
+	public final static long DEFAULT_QUEUE_LIMIT = 300;
+
+	private final RateControl mControl;
+	private final int mMin, mMax;
+	private final ArrayList<long[]> mTrace = new ArrayList<>();
+	private final ArrayList<Step> mSteps = new ArrayList<>();
+	private long mInterval = BitrateController.DEFAULT_INTERVAL;
+	private long mQueueLimit = DEFAULT_QUEUE_LIMIT;
+
+	/** What happened during one step of the controller. */
+	public static class Step {
+		/** The time at the end of the step in ms, the bitrate of the encoder during the step and the capacity of the link in bit/s. */
+		public long time, bitrate, capacity;
+		/** The delay in the FIFO of the bottleneck at the end of the step, in ms. */
+		public long queueDelay;
+		/** The fraction of the bytes sent during the step that were lost. */
+		public float loss;
+	}
+
+	// Results
+	private long mAdjustments;
+	private double mSent, mDelivered, mCapacity, mTotalQueue, mMaxQueue, mLost;
+
+	public RateSimulator(RateControl control, int min, int max) {
+		mControl = control;
+		mMin = min;
+		mMax = max;
+	}
+
+	/** Sets the period of the controller in ms. */
+	public void setInterval(long interval) {
+		mInterval = interval;
+	}
+
+	/** Sets the size of the FIFO of the bottleneck, in ms at the capacity of the link. */
+	public void setQueueLimit(long limit) {
+		mQueueLimit = limit;
+	}
+
+	/** Reads a trace from the resources of the tests. */
+	public void load(String name) throws IOException {
+		InputStream is = RateSimulator.class.getResourceAsStream(name);
+		if (is == null) throw new IOException(name+" not found");
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII))) {
+			load(reader);
+		}
+	}
+
+	/** Reads a trace, see {@link RateSimulator}. */
+	public void load(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] f = line.split("[\\s,;]+");
+			if (f.length < 4) throw new IOException("Invalid trace line: "+line);
+			mTrace.add(new long[] {Long.parseLong(f[0]), Long.parseLong(f[1])*1000, (long) (Double.parseDouble(f[2])*100), Long.parseLong(f[3])});
+		}
+		if (mTrace.isEmpty()) throw new IOException("Empty trace");
+	}
+
+	/** Runs the controller over the whole trace. */
+	public void run() {
+		final long[] encoder = {mMax};
+		BitrateController controller = new BitrateController(mControl, bitrate -> encoder[0] = bitrate, mMin, mMax);
+		NetworkState state = new NetworkState();
+		mControl.reset(mMax);
+		double queue = 0;
+		long end = mTrace.get(mTrace.size()-1)[0];
+		int index = 0;
+		for (long t = mInterval; t <= end; t += mInterval) {
+			while (index+1 < mTrace.size() && mTrace.get(index+1)[0] <= t) index++;
+			long[] step = mTrace.get(index);
+			long capacity = Math.max(step[1], 1);
+			double randomLoss = step[2]/10000.0;
+
+			// What the encoder sends during the step goes through the bottleneck
+			double sent = encoder[0]*mInterval/8000.0;
+			double limit = capacity*mQueueLimit/8000.0;
+			double drained = capacity*mInterval/8000.0;
+			queue += sent;
+			double delivered = Math.min(queue, drained);
+			queue -= delivered;
+			double dropped = Math.max(0, queue-limit);
+			queue -= dropped;
+			double lost = dropped + (sent-dropped)*randomLoss;
+			float loss = sent > 0 ? (float) Math.min(1, lost/sent) : 0;
+			long queueDelay = (long) (queue*8000/capacity);
+			long rtt = step[3]+queueDelay;
+
+			state.set(t, controller.getTarget(), (long) (sent*8000/mInterval));
+			state.setReport(loss, rtt, queueDelay/4f);
+			Step result = new Step();
+			result.time = t;
+			result.bitrate = encoder[0];
+			result.capacity = capacity;
+			result.queueDelay = queueDelay;
+			result.loss = loss;
+			mSteps.add(result);
+
+			long before = encoder[0];
+			controller.update(state);
+			if (encoder[0] != before) mAdjustments++;
+
+			mSent += sent;
+			mDelivered += delivered;
+			mCapacity += drained;
+			mLost += lost;
+			mTotalQueue += queueDelay;
+			mMaxQueue = Math.max(mMaxQueue, queueDelay);
+		}
+	}
+
+	/** Returns the ratio between the bytes delivered and the capacity of the link. */
+	public double getUtilization() {
+		return mCapacity>0 ? mDelivered/mCapacity : 0;
+	}
+
+	/** Returns the ratio of the bytes lost. */
+	public double getLoss() {
+		return mSent>0 ? mLost/mSent : 0;
+	}
+
+	/** Returns the average queuing delay in the bottleneck, in ms. */
+	public double getAverageQueueDelay() {
+		return mSteps.size()>0 ? mTotalQueue/mSteps.size() : 0;
+	}
+
+	public double getMaxQueueDelay() {
+		return mMaxQueue;
+	}
+
+	public long getAdjustments() {
+		return mAdjustments;
+	}
+
+	/** Returns the steps of the controller, in order. */
+	public List<Step> getSteps() {
+		return mSteps;
+	}
+
+	public String toString() {
+		return mControl+": utilization: "+String.format("%.3f", getUtilization())+" loss: "+String.format("%.3f", getLoss())+
+				" queue avg: "+Math.round(getAverageQueueDelay())+" ms max: "+Math.round(mMaxQueue)+" ms adjustments: "+mAdjustments;
+	}
+
+}
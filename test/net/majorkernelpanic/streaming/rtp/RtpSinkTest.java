@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The sinks of an {@link RtpSocket} in fan-out mode: each client has its own sequence numbers, and a packet
+ * it NACKs is found in the {@link SendHistory} of the socket and sent again exactly as it was sent to it.
+ * A client paused and resumed gets the {@link GopCache} again.
+ */
+public class RtpSinkTest {
+
+	private final static int SINKS = 3;
+
+	/** The RTP packets written to a client, without the interleaved headers of TCP. */
+	private static class Capture extends ByteArrayOutputStream {
+
+		synchronized List<byte[]> getPackets() {
+			List<byte[]> packets = new ArrayList<>();
+			for (int i = 0; i+4 <= count;) {
+				int length = (buf[i+2]&0xFF)<<8 | (buf[i+3]&0xFF);
+				// The sender reports are on channel 1
+				if (buf[i+1] == 0) packets.add(Arrays.copyOfRange(buf, i+4, i+4+length));
+				i += 4+length;
+			}
+			return packets;
+		}
+
+	}
+
+	@Test
+	public void testNackThroughSeveralSinks() throws IOException, InterruptedException {
+		StubEncoder encoder = StubEncoder.fromStream(Samples.h264(), false, 30);
+		H264Packetizer packetizer = new H264Packetizer();
+		RtpSocket socket = packetizer.getRtpSocket();
+		SendHistory history = new SendHistory(SendHistory.DEFAULT_MAX_AGE, SendHistory.DEFAULT_MAX_BYTES);
+		socket.setCacheSize(0);
+		socket.setFanOut(true);
+		socket.setRetransmission(history, 0);
+		RtpSink[] sinks = new RtpSink[SINKS];
+		Capture[] captures = new Capture[SINKS];
+		for (int i = 0; i < SINKS; i++) {
+			sinks[i] = new RtpSink();
+			captures[i] = new Capture();
+			sinks[i].setOutputStream(captures[i], (byte) 0);
+			socket.addSink(sinks[i]);
+		}
+
+		send(packetizer, encoder, 20);
+		while (socket.getFifoOccupancy() > 0) Thread.sleep(1);
+
+		// Each client NACKs other packets
+		List<List<byte[]>> nacked = new ArrayList<>();
+		for (int i = 0; i < SINKS; i++) {
+			List<byte[]> packets = captures[i].getPackets(), requested = new ArrayList<>();
+			assertTrue(packets.size() > 50);
+			for (int n = 3+i; n < packets.size(); n += 11) {
+				assertTrue(history.request(seq(packets.get(n)), sinks[i]));
+				requested.add(packets.get(n));
+			}
+			nacked.add(requested);
+		}
+
+		// The retransmissions go out when the socket wakes up for the next packets
+		send(packetizer, encoder, 2);
+		Samples.close(socket);
+
+		int retransmitted = 0;
+		for (int i = 0; i < SINKS; i++) {
+			List<byte[]> packets = captures[i].getPackets();
+			for (byte[] packet : nacked.get(i)) {
+				int count = 0;
+				for (byte[] p : packets) {
+					if (seq(p) != seq(packet)) continue;
+					assertArrayEquals("Sink "+i+", packet "+seq(packet), packet, p);
+					count++;
+				}
+				assertEquals("Sink "+i+", packet "+seq(packet), 2, count);
+				retransmitted++;
+			}
+			sinks[i].close();
+		}
+		assertEquals(retransmitted, history.getRetransmittedPackets());
+	}
+
+	/** A paused client is removed from the socket and added back, the other clients do not notice. */
+	@Test
+	public void testPauseAndResume() throws IOException, InterruptedException {
+		StubEncoder encoder = StubEncoder.fromStream(Samples.h264(), false, 30);
+		H264Packetizer packetizer = new H264Packetizer();
+		RtpSocket socket = packetizer.getRtpSocket();
+		GopCache cache = new GopCache(GopCache.DEFAULT_MAX_BYTES);
+		socket.setCacheSize(0);
+		socket.setFanOut(true);
+		socket.setGopCache(cache);
+		RtpSink playing = new RtpSink(), paused = new RtpSink();
+		Capture playingCapture = new Capture(), pausedCapture = new Capture();
+		playing.setOutputStream(playingCapture, (byte) 0);
+		paused.setOutputStream(pausedCapture, (byte) 0);
+		socket.addSink(playing);
+		socket.addSink(paused);
+
+		send(packetizer, encoder, 5);
+		while (socket.getFifoOccupancy() > 0) Thread.sleep(1);
+		socket.removeSink(paused);
+		int before = pausedCapture.getPackets().size(), playingBefore = playingCapture.getPackets().size();
+		send(packetizer, encoder, 10);
+		while (socket.getFifoOccupancy() > 0) Thread.sleep(1);
+		assertEquals(before, pausedCapture.getPackets().size());
+		assertTrue(playingCapture.getPackets().size() > playingBefore);
+
+		// The client gets the current group of pictures, then the live packets
+		playingBefore = playingCapture.getPackets().size();
+		socket.addSink(paused);
+		send(packetizer, encoder, 1);
+		Samples.close(socket);
+		List<byte[]> packets = pausedCapture.getPackets();
+		int live = playingCapture.getPackets().size()-playingBefore;
+		assertEquals(1, cache.getReplays());
+		assertEquals(cache.getReplayedPackets(), packets.size()-before-live);
+		// Its sequence numbers go on where they stopped
+		for (int i = 1; i < packets.size(); i++) {
+			assertEquals("Packet "+i, (seq(packets.get(i-1))+1) & 0xFFFF, seq(packets.get(i)));
+		}
+		playing.close();
+		paused.close();
+	}
+
+	private static void send(H264Packetizer packetizer, StubEncoder encoder, int frames) throws IOException, InterruptedException {
+		for (int i = 0; i < frames; i++) {
+			AccessUnit unit = encoder.readAccessUnit();
+			try {
+				packetizer.send(unit);
+			} finally {
+				unit.release();
+			}
+		}
+	}
+
+	private static int seq(byte[] packet) {
+		return (packet[2]&0xFF)<<8 | (packet[3]&0xFF);
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The handoff of a packet from a packetizer to the Thread of an RtpSocket: {@link RtpSocket#requestBuffer()}, 
+ * {@link RtpSocket#updateTimestamp(long)} and {@link RtpSocket#commitBuffer(int)}. The Thread of the socket 
+ * writes the packets to a null stream, the packetizer waits when the FIFO is full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtpSocketBenchmark {
+
+	@Param({"1200"})
+	public int length;
+
+	private RtpSocket mSocket;
+	private long mTimestamp = 0;
+
+	@Setup
+	public void setUp() {
+		mSocket = new RtpSocket();
+		mSocket.setOutputStream(Samples.NULL, (byte) 0);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		Samples.close(mSocket);
+	}
+
+	@Benchmark
+	public void handoff() throws IOException, InterruptedException {
+		mSocket.requestBuffer();
+		mSocket.updateTimestamp(mTimestamp += 1000);
+		mSocket.commitBuffer(length);
+	}
+
+}
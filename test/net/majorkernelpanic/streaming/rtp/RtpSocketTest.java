@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Closing an {@link RtpSocket} while its Thread is still sending the packets of the FIFO: the Thread
+ * stops before the buffers go back to the {@link BufferPool}, and each output buffer of the encoder
+ * is released once.
+ */
+public class RtpSocketTest {
+
+	/** A connection that takes a while to write each packet. */
+	private static class SlowOutput extends OutputStream {
+
+		final AtomicInteger mWrites = new AtomicInteger();
+		volatile Thread mThread;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mThread = Thread.currentThread();
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			mWrites.incrementAndGet();
+		}
+
+	}
+
+	/** Counts the output buffers given back to the encoder. */
+	private static class CountingEncoder extends StubEncoder {
+
+		final AtomicInteger mReleased = new AtomicInteger();
+
+		CountingEncoder(StubEncoder encoder) throws IOException {
+			super(frames(encoder), null, 33333);
+		}
+
+		@Override
+		public void releaseOutputBuffer(int index) {
+			mReleased.incrementAndGet();
+			super.releaseOutputBuffer(index);
+		}
+
+		private static byte[][] frames(StubEncoder encoder) throws IOException {
+			byte[][] frames = new byte[20][];
+			for (int i = 0; i < frames.length; i++) {
+				AccessUnit unit = encoder.readAccessUnit();
+				frames[i] = new byte[unit.getSize()];
+				unit.copy(unit.getOffset(), frames[i], 0, frames[i].length);
+				unit.release();
+			}
+			return frames;
+		}
+
+	}
+
+	@Test
+	public void testCloseWhileSending() throws Exception {
+		CountingEncoder encoder = new CountingEncoder(StubEncoder.fromStream(Samples.h264(), false, 30));
+		for (int n = 0; n < 5; n++) {
+			H264Packetizer packetizer = new H264Packetizer();
+			RtpSocket socket = packetizer.getRtpSocket();
+			SlowOutput output = new SlowOutput();
+			socket.setCacheSize(0);
+			socket.setOutputStream(output, (byte) 0);
+			for (int i = 0; i < 3; i++) {
+				AccessUnit unit = encoder.readAccessUnit();
+				try {
+					packetizer.send(unit);
+				} finally {
+					unit.release();
+				}
+			}
+			// The Thread of the socket is in the middle of the FIFO
+			while (output.mThread == null) Thread.sleep(1);
+			assertTrue(socket.getFifoOccupancy() > 0);
+
+			socket.close();
+			assertTrue(output.mThread.getName(), !output.mThread.isAlive());
+			int writes = output.mWrites.get();
+			Thread.sleep(20);
+			// Nothing is sent once the socket is closed
+			assertEquals(writes, output.mWrites.get());
+		}
+		assertEquals(encoder.getFrameCount(), encoder.mReleased.get());
+	}
+
+}
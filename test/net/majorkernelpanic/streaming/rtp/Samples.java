@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The recorded streams the tests and the benchmarks run on, and what they need around them.
+ *
+ * The H.264 recording is 20 frames of a 1280x720 screen like picture, an IDR frame every 10 frames,
+ * one slice per frame, preceded by an SPS and a PPS on IDR frames. The H.265 stream is made from it.
+ */
+public class Samples {
+
+	/** The H.264 recording, a resource of the tests. */
+	public final static String H264 = "/screen-720p.h264";
+
+	/** AAC frames are made up for a stream at this bitrate, in bit/s. */
+	public final static int AAC_BITRATE = 128000;
+
+	public final static int AAC_SAMPLING_RATE = 44100;
+
+	/** Where the RtpSockets of the benchmarks write their packets. */
+	public final static OutputStream NULL = new OutputStream() {
+		@Override
+		public void write(int b) {}
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	private Samples() {}
+
+	public static byte[] load(String name) throws IOException {
+		InputStream is = Samples.class.getResourceAsStream(name);
+		if (is == null) throw new IOException(name+" not found");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = is.read(buffer)) > 0) out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	public static byte[] h264() throws IOException {
+		return load(H264);
+	}
+
+	/**
+	 * Returns the H.264 recording with the two bytes NAL unit headers of H.265 instead of the H.264 ones:
+	 * the SPS becomes a VPS and an SPS, the PPS a PPS, IDR slices IDR_W_RADL slices and the other ones TRAIL_R slices.
+	 * The payloads are not valid H.265, only the sizes and the types of the NAL units matter to the packetizer.
+	 */
+	public static byte[] h265() throws IOException {
+		byte[] avc = h264();
+		ByteBuffer data = ByteBuffer.wrap(avc);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(avc.length+avc.length/100);
+		AnnexBSplitter splitter = new AnnexBSplitter();
+		splitter.reset(data, 0, avc.length);
+		while (splitter.next()) {
+			int nal = splitter.getOffset(), length = splitter.getLength();
+			int type;
+			switch (avc[nal]&0x1F) {
+			case 7: 
+				write(out, 32, avc, nal+1, length-1);
+				type = 33;
+				break;
+			case 8: type = 34; break;
+			case 5: type = 19; break;
+			default: type = 1;
+			}
+			write(out, type, avc, nal+1, length-1);
+		}
+		return out.toByteArray();
+	}
+
+	private static void write(ByteArrayOutputStream out, int type, byte[] payload, int offset, int length) {
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(1);
+		// forbidden_zero_bit, nal_unit_type, nuh_layer_id, nuh_temporal_id_plus1
+		out.write(type<<1);
+		out.write(1);
+		out.write(payload, offset, length);
+	}
+
+	/** Repeats a stream up to a length, to make a multi megabyte one. */
+	public static byte[] repeat(byte[] data, int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i += data.length) {
+			System.arraycopy(data, 0, result, i, Math.min(data.length, length-i));
+		}
+		return result;
+	}
+
+	/** 
+	 * Makes up the frames of an AAC LC encoder at {@link #AAC_BITRATE}, without ADTS headers like those 
+	 * of a MediaCodec. Their sizes vary around the mean like those of a real encoder, their content is random.
+	 */
+	public static byte[][] aacFrames(int count) {
+		Random random = new Random(0);
+		int mean = AAC_BITRATE*1024/AAC_SAMPLING_RATE/8;
+		byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			frames[i] = new byte[mean-mean/5+random.nextInt(2*mean/5)];
+			random.nextBytes(frames[i]);
+		}
+		return frames;
+	}
+
+	/** Waits for the Thread of the socket to send what is left in the FIFO, then closes it. */
+	public static void close(RtpSocket socket) throws InterruptedException {
+		while (socket.getFifoOccupancy() > 0) Thread.sleep(1);
+		socket.close();
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import net.majorkernelpanic.streaming.jvm.AnnexBSource;
+
+/**
+ * Stands in for a MediaCodec behind an {@link EncoderInputStream}: gives recorded frames in a loop, 
+ * as fast as they are read. Like a codec, it writes them in a few direct output buffers that the reader 
+ * has to release, and it waits for one to be released when the reader holds all of them.
+ */
+public class StubEncoder extends EncoderInputStream {
+
+	/** Number of output buffers of the stub, a MediaCodec has a few of them too. */
+	public final static int BUFFERS = 8;
+
+	private final byte[][] mFrames;
+	private final int[] mFlags;
+	private final long mPeriodUs;
+	private final ByteBuffer[] mBuffers = new ByteBuffer[BUFFERS];
+	private final ArrayBlockingQueue<Integer> mFree = new ArrayBlockingQueue<>(BUFFERS);
+	private long mCount = 0;
+
+	/**
+	 * @param frames The frames, given in a loop
+	 * @param flags The flags of each frame, see {@link AccessUnit#FLAG_KEY_FRAME}, or null
+	 * @param periodUs The duration of a frame in us, for the presentation times
+	 */
+	public StubEncoder(byte[][] frames, int[] flags, long periodUs) {
+		mFrames = frames;
+		mFlags = flags != null ? flags : new int[frames.length];
+		mPeriodUs = periodUs;
+		int max = 0;
+		for (byte[] frame : frames) max = Math.max(max, frame.length);
+		for (int i = 0; i < BUFFERS; i++) {
+			mBuffers[i] = ByteBuffer.allocateDirect(max);
+			mFree.add(i);
+		}
+	}
+
+	/** Gives the access units of a recorded Annex B stream, see {@link AnnexBSource}. */
+	public static StubEncoder fromStream(byte[] stream, boolean hevc, int fps) throws IOException {
+		AnnexBSource source = AnnexBSource.fromData(stream, hevc, fps);
+		source.setPaced(false);
+		int count = source.getLoopLength();
+		byte[][] frames = new byte[count][];
+		int[] flags = new int[count];
+		for (int i = 0; i < count; i++) {
+			AccessUnit unit = source.readAccessUnit();
+			frames[i] = new byte[unit.getSize()];
+			unit.copy(unit.getOffset(), frames[i], 0, frames[i].length);
+			flags[i] = unit.getFlags();
+			unit.release();
+		}
+		return new StubEncoder(frames, flags, 1000000/fps);
+	}
+
+	/** Returns the number of frames given. */
+	public long getFrameCount() {
+		return mCount;
+	}
+
+	@Override
+	protected void dequeue() throws IOException {
+		if (mClosed) return;
+		int index;
+		try {
+			index = mFree.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		int frame = (int) (mCount % mFrames.length);
+		ByteBuffer buffer = mBuffers[index];
+		buffer.clear();
+		buffer.put(mFrames[frame]);
+		setOutputBuffer(index, buffer, 0, mFrames[frame].length, mCount*mPeriodUs, mFlags[frame], System.nanoTime());
+		mCount++;
+	}
+
+	@Override
+	public void releaseOutputBuffer(int index) {
+		mFree.offer(index);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The H.264 and H.265 packetizers on the recorded stream of {@link Samples}, one access unit of the 
+ * {@link StubEncoder} per operation: splitting it in NAL units, FU-A/FU fragmentation or aggregation, 
+ * and the handoff of the packets to the FIFO of the RtpSocket. The Thread of the socket writes them to a null stream, as over TCP.
+ * The packets are at most as long as the MTU allows, or as long as 64 KB with large packets over TCP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VideoPacketizerBenchmark {
+
+	@Param({"h264", "h265"})
+	public String codec;
+
+	/** See {@link RtpSocket#setMaxTcpPacketSize(int)}, 0 for packets as long as the MTU allows. */
+	@Param({"0", "65535"})
+	public int maxTcpPacketSize;
+
+	private StubEncoder mEncoder;
+	private H264Packetizer mH264;
+	private H265Packetizer mH265;
+	private RtpSocket mSocket;
+
+	@Setup
+	public void setUp() throws IOException {
+		boolean hevc = codec.equals("h265");
+		mEncoder = StubEncoder.fromStream(hevc ? Samples.h265() : Samples.h264(), hevc, 30);
+		AbstractPacketizer packetizer = hevc ? (mH265 = new H265Packetizer()) : (mH264 = new H264Packetizer());
+		mSocket = packetizer.getRtpSocket();
+		mSocket.setCacheSize(0);
+		mSocket.setOutputStream(Samples.NULL, (byte) 0);
+		mSocket.setMaxTcpPacketSize(maxTcpPacketSize);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		Samples.close(mSocket);
+	}
+
+	@Benchmark
+	public void packetize() throws IOException, InterruptedException {
+		AccessUnit unit = mEncoder.readAccessUnit();
+		try {
+			if (mH264 != null) mH264.send(unit);
+			else mH265.send(unit);
+		} finally {
+			unit.release();
+		}
+	}
+
+}
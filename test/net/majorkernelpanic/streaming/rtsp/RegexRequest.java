@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parser of the requests that {@link RtspServer} had before {@link RequestProcessor.Request} parsed them in place,
+ * kept to compare them in {@link RequestParserBenchmark}. Its logs have been removed.
+ */
+class RegexRequest {
+
+	// Parse method & uri
+	public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
+	// Parse a request header
+	public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+
+	public String method;
+	public String uri;
+	public HashMap<String,String> headers = new HashMap<>();
+
+	/** Parse the method, uri & headers of a RTSP request */
+	public static RegexRequest parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		RegexRequest request = new RegexRequest();
+		String line;
+		Matcher matcher;
+
+		// Parsing request method & uri
+		if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
+		matcher = regexMethod.matcher(line);
+		matcher.find();
+		request.method = matcher.group(1);
+		request.uri = matcher.group(2);
+
+		// Parsing headers of the request
+		while ( (line = input.readLine()) != null && line.length()>3 ) {
+			matcher = rexegHeader.matcher(line);
+			matcher.find();
+			request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+		}
+		if (line==null) throw new SocketException("Client disconnected");
+
+		return request;
+	}
+
+	/** The CSeq, as the response parsed it. */
+	public int getCSeq() {
+		return Integer.parseInt(headers.get("cseq").replace(" ",""));
+	}
+
+	/** The trackID and the client ports of a SETUP, as the server parsed them. */
+	public int[] getSetup() {
+		Pattern p;
+		Matcher m;
+		int p1 = -1, p2 = -1, trackId;
+
+		p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
+		m = p.matcher(uri);
+		if (!m.find()) return null;
+		trackId = Integer.parseInt(m.group(1));
+
+		p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+		m = p.matcher(headers.get("transport"));
+		if (m.find()) {
+			p1 = Integer.parseInt(m.group(1));
+			if (m.group(2) == null) {
+				p2 = p1+1;
+			} else {
+				p2 = Integer.parseInt(m.group(2));
+			}
+		}
+		return new int[] {trackId, p1, p2};
+	}
+
+}
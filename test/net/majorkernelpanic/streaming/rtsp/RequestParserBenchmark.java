@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import net.majorkernelpanic.streaming.rtsp.RequestProcessor.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The parser of the requests, in place in the buffer of the connection, against the regexes of {@link RegexRequest}
+ * that read the lines of the connection with a BufferedReader. Both do what the server needs from a request: its method,
+ * uri and CSeq, and the trackID and client ports of a SETUP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+
+	private final static String DESCRIBE = "DESCRIBE rtsp://192.168.1.2:8086/ RTSP/1.0\r\n" +
+			"CSeq: 2\r\n" +
+			"User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+			"Accept: application/sdp\r\n" +
+			"\r\n";
+
+	@Param({"OPTIONS", "DESCRIBE", "SETUP"})
+	public String method;
+
+	private byte[] mData;
+	private final Request mRequest = new Request();
+	private BufferedReader mReader;
+
+	/** A connection that sends the same request over and over. */
+	private static class Loop extends InputStream {
+
+		private final byte[] mData;
+		private int mPosition = 0;
+
+		Loop(byte[] data) {
+			mData = data;
+		}
+
+		@Override
+		public int read() {
+			int b = mData[mPosition]&0xFF;
+			mPosition = (mPosition+1)%mData.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			int n = Math.min(length, mData.length-mPosition);
+			System.arraycopy(mData, mPosition, buffer, offset, n);
+			mPosition = (mPosition+n)%mData.length;
+			return n;
+		}
+
+	}
+
+	@Setup
+	public void setUp() {
+		String request = method.equals("OPTIONS") ? RequestTest.OPTIONS : method.equals("SETUP") ? RequestTest.SETUP : DESCRIBE;
+		mData = RequestTest.bytes(request);
+		mReader = new BufferedReader(new InputStreamReader(new Loop(mData)));
+	}
+
+	@Benchmark
+	public void inPlace(Blackhole blackhole) {
+		mRequest.set(mData, 0, mData.length);
+		mRequest.parse();
+		blackhole.consume(mRequest.uri);
+		blackhole.consume(mRequest.cseq);
+		blackhole.consume(mRequest.trackId+mRequest.clientPort1+mRequest.clientPort2);
+	}
+
+	@Benchmark
+	public void regex(Blackhole blackhole) throws IOException {
+		RegexRequest request = RegexRequest.parseRequest(mReader);
+		blackhole.consume(request.uri);
+		blackhole.consume(request.getCSeq());
+		if (request.method.equalsIgnoreCase("SETUP")) blackhole.consume(request.getSetup());
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import net.majorkernelpanic.streaming.rtsp.RequestProcessor.Request;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The parser of the requests of {@link RequestProcessor}: well-formed requests, then malformed ones, truncated ones,
+ * non-ASCII bytes and random mutations. Whatever it is given, it either parses it or throws an
+ * {@link IllegalStateException}, which the server answers with a 400.
+ */
+public class RequestTest {
+
+	final static String SETUP = "SETUP rtsp://192.168.1.2:8086/trackID=1 RTSP/1.0\r\n" +
+			"CSeq: 3\r\n" +
+			"Authorization: Basic dXNlcjpwYXNz\r\n" +
+			"Transport: RTP/AVP/UDP;unicast;client_port=5000-5001\r\n" +
+			"Session: 0123456789abcdef;timeout=60\r\n" +
+			"User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n" +
+			"\r\n";
+
+	final static String GET_PARAMETER = "GET_PARAMETER rtsp://192.168.1.2:8086/ RTSP/1.0\r\n" +
+			"CSeq: 7\r\n" +
+			"Content-Type: text/parameters\r\n" +
+			"Content-Length: 17\r\n" +
+			"\r\n" +
+			"metrics\r\nsessions\r\n";
+
+	final static String OPTIONS = "OPTIONS rtsp://192.168.1.2:8086/ RTSP/1.0\r\nCSeq: 1\r\n\r\n";
+
+	private final Request mRequest = new Request();
+
+	@Test
+	public void testSetup() {
+		parse(SETUP);
+		assertSame(Request.SETUP, mRequest.method);
+		assertEquals(2, mRequest.methodIndex);
+		assertEquals("rtsp://192.168.1.2:8086/trackID=1", mRequest.uri);
+		assertEquals(3, mRequest.cseq);
+		assertEquals(1, mRequest.trackId);
+		assertEquals(5000, mRequest.clientPort1);
+		assertEquals(5001, mRequest.clientPort2);
+		assertEquals("0123456789abcdef", mRequest.session);
+		assertEquals("Basic dXNlcjpwYXNz", mRequest.authorization);
+		assertEquals(0, mRequest.contentLength);
+	}
+
+	@Test
+	public void testGetParameter() {
+		parse(GET_PARAMETER);
+		assertSame(Request.GET_PARAMETER, mRequest.method);
+		assertEquals(7, mRequest.cseq);
+		assertEquals(17, mRequest.contentLength);
+		assertTrue(mRequest.hasParameter("metrics"));
+		assertTrue(mRequest.hasParameter("sessions"));
+		assertFalse(mRequest.hasParameter("metric"));
+	}
+
+	/** The methods and the names of the headers are not case sensitive, lines may end with LF only. */
+	@Test
+	public void testCaseAndLineEndings() {
+		parse("setup rtsp://h/TRACKID=0 rtsp/1.0\ncseq:12\ntransport: RTP/AVP;CLIENT_PORT=6000\n\n");
+		assertSame(Request.SETUP, mRequest.method);
+		assertEquals(12, mRequest.cseq);
+		assertEquals(0, mRequest.trackId);
+		assertEquals(6000, mRequest.clientPort1);
+		assertEquals(6001, mRequest.clientPort2);
+	}
+
+	/** Nothing is left from the previous request of a connection. */
+	@Test
+	public void testReuse() {
+		parse(SETUP);
+		parse(OPTIONS);
+		assertSame(Request.OPTIONS, mRequest.method);
+		assertEquals(1, mRequest.cseq);
+		assertEquals(-1, mRequest.trackId);
+		assertEquals(-1, mRequest.clientPort1);
+		assertEquals(-1, mRequest.clientPort2);
+		assertNull(mRequest.session);
+		assertNull(mRequest.authorization);
+		assertFalse(mRequest.hasParameter("metrics"));
+	}
+
+	@Test
+	public void testUnknownMethod() {
+		parse("RECORD rtsp://h/ RTSP/1.0\r\nCSeq: 2\r\n\r\n");
+		assertEquals("RECORD", mRequest.method);
+		assertEquals(Request.METHODS.length, mRequest.methodIndex);
+	}
+
+	@Test
+	public void testMalformedRequestLines() {
+		String[] lines = {
+				"", "\r\n", "OPTIONS", "OPTIONS\r\n\r\n", "OPTIONS rtsp://h/\r\n\r\n", "OPTIONS  RTSP/1.0\r\n\r\n",
+				" OPTIONS rtsp://h/ RTSP/1.0\r\n\r\n", "OPT IONS rtsp://h/ RTSP/1.0\r\n\r\n", "OPTIONS rtsp://h/ HTTP/1.1\r\n\r\n",
+				"OPTIONS\trtsp://h/ RTSP/1.0\r\n\r\n", "OPTIÉNS rtsp://h/ RTSP/1.0\r\n\r\n", "GET / HTTP/1.1\r\nHost: h\r\n\r\n"
+		};
+		for (String line : lines) {
+			assertMalformed(line);
+		}
+	}
+
+	@Test
+	public void testMalformedHeaders() {
+		String[] headers = {"CSeq 3", ": 3", "CSeq", "ÿþ"};
+		for (String header : headers) {
+			assertMalformed("OPTIONS rtsp://h/ RTSP/1.0\r\n"+header+"\r\n\r\n");
+		}
+	}
+
+	/** Headers whose values can't be parsed are ignored. */
+	@Test
+	public void testInvalidValues() {
+		parse("SETUP rtsp://h/trackID=x RTSP/1.0\r\nCSeq: -3\r\nTransport: client_port=-5000\r\nContent-Length: abc\r\nSession:\r\n\r\n");
+		assertEquals(-1, mRequest.cseq);
+		assertEquals(-1, mRequest.trackId);
+		assertEquals(-1, mRequest.clientPort1);
+		assertEquals(0, mRequest.contentLength);
+		assertEquals("", mRequest.session);
+	}
+
+	/** Numbers are parsed up to 9 digits, they can't overflow. */
+	@Test
+	public void testOversizedContentLength() throws IOException {
+		parse("GET_PARAMETER rtsp://h/ RTSP/1.0\r\nCSeq: 99999999999999999999\r\nContent-Length: 99999999999999999999\r\n\r\nmetrics");
+		assertEquals(999999999, mRequest.cseq);
+		assertEquals(999999999, mRequest.contentLength);
+		// The body is what has been received, not what the header says
+		assertTrue(mRequest.hasParameter("metrics"));
+
+		// Such a request is not even passed to the server, the connection is closed
+		byte[] data = bytes("GET_PARAMETER rtsp://h/ RTSP/1.0\r\nContent-Length: 99999999999999999999\r\n\r\n");
+		try {
+			new RtcpDeinterleaver().parse(ByteBuffer.wrap(data), (buffer, offset, length) -> true);
+			fail("Parsed a request longer than "+RtcpDeinterleaver.MAX_REQUEST_SIZE+" bytes");
+		} catch (IOException expected) {}
+	}
+
+	/** A body shorter than its Content-Length, as the server would get it if the client stopped half way. */
+	@Test
+	public void testTruncatedBody() {
+		String request = GET_PARAMETER.substring(0, GET_PARAMETER.length()-12);
+		parse(request);
+		assertEquals(17, mRequest.contentLength);
+		assertTrue(mRequest.hasParameter("metrics"));
+		assertFalse(mRequest.hasParameter("sessions"));
+	}
+
+	/** Every prefix of the requests is either parsed or refused. */
+	@Test
+	public void testTruncatedRequests() {
+		for (String request : new String[] {SETUP, GET_PARAMETER, OPTIONS}) {
+			byte[] data = bytes(request);
+			for (int length = 0; length <= data.length; length++) {
+				tryParse(data, length);
+			}
+		}
+	}
+
+	/** Bytes above 0x7F in the uri and the values are kept, they never make the parser fail. */
+	@Test
+	public void testNonAsciiBytes() {
+		byte[] data = bytes(SETUP);
+		for (int i = 0; i < data.length; i++) {
+			for (int b : new int[] {0x80, 0xC3, 0xFF}) {
+				byte[] mutated = data.clone();
+				mutated[i] = (byte) b;
+				tryParse(mutated, mutated.length);
+			}
+		}
+		parse("DESCRIBE rtsp://h/été RTSP/1.0\r\nCSeq: 4\r\nUser-Agent: éè\r\n\r\n", StandardCharsets.UTF_8);
+		assertEquals(4, mRequest.cseq);
+		assertTrue(mRequest.uri.startsWith("rtsp://h/"));
+	}
+
+	/** Random mutations of the requests: bytes replaced, inserted, removed, and requests cut. */
+	@Test
+	public void testRandomMutations() {
+		Random random = new Random(42);
+		byte[][] requests = {bytes(SETUP), bytes(GET_PARAMETER), bytes(OPTIONS)};
+		byte[] special = bytes(" :;-=\r\n\t0123456789$");
+		int parsed = 0;
+		for (int n = 0; n < 200000; n++) {
+			byte[] data = requests[random.nextInt(requests.length)];
+			int mutations = 1+random.nextInt(4);
+			for (int m = 0; m < mutations && data.length > 0; m++) {
+				int i = random.nextInt(data.length);
+				byte b = random.nextBoolean() ? special[random.nextInt(special.length)] : (byte) random.nextInt(256);
+				switch (random.nextInt(4)) {
+					case 0:
+						data = data.clone();
+						data[i] = b;
+						break;
+					case 1:
+						data = Arrays.copyOf(data, data.length+1);
+						System.arraycopy(data, i, data, i+1, data.length-i-1);
+						data[i] = b;
+						break;
+					case 2:
+						if (data.length < 2) break;
+						byte[] shorter = new byte[data.length-1];
+						System.arraycopy(data, 0, shorter, 0, i);
+						System.arraycopy(data, i+1, shorter, i, data.length-i-1);
+						data = shorter;
+						break;
+					default:
+						data = Arrays.copyOf(data, i);
+						break;
+				}
+			}
+			if (tryParse(data, data.length)) parsed++;
+		}
+		// Most mutations hit the headers or the uri and are still parsed
+		assertTrue(parsed > 0);
+	}
+
+	/** Parses the request, checks what has been parsed, returns false if the parser has refused it. */
+	private boolean tryParse(byte[] data, int length) {
+		mRequest.set(data, 0, length);
+		try {
+			mRequest.parse();
+		} catch (IllegalStateException e) {
+			return false;
+		} catch (RuntimeException e) {
+			throw new AssertionError("Parser failed on: "+new String(data, 0, length, StandardCharsets.ISO_8859_1), e);
+		}
+		assertTrue(mRequest.method != null && mRequest.method.length() > 0);
+		assertTrue(mRequest.methodIndex >= 0 && mRequest.methodIndex <= Request.METHODS.length);
+		assertTrue(mRequest.uri != null && mRequest.uri.length() > 0);
+		assertTrue(mRequest.cseq >= -1 && mRequest.trackId >= -1 && mRequest.contentLength >= 0);
+		assertTrue(mRequest.clientPort1 >= -1 && mRequest.clientPort2 >= -1);
+		mRequest.hasParameter("metrics");
+		return true;
+	}
+
+	private void assertMalformed(String request) {
+		try {
+			parse(request);
+			fail("Parsed: "+request);
+		} catch (IllegalStateException expected) {}
+	}
+
+	private void parse(String request) {
+		parse(request, StandardCharsets.ISO_8859_1);
+	}
+
+	private void parse(String request, Charset charset) {
+		byte[] data = bytes(request, charset);
+		mRequest.set(data, 0, data.length);
+		mRequest.parse();
+	}
+
+	static byte[] bytes(String string) {
+		return bytes(string, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] bytes(String string, Charset charset) {
+		return string.getBytes(charset);
+	}
+
+}
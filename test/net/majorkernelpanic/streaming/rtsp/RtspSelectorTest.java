@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.majorkernelpanic.streaming.rtp.InterleavedWriter;
+import net.majorkernelpanic.streaming.rtsp.RequestProcessor.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The signaling of the server on the JVM: the connections are accepted and read by an {@link RtspSelector},
+ * their requests parsed and answered by as many workers as {@link RequestProcessor} has, through the {@link InterleavedWriter}
+ * of the connection. The streams themselves need the encoders of a device and are not part of it.
+ */
+public class RtspSelectorTest {
+
+	/** The number of clients that connect at the same time. */
+	private final static int CLIENTS = 500;
+
+	/** How long a client may wait for its response while other clients do not read theirs, in ms. */
+	private final static long MAX_RESPONSE_TIME = 1000;
+
+	/** The body of the responses to a GET_PARAMETER, more than the queue of a connection can hold with the socket buffers. */
+	private final static byte[] LARGE_BODY = new byte[InterleavedWriter.DEFAULT_MAX_BYTES];
+
+	private RtspSelector mSelector;
+	private ExecutorService mWorkers;
+	private final AtomicInteger mRequests = new AtomicInteger(), mFailed = new AtomicInteger(), mClosed = new AtomicInteger();
+
+	/** Answers the requests of a connection from the workers. */
+	private class Handler implements RtspSelector.Handler {
+
+		private final RtspSelector.Client mClient;
+
+		Handler(RtspSelector.Client client) {
+			mClient = client;
+		}
+
+		@Override
+		public boolean onRequest(byte[] data, int offset, int length) {
+			final Request request = new Request();
+			request.set(data, offset, length);
+			mWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					respond(request);
+				}
+			});
+			return true;
+		}
+
+		private void respond(Request request) {
+			request.parse();
+			mRequests.incrementAndGet();
+			byte[] body = request.method == Request.GET_PARAMETER ? LARGE_BODY : new byte[0];
+			String header = "RTSP/1.0 200 OK\r\nCSeq: "+request.cseq+"\r\nContent-Length: "+body.length+"\r\n\r\n";
+			try {
+				OutputStream output = mClient.getOutput();
+				output.write(header.getBytes(StandardCharsets.US_ASCII));
+				output.write(body);
+			} catch (IOException e) {
+				mFailed.incrementAndGet();
+				mClient.close();
+			}
+		}
+
+		@Override
+		public void onClosed() {
+			mClosed.incrementAndGet();
+		}
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mWorkers = Executors.newFixedThreadPool(RequestProcessor.DEFAULT_WORKERS);
+		mSelector = new RtspSelector(0, RtspSelector.DEFAULT_THREADS, Handler::new);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		mSelector.close();
+		mWorkers.shutdownNow();
+		mWorkers.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	/** All the clients connect at once, each one keeps its connection open until all have been answered. */
+	@Test
+	public void testConcurrentClients() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		final CountDownLatch connected = new CountDownLatch(CLIENTS), start = new CountDownLatch(1);
+		final long[] latencies = new long[CLIENTS];
+		Future<?>[] results = new Future<?>[CLIENTS];
+		try {
+			for (int i=0; i<CLIENTS; i++) {
+				final int id = i;
+				results[i] = clients.submit(() -> {
+					start.await();
+					long begin = System.nanoTime();
+					try (Socket socket = connect()) {
+						request(socket, "OPTIONS", 1);
+						latencies[id] = System.nanoTime()-begin;
+						connected.countDown();
+						assertTrue(connected.await(30, TimeUnit.SECONDS));
+						request(socket, "OPTIONS", 2);
+					}
+					return null;
+				});
+			}
+			start.countDown();
+			for (Future<?> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			clients.shutdownNow();
+		}
+
+		assertEquals(2*CLIENTS, mRequests.get());
+		Arrays.sort(latencies);
+		System.out.println(String.format(Locale.US, "%d clients, time to connect and get the first response: p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				CLIENTS, latencies[CLIENTS/2]/1e6, latencies[CLIENTS*99/100]/1e6, latencies[CLIENTS-1]/1e6));
+	}
+
+	/**
+	 * More clients than there are workers pipeline requests and never read their connection. The workers
+	 * never wait for them: their connections are closed as soon as a response does not fit in their queue,
+	 * and a client that reads is answered at once.
+	 */
+	@Test
+	public void testClientsThatDoNotRead() throws Exception {
+		Socket[] stuck = new Socket[4*RequestProcessor.DEFAULT_WORKERS];
+		try {
+			for (int i=0; i<stuck.length; i++) {
+				// A small window, so that the responses fill the socket buffers soon
+				stuck[i] = new Socket();
+				stuck[i].setReceiveBufferSize(4096);
+				stuck[i].connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), mSelector.getLocalPort()));
+				stuck[i].setSoTimeout(20000);
+				StringBuilder requests = new StringBuilder();
+				for (int cseq=1; cseq<=64; cseq++) {
+					requests.append("GET_PARAMETER rtsp://localhost/ RTSP/1.0\r\nCSeq: ").append(cseq).append("\r\n\r\n");
+				}
+				stuck[i].getOutputStream().write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+			}
+
+			long begin = System.nanoTime();
+			try (Socket socket = connect()) {
+				request(socket, "OPTIONS", 1);
+			}
+			long elapsed = (System.nanoTime()-begin)/1000000;
+			assertTrue("Answered after "+elapsed+" ms", elapsed < MAX_RESPONSE_TIME);
+
+			// The connections of the clients that do not read are closed, and so is the one of the last client
+			long deadline = System.currentTimeMillis() + 10000;
+			while (mClosed.get() < stuck.length+1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(stuck.length+1, mClosed.get());
+			assertTrue(mFailed.get() >= stuck.length);
+			for (Socket socket : stuck) {
+				assertTrue(isClosed(socket));
+			}
+		} finally {
+			for (Socket socket : stuck) {
+				if (socket != null) socket.close();
+			}
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), mSelector.getLocalPort());
+		socket.setSoTimeout(20000);
+		return socket;
+	}
+
+	/** Sends a request and reads its response, checks its status and CSeq. */
+	private static void request(Socket socket, String method, int cseq) throws IOException {
+		String request = method+" rtsp://localhost/ RTSP/1.0\r\nCSeq: "+cseq+"\r\n\r\n";
+		socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+		InputStream input = socket.getInputStream();
+		StringBuilder response = new StringBuilder();
+		int c;
+		while (response.indexOf("\r\n\r\n") < 0 && (c = input.read()) >= 0) {
+			response.append((char) c);
+		}
+		assertTrue(response.toString(), response.toString().startsWith("RTSP/1.0 200 OK\r\nCSeq: "+cseq+"\r\n"));
+	}
+
+	/** Reads what the connection still holds, returns true once it has been closed by the server. */
+	private static boolean isClosed(Socket socket) throws IOException {
+		byte[] buffer = new byte[64*1024];
+		try {
+			while (socket.getInputStream().read(buffer) >= 0);
+			return true;
+		} catch (SocketException e) {
+			// Reset by the server
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import net.majorkernelpanic.streaming.rtp.StubEncoder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The {@link EncoderPool}: reuse by configuration, eviction of the encoder kept the longest, expiry at the end
+ * of the grace period, and the times to the first packet it records. MediaCodec needs a device, the pool keeps
+ * {@link StubEncoder}s instead.
+ */
+public class EncoderPoolTest {
+
+	/** An encoder of the pool, what {@link VideoStream.Encoder} is on a device. */
+	private static class Entry extends EncoderPool.Entry {
+
+		final StubEncoder mEncoder;
+		volatile boolean mReleased = false;
+
+		Entry(String key) {
+			super(key);
+			mEncoder = new StubEncoder(new byte[][] {{0, 0, 0, 1, 0x65}}, null, 33333);
+		}
+
+		@Override
+		void release() {
+			mEncoder.close();
+			mReleased = true;
+		}
+
+	}
+
+	@Test
+	public void testReuse() {
+		EncoderPool<Entry> pool = new EncoderPool<>();
+		Entry a = new Entry("a"), b = new Entry("b");
+		pool.put(a, 10000);
+		pool.put(b, 10000);
+		assertNull(pool.take("c"));
+		assertSame(b, pool.take("b"));
+		assertNull(pool.take("b"));
+		assertSame(a, pool.take("a"));
+		assertEquals(0, pool.getIdleCount());
+		assertFalse(a.mReleased || b.mReleased);
+	}
+
+	/** Past {@link EncoderPool#MAX_IDLE}, the encoder kept the longest is released. */
+	@Test
+	public void testMaxIdle() {
+		EncoderPool<Entry> pool = new EncoderPool<>();
+		Entry[] codecs = new Entry[EncoderPool.MAX_IDLE+1];
+		for (int i = 0; i < codecs.length; i++) {
+			codecs[i] = new Entry("same");
+			pool.put(codecs[i], 10000);
+		}
+		assertTrue(codecs[0].mReleased);
+		assertEquals(EncoderPool.MAX_IDLE, pool.getIdleCount());
+		assertSame(codecs[1], pool.take("same"));
+		assertFalse(codecs[1].mReleased);
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		EncoderPool<Entry> pool = new EncoderPool<>();
+		Entry shortLived = new Entry("a"), longLived = new Entry("b");
+		pool.put(longLived, 10000);
+		pool.put(shortLived, 50);
+		long deadline = System.currentTimeMillis()+5000;
+		while (!shortLived.mReleased && System.currentTimeMillis() < deadline) Thread.sleep(5);
+		assertTrue(shortLived.mReleased);
+		assertEquals(1, pool.getExpiredCount());
+		assertNull(pool.take("a"));
+		assertSame(longLived, pool.take("b"));
+		assertFalse(longLived.mReleased);
+	}
+
+	@Test
+	public void testClear() {
+		EncoderPool<Entry> pool = new EncoderPool<>();
+		Entry a = new Entry("a"), b = new Entry("b");
+		pool.put(a, 10000);
+		pool.put(b, 10000);
+		pool.clear();
+		assertTrue(a.mReleased && b.mReleased);
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(0, pool.getExpiredCount());
+	}
+
+	@Test
+	public void testFirstPacketTimes() {
+		EncoderPool<Entry> pool = new EncoderPool<>();
+		pool.onFirstPacket(false, 300);
+		pool.onFirstPacket(false, 500);
+		pool.onFirstPacket(true, 40);
+		assertEquals(2, pool.getColdStarts());
+		assertEquals(1, pool.getWarmStarts());
+		assertEquals(400, pool.getColdStartTime());
+		assertEquals(40, pool.getWarmStartTime());
+	}
+
+}